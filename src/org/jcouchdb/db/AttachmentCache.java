@@ -0,0 +1,469 @@
+package org.jcouchdb.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jcouchdb.document.Attachment;
+import org.jcouchdb.util.Assert;
+import org.jcouchdb.util.Base64Util;
+import org.jcouchdb.util.BufferPool;
+import org.jcouchdb.util.ExceptionWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local disk cache for attachment content, see {@link Database#setAttachmentCache(AttachmentCache)}.
+ * <p>
+ * The content is stored in files keyed by the Base64 encoded MD5 digest of the content, which is the digest couchdb
+ * reports in the <code>_attachments</code> stubs as <code>md5-&lt;digest&gt;</code>. Identical content is stored
+ * once. For every attachment URI, the cache remembers the ETag and the content key of the last response, so the
+ * content can be revalidated with <code>If-None-Match</code>. If the stub of an attachment is known, its content is
+ * served without any request.
+ * </p>
+ * <p>
+ * The total size of the files is kept below {@link #getMaxSize()} by deleting the least recently used files. Files
+ * in the cache directory from earlier runs are reused. Content larger than the maximum size is not cached. Cached
+ * content is opened while the cache is locked, so files evicted by concurrent requests stay readable until the
+ * stream is closed.
+ * </p>
+ */
+public class AttachmentCache
+{
+    private final static String DIGEST_PREFIX = "md5-";
+
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Maximum number of URIs whose ETags are remembered.
+     */
+    private final static int MAX_URIS = 100000;
+
+    private static Logger log = LoggerFactory.getLogger(AttachmentCache.class);
+
+    private final File directory;
+
+    private final long maxSize;
+
+    /**
+     * Sizes of the cached files by content key in access order.
+     */
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private final Map<String, String[]> uris = new LinkedHashMap<String, String[]>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest)
+        {
+            return size() > MAX_URIS;
+        }
+    };
+
+    private long size;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a cache in the given directory.
+     *
+     * @param directory     cache directory, created if it does not exist
+     * @param maxSize       maximum total size of the cached files in bytes
+     */
+    public AttachmentCache(File directory, long maxSize)
+    {
+        Assert.notNull(directory, "directory can't be null");
+        Assert.isTrue(maxSize > 0, "max size must be positive");
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IllegalArgumentException("Can't create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        File[] existing = directory.listFiles();
+        Arrays.sort(existing, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                return a.lastModified() < b.lastModified() ? -1 : (a.lastModified() > b.lastModified() ? 1 : 0);
+            }
+        });
+        for (File file : existing)
+        {
+            if (file.getName().endsWith(TEMP_SUFFIX))
+            {
+                file.delete();
+            }
+            else if (file.isFile())
+            {
+                String key = keyFromFileName(file.getName());
+                if (key != null)
+                {
+                    files.put(key, file.length());
+                    size += file.length();
+                }
+            }
+        }
+        evict(null);
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Returns the total size of the cached files in bytes.
+     *
+     * @return
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the number of requests served from the cache.
+     *
+     * @return
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of requests that had to fetch the content.
+     *
+     * @return
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the content key for the digest of an attachment stub.
+     *
+     * @param digest    digest as reported by couchdb, e.g. <code>md5-XlPAJvA2fd+J8OLGpXUUEg==</code>
+     * @return key or <code>null</code> if the digest is no MD5 digest
+     */
+    public static String keyFromDigest(String digest)
+    {
+        return digest != null && digest.startsWith(DIGEST_PREFIX) ? digest.substring(DIGEST_PREFIX.length()) : null;
+    }
+
+    /**
+     * Returns the cached file with the given content key and marks it as recently used. The file may be evicted
+     * at any time, use {@link #open(String)} to read it.
+     *
+     * @param key   content key
+     * @return file or <code>null</code>
+     */
+    public synchronized File get(String key)
+    {
+        if (key == null || files.get(key) == null)
+        {
+            return null;
+        }
+        File file = new File(directory, fileName(key));
+        if (!file.exists())
+        {
+            size -= files.remove(key);
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Opens the cached file with the given content key and marks it as recently used. The stream can be read to
+     * the end even if the file is evicted meanwhile.
+     *
+     * @param key   content key
+     * @return stream or <code>null</code>
+     */
+    public synchronized FileInputStream open(String key)
+    {
+        File file = get(key);
+        if (file == null)
+        {
+            return null;
+        }
+        try
+        {
+            return new FileInputStream(file);
+        }
+        catch (FileNotFoundException e)
+        {
+            size -= files.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the cached file for the stub of an attachment, counting a hit if there is one.
+     *
+     * @param stub  attachment stub
+     * @return stream or <code>null</code>
+     */
+    FileInputStream openByStub(Attachment stub)
+    {
+        FileInputStream is = stub != null ? open(keyFromDigest(stub.getDigest())) : null;
+        if (is != null)
+        {
+            hitCount.incrementAndGet();
+        }
+        return is;
+    }
+
+    /**
+     * Returns the ETag of the last response for the given URI if its content is still cached.
+     *
+     * @param uri   attachment URI
+     * @return
+     */
+    synchronized String getETag(String uri)
+    {
+        String[] entry = uris.get(uri);
+        return entry != null && files.containsKey(entry[1]) ? entry[0] : null;
+    }
+
+    /**
+     * Opens the cached content for the given URI after a <code>304 Not Modified</code> response.
+     *
+     * @param uri   attachment URI
+     * @return stream or <code>null</code> if the content has been evicted meanwhile
+     */
+    FileInputStream openRevalidated(String uri)
+    {
+        String[] entry;
+        synchronized(this)
+        {
+            entry = uris.get(uri);
+        }
+        FileInputStream is = entry != null ? open(entry[1]) : null;
+        if (is != null)
+        {
+            hitCount.incrementAndGet();
+        }
+        return is;
+    }
+
+    /**
+     * Stores the content read from the given stream and remembers it for the given URI. Content larger than the
+     * maximum size is only kept in a temporary file until the returned stream is closed.
+     *
+     * @param uri       attachment URI
+     * @param etag      ETag of the response or <code>null</code>
+     * @param in        content. Is not closed.
+     * @return stream on the stored content
+     */
+    FileInputStream put(String uri, String etag, InputStream in)
+    {
+        missCount.incrementAndGet();
+
+        File temp = null;
+        BufferPool pool = BufferPool.defaultPool();
+        byte[] buffer = pool.acquire();
+        try
+        {
+            temp = File.createTempFile("attachment", TEMP_SUFFIX, directory);
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            long length = 0;
+            FileOutputStream os = new FileOutputStream(temp);
+            try
+            {
+                int count;
+                while ((count = in.read(buffer)) != -1)
+                {
+                    md5.update(buffer, 0, count);
+                    os.write(buffer, 0, count);
+                    length += count;
+                }
+            }
+            finally
+            {
+                os.close();
+            }
+
+            if (length > maxSize)
+            {
+                log.debug("Not caching {} with {} bytes", uri, length);
+                return new TemporaryFileInputStream(temp);
+            }
+
+            String key = Base64Util.encodeBase64(md5.digest());
+            File file = new File(directory, fileName(key));
+            synchronized(this)
+            {
+                Long existing = files.get(key);
+                if (existing != null && file.exists())
+                {
+                    temp.delete();
+                }
+                else
+                {
+                    if (existing != null)
+                    {
+                        size -= existing;
+                    }
+                    if (!temp.renameTo(file))
+                    {
+                        file.delete();
+                        if (!temp.renameTo(file))
+                        {
+                            throw new IOException("Can't rename " + temp + " to " + file);
+                        }
+                    }
+                    files.put(key, length);
+                    size += length;
+                    evict(key);
+                }
+                if (etag != null)
+                {
+                    uris.put(uri, new String[] { etag, key });
+                }
+                return new FileInputStream(file);
+            }
+        }
+        catch (IOException e)
+        {
+            if (temp != null)
+            {
+                temp.delete();
+            }
+            throw ExceptionWrapper.wrap(e);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+        finally
+        {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Deletes all cached files.
+     */
+    public synchronized void clear()
+    {
+        for (String key : files.keySet())
+        {
+            new File(directory, fileName(key)).delete();
+        }
+        files.clear();
+        uris.clear();
+        size = 0;
+    }
+
+    /**
+     * Deletes the least recently used files until the size limit is met, except the file with the given key.
+     */
+    private void evict(String keep)
+    {
+        Iterator<Map.Entry<String, Long>> i = files.entrySet().iterator();
+        while (size > maxSize && i.hasNext())
+        {
+            Map.Entry<String, Long> e = i.next();
+            if (e.getKey().equals(keep))
+            {
+                continue;
+            }
+            File file = new File(directory, fileName(e.getKey()));
+            if (!file.delete() && file.exists())
+            {
+                log.warn("Could not delete cached attachment {}", file);
+            }
+            size -= e.getValue();
+            i.remove();
+        }
+    }
+
+    /**
+     * Returns the hex encoded key, as the Base64 characters are not safe in file names on every file system.
+     */
+    private static String fileName(String key)
+    {
+        StringBuilder sb = new StringBuilder(key.length() * 2);
+        for (int i = 0; i < key.length(); i++)
+        {
+            char c = key.charAt(i);
+            sb.append(Character.forDigit((c >> 4) & 0xf, 16)).append(Character.forDigit(c & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String keyFromFileName(String name)
+    {
+        if (name.length() % 2 != 0)
+        {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(name.length() / 2);
+        for (int i = 0; i < name.length(); i += 2)
+        {
+            int hi = Character.digit(name.charAt(i), 16);
+            int lo = Character.digit(name.charAt(i + 1), 16);
+            if (hi < 0 || lo < 0)
+            {
+                return null;
+            }
+            sb.append((char)((hi << 4) | lo));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stream on content that is not cached, deleting its file when closed.
+     */
+    private static class TemporaryFileInputStream
+        extends FileInputStream
+    {
+        private final File file;
+
+        public TemporaryFileInputStream(File file) throws FileNotFoundException
+        {
+            super(file);
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                if (!file.delete() && file.exists())
+                {
+                    log.warn("Could not delete {}", file);
+                }
+            }
+        }
+    }
+}
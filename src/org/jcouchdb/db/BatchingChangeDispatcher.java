@@ -0,0 +1,264 @@
+package org.jcouchdb.db;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jcouchdb.document.BatchChangeListener;
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.exception.CouchDBException;
+import org.jcouchdb.util.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Change listener that collects change notifications in a bounded queue and hands them to a
+ * {@link BatchChangeListener} in batches from its own thread. A batch is dispatched as soon as it has reached the
+ * maximum batch size or the maximum delay has passed since its first change arrived.
+ * <p>
+ * If the queue is full, {@link #onChange(ChangeNotification)} blocks, so the thread reading the change feed stops
+ * reading from the connection until the batch listener has caught up.
+ * </p>
+ * <p>
+ * If the batch listener throws, the dispatcher stops: the failed batch and all queued changes are dropped, the last
+ * sequence stays at the last successful batch and every further {@link #onChange(ChangeNotification)} throws, which
+ * also stops the change feed feeding the dispatcher.
+ * </p>
+ */
+public class BatchingChangeDispatcher
+    implements ChangeListener, SequenceTracker, Closeable
+{
+    public final static int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    public final static int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    public final static long DEFAULT_MAX_DELAY = 1000;
+
+    private final static AtomicInteger dispatcherCount = new AtomicInteger();
+
+    private static Logger log = LoggerFactory.getLogger(BatchingChangeDispatcher.class);
+
+    private final BatchChangeListener listener;
+
+    private final BlockingQueue<ChangeNotification> queue;
+
+    private final int maxBatchSize;
+
+    private final long maxDelay;
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    private volatile long lastSequence = -1;
+
+    private volatile Throwable failure;
+
+    public BatchingChangeDispatcher(BatchChangeListener listener)
+    {
+        this(listener, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Creates a new dispatcher. The dispatcher must be {@link #start() started} before changes are dispatched.
+     *
+     * @param listener          batch listener to dispatch to
+     * @param queueCapacity     maximum number of queued changes
+     * @param maxBatchSize      maximum number of changes per batch
+     * @param maxDelay          maximum number of milliseconds to wait for a batch to fill up
+     */
+    public BatchingChangeDispatcher(BatchChangeListener listener, int queueCapacity, int maxBatchSize, long maxDelay)
+    {
+        Assert.notNull(listener, "listener can't be null");
+        Assert.isTrue(queueCapacity > 0, "queueCapacity must be positive");
+        Assert.isTrue(maxBatchSize > 0, "maxBatchSize must be positive");
+        Assert.isTrue(maxDelay >= 0, "maxDelay can't be negative");
+
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<ChangeNotification>(queueCapacity);
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+
+        thread = new Thread("BatchingChangeDispatcher" + dispatcherCount.incrementAndGet())
+        {
+            @Override
+            public void run()
+            {
+                dispatchLoop();
+            }
+        };
+    }
+
+    /**
+     * Starts the dispatcher thread.
+     */
+    public void start()
+    {
+        thread.start();
+    }
+
+    /**
+     * Queues the given change notification, blocking while the queue is full.
+     *
+     * @throws CouchDBException if the batch listener failed
+     */
+    public void onChange(ChangeNotification changeNotification)
+    {
+        if (closed)
+        {
+            checkFailure();
+            throw new IllegalStateException("dispatcher is closed");
+        }
+
+        try
+        {
+            while (!queue.offer(changeNotification, 100, TimeUnit.MILLISECONDS))
+            {
+                checkFailure();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new CouchDBException("Interrupted while waiting for queue space", e);
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last change dispatched to the batch listener or <code>-1</code>.
+     *
+     * @return
+     */
+    public long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    /**
+     * Returns the exception the batch listener failed with or <code>null</code> if it did not fail.
+     *
+     * @return
+     */
+    public Throwable getFailure()
+    {
+        return failure;
+    }
+
+    private void checkFailure()
+    {
+        Throwable t = failure;
+        if (t != null)
+        {
+            throw new CouchDBException("Batch listener failed after sequence " + lastSequence, t);
+        }
+    }
+
+    /**
+     * Returns the number of changes waiting to be dispatched.
+     *
+     * @return
+     */
+    public int getQueueSize()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Closes the dispatcher. Changes already queued are still dispatched, this method waits until that is done.
+     */
+    public void close()
+    {
+        closed = true;
+
+        if (Thread.currentThread() != thread && thread.isAlive())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting for the dispatcher thread to finish");
+            }
+        }
+    }
+
+    private void dispatchLoop()
+    {
+        try
+        {
+            while (true)
+            {
+                ChangeNotification first = queue.poll(maxDelay > 0 ? maxDelay : 1, TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    if (closed)
+                    {
+                        break;
+                    }
+                    continue;
+                }
+
+                List<ChangeNotification> batch = new ArrayList<ChangeNotification>(maxBatchSize);
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + maxDelay;
+                while (batch.size() < maxBatchSize)
+                {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+
+                    long wait = deadline - System.currentTimeMillis();
+                    if (batch.size() >= maxBatchSize || wait <= 0 || closed)
+                    {
+                        break;
+                    }
+
+                    ChangeNotification next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null)
+                    {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                if (!dispatch(batch))
+                {
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            log.info("Dispatcher thread interrupted, {} changes not dispatched.", queue.size());
+        }
+    }
+
+    /**
+     * Hands the given batch to the listener. If the listener fails, the dispatcher is closed and the queued changes
+     * are dropped without advancing the last sequence.
+     *
+     * @return <code>true</code> if the batch was dispatched
+     */
+    private boolean dispatch(List<ChangeNotification> batch)
+    {
+        long sequence = batch.get(batch.size() - 1).getSequence();
+        try
+        {
+            listener.onChanges(batch, sequence);
+        }
+        catch (Throwable t)
+        {
+            log.error("Error dispatching change batch up to sequence " + sequence + ", stopping dispatcher", t);
+            failure = t;
+            closed = true;
+            queue.clear();
+            return false;
+        }
+        lastSequence = sequence;
+        return true;
+    }
+}
@@ -0,0 +1,48 @@
+package org.jcouchdb.db;
+
+/**
+ * Handle for a continuous change feed started by
+ * {@link Database#startChangeFeed(String, Long, Options, org.jcouchdb.document.ChangeListener)}.
+ */
+public interface ChangeFeed
+{
+    /**
+     * Returns the sequence number of the last change read from the feed.
+     *
+     * @return
+     */
+    long getLastSequence();
+
+    /**
+     * Returns <code>true</code> if the feed has not been stopped yet.
+     *
+     * @return
+     */
+    boolean isRunning();
+
+    /**
+     * Returns how often the feed had to be reopened after the connection was lost or went silent.
+     *
+     * @return
+     */
+    int getReconnectCount();
+
+    /**
+     * Returns the total number of milliseconds the feed was not connected since it was started.
+     *
+     * @return
+     */
+    long getDowntime();
+
+    /**
+     * Returns the processing metrics of the feed's listener.
+     *
+     * @return
+     */
+    ChangeFeedMetrics getMetrics();
+
+    /**
+     * Stops the feed. The connection to the server is aborted and the listener will receive no further changes.
+     */
+    void stop();
+}
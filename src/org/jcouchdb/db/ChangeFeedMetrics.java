@@ -0,0 +1,388 @@
+package org.jcouchdb.db;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jcouchdb.exception.CouchDBException;
+import org.jcouchdb.util.Assert;
+import org.jcouchdb.util.ExceptionWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics of a change feed consumer: the processed sequence, the lag behind the database's update sequence, the
+ * throughput and a histogram of the time the listener takes per change.
+ * <p>
+ * The update sequence is read from {@link Database#getStatus()} every {@link #getUpdateSequenceInterval()}
+ * milliseconds on the scheduler that also checks the liveness of continuous feeds. Refreshing starts when the
+ * update sequence or the lag is first asked for or when the metrics are registered as MBean, and ends with
+ * {@link #release()}. The getters only read the last value, so a slow server never blocks a JMX client. The
+ * metrics can be published via JMX with {@link #registerMBean(String)}.
+ * </p>
+ */
+public class ChangeFeedMetrics
+    implements ChangeFeedMetricsMBean
+{
+    public final static long DEFAULT_UPDATE_SEQUENCE_INTERVAL = 10000;
+
+    /**
+     * Number of latency buckets. Bucket i counts latencies below 2^i microseconds.
+     */
+    private final static int BUCKETS = 32;
+
+    /**
+     * Size of the window the event rate is computed over in seconds.
+     */
+    private final static int RATE_WINDOW = 60;
+
+    private final static AtomicInteger instanceCount = new AtomicInteger();
+
+    private static Logger log = LoggerFactory.getLogger(ChangeFeedMetrics.class);
+
+    private final Database db;
+
+    private long updateSequenceInterval = DEFAULT_UPDATE_SEQUENCE_INTERVAL;
+
+    private volatile long processedSequence = -1;
+
+    private long processedCount;
+
+    private volatile long updateSequence = -1;
+
+    private ScheduledFuture<?> refresh;
+
+    private boolean released;
+
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+    private volatile long maxLatency;
+
+    private final long[] rateCounts = new long[RATE_WINDOW];
+
+    private long rateSecond;
+
+    private final long startTime = System.currentTimeMillis();
+
+    private ObjectName objectName;
+
+    public ChangeFeedMetrics(Database db)
+    {
+        Assert.notNull(db, "db can't be null");
+        this.db = db;
+    }
+
+    public String getDatabaseName()
+    {
+        return db.getName();
+    }
+
+    public long getUpdateSequenceInterval()
+    {
+        return updateSequenceInterval;
+    }
+
+    /**
+     * Sets the number of milliseconds between two requests of the database status. Takes effect when refreshing
+     * starts.
+     *
+     * @param updateSequenceInterval
+     */
+    public void setUpdateSequenceInterval(long updateSequenceInterval)
+    {
+        this.updateSequenceInterval = updateSequenceInterval;
+    }
+
+    /**
+     * Records a processed change.
+     *
+     * @param sequence          sequence of the change
+     * @param latencyNanos      time the listener took to process the change in nanoseconds
+     */
+    public void recordChange(long sequence, long latencyNanos)
+    {
+        processedSequence = sequence;
+
+        long micros = latencyNanos / 1000;
+        int bucket = 0;
+        while (bucket < BUCKETS - 1 && micros >= (1L << bucket))
+        {
+            bucket++;
+        }
+        latencies.incrementAndGet(bucket);
+        if (micros > maxLatency)
+        {
+            maxLatency = micros;
+        }
+
+        synchronized(rateCounts)
+        {
+            processedCount++;
+            long second = System.currentTimeMillis() / 1000;
+            advanceRateWindow(second);
+            rateCounts[(int)(second % RATE_WINDOW)]++;
+        }
+    }
+
+    /**
+     * Records the given sequence as processed without a change, e.g. for the last sequence of an empty poll.
+     *
+     * @param sequence
+     */
+    public void recordSequence(long sequence)
+    {
+        processedSequence = sequence;
+    }
+
+    public long getProcessedSequence()
+    {
+        return processedSequence;
+    }
+
+    public long getProcessedCount()
+    {
+        synchronized(rateCounts)
+        {
+            return processedCount;
+        }
+    }
+
+    /**
+     * Returns the last known update sequence of the database or <code>-1</code> if it has not been read yet.
+     */
+    public long getUpdateSequence()
+    {
+        startRefreshing();
+        return updateSequence;
+    }
+
+    /**
+     * Reads the update sequence of the database. Errors are logged and keep the last known value.
+     */
+    public void refreshUpdateSequence()
+    {
+        try
+        {
+            updateSequence = db.getStatus().getUpdateSequence();
+        }
+        catch (CouchDBException e)
+        {
+            log.warn("Error reading update sequence of " + db.getName(), e);
+        }
+    }
+
+    /**
+     * Schedules the periodic refresh of the update sequence unless it is already scheduled or the metrics have been
+     * released.
+     */
+    public synchronized void startRefreshing()
+    {
+        if (refresh == null && !released)
+        {
+            refresh = ContinuousChangesDriver.watchdog.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    refreshUpdateSequence();
+                }
+            }, 0, Math.max(1, updateSequenceInterval), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops refreshing the update sequence and removes these metrics from the platform MBean server. Feeds call
+     * this when they terminate.
+     */
+    public void release()
+    {
+        synchronized(this)
+        {
+            released = true;
+            if (refresh != null)
+            {
+                refresh.cancel(false);
+                refresh = null;
+            }
+        }
+        unregisterMBean();
+    }
+
+    /**
+     * Returns the number of sequences the consumer is behind the database.
+     */
+    public long getLag()
+    {
+        long updateSeq = getUpdateSequence();
+        if (updateSeq < 0)
+        {
+            return -1;
+        }
+        return Math.max(0, updateSeq - Math.max(processedSequence, 0));
+    }
+
+    /**
+     * Returns the estimated time to work off the lag at the current event rate or <code>-1</code> if there is no
+     * rate yet.
+     */
+    public long getEstimatedLagMillis()
+    {
+        long lag = getLag();
+        if (lag <= 0)
+        {
+            return lag;
+        }
+        double rate = getEventsPerSecond();
+        return rate > 0 ? (long)(lag / rate * 1000) : -1;
+    }
+
+    /**
+     * Returns the number of processed changes per second over the last minute.
+     */
+    public double getEventsPerSecond()
+    {
+        synchronized(rateCounts)
+        {
+            long now = System.currentTimeMillis();
+            advanceRateWindow(now / 1000);
+            long count = 0;
+            for (long c : rateCounts)
+            {
+                count += c;
+            }
+            double seconds = Math.min(RATE_WINDOW, Math.max(1, (now - startTime) / 1000.0));
+            return count / seconds;
+        }
+    }
+
+    /**
+     * Returns the number of processed changes per latency bucket. Bucket i counts latencies below 2^i microseconds,
+     * the last bucket all longer ones.
+     *
+     * @return
+     */
+    public long[] getLatencyHistogram()
+    {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            histogram[i] = latencies.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the upper bound of the latency bucket containing the given percentile in microseconds.
+     *
+     * @param percentile    percentile between 0 and 100
+     * @return
+     */
+    public long getLatencyPercentileMicros(double percentile)
+    {
+        long[] histogram = getLatencyHistogram();
+        long total = 0;
+        for (long count : histogram)
+        {
+            total += count;
+        }
+        if (total == 0)
+        {
+            return 0;
+        }
+
+        long threshold = (long)Math.ceil(total * percentile / 100);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            count += histogram[i];
+            if (count >= threshold)
+            {
+                return Math.min(1L << i, maxLatency);
+            }
+        }
+        return maxLatency;
+    }
+
+    public long getLatencyP50Micros()
+    {
+        return getLatencyPercentileMicros(50);
+    }
+
+    public long getLatencyP99Micros()
+    {
+        return getLatencyPercentileMicros(99);
+    }
+
+    public long getMaxLatencyMicros()
+    {
+        return maxLatency;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     *
+     * @param name  name of the consumer, used in the object name
+     * @return the object name the metrics were registered with
+     */
+    public synchronized ObjectName registerMBean(String name)
+    {
+        try
+        {
+            objectName = new ObjectName("org.jcouchdb:type=ChangeFeed,database=" + ObjectName.quote(db.getName()) +
+                ",name=" + ObjectName.quote(name + "-" + instanceCount.incrementAndGet()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            startRefreshing();
+            return objectName;
+        }
+        catch (JMException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server if they were registered.
+     */
+    public synchronized void unregisterMBean()
+    {
+        if (objectName != null)
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try
+            {
+                if (server.isRegistered(objectName))
+                {
+                    server.unregisterMBean(objectName);
+                }
+            }
+            catch (JMException e)
+            {
+                log.warn("Error unregistering " + objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    private void advanceRateWindow(long second)
+    {
+        if (rateSecond == 0)
+        {
+            rateSecond = second;
+            return;
+        }
+        long elapsed = Math.min(second - rateSecond, RATE_WINDOW);
+        for (long s = 1; s <= elapsed; s++)
+        {
+            rateCounts[(int)((rateSecond + s) % RATE_WINDOW)] = 0;
+        }
+        if (second > rateSecond)
+        {
+            rateSecond = second;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.jcouchdb.db;
+
+/**
+ * JMX interface of {@link ChangeFeedMetrics}.
+ */
+public interface ChangeFeedMetricsMBean
+{
+    String getDatabaseName();
+
+    long getProcessedSequence();
+
+    long getUpdateSequence();
+
+    long getLag();
+
+    long getEstimatedLagMillis();
+
+    long getProcessedCount();
+
+    double getEventsPerSecond();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getMaxLatencyMicros();
+}
@@ -0,0 +1,337 @@
+package org.jcouchdb.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.document.PollingResults;
+import org.jcouchdb.util.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares one continuous change feed of a database between many listeners. Each listener has its own cursor and can
+ * join late: if it wants changes from before the current position of the shared feed, it is caught up by polling
+ * the changes from its own <code>since</code> in a separate thread and then switched over to the shared feed.
+ * When the last listener is unregistered, the shared feed is stopped, the next registration opens it again.
+ * <p>
+ * Use {@link Database#getChangesMultiplexer(String)} to get the multiplexer for a database and filter.
+ * </p>
+ */
+public class ChangesMultiplexer
+    implements Closeable
+{
+    public final static int CATCH_UP_LIMIT = 1000;
+
+    private final static AtomicInteger catchUpCount = new AtomicInteger();
+
+    private static Logger log = LoggerFactory.getLogger(ChangesMultiplexer.class);
+
+    private final Database db;
+
+    private final String filter;
+
+    private final Options options;
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    private ContinuousChangesDriver driver;
+
+    /**
+     * Sequence of the last change fanned out, guarded by this.
+     */
+    private long lastSequence = -1;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a multiplexer for the given database and filter.
+     *
+     * @param db        database
+     * @param filter    name of a filter function to use or <code>null</code> for unfiltered
+     * @param options   extended and user options or <code>null</code>
+     */
+    public ChangesMultiplexer(Database db, String filter, Options options)
+    {
+        Assert.notNull(db, "db can't be null");
+
+        this.db = db;
+        this.filter = filter;
+        this.options = options;
+    }
+
+    public String getFilter()
+    {
+        return filter;
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Returns the number of registered listeners.
+     *
+     * @return
+     */
+    public int getListenerCount()
+    {
+        return subscriptions.size();
+    }
+
+    /**
+     * Registers a listener that receives all changes after the given sequence. The first listener opens the shared
+     * feed.
+     *
+     * @param listener  listener
+     * @param since     if this is not <code>null</code>, no changes before that sequence number are delivered.
+     * @return handle to unregister the listener with
+     */
+    public synchronized ChangeFeed register(ChangeListener listener, Long since)
+    {
+        Assert.notNull(listener, "listener can't be null");
+        if (closed)
+        {
+            throw new IllegalStateException("multiplexer is closed");
+        }
+
+        long cursor = since != null ? since : 0;
+        Subscription subscription = new Subscription(listener, cursor);
+        subscriptions.add(subscription);
+
+        if (driver == null)
+        {
+            lastSequence = cursor;
+            subscription.live = true;
+            driver = new ContinuousChangesDriver(db, filter, cursor, options, new FanOut());
+            try
+            {
+                driver.start();
+            }
+            catch (InterruptedException e)
+            {
+                log.error("Interrupted while waiting for ContinuousChangesDriver to start", e);
+            }
+        }
+        else if (cursor >= lastSequence)
+        {
+            subscription.live = true;
+        }
+        else
+        {
+            subscription.startCatchUp();
+        }
+        return subscription;
+    }
+
+    /**
+     * Stops the shared feed and all listeners.
+     */
+    public void close()
+    {
+        ContinuousChangesDriver current;
+        synchronized(this)
+        {
+            closed = true;
+            current = driver;
+            driver = null;
+        }
+
+        for (Subscription subscription : subscriptions)
+        {
+            subscription.stop();
+        }
+        if (current != null)
+        {
+            current.stop();
+        }
+    }
+
+    private synchronized ContinuousChangesDriver driver()
+    {
+        return driver;
+    }
+
+    /**
+     * Stops the shared feed if the given subscription was the last one.
+     */
+    private void unsubscribe(Subscription subscription)
+    {
+        ContinuousChangesDriver current = null;
+        synchronized(this)
+        {
+            subscriptions.remove(subscription);
+            if (subscriptions.isEmpty())
+            {
+                current = driver;
+                driver = null;
+            }
+        }
+
+        if (current != null)
+        {
+            log.debug("last listener unregistered, stopping shared change feed of {}", db.getName());
+            current.stop();
+        }
+    }
+
+    /**
+     * Switches the given subscription to the shared feed if it has caught up with it.
+     */
+    private synchronized boolean goLive(Subscription subscription)
+    {
+        if (subscription.cursor >= lastSequence)
+        {
+            subscription.live = true;
+        }
+        return subscription.live;
+    }
+
+    private class FanOut
+        implements ChangeListener
+    {
+        public void onChange(ChangeNotification changeNotification)
+        {
+            synchronized(ChangesMultiplexer.this)
+            {
+                lastSequence = changeNotification.getSequence();
+            }
+
+            for (Subscription subscription : subscriptions)
+            {
+                if (subscription.live)
+                {
+                    subscription.deliver(changeNotification);
+                }
+            }
+        }
+    }
+
+    private class Subscription
+        implements ChangeFeed, Runnable
+    {
+        private final ChangeListener listener;
+
+        private volatile long cursor;
+
+        private volatile boolean live;
+
+        private volatile boolean running = true;
+
+        private final ChangeFeedMetrics metrics = new ChangeFeedMetrics(db);
+
+        Subscription(ChangeListener listener, long cursor)
+        {
+            this.listener = listener;
+            this.cursor = cursor;
+        }
+
+        void startCatchUp()
+        {
+            Thread thread = new Thread(this, "ChangesMultiplexer-catchup" + catchUpCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void run()
+        {
+            Options catchUpOptions = new Options(options).limit(CATCH_UP_LIMIT);
+            try
+            {
+                while (running && !goLive(this))
+                {
+                    PollingResults results = db.pollChanges(cursor, filter, false, catchUpOptions);
+                    for (ChangeNotification changeNotification : results.getResults())
+                    {
+                        deliver(changeNotification);
+                    }
+                    if (results.getLastSequence() > cursor)
+                    {
+                        cursor = results.getLastSequence();
+                    }
+                }
+            }
+            catch (RuntimeException e)
+            {
+                log.error("Error catching up from " + cursor + ", listener stopped", e);
+                stop();
+            }
+        }
+
+        void deliver(ChangeNotification changeNotification)
+        {
+            long sequence = changeNotification.getSequence();
+            if (running && sequence > cursor)
+            {
+                long start = System.nanoTime();
+                try
+                {
+                    listener.onChange(changeNotification);
+                }
+                catch (RuntimeException e)
+                {
+                    log.error("Error delivering " + changeNotification + ", listener stopped", e);
+                    stop();
+                    return;
+                }
+                cursor = sequence;
+                metrics.recordChange(sequence, System.nanoTime() - start);
+            }
+        }
+
+        public long getLastSequence()
+        {
+            return cursor;
+        }
+
+        public boolean isRunning()
+        {
+            return running;
+        }
+
+        public ChangeFeedMetrics getMetrics()
+        {
+            return metrics;
+        }
+
+        public int getReconnectCount()
+        {
+            ContinuousChangesDriver current = driver();
+            return current != null ? current.getReconnectCount() : 0;
+        }
+
+        public long getDowntime()
+        {
+            ContinuousChangesDriver current = driver();
+            return current != null ? current.getDowntime() : 0;
+        }
+
+        public void stop()
+        {
+            if (!running)
+            {
+                return;
+            }
+            running = false;
+            unsubscribe(this);
+            metrics.release();
+
+            if (listener instanceof Closeable)
+            {
+                try
+                {
+                    ((Closeable)listener).close();
+                }
+                catch (IOException e)
+                {
+                    log.warn("Error closing change listener", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package org.jcouchdb.db;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.document.PollingResults;
+import org.jcouchdb.util.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls the changes of a database on a shared scheduler instead of holding a thread and connection per database.
+ * The poller adapts to the change rate of the database:
+ * <ul>
+ *  <li>While changes are coming in, it uses long polling, so new changes are delivered without delay.</li>
+ *  <li>If a poll returns a full page, the page size (<code>limit</code>) is doubled and the next page is fetched
+ *      immediately, if it returns only few changes, the page size is halved.</li>
+ *  <li>If there are no changes, it switches to normal polling with an exponentially growing delay.</li>
+ *  <li>After errors, it retries with an exponentially growing delay.</li>
+ *  <li>If the listener throws, the poller stops, the last sequence stays at the last change the listener
+ *      accepted.</li>
+ * </ul>
+ * Long polls block a scheduler thread until changes arrive or the long poll timeout passes, so the scheduler should
+ * have enough threads for the number of databases expected to be busy at the same time.
+ */
+public class ChangesPoller
+    implements ChangeFeed, Runnable
+{
+    public final static int DEFAULT_SCHEDULER_THREADS = 4;
+
+    public final static int MIN_LIMIT = 10;
+
+    public final static int MAX_LIMIT = 1000;
+
+    public final static long DEFAULT_MIN_DELAY = 1000;
+
+    public final static long DEFAULT_MAX_DELAY = 60000;
+
+    public final static long LONG_POLL_TIMEOUT = 10000;
+
+    private final static AtomicInteger threadCount = new AtomicInteger();
+
+    private static Logger log = LoggerFactory.getLogger(ChangesPoller.class);
+
+    private static ScheduledExecutorService defaultScheduler;
+
+    private final Database db;
+
+    private final String filter;
+
+    private final Options options;
+
+    private final ChangeListener listener;
+
+    private final ScheduledExecutorService scheduler;
+
+    private long minDelay = DEFAULT_MIN_DELAY;
+
+    private long maxDelay = DEFAULT_MAX_DELAY;
+
+    private volatile Long since;
+
+    private volatile int limit = MIN_LIMIT;
+
+    private volatile long delay;
+
+    private volatile boolean warm;
+
+    private volatile boolean running;
+
+    private ScheduledFuture<?> next;
+
+    private final AtomicInteger errorCount = new AtomicInteger();
+
+    private volatile long failingSince;
+
+    private volatile long downtime;
+
+    private final ChangeFeedMetrics metrics;
+
+    /**
+     * Creates a new poller.
+     *
+     * @param db            database
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param options       extended and user options.
+     * @param listener      listener to call for every change, always called from one thread at a time
+     * @param scheduler     scheduler to run the polls on
+     */
+    public ChangesPoller(Database db, String filter, Long since, Options options, ChangeListener listener,
+        ScheduledExecutorService scheduler)
+    {
+        Assert.notNull(db, "db can't be null");
+        Assert.notNull(listener, "listener can't be null");
+        Assert.notNull(scheduler, "scheduler can't be null");
+
+        this.db = db;
+        this.filter = filter;
+        this.since = since;
+        this.options = options;
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.metrics = new ChangeFeedMetrics(db);
+    }
+
+    /**
+     * Returns the scheduler shared by all pollers that were not given their own.
+     *
+     * @return
+     */
+    public static synchronized ScheduledExecutorService defaultScheduler()
+    {
+        if (defaultScheduler == null)
+        {
+            defaultScheduler = Executors.newScheduledThreadPool(DEFAULT_SCHEDULER_THREADS, new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "ChangesPoller" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * Sets the range of the delay between polls of an idle database and between retries after errors.
+     *
+     * @param minDelay  first delay in milliseconds
+     * @param maxDelay  maximum delay in milliseconds
+     */
+    public void setDelays(long minDelay, long maxDelay)
+    {
+        Assert.isTrue(minDelay > 0 && maxDelay >= minDelay, "invalid delays");
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Schedules the first poll.
+     */
+    public synchronized void start()
+    {
+        running = true;
+        next = scheduler.schedule(this, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop()
+    {
+        running = false;
+        metrics.release();
+        if (next != null)
+        {
+            next.cancel(false);
+        }
+    }
+
+    public ChangeFeedMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    public long getLastSequence()
+    {
+        Long seq = since;
+        return seq != null ? seq : -1;
+    }
+
+    /**
+     * Returns the number of failed polls.
+     */
+    public int getReconnectCount()
+    {
+        return errorCount.get();
+    }
+
+    public long getDowntime()
+    {
+        long failing = failingSince;
+        return downtime + (failing != 0 ? System.currentTimeMillis() - failing : 0);
+    }
+
+    /**
+     * Returns the current page size.
+     *
+     * @return
+     */
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Returns the current delay before the next poll in milliseconds.
+     *
+     * @return
+     */
+    public long getDelay()
+    {
+        return delay;
+    }
+
+    /**
+     * Returns <code>true</code> if the poller currently uses long polling.
+     *
+     * @return
+     */
+    public boolean isLongPolling()
+    {
+        return warm;
+    }
+
+    public void run()
+    {
+        if (!running)
+        {
+            return;
+        }
+
+        try
+        {
+            poll();
+        }
+        catch (ListenerException e)
+        {
+            log.error("Change listener failed, stopping poller of " + db.getName() + " after sequence " + since,
+                e.getCause());
+            stop();
+            return;
+        }
+        catch (RuntimeException e)
+        {
+            errorCount.incrementAndGet();
+            if (failingSince == 0)
+            {
+                failingSince = System.currentTimeMillis();
+            }
+            warm = false;
+            delay = backOff(delay);
+            log.warn("Error polling changes of " + db.getName() + ", retrying in " + delay + " ms", e);
+        }
+
+        synchronized(this)
+        {
+            if (running)
+            {
+                next = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void poll()
+    {
+        Options pollOptions = new Options(options).limit(limit);
+        if (warm)
+        {
+            pollOptions.putUnencoded("timeout", LONG_POLL_TIMEOUT);
+        }
+
+        PollingResults results = db.pollChanges(since, filter, warm, pollOptions);
+
+        long failing = failingSince;
+        if (failing != 0)
+        {
+            downtime += System.currentTimeMillis() - failing;
+            failingSince = 0;
+        }
+
+        int count = results.getResults().size();
+        for (ChangeNotification changeNotification : results.getResults())
+        {
+            if (!running)
+            {
+                return;
+            }
+            long start = System.nanoTime();
+            try
+            {
+                listener.onChange(changeNotification);
+            }
+            catch (RuntimeException e)
+            {
+                throw new ListenerException(e);
+            }
+            since = changeNotification.getSequence();
+            metrics.recordChange(changeNotification.getSequence(), System.nanoTime() - start);
+        }
+        if (results.getLastSequence() > getLastSequence())
+        {
+            since = results.getLastSequence();
+            metrics.recordSequence(results.getLastSequence());
+        }
+
+        if (count >= limit)
+        {
+            // more changes waiting, fetch bigger pages right away
+            limit = Math.min(limit * 2, MAX_LIMIT);
+            warm = true;
+            delay = 0;
+        }
+        else if (count > 0)
+        {
+            if (count < limit / 4)
+            {
+                limit = Math.max(limit / 2, MIN_LIMIT);
+            }
+            warm = true;
+            delay = 0;
+        }
+        else
+        {
+            limit = MIN_LIMIT;
+            warm = false;
+            delay = backOff(delay);
+        }
+    }
+
+    private long backOff(long current)
+    {
+        return current == 0 ? minDelay : Math.min(current * 2, maxDelay);
+    }
+
+    /**
+     * Wraps an exception thrown by the change listener to tell it apart from errors polling the changes.
+     */
+    private static class ListenerException
+        extends RuntimeException
+    {
+        private static final long serialVersionUID = -2046815935872310147L;
+
+        ListenerException(RuntimeException cause)
+        {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.jcouchdb.db;
+
+/**
+ * Persists the position of a change listener in a change feed.
+ *
+ * @see CheckpointingChangeListener
+ */
+public interface CheckpointStore
+{
+    /**
+     * Returns the last stored sequence or <code>null</code> if there is none.
+     *
+     * @return
+     */
+    Long load();
+
+    /**
+     * Stores the given sequence as the new checkpoint.
+     *
+     * @param sequence  sequence up to which all changes have been processed
+     */
+    void store(long sequence);
+}
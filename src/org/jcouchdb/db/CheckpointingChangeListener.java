@@ -0,0 +1,125 @@
+package org.jcouchdb.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.util.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Change listener decorator that records the position of the wrapped listener in a {@link CheckpointStore} every
+ * n changes or after a given time, and once more when it is closed. If the wrapped listener is a
+ * {@link SequenceTracker}, its processed sequence is stored, otherwise the sequence of the last change it returned
+ * from.
+ * <p>
+ * Resuming from the checkpoint delivers every change that was not processed before the checkpoint was written at
+ * least once. Changes processed after the last checkpoint are delivered again, so listeners should be idempotent.
+ * </p>
+ */
+public class CheckpointingChangeListener
+    implements ChangeListener, SequenceTracker, Closeable
+{
+    public final static int DEFAULT_CHANGES_PER_CHECKPOINT = 100;
+
+    public final static long DEFAULT_CHECKPOINT_INTERVAL = 5000;
+
+    private static Logger log = LoggerFactory.getLogger(CheckpointingChangeListener.class);
+
+    private final ChangeListener listener;
+
+    private final CheckpointStore store;
+
+    private final int changesPerCheckpoint;
+
+    private final long checkpointInterval;
+
+    private volatile long lastSequence = -1;
+
+    private long storedSequence = -1;
+
+    private int changesSinceCheckpoint;
+
+    private long lastCheckpointTime = System.currentTimeMillis();
+
+    public CheckpointingChangeListener(ChangeListener listener, CheckpointStore store)
+    {
+        this(listener, store, DEFAULT_CHANGES_PER_CHECKPOINT, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Creates a new checkpointing listener.
+     *
+     * @param listener              listener to wrap
+     * @param store                 store to write the checkpoints to
+     * @param changesPerCheckpoint  number of changes after which a checkpoint is written
+     * @param checkpointInterval    number of milliseconds after which a checkpoint is written
+     */
+    public CheckpointingChangeListener(ChangeListener listener, CheckpointStore store, int changesPerCheckpoint,
+        long checkpointInterval)
+    {
+        Assert.notNull(listener, "listener can't be null");
+        Assert.notNull(store, "store can't be null");
+        Assert.isTrue(changesPerCheckpoint > 0, "changesPerCheckpoint must be positive");
+
+        this.listener = listener;
+        this.store = store;
+        this.changesPerCheckpoint = changesPerCheckpoint;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public void onChange(ChangeNotification changeNotification)
+    {
+        listener.onChange(changeNotification);
+        lastSequence = changeNotification.getSequence();
+
+        synchronized(this)
+        {
+            changesSinceCheckpoint++;
+            if (changesSinceCheckpoint >= changesPerCheckpoint ||
+                System.currentTimeMillis() - lastCheckpointTime >= checkpointInterval)
+            {
+                checkpoint();
+            }
+        }
+    }
+
+    public long getLastSequence()
+    {
+        if (listener instanceof SequenceTracker)
+        {
+            return ((SequenceTracker)listener).getLastSequence();
+        }
+        return lastSequence;
+    }
+
+    /**
+     * Writes a checkpoint if the processed sequence has changed since the last one.
+     */
+    public synchronized void checkpoint()
+    {
+        long sequence = getLastSequence();
+        if (sequence > storedSequence)
+        {
+            store.store(sequence);
+            storedSequence = sequence;
+            log.debug("stored checkpoint {}", sequence);
+        }
+        changesSinceCheckpoint = 0;
+        lastCheckpointTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Closes the wrapped listener if it is closeable and writes a final checkpoint.
+     */
+    public void close() throws IOException
+    {
+        if (listener instanceof Closeable)
+        {
+            ((Closeable)listener).close();
+        }
+        checkpoint();
+    }
+}
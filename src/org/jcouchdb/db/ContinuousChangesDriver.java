@@ -1,31 +1,80 @@
 /**
- * 
+ *
  */
 package org.jcouchdb.db;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.io.IOUtils;
 import org.jcouchdb.document.ChangeListener;
 import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.util.BufferPool;
 import org.jcouchdb.util.ExceptionWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.svenson.JSONParser;
 
+/**
+ * Thread reading a continuous change feed and calling the change listener for every change. The feed is reopened
+ * from the last received sequence if the connection ends or fails. If the listener is {@link Closeable}, it is closed
+ * when the driver terminates.
+ * <p>
+ * If a heartbeat is configured, the server sends an empty line in that interval while there are no changes. A feed
+ * that stays silent for {@link #HEARTBEAT_TIMEOUT_FACTOR} heartbeat intervals is considered dead and reopened
+ * immediately.
+ * </p>
+ * <p>
+ * An exception thrown by the listener is not treated like a connection error: redelivering the same change would
+ * most likely fail again. The driver logs it and stops, {@link #getLastSequence()} is the sequence of the last change
+ * the listener accepted.
+ * </p>
+ */
 class ContinuousChangesDriver
-    extends Thread
+    implements Runnable, ChangeFeed
 {
     private final static AtomicInteger driverCount = new AtomicInteger();
 
     private static Logger log = LoggerFactory.getLogger(ContinuousChangesDriver.class);
 
+    /**
+     * Milliseconds to wait before reconnecting after an error.
+     */
+    private final static long RECONNECT_DELAY = 1000;
+
+    private final static String LAST_SEQ_PREFIX = "{\"last_seq\"";
+
+    /**
+     * Number of heartbeat intervals without data after which the feed is considered dead.
+     */
+    public final static int HEARTBEAT_TIMEOUT_FACTOR = 3;
+
+    /**
+     * Shared scheduler checking the liveness of all feeds and refreshing the update sequence of their metrics.
+     */
+    final static ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "ContinuousChangesDriver-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
     private String filter;
 
-    private Long since;
+    private volatile Long since;
 
     private Options options;
 
@@ -33,91 +82,312 @@ class ContinuousChangesDriver
 
     private Database db;
 
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private volatile boolean running = true;
+
+    private volatile Response response;
+
+    private final Thread thread;
+
+    private final JSONParser parser;
+
+    private final Class<? extends ChangeNotification> notificationClass;
+
+    private long heartbeat;
+
+    private volatile long lastActivity;
+
+    private volatile boolean dispatching;
+
+    private volatile boolean stalled;
+
+    private final AtomicInteger reconnectCount = new AtomicInteger();
+
+    private volatile long disconnectedSince;
+
+    private volatile long downtime;
+
+    private final ChangeFeedMetrics metrics;
 
     public ContinuousChangesDriver(Database db, String filter, Long since, Options options,
         ChangeListener listener)
     {
-        super("ContinuousChangesDriver" + driverCount.incrementAndGet());
+        this(db, filter, since, options, listener, JSONParser.defaultJSONParser(), ChangeNotification.class);
+    }
+
+    /**
+     * Creates a driver parsing the change notifications with the given parser into the given class.
+     *
+     * @param db                    database
+     * @param filter                name of a filter function to use or <code>null</code> for unfiltered
+     * @param since                 if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param options               extended and user options.
+     * @param listener              listener
+     * @param parser                parser to use for all notifications
+     * @param notificationClass     class to parse the notifications into
+     */
+    public ContinuousChangesDriver(Database db, String filter, Long since, Options options,
+        ChangeListener listener, JSONParser parser, Class<? extends ChangeNotification> notificationClass)
+    {
+        thread = new Thread(this, "ContinuousChangesDriver" + driverCount.incrementAndGet());
 
         this.db = db;
         this.filter = filter;
         this.since = since;
         this.options = options;
         this.listener = listener;
+        this.parser = parser;
+        this.notificationClass = notificationClass;
+        this.heartbeat = db.getChangesHeartbeat();
+        this.metrics = new ChangeFeedMetrics(db);
     }
 
+    /**
+     * Sets the heartbeat interval requested from the server.
+     *
+     * @param heartbeat     heartbeat interval in milliseconds, <code>0</code> for no heartbeat and liveness check
+     */
+    void setHeartbeat(long heartbeat)
+    {
+        this.heartbeat = heartbeat;
+    }
 
-    @Override
-    public void run()
+    /**
+     * Starts the driver thread and waits until it is running.
+     *
+     * @throws InterruptedException
+     */
+    void start() throws InterruptedException
     {
-        synchronized(this)
+        thread.start();
+        started.await();
+    }
+
+    public long getLastSequence()
+    {
+        Long seq = since;
+        return seq != null ? seq : -1;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    public ChangeFeedMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public int getReconnectCount()
+    {
+        return reconnectCount.get();
+    }
+
+    public long getDowntime()
+    {
+        long since = disconnectedSince;
+        return downtime + (since != 0 ? System.currentTimeMillis() - since : 0);
+    }
+
+    public void stop()
+    {
+        running = false;
+        thread.interrupt();
+
+        Response current = response;
+        if (current != null)
         {
-            this.notifyAll();
+            current.abort();
         }
+    }
 
-        log.info("ContinuousChangesDriver started.");
-        
-        Response response = null;
-
-        options = db.getCommonChangesOptions(filter, since, options);
-        options.putUnencoded("feed", "continuous");
+    public void run()
+    {
+        started.countDown();
 
-        InputStream ir = null;
+        log.info("ContinuousChangesDriver started.");
 
-        while (!db.getServer().isShutdown())
+        ScheduledFuture<?> check = null;
+        if (heartbeat > 0)
         {
-            try
+            check = watchdog.scheduleWithFixedDelay(new Runnable()
             {
-                log.info(
-                    "Sending continuous change request. filter = {}, since = {}, options = {}",
-                    new Object[] { filter, since, options });
-                response = db.getServer().get("/" + db.getName() + "/_changes" + options.toQuery());
-
-                ir = response.getInputStream();
-                log.debug("input stream = {}", ir);
+                public void run()
+                {
+                    checkLiveness();
+                }
+            }, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+        }
 
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                //if (ir.available() > 0)
+        try
+        {
+            boolean first = true;
+            while (running && !db.getServer().isShutdown())
+            {
+                if (!first)
                 {
-                    log.debug("enter read.");
-                    int c = ir.read();
-                    log.debug("exit read.");
-                    if (c == -1)
-                    {
-                        throw new IllegalStateException("Unexpected EOF");
-                    }
+                    reconnectCount.incrementAndGet();
+                }
+                first = false;
 
-                    if (c == '\n')
-                    {
-                        convertRawData(bos.toByteArray());
-                    }
-                    else
+                try
+                {
+                    readFeed();
+                }
+                catch (ListenerException e)
+                {
+                    log.error("Change listener failed, stopping change feed of " + db.getName() + " after sequence " +
+                        since, e.getCause());
+                    running = false;
+                    break;
+                }
+                catch (Exception e)
+                {
+                    if (running && !stalled)
                     {
-                        bos.write(c);
+                        log.info("Error listening to continuous changes", e);
+                        disconnected();
+                        sleepBeforeReconnect();
                     }
                 }
-                Thread.sleep(100);
+                if (running)
+                {
+                    disconnected();
+                }
+                stalled = false;
             }
-            catch (Exception e)
+        }
+        finally
+        {
+            if (check != null)
             {
-                log.info("Error listening to continuous changes", e);
+                check.cancel(false);
             }
-            finally
+            running = false;
+            metrics.release();
+            if (listener instanceof Closeable)
             {
-                if (ir != null)
+                try
+                {
+                    ((Closeable)listener).close();
+                }
+                catch (IOException e)
                 {
-                    IOUtils.closeQuietly(ir);
-                    ir = null;
+                    log.warn("Error closing change listener", e);
                 }
+            }
+            log.info("ContinuousChangesDriver stopped.");
+        }
+    }
 
-                if (response != null)
+    /**
+     * Opens the change feed and reads it until the connection ends.
+     */
+    private void readFeed() throws IOException
+    {
+        Options feedOptions = db.getCommonChangesOptions(filter, since, options);
+        feedOptions.putUnencoded("feed", "continuous");
+        if (heartbeat > 0)
+        {
+            feedOptions.putUnencoded("heartbeat", heartbeat);
+        }
+
+        log.info(
+            "Sending continuous change request. filter = {}, since = {}, options = {}",
+            new Object[] { filter, since, options });
+
+        response = db.getServer().get("/" + db.getName() + "/_changes" + feedOptions.toQuery());
+        BufferPool pool = BufferPool.defaultPool();
+        byte[] buffer = pool.acquire();
+        try
+        {
+            if (!response.isOk())
+            {
+                throw new IllegalStateException("Error opening change feed: " + response.getCode() + " " +
+                    response.getContentAsString());
+            }
+
+            connected();
+
+            InputStream is = response.getInputStream();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int n;
+            while (running && (n = is.read(buffer)) != -1)
+            {
+                lastActivity = System.currentTimeMillis();
+                int start = 0;
+                for (int i = 0; i < n; i++)
                 {
-                    response.destroy();
+                    if (buffer[i] == '\n')
+                    {
+                        line.write(buffer, start, i - start);
+                        convertRawData(line.toByteArray());
+                        line.reset();
+                        start = i + 1;
+                    }
                 }
+                line.write(buffer, start, n - start);
             }
         }
+        finally
+        {
+            pool.release(buffer);
+            Response current = response;
+            response = null;
+            current.abort();
+        }
     }
 
+    private void connected()
+    {
+        long now = System.currentTimeMillis();
+        lastActivity = now;
+        long since = disconnectedSince;
+        if (since != 0)
+        {
+            downtime += now - since;
+            disconnectedSince = 0;
+        }
+    }
+
+    private void disconnected()
+    {
+        if (disconnectedSince == 0)
+        {
+            disconnectedSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Aborts the current response if the server has not sent anything for too long. Time spent in the listener does
+     * not count, so a listener applying backpressure does not cause reconnects.
+     */
+    private void checkLiveness()
+    {
+        Response current = response;
+        if (current != null && !dispatching &&
+            System.currentTimeMillis() - lastActivity > heartbeat * HEARTBEAT_TIMEOUT_FACTOR)
+        {
+            log.warn("No data or heartbeat received for {} ms, reconnecting from {}.",
+                System.currentTimeMillis() - lastActivity, since);
+            stalled = true;
+            current.abort();
+        }
+    }
+
+    private void sleepBeforeReconnect()
+    {
+        try
+        {
+            Thread.sleep(RECONNECT_DELAY);
+        }
+        catch (InterruptedException e)
+        {
+            running = false;
+        }
+    }
 
     private void convertRawData(byte[] byteArray)
     {
@@ -126,8 +396,29 @@ class ContinuousChangesDriver
             try
             {
                 String json = new String(byteArray, "UTF-8");
-                ChangeNotification changeNotification = JSONParser.defaultJSONParser().parse(ChangeNotification.class, json);
-                listener.onChange(changeNotification);
+                if (json.startsWith(LAST_SEQ_PREFIX))
+                {
+                    log.debug("end of feed: {}", json);
+                    return;
+                }
+                ChangeNotification changeNotification = parser.parse(notificationClass, json);
+                dispatching = true;
+                long start = System.nanoTime();
+                try
+                {
+                    listener.onChange(changeNotification);
+                }
+                catch (RuntimeException e)
+                {
+                    throw new ListenerException(e);
+                }
+                finally
+                {
+                    dispatching = false;
+                    lastActivity = System.currentTimeMillis();
+                }
+                since = changeNotification.getSequence();
+                metrics.recordChange(changeNotification.getSequence(), System.nanoTime() - start);
             }
             catch (UnsupportedEncodingException e)
             {
@@ -139,4 +430,18 @@ class ContinuousChangesDriver
             log.debug("received heartbeat");
         }
     }
+
+    /**
+     * Wraps an exception thrown by the change listener to tell it apart from errors reading the feed.
+     */
+    private static class ListenerException
+        extends RuntimeException
+    {
+        private static final long serialVersionUID = 5317849127335016482L;
+
+        ListenerException(RuntimeException cause)
+        {
+            super(cause);
+        }
+    }
 }
@@ -1,21 +1,60 @@
 package org.jcouchdb.db;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jcouchdb.document.AbstractViewResult;
+import org.jcouchdb.document.Attachment;
+import org.jcouchdb.document.AttachmentUpload;
 import org.jcouchdb.document.BaseDocument;
+import org.jcouchdb.document.BatchChangeListener;
+import org.jcouchdb.document.ChangeFilter;
 import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.document.ColumnarViewResult;
+import org.jcouchdb.document.CompactViewResult;
 import org.jcouchdb.document.DesignDocument;
 import org.jcouchdb.document.Document;
 import org.jcouchdb.document.DocumentHelper;
+import org.jcouchdb.document.DocumentChangeNotification;
 import org.jcouchdb.document.DocumentInfo;
+import org.jcouchdb.document.DocumentPollingResults;
+import org.jcouchdb.document.DoubleViewResult;
+import org.jcouchdb.document.LongViewResult;
 import org.jcouchdb.document.PollingResults;
+import org.jcouchdb.document.ReducedViewResult;
+import org.jcouchdb.document.StatsViewResult;
 import org.jcouchdb.document.ViewAndDocumentsResult;
 import org.jcouchdb.document.ViewResult;
 import org.jcouchdb.exception.DataAccessException;
@@ -23,7 +62,12 @@ import org.jcouchdb.exception.DocumentValidationException;
 import org.jcouchdb.exception.NotFoundException;
 import org.jcouchdb.exception.UpdateConflictException;
 import org.jcouchdb.util.Assert;
+import org.jcouchdb.util.Base64Data;
+import org.jcouchdb.util.BufferPool;
+import org.jcouchdb.util.DeduplicatingObjectFactory;
 import org.jcouchdb.util.ExceptionWrapper;
+import org.jcouchdb.util.JSONStreamReader;
+import org.jcouchdb.util.StringPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.svenson.JSON;
@@ -39,6 +83,24 @@ import org.svenson.JSONParser;
 public class Database
 {
     private static final String DESIGN_DOCUMENT_PREFIX = "_design/";
+
+    /**
+     * Default heartbeat interval of continuous change feeds in milliseconds.
+     */
+    public static final long DEFAULT_CHANGES_HEARTBEAT = 10000;
+
+    /**
+     * Name of the built-in change filter limiting the changes to a list of document ids.
+     * 
+     * @see Options#docIds(java.util.Collection)
+     */
+    public static final String DOC_IDS_FILTER = "_doc_ids";
+
+    /**
+     * Default number of attachments fetched at the same time by {@link #getAttachments(String, Map, int)} and
+     * {@link #copyAttachmentsTo(String, Map, File, int)}.
+     */
+    public static final int DEFAULT_ATTACHMENT_PARALLELISM = 4;
     
     private static final String VIEW_DOCUMENT_INFIX = "view";
 
@@ -46,7 +108,13 @@ public class Database
 
     private static final String SHOW_DOCUMENT_INFIX = "show";
 
-    private JSON jsonGenerator = new JSON();
+    private JSON jsonGenerator = createJSONGenerator();
+
+    private AttachmentCache attachmentCache;
+
+    private ExecutorService attachmentExecutor;
+
+    private final AtomicInteger attachmentThreadCount = new AtomicInteger();
 
     static final String VIEW_QUERY_VALUE_TYPEHINT = ".rows[].value";
     
@@ -59,6 +127,11 @@ public class Database
      */
     private static final String ALL_DOCS = "_all_docs";
 
+    /**
+     * Maximum number of bytes transferred into a file per call when copying attachments to files.
+     */
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
     private static final String ALL_DOCS_BY_SEQ = "_all_docs_by_seq";
 
 
@@ -72,6 +145,16 @@ public class Database
 
     private volatile JSONParser bulkCreateParser;
 
+    private boolean deduplicateStrings;
+
+    private StringPool stringPool;
+
+    private Set<String> deduplicatedFields;
+
+    private long changesHeartbeat = DEFAULT_CHANGES_HEARTBEAT;
+
+    private final Map<String, ChangesMultiplexer> changesMultiplexers = new HashMap<String, ChangesMultiplexer>();
+
     /**
      * Creates a database object for the given host, the default port and the given data base name.
      *
@@ -125,6 +208,68 @@ public class Database
     {
         return server;
     }
+
+    public AttachmentCache getAttachmentCache()
+    {
+        return attachmentCache;
+    }
+
+    /**
+     * Sets a local disk cache for attachment content. If set, {@link #getAttachment(String, String)},
+     * {@link #getAttachmentResponse(String, String)} and the <code>copyAttachmentTo</code> methods for streams and
+     * channels serve attachments from the cache after revalidating them with their ETag, and
+     * {@link #copyAttachmentTo(String, String, Attachment, WritableByteChannel)} serves cached content without any
+     * request. Downloads to files with {@link #copyAttachmentTo(String, String, Attachment, File, boolean)} bypass
+     * the cache.
+     *
+     * @param attachmentCache   cache or <code>null</code> to disable caching
+     */
+    public void setAttachmentCache(AttachmentCache attachmentCache)
+    {
+        this.attachmentCache = attachmentCache;
+    }
+
+    /**
+     * Sets the executor {@link #getAttachments(String, Map, int)} and {@link #copyAttachmentsTo(String, Map, File, int)}
+     * fetch attachments on. The executor is not shut down by the database. By default, the database creates a cached
+     * thread pool of daemon threads on first use, whose idle threads end after a minute.
+     *
+     * @param attachmentExecutor    executor or <code>null</code> for the default
+     */
+    public synchronized void setAttachmentExecutor(ExecutorService attachmentExecutor)
+    {
+        this.attachmentExecutor = attachmentExecutor;
+    }
+
+    private synchronized ExecutorService attachmentExecutor()
+    {
+        if (attachmentExecutor == null)
+        {
+            attachmentExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "Database-" + name + "-attachments" +
+                        attachmentThreadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return attachmentExecutor;
+    }
+
+    /**
+     * Creates the default JSON generator, which writes the raw content of inline attachments in chunks.
+     *
+     * @return
+     */
+    private static JSON createJSONGenerator()
+    {
+        JSON json = new JSON();
+        json.registerJSONifier(Base64Data.class, Base64Data.JSONIFIER);
+        return json;
+    }
     
     public void setJsonGenerator(JSON jsonGenerator)
     {
@@ -149,6 +294,84 @@ public class Database
         return new JSONConfig(jsonGenerator, jsonParser);
     }
 
+    /**
+     * If set to <code>true</code>, view results are parsed with a string pool per response so that repeated ids, keys,
+     * map keys and the values of the {@link #setDeduplicatedFields(Set) deduplicated fields} share one string instance.
+     * Ignored if a shared {@link #setStringPool(StringPool) string pool} is set.
+     *
+     * @param deduplicateStrings
+     */
+    public void setDeduplicateStrings(boolean deduplicateStrings)
+    {
+        this.deduplicateStrings = deduplicateStrings;
+    }
+
+    public boolean isDeduplicateStrings()
+    {
+        return deduplicateStrings;
+    }
+
+    /**
+     * Sets a string pool shared by all view queries of this database, so strings are also deduplicated across responses.
+     *
+     * @param stringPool    string pool or <code>null</code>
+     */
+    public void setStringPool(StringPool stringPool)
+    {
+        this.stringPool = stringPool;
+    }
+
+    public StringPool getStringPool()
+    {
+        return stringPool;
+    }
+
+    /**
+     * Sets the names of the document fields whose string values are to be deduplicated, e.g. type discriminators.
+     *
+     * @param deduplicatedFields    field names
+     */
+    public void setDeduplicatedFields(Set<String> deduplicatedFields)
+    {
+        this.deduplicatedFields = deduplicatedFields;
+    }
+
+    public Set<String> getDeduplicatedFields()
+    {
+        return deduplicatedFields;
+    }
+
+    /**
+     * Returns the string pool to parse the next response with or <code>null</code> if strings are not to be deduplicated.
+     *
+     * @return
+     */
+    private StringPool responseStringPool()
+    {
+        if (stringPool != null)
+        {
+            return stringPool;
+        }
+        return deduplicateStrings ? new StringPool() : null;
+    }
+
+    /**
+     * Sets the heartbeat interval requested for continuous change feeds. A feed without data or heartbeat for three
+     * intervals is considered dead and reopened from the last received change.
+     *
+     * @param changesHeartbeat  heartbeat interval in milliseconds or <code>0</code> to disable heartbeats
+     */
+    public void setChangesHeartbeat(long changesHeartbeat)
+    {
+        Assert.isTrue(changesHeartbeat >= 0, "changesHeartbeat can't be negative");
+        this.changesHeartbeat = changesHeartbeat;
+    }
+
+    public long getChangesHeartbeat()
+    {
+        return changesHeartbeat;
+    }
+
     public List<DatabaseEventHandler> getEventHandlers()
     {
         return eventHandlers;
@@ -254,31 +477,181 @@ public class Database
         Assert.notNull(cls, "class cannot be null");
         Assert.notNull(docId, "document id cannot be null");
 
+        String uri = documentURI(docId, revision);
+        Response resp = null;
+        try
+        {
+            resp = server.get(uri);
+            if (resp.getCode() == 404)
+            {
+                throw new NotFoundException("document not found", resp);
+            }
+            else if (!resp.isOk())
+            {
+                throw new DataAccessException("error getting document " + docId + ": ", resp);
+            }
+            
+            resp.setParser(getJSONParserCopy(parser));
+            return resp.getContentAsBean(cls);
+        }
+        finally
+        {
+            if (resp != null)
+            {
+                resp.destroy();
+            }
+        }
+
+    }
+
+    private String documentURI(String docId, String revision)
+    {
         if (!docId.startsWith("_design/"))
         {
             docId = encodeURL(docId);
         }
-        
+
         String uri = "/" + name + "/" + (docId);
         if (revision != null)
         {
             uri += "?rev="+revision;
         }
+        return uri;
+    }
+
+    /**
+     * Copies the unparsed JSON of the document with the given id to the given output stream.
+     * If the given accept encoding is not <code>null</code>, it is sent to couchdb and a compressed response
+     * is copied as-is, so that it can be passed on to a client accepting that encoding.
+     *
+     * @param docId             document id
+     * @param revision          revision of the document to get or <code>null</code>
+     * @param acceptEncoding    value for the "Accept-Encoding" header or <code>null</code>
+     * @param os                output stream to write to. Is not closed.
+     * @return the content encoding of the written data or <code>null</code> if it is not encoded
+     */
+    public String getDocumentRaw(String docId, String revision, String acceptEncoding, OutputStream os)
+    {
+        Assert.notNull(os, "output stream can't be null");
+        return copyRaw(documentURI(docId, revision), acceptEncoding, os, null);
+    }
+
+    /**
+     * Copies the unparsed JSON of the document with the given id to the given channel.
+     *
+     * @param docId             document id
+     * @param revision          revision of the document to get or <code>null</code>
+     * @param acceptEncoding    value for the "Accept-Encoding" header or <code>null</code>
+     * @param channel           channel to write to. Is not closed.
+     * @return the content encoding of the written data or <code>null</code> if it is not encoded
+     * @see #getDocumentRaw(String, String, String, OutputStream)
+     */
+    public String getDocumentRaw(String docId, String revision, String acceptEncoding, WritableByteChannel channel)
+    {
+        Assert.notNull(channel, "channel can't be null");
+        return copyRaw(documentURI(docId, revision), acceptEncoding, null, channel);
+    }
+
+    /**
+     * Copies the unparsed JSON result of the view with the given name to the given output stream.
+     * If the given accept encoding is not <code>null</code>, it is sent to couchdb and a compressed response
+     * is copied as-is, so that it can be passed on to a client accepting that encoding.
+     *
+     * @param viewName          view name
+     * @param options           query options or <code>null</code>
+     * @param acceptEncoding    value for the "Accept-Encoding" header or <code>null</code>
+     * @param os                output stream to write to. Is not closed.
+     * @return the content encoding of the written data or <code>null</code> if it is not encoded
+     */
+    public String queryViewRaw(String viewName, Options options, String acceptEncoding, OutputStream os)
+    {
+        Assert.notNull(os, "output stream can't be null");
+        return copyRaw(viewQueryURI(viewURIFromName(viewName), options), acceptEncoding, os, null);
+    }
+
+    /**
+     * Copies the unparsed JSON result of the view with the given name to the given channel.
+     *
+     * @param viewName          view name
+     * @param options           query options or <code>null</code>
+     * @param acceptEncoding    value for the "Accept-Encoding" header or <code>null</code>
+     * @param channel           channel to write to. Is not closed.
+     * @return the content encoding of the written data or <code>null</code> if it is not encoded
+     * @see #queryViewRaw(String, Options, String, OutputStream)
+     */
+    public String queryViewRaw(String viewName, Options options, String acceptEncoding, WritableByteChannel channel)
+    {
+        Assert.notNull(channel, "channel can't be null");
+        return copyRaw(viewQueryURI(viewURIFromName(viewName), options), acceptEncoding, null, channel);
+    }
+
+    /**
+     * Sends a GET request with the given additional headers. The headers are left out if the server can't send them.
+     */
+    private Response get(String uri, Map<String, String> headers)
+    {
+        if (headers != null && server instanceof HeaderAwareServer)
+        {
+            return ((HeaderAwareServer)server).get(uri, headers);
+        }
+        return server.get(uri);
+    }
+
+    /**
+     * Sends a PUT request with the given value as JSON body, streamed if the server supports it.
+     */
+    private Response putJSON(String uri, Object value)
+    {
+        if (server instanceof StreamingServer)
+        {
+            return ((StreamingServer)server).put(uri, new JSONBody(jsonGenerator, value));
+        }
+        return server.put(uri, jsonGenerator.forValue(value));
+    }
+
+    /**
+     * Sends a POST request with the given value as JSON body, streamed if the server supports it.
+     */
+    private Response postJSON(String uri, Object value)
+    {
+        if (server instanceof StreamingServer)
+        {
+            return ((StreamingServer)server).post(uri, new JSONBody(jsonGenerator, value));
+        }
+        return server.post(uri, jsonGenerator.forValue(value));
+    }
+
+    private String copyRaw(String uri, String acceptEncoding, OutputStream os, WritableByteChannel channel)
+    {
+        Map<String, String> headers = null;
+        if (acceptEncoding != null)
+        {
+            headers = new HashMap<String, String>();
+            headers.put("Accept-Encoding", acceptEncoding);
+        }
+
         Response resp = null;
         try
         {
-            resp = server.get(uri);
+            resp = get(uri, headers);
             if (resp.getCode() == 404)
             {
-                throw new NotFoundException("document not found", resp);
+                throw new NotFoundException("not found: " + uri, resp);
             }
             else if (!resp.isOk())
             {
-                throw new DataAccessException("error getting document " + docId + ": ", resp);
+                throw new DataAccessException("error getting " + uri + ": ", resp);
             }
-            
-            resp.setParser(getJSONParserCopy(parser));
-            return resp.getContentAsBean(cls);
+
+            if (os != null)
+            {
+                resp.writeContentTo(os);
+            }
+            else
+            {
+                resp.writeContentTo(channel);
+            }
+            return resp.getHeader("Content-Encoding");
         }
         finally
         {
@@ -287,7 +660,6 @@ public class Database
                 resp.destroy();
             }
         }
-
     }
 
     /**
@@ -361,11 +733,10 @@ public class Database
             }
         }
 
-        final String json = jsonGenerator.forValue(wrap);
         Response resp = null;
         try
         {
-            resp = server.post("/" + name + "/_bulk_docs", json);
+            resp = postJSON("/" + name + "/_bulk_docs", wrap);
 
             for (Object doc : documents)
             {
@@ -514,14 +885,13 @@ public class Database
                 }
             }
 
-            final String json = jsonGenerator.forValue(doc);
             if (isCreate)
             {
-                resp = server.post("/" + name + "/", json);
+                resp = postJSON("/" + name + "/", doc);
             }
             else
             {
-                resp = server.put("/" + name + "/" + encodeURL(id), json);
+                resp = putJSON("/" + name + "/" + encodeURL(id), doc);
             }
 
             for (DatabaseEventHandler eventHandler : eventHandlers)
@@ -545,7 +915,7 @@ public class Database
 
             if (resp.getCode() == 409)
             {
-                throw new UpdateConflictException("error creating document "+json + "in database '" + name + "'", resp);
+                throw new UpdateConflictException("error creating document '" + id + "' in database '" + name + "'", resp);
             }
             else if (resp.getCode() == 403)
             {
@@ -553,7 +923,7 @@ public class Database
             }
             else if (!resp.isOk())
             {
-                throw new DataAccessException("error creating document " + json + "in database '" + name + "'", resp);
+                throw new DataAccessException("error creating document '" + id + "' in database '" + name + "'", resp);
             }
             DocumentInfo info = resp.getContentAsBean(DocumentInfo.class);
 
@@ -573,40 +943,190 @@ public class Database
     }
 
     /**
-     * Updates given document and updates the document's revision property.
+     * Creates or updates the given document together with the given attachments in one streamed
+     * <code>multipart/related</code> request, instead of one request and one new revision per attachment. The
+     * attachments are sent as raw bodies, so they need no Base64 encoding. Attachments the document already has
+     * are kept unless they are replaced by an attachment of the same name. The document's id and revision
+     * properties are updated afterwards. If the document has no id, a UUID is requested from the server.
      *
-     * @param doc   Document to create.
-     * @throws IllegalStateException if the document had no revision property
+     * @param doc           document to create or update
+     * @param attachments   attachments to upload with the document
      * @throws UpdateConflictException  if there's an update conflict while updating the document
      */
-    public void updateDocument(Object doc)
+    public void createDocumentWithAttachments(Object doc, List<AttachmentUpload> attachments)
     {
-        if (DocumentHelper.getId(doc) == null)
+        Assert.notNull(doc, "document can't be null");
+        Assert.notNull(attachments, "attachments can't be null");
+
+        String id = DocumentHelper.getId(doc);
+        if (id == null)
         {
-            throw new IllegalStateException("id must be set for updates");
+            id = server.getUUIDs(1).get(0);
         }
-        if (DocumentHelper.getRevision(doc) == null)
+
+        Map<String, Object> json = documentProperties(doc);
+        json.put("_id", id);
+
+        // parts are matched to the attachments marked as following in the order of _attachments
+        Map<String, Object> attachmentStubs = new LinkedHashMap<String, Object>();
+        Object existing = json.get("_attachments");
+        if (existing instanceof Map)
         {
-            throw new IllegalStateException("revision must be set for updates");
+            for (Map.Entry<?, ?> e : ((Map<?, ?>)existing).entrySet())
+            {
+                attachmentStubs.put(String.valueOf(e.getKey()), e.getValue());
+            }
         }
+        for (AttachmentUpload attachment : attachments)
+        {
+            attachmentStubs.remove(attachment.getName());
+            Map<String, Object> stub = new LinkedHashMap<String, Object>();
+            stub.put("follows", true);
+            stub.put("content_type", attachment.getContentType());
+            stub.put("length", attachment.getLength());
+            attachmentStubs.put(attachment.getName(), stub);
+        }
+        json.put("_attachments", attachmentStubs);
 
-        createOrUpdateDocument(doc);
+        String boundary = "jcouchdb-" + UUID.randomUUID();
+        List<InputStream> parts = new ArrayList<InputStream>(attachments.size() * 2 + 3);
+        long length = addPart(parts, "--" + boundary + "\r\nContent-Type: application/json\r\n\r\n" +
+            jsonGenerator.forValue(json));
+        for (AttachmentUpload attachment : attachments)
+        {
+            length += addPart(parts, "\r\n--" + boundary + "\r\nContent-Type: " + attachment.getContentType() +
+                "\r\n\r\n");
+            parts.add(attachment.getInputStream());
+            length += attachment.getLength();
+        }
+        length += addPart(parts, "\r\n--" + boundary + "--");
+
+        Response resp = null;
+        try
+        {
+            resp = server.put("/" + name + "/" + encodeURL(id),
+                new SequenceInputStream(Collections.enumeration(parts)),
+                "multipart/related; boundary=\"" + boundary + "\"", length);
+
+            if (resp.getCode() == 409)
+            {
+                throw new UpdateConflictException("error storing document " + id + " with attachments in database '" +
+                    name + "'", resp);
+            }
+            else if (resp.getCode() == 403)
+            {
+                throw new DocumentValidationException(resp);
+            }
+            else if (!resp.isOk())
+            {
+                throw new DataAccessException("error storing document " + id + " with attachments in database '" +
+                    name + "'", resp);
+            }
+            DocumentInfo info = resp.getContentAsBean(DocumentInfo.class);
+            DocumentHelper.setId(doc, info.getId());
+            DocumentHelper.setRevision(doc, info.getRevision());
+        }
+        finally
+        {
+            if (resp != null)
+            {
+                resp.destroy();
+            }
+            for (AttachmentUpload attachment : attachments)
+            {
+                try
+                {
+                    attachment.getInputStream().close();
+                }
+                catch (IOException e)
+                {
+                    log.warn("error closing " + attachment, e);
+                }
+            }
+        }
     }
 
     /**
-     * List all documents in the database.
-     *
-     * @param options
-     * @param parser
-     * @return
+     * Returns a modifiable copy of the top level properties of the given document. Maps are copied directly, other
+     * documents are converted with the configured generator and parser.
      */
-    public ViewResult<Map> listDocuments(Options options, JSONParser parser)
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> documentProperties(Object doc)
     {
-        return (ViewResult<Map>)queryViewInternal(ALL_DOCS, Map.class, null, options, parser, null);
+        if (doc instanceof Map)
+        {
+            return new LinkedHashMap<String, Object>((Map<String, Object>)doc);
+        }
+        return getJSONParserCopy(null).parse(LinkedHashMap.class, jsonGenerator.forValue(doc));
     }
 
-    /**
-     * Lists all documents in the database in the order they were last updated.
+    private static long addPart(List<InputStream> parts, String s)
+    {
+        byte[] data;
+        try
+        {
+            data = s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+        parts.add(new ByteArrayInputStream(data));
+        return data.length;
+    }
+
+    /**
+     * Updates given document and updates the document's revision property.
+     *
+     * @param doc   Document to create.
+     * @throws IllegalStateException if the document had no revision property
+     * @throws UpdateConflictException  if there's an update conflict while updating the document
+     */
+    public void updateDocument(Object doc)
+    {
+        if (DocumentHelper.getId(doc) == null)
+        {
+            throw new IllegalStateException("id must be set for updates");
+        }
+        if (DocumentHelper.getRevision(doc) == null)
+        {
+            throw new IllegalStateException("revision must be set for updates");
+        }
+
+        createOrUpdateDocument(doc);
+    }
+
+    /**
+     * List all documents in the database.
+     *
+     * @param options
+     * @param parser
+     * @return
+     */
+    public ViewResult<Map> listDocuments(Options options, JSONParser parser)
+    {
+        return (ViewResult<Map>)queryViewInternal(ALL_DOCS, Map.class, null, options, parser, null);
+    }
+
+    /**
+     * List all documents in the database together with their content.
+     *
+     * @param <D>           document type
+     * @param documentClass runtime document type information
+     * @param options       query options
+     * @param parser        configured JSON Parser
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <D> ViewAndDocumentsResult<Map<String,Object>,D> listDocumentsWithContent(Class<D> documentClass,
+        Options options, JSONParser parser)
+    {
+        return (ViewAndDocumentsResult<Map<String,Object>,D>)queryViewInternal(ALL_DOCS, Map.class, documentClass,
+            new Options(options), parser, null);
+    }
+
+    /**
+     * Lists all documents in the database in the order they were last updated.
      * @param options
      * @param parser
      * @return
@@ -631,6 +1151,52 @@ public class Database
         return (ViewResult<V>)queryViewInternal(viewURIFromName(viewName), cls, null, options, parser, null);
     }
 
+    /**
+     * Queries the view with the given name and converts the received rows to a {@link CompactViewResult}
+     * whose rows carry no dynamic properties.
+     *
+     * @param <V>       type
+     * @param viewName  view name
+     * @param cls       runtime type information
+     * @param options   query options
+     * @param parser    configured JSON Parser
+     * @return
+     * @throws IllegalArgumentException if the options request <code>include_docs</code>, which compact rows
+     *                                  can't hold
+     */
+    @SuppressWarnings("unchecked")
+    public <V> CompactViewResult<V> queryViewCompact(String viewName, Class<V> cls, Options options, JSONParser parser)
+    {
+        assertNoDocuments(options);
+        return queryViewInternal(viewURIFromName(viewName), cls, null, CompactViewResult.class, options, parser, null);
+    }
+
+    /**
+     * Queries the view with the given name and converts the received rows to a {@link ColumnarViewResult}
+     * holding ids, keys and values in separate arrays.
+     *
+     * @param <V>       type
+     * @param viewName  view name
+     * @param cls       runtime type information
+     * @param options   query options
+     * @param parser    configured JSON Parser
+     * @return
+     * @throws IllegalArgumentException if the options request <code>include_docs</code>, which compact rows
+     *                                  can't hold
+     */
+    @SuppressWarnings("unchecked")
+    public <V> ColumnarViewResult<V> queryViewColumnar(String viewName, Class<V> cls, Options options, JSONParser parser)
+    {
+        assertNoDocuments(options);
+        return queryViewInternal(viewURIFromName(viewName), cls, null, ColumnarViewResult.class, options, parser, null);
+    }
+
+    private static void assertNoDocuments(Options options)
+    {
+        Assert.isTrue(options == null || !"true".equals(String.valueOf(options.get("include_docs"))),
+            "include_docs is not supported for compact view results, use queryViewAndDocuments instead");
+    }
+
     private static String encodeURL(String s)
     {
         try
@@ -766,6 +1332,28 @@ public class Database
      * @return
      */
     private <V> AbstractViewResult<V> queryViewInternal(String viewName, Class<V> valueClass, Class documentClass, Options options, JSONParser parser, Object keys)
+    {
+        if (documentClass != null)
+        {
+            return queryViewInternal(viewName, valueClass, documentClass, ViewAndDocumentsResult.class, options, parser, keys);
+        }
+        return queryViewInternal(viewName, valueClass, null, ViewResult.class, options, parser, keys);
+    }
+
+    /**
+     * Internal view query method parsing the response into the given result class.
+     *
+     * @param <T>               result type
+     * @param viewName          view name
+     * @param valueClass        runtime value type
+     * @param documentClass     runtime document type
+     * @param resultClass       class to parse the whole response into
+     * @param options           query options
+     * @param parser            parser to parse the response with
+     * @param keys              keys to query, if this is not <code>null</code>, a POST request with the keys as JSON will be done.
+     * @return
+     */
+    private <T> T queryViewInternal(String viewName, Class<?> valueClass, Class<?> documentClass, Class<T> resultClass, Options options, JSONParser parser, Object keys)
     {
         if (viewName == null)
         {
@@ -776,8 +1364,6 @@ public class Database
             throw new IllegalArgumentException("class cannot be null");
         }
 
-        String uri = "/" + this.name + "/" + viewName;
-
         boolean isDocumentQuery = documentClass != null;
 
         if (isDocumentQuery)
@@ -789,46 +1375,24 @@ public class Database
             options.includeDocs(true);
         }
 
-        if (options != null)
-        {
-            uri += options.toQuery();
-        }
-
-        if (log.isDebugEnabled())
-        {
-            log.debug("querying view " + uri);
-        }
-
         Response resp = null;
         try
         {
-            if (keys == null)
-            {
-                resp = server.get(uri);
-            }
-            else
-            {
-                resp = server.post(uri, jsonGenerator.forValue(keys));
-            }
-
-            if (!resp.isOk())
-            {
-                throw new DataAccessException("error querying view", resp);
-            }
+            resp = queryViewResponse(viewName, options, keys);
 
             JSONParser parserCopy = getJSONParserCopy(parser);
             parserCopy.addTypeHint(VIEW_QUERY_VALUE_TYPEHINT, valueClass);
             if (isDocumentQuery)
             {
                 parserCopy.addTypeHint(VIEW_QUERY_DOCUMENT_TYPEHINT, documentClass);
-                resp.setParser(parserCopy);
-                return resp.getContentAsBean(ViewAndDocumentsResult.class);
             }
-            else
+            StringPool pool = responseStringPool();
+            if (pool != null)
             {
-                resp.setParser(parserCopy);
-                return resp.getContentAsBean(ViewResult.class);
+                parserCopy.addObjectFactory(new DeduplicatingObjectFactory(pool, deduplicatedFields));
             }
+            resp.setParser(parserCopy);
+            return resp.getContentAsBean(resultClass);
         }
         finally
         {
@@ -840,7 +1404,113 @@ public class Database
 
     }
 
-    private JSONParser getJSONParserCopy(JSONParser localParser)
+    /**
+     * Sends a view query and returns the successful response.
+     *
+     * @param viewName          view URI relative to the database
+     * @param options           query options or <code>null</code>
+     * @param keys              keys to query, if this is not <code>null</code>, a POST request with the keys as JSON will be done.
+     * @return response, must be destroyed by the caller
+     */
+    private Response queryViewResponse(String viewName, Options options, Object keys)
+    {
+        String uri = viewQueryURI(viewName, options);
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("querying view " + uri);
+        }
+
+        Response resp;
+        if (keys == null)
+        {
+            resp = server.get(uri);
+        }
+        else
+        {
+            resp = server.post(uri, jsonGenerator.forValue(keys));
+        }
+
+        if (!resp.isOk())
+        {
+            resp.destroy();
+            throw new DataAccessException("error querying view", resp);
+        }
+        return resp;
+    }
+
+    private String viewQueryURI(String viewName, Options options)
+    {
+        String uri = "/" + this.name + "/" + viewName;
+
+        if (options != null)
+        {
+            uri += options.toQuery();
+        }
+        return uri;
+    }
+
+    /**
+     * Queries a reduce view with integral values like <code>_count</code> and reads the values into a <code>long[]</code>
+     * without creating an object per value.
+     *
+     * @param viewName  view name
+     * @param options   query options
+     * @return
+     */
+    public LongViewResult queryReducedLongs(String viewName, Options options)
+    {
+        return queryReducedInternal(viewName, options, new LongViewResult());
+    }
+
+    /**
+     * Queries a reduce view with floating point values like <code>_sum</code> and reads the values into a <code>double[]</code>
+     * without creating an object per value.
+     *
+     * @param viewName  view name
+     * @param options   query options
+     * @return
+     */
+    public DoubleViewResult queryReducedDoubles(String viewName, Options options)
+    {
+        return queryReducedInternal(viewName, options, new DoubleViewResult());
+    }
+
+    /**
+     * Queries a reduce view using the <code>_stats</code> function and reads the stats into primitive arrays.
+     *
+     * @param viewName  view name
+     * @param options   query options
+     * @return
+     */
+    public StatsViewResult queryReducedStats(String viewName, Options options)
+    {
+        return queryReducedInternal(viewName, options, new StatsViewResult());
+    }
+
+    private <R extends ReducedViewResult> R queryReducedInternal(String viewName, Options options, R result)
+    {
+        Assert.notNull(viewName, "view name cannot be null");
+
+        Response resp = null;
+        try
+        {
+            resp = queryViewResponse(viewURIFromName(viewName), options, null);
+            JSONStreamReader reader = new JSONStreamReader(resp.getInputStream());
+            reader.setStringPool(responseStringPool());
+            result.read(reader);
+            return result;
+        }
+        finally
+        {
+            if (resp != null)
+            {
+                resp.destroy();
+            }
+        }
+    }
+
+    JSONParser getJSONParserCopy(JSONParser localParser)
     {
         return new JSONParser(localParser != null ? localParser : jsonParser);
     }
@@ -1061,6 +1731,11 @@ public class Database
      */
     public byte[] getAttachment(String docId, String attachmentId)
     {
+        if (attachmentCache != null)
+        {
+            return readCached(openCachedAttachment(docId, attachmentId, null));
+        }
+
         Response resp = null;
         try
         {
@@ -1094,6 +1769,20 @@ public class Database
      */
     public Response getAttachmentResponse(String docId, String attachmentId)
     {
+        if (attachmentCache != null)
+        {
+            FileInputStream fis = openCachedAttachment(docId, attachmentId, null);
+            try
+            {
+                return new Response(200, fis, null, fis.getChannel().size());
+            }
+            catch (IOException e)
+            {
+                close(fis);
+                throw ExceptionWrapper.wrap(e);
+            }
+        }
+
         Response resp = server.get("/" + name + "/" + encodeURL(docId) + "/" + attachmentId);
         if (resp.getCode() == 404)
         {
@@ -1108,55 +1797,668 @@ public class Database
 
 
     /**
-     * @param documents
-     * @return
+     * Copies the content of the attachment with the given document id and the given attachment id to the given
+     * output stream, without holding it in memory.
+     *
+     * @param docId             document id
+     * @param attachmentId      attachment id
+     * @param os                output stream to write to. Is not closed.
+     * @return number of bytes written
      */
-    public List<DocumentInfo> bulkDeleteDocuments(List<? extends Object> documents)
+    public long copyAttachmentTo(String docId, String attachmentId, OutputStream os)
     {
-        return this.bulkDeleteDocuments(documents, false);
+        return copyAttachmentTo(docId, attachmentId, os, 0, -1);
     }
 
-
     /**
-     * Delete a set of documents.
-     * 
-     * @param documents
+     * Copies the given range of the content of the attachment with the given document id and the given attachment
+     * id to the given output stream. The range is requested with a HTTP <code>Range</code> header. If the server
+     * ignores it, the bytes outside of the range are read and discarded.
+     *
+     * @param docId             document id
+     * @param attachmentId      attachment id
+     * @param os                output stream to write to. Is not closed.
+     * @param offset            position of the first byte to copy
+     * @param length            number of bytes to copy or <code>-1</code> to copy up to the end
+     * @return number of bytes written, <code>0</code> if the offset is beyond the end of the attachment
      */
-    public List<DocumentInfo> bulkDeleteDocuments(List<? extends Object> documents,
-        boolean allOrNothing)
+    public long copyAttachmentTo(String docId, String attachmentId, OutputStream os, long offset, long length)
     {
-        List<Document> docsToDelete = new ArrayList<Document>();
-        for (Object doc : documents)
+        Assert.notNull(os, "output stream can't be null");
+        Assert.isTrue(offset >= 0, "offset can't be negative");
+
+        if (attachmentCache != null)
         {
-            BaseDocument proxy  = new BaseDocument();
-            proxy.setId(DocumentHelper.getId(doc));
-            proxy.setRevision(DocumentHelper.getRevision(doc));
-            proxy.setProperty("_deleted", true);
-            
-            for (DatabaseEventHandler eventHandler : eventHandlers)
-            {
-                try
-                {
-                    eventHandler.deletingDocument(this, proxy.getId(), proxy.getRevision());
-                }
-                catch (Exception e)
-                {
-                    throw new DatabaseEventException(e);
-                }
-            }
-            
-            docsToDelete.add(proxy);
+            return transferCached(openCachedAttachment(docId, attachmentId, null), offset, length,
+                Channels.newChannel(os));
         }
-        
-        
-        List<DocumentInfo> documentInfos = this.bulkCreateDocuments(docsToDelete, allOrNothing);
-        
-        for (DocumentInfo info : documentInfos)
+
+        Response resp = getAttachmentRange(docId, attachmentId, offset, length, null);
+        if (resp == null)
         {
-            if (info.getError() != null)
-            {
-                for (DatabaseEventHandler eventHandler : eventHandlers)
-                {
+            return 0;
+        }
+        try
+        {
+            long skip = resp.getCode() == 206 ? 0 : offset;
+            return copyRange(resp.getInputStream(), os, skip, length);
+        }
+        catch (IOException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+        finally
+        {
+            resp.destroy();
+        }
+    }
+
+    /**
+     * Copies the content of the attachment with the given document id and the given attachment id to the given
+     * channel, without holding it in memory.
+     *
+     * @param docId             document id
+     * @param attachmentId      attachment id
+     * @param channel           channel to write to. Is not closed.
+     * @return number of bytes written
+     */
+    public long copyAttachmentTo(String docId, String attachmentId, WritableByteChannel channel)
+    {
+        Assert.notNull(channel, "channel can't be null");
+
+        if (attachmentCache != null)
+        {
+            return transferCached(openCachedAttachment(docId, attachmentId, null), 0, -1, channel);
+        }
+
+        Response resp = getAttachmentRange(docId, attachmentId, 0, -1, null);
+        try
+        {
+            return resp.writeContentTo(channel);
+        }
+        finally
+        {
+            resp.destroy();
+        }
+    }
+
+    /**
+     * Copies the content of the attachment with the given stub to the given channel. If there is an attachment cache
+     * and it contains content with the digest of the stub, the content is copied from the cache without any request.
+     *
+     * @param docId             document id
+     * @param attachmentId      attachment id
+     * @param stub              stub of the attachment from the <code>_attachments</code> of the document
+     * @param channel           channel to write to. Is not closed.
+     * @return number of bytes written
+     * @see #setAttachmentCache(AttachmentCache)
+     */
+    public long copyAttachmentTo(String docId, String attachmentId, Attachment stub, WritableByteChannel channel)
+    {
+        Assert.notNull(channel, "channel can't be null");
+
+        if (attachmentCache != null)
+        {
+            return transferCached(openCachedAttachment(docId, attachmentId, stub), 0, -1, channel);
+        }
+        return copyAttachmentTo(docId, attachmentId, channel);
+    }
+
+    /**
+     * Copies the content of the attachment with the given document id and the given attachment id to the given
+     * file using {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}, so memory use stays constant
+     * no matter how large the attachment is.
+     * <p>
+     * If <code>resume</code> is <code>true</code> and the file exists, only the content after the current length of
+     * the file is requested with a HTTP <code>Range</code> header and appended, e.g. to continue an interrupted
+     * download. The request carries an <code>If-Range</code> header built from the digest of the given stub, which
+     * must be the stub of the attachment revision the existing file was downloaded from. If the attachment has
+     * changed since or the server does not support ranges, the file is overwritten with the complete content. The
+     * file is also downloaded again if there is no stub digest to validate it with or if it is longer than the
+     * attachment.
+     * </p>
+     *
+     * @param docId             document id
+     * @param attachmentId      attachment id
+     * @param stub              stub of the attachment the existing file was downloaded from or <code>null</code>
+     * @param file              file to write to
+     * @param resume            if <code>true</code>, an existing file is continued instead of overwritten
+     * @return number of bytes written
+     */
+    public long copyAttachmentTo(String docId, String attachmentId, Attachment stub, File file, boolean resume)
+    {
+        Assert.notNull(file, "file can't be null");
+
+        String validator = stub != null ? etagFromDigest(stub.getDigest()) : null;
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(file, "rw");
+            long position = resume && validator != null ? raf.length() : 0;
+
+            Response resp = getAttachmentRange(docId, attachmentId, position, -1, validator);
+            if (resp == null)
+            {
+                if (position == stub.getLength())
+                {
+                    // file is complete already
+                    return 0;
+                }
+                log.info("{} is longer than attachment '{}' of document '{}', downloading it again",
+                    new Object[] { file, attachmentId, docId });
+                resp = getAttachmentRange(docId, attachmentId, 0, -1, null);
+            }
+            try
+            {
+                if (resp.getCode() != 206)
+                {
+                    position = 0;
+                }
+                FileChannel channel = raf.getChannel();
+                channel.truncate(position);
+
+                ReadableByteChannel source = Channels.newChannel(resp.getInputStream());
+                long total = 0;
+                long count;
+                while ((count = channel.transferFrom(source, position + total, TRANSFER_SIZE)) > 0)
+                {
+                    total += count;
+                }
+                return total;
+            }
+            finally
+            {
+                resp.destroy();
+            }
+        }
+        catch (IOException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+        finally
+        {
+            if (raf != null)
+            {
+                try
+                {
+                    raf.close();
+                }
+                catch (IOException e)
+                {
+                    log.warn("error closing " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches the content of the given attachments of a document concurrently, using at most
+     * <code>parallelism</code> requests at a time. The server's connection pool should allow at least that many
+     * connections per route. If there is an attachment cache, the stubs are used to serve cached content without
+     * request. The requests run on the {@link #setAttachmentExecutor(ExecutorService) attachment executor}.
+     *
+     * @param docId             document id
+     * @param stubs             attachment stubs by name, e.g. the selected entries of the document's
+     *                          <code>_attachments</code>. The stubs may be <code>null</code>.
+     * @param parallelism       maximum number of concurrent requests
+     * @return attachment content by name, in the order of the given stubs
+     * @see #DEFAULT_ATTACHMENT_PARALLELISM
+     */
+    public Map<String, byte[]> getAttachments(final String docId, Map<String, Attachment> stubs, int parallelism)
+    {
+        return fetchAttachments(stubs, parallelism, new AttachmentTask<byte[]>()
+        {
+            public byte[] fetch(String attachmentId, Attachment stub)
+            {
+                if (attachmentCache != null)
+                {
+                    return readCached(openCachedAttachment(docId, attachmentId, stub));
+                }
+                return getAttachment(docId, attachmentId);
+            }
+        });
+    }
+
+    /**
+     * Downloads the given attachments of a document concurrently into files named like the attachments in the given
+     * directory, using at most <code>parallelism</code> requests at a time. Attachment names containing slashes
+     * create subdirectories. The requests run on the {@link #setAttachmentExecutor(ExecutorService) attachment
+     * executor}.
+     *
+     * @param docId             document id
+     * @param stubs             attachment stubs by name. The stubs may be <code>null</code>.
+     * @param directory         target directory, created if it does not exist
+     * @param parallelism       maximum number of concurrent requests
+     * @return files by attachment name, in the order of the given stubs
+     * @throws IllegalArgumentException if an attachment name would lead outside of the directory
+     */
+    public Map<String, File> copyAttachmentsTo(final String docId, Map<String, Attachment> stubs,
+        final File directory, int parallelism)
+    {
+        Assert.notNull(stubs, "stubs can't be null");
+        Assert.notNull(directory, "directory can't be null");
+
+        final String root;
+        try
+        {
+            root = directory.getCanonicalPath() + File.separator;
+        }
+        catch (IOException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+        for (String attachmentId : stubs.keySet())
+        {
+            if (!attachmentFile(directory, attachmentId).startsWith(root))
+            {
+                throw new IllegalArgumentException("attachment name '" + attachmentId + "' leads outside of " +
+                    directory);
+            }
+        }
+
+        return fetchAttachments(stubs, parallelism, new AttachmentTask<File>()
+        {
+            public File fetch(String attachmentId, Attachment stub) throws IOException
+            {
+                File file = new File(attachmentFile(directory, attachmentId));
+                File parent = file.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+                {
+                    throw new IOException("Can't create directory " + parent);
+                }
+
+                if (attachmentCache != null)
+                {
+                    FileOutputStream fos = new FileOutputStream(file);
+                    try
+                    {
+                        copyAttachmentTo(docId, attachmentId, stub, fos.getChannel());
+                    }
+                    finally
+                    {
+                        fos.close();
+                    }
+                }
+                else
+                {
+                    copyAttachmentTo(docId, attachmentId, stub, file, false);
+                }
+                return file;
+            }
+        });
+    }
+
+    private static String attachmentFile(File directory, String attachmentId)
+    {
+        try
+        {
+            return new File(directory, attachmentId).getCanonicalPath();
+        }
+        catch (IOException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+    }
+
+    /**
+     * Fetches one attachment for {@link Database#fetchAttachments(Map, int, AttachmentTask)}.
+     */
+    private interface AttachmentTask<T>
+    {
+        T fetch(String attachmentId, Attachment stub) throws IOException;
+    }
+
+    /**
+     * Runs the given task for all given attachments on the attachment executor, at most <code>parallelism</code> at a
+     * time. If one of the tasks fails, the others are cancelled and the failure is rethrown.
+     */
+    private <T> Map<String, T> fetchAttachments(Map<String, Attachment> stubs, int parallelism,
+        final AttachmentTask<T> task)
+    {
+        Assert.notNull(stubs, "stubs can't be null");
+        Assert.isTrue(parallelism > 0, "parallelism must be positive");
+
+        Map<String, T> results = new LinkedHashMap<String, T>();
+        if (stubs.size() == 0)
+        {
+            return results;
+        }
+
+        // the executor is shared, so the parallelism is bounded by permits
+        ExecutorService executor = attachmentExecutor();
+        final Semaphore permits = new Semaphore(parallelism);
+        Map<String, Future<T>> futures = new LinkedHashMap<String, Future<T>>();
+        try
+        {
+            for (final Map.Entry<String, Attachment> e : stubs.entrySet())
+            {
+                permits.acquire();
+                try
+                {
+                    futures.put(e.getKey(), executor.submit(new Callable<T>()
+                    {
+                        public T call() throws IOException
+                        {
+                            try
+                            {
+                                return task.fetch(e.getKey(), e.getValue());
+                            }
+                            finally
+                            {
+                                permits.release();
+                            }
+                        }
+                    }));
+                }
+                catch (RejectedExecutionException ex)
+                {
+                    permits.release();
+                    throw ex;
+                }
+            }
+            for (Map.Entry<String, Future<T>> e : futures.entrySet())
+            {
+                results.put(e.getKey(), e.getValue().get());
+            }
+            return results;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw ExceptionWrapper.wrap(e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            throw ExceptionWrapper.wrap(cause instanceof Exception ? (Exception)cause : e);
+        }
+        finally
+        {
+            // stops the remaining fetches after a failure
+            for (Future<T> future : futures.values())
+            {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Opens the cached content of the given attachment. The content is served from the cache without request if
+     * the digest of the given stub is cached, otherwise the cached content is revalidated with its ETag or fetched.
+     * The stream stays readable if the cache evicts the file meanwhile.
+     */
+    private FileInputStream openCachedAttachment(String docId, String attachmentId, Attachment stub)
+    {
+        FileInputStream fis = attachmentCache.openByStub(stub);
+        if (fis != null)
+        {
+            return fis;
+        }
+
+        String uri = "/" + name + "/" + encodeURL(docId) + "/" + attachmentId;
+        String etag = attachmentCache.getETag(uri);
+        Response resp = null;
+        try
+        {
+            if (etag != null)
+            {
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put("If-None-Match", etag);
+                resp = get(uri, headers);
+                if (resp.getCode() == 304)
+                {
+                    fis = attachmentCache.openRevalidated(uri);
+                    if (fis != null)
+                    {
+                        return fis;
+                    }
+                    // evicted meanwhile
+                    resp.destroy();
+                    resp = server.get(uri);
+                }
+            }
+            else
+            {
+                resp = server.get(uri);
+            }
+
+            if (resp.getCode() == 404)
+            {
+                throw new NotFoundException("attachment not found", resp);
+            }
+            else if (!resp.isOk())
+            {
+                throw new DataAccessException("error getting attachment '" + attachmentId + "' of document '"+docId + "': ", resp);
+            }
+            return attachmentCache.put(uri, resp.getHeader("ETag"), resp.getInputStream());
+        }
+        finally
+        {
+            if (resp != null)
+            {
+                resp.destroy();
+            }
+        }
+    }
+
+    /**
+     * Transfers the given range of opened cached content to the given channel with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)} and closes it.
+     */
+    private static long transferCached(FileInputStream fis, long offset, long length, WritableByteChannel target)
+    {
+        try
+        {
+            FileChannel channel = fis.getChannel();
+            long end = length < 0 ? channel.size() : Math.min(channel.size(), offset + length);
+            long position = offset;
+            while (position < end)
+            {
+                position += channel.transferTo(position, end - position, target);
+            }
+            return Math.max(0, end - offset);
+        }
+        catch (IOException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+        finally
+        {
+            close(fis);
+        }
+    }
+
+    /**
+     * Reads opened cached content completely and closes it. Fails if the content ends before the size of the file.
+     */
+    private static byte[] readCached(FileInputStream fis)
+    {
+        try
+        {
+            long size = fis.getChannel().size();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException("Cached attachment with " + size + " bytes is too large for an array");
+            }
+            byte[] data = new byte[(int)size];
+            int pos = 0;
+            int count;
+            while (pos < data.length && (count = fis.read(data, pos, data.length - pos)) != -1)
+            {
+                pos += count;
+            }
+            if (pos < data.length)
+            {
+                throw new IOException("Cached attachment ended after " + pos + " of " + size + " bytes");
+            }
+            return data;
+        }
+        catch (IOException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+        finally
+        {
+            close(fis);
+        }
+    }
+
+    private static void close(FileInputStream fis)
+    {
+        try
+        {
+            fis.close();
+        }
+        catch (IOException e)
+        {
+            log.warn("error closing cached attachment", e);
+        }
+    }
+
+    /**
+     * Requests the given range of an attachment. Returns <code>null</code> if the range starts beyond the end of
+     * the attachment. If an <code>If-Range</code> validator is given and the attachment does not match it, the
+     * server sends the complete content instead of the range.
+     */
+    private Response getAttachmentRange(String docId, String attachmentId, long offset, long length, String ifRange)
+    {
+        Map<String, String> headers = null;
+        if (offset > 0 || length >= 0)
+        {
+            headers = new HashMap<String, String>();
+            headers.put("Range", "bytes=" + offset + "-" + (length >= 0 ? String.valueOf(offset + length - 1) : ""));
+            if (ifRange != null)
+            {
+                headers.put("If-Range", ifRange);
+            }
+        }
+
+        Response resp = get("/" + name + "/" + encodeURL(docId) + "/" + attachmentId, headers);
+        if (resp.getCode() == 416)
+        {
+            resp.destroy();
+            return null;
+        }
+        else if (resp.getCode() == 404)
+        {
+            resp.destroy();
+            throw new NotFoundException("attachment not found", resp);
+        }
+        else if (!resp.isOk())
+        {
+            resp.destroy();
+            throw new DataAccessException("error getting attachment '" + attachmentId + "' of document '"+docId + "': ", resp);
+        }
+        return resp;
+    }
+
+    /**
+     * Converts a digest as reported in attachment stubs, e.g. <code>md5-XlPAJvA2fd+J8OLGpXUUEg==</code>, into the
+     * ETag couchdb sends for the attachment.
+     */
+    private static String etagFromDigest(String digest)
+    {
+        if (digest == null || !digest.startsWith("md5-"))
+        {
+            return null;
+        }
+        return "\"" + digest.substring("md5-".length()) + "\"";
+    }
+
+    private static long copyRange(InputStream in, OutputStream os, long skip, long length) throws IOException
+    {
+        while (skip > 0)
+        {
+            long skipped = in.skip(skip);
+            if (skipped <= 0)
+            {
+                if (in.read() < 0)
+                {
+                    return 0;
+                }
+                skipped = 1;
+            }
+            skip -= skipped;
+        }
+
+        BufferPool pool = BufferPool.defaultPool();
+        byte[] buffer = pool.acquire();
+        try
+        {
+            long total = 0;
+            while (length < 0 || total < length)
+            {
+                int max = length < 0 ? buffer.length : (int)Math.min(buffer.length, length - total);
+                int count = in.read(buffer, 0, max);
+                if (count == -1)
+                {
+                    break;
+                }
+                os.write(buffer, 0, count);
+                total += count;
+            }
+            return total;
+        }
+        finally
+        {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * @param documents
+     * @return
+     */
+    public List<DocumentInfo> bulkDeleteDocuments(List<? extends Object> documents)
+    {
+        return this.bulkDeleteDocuments(documents, false);
+    }
+
+
+    /**
+     * Delete a set of documents.
+     * 
+     * @param documents
+     */
+    public List<DocumentInfo> bulkDeleteDocuments(List<? extends Object> documents,
+        boolean allOrNothing)
+    {
+        List<Document> docsToDelete = new ArrayList<Document>();
+        for (Object doc : documents)
+        {
+            BaseDocument proxy  = new BaseDocument();
+            proxy.setId(DocumentHelper.getId(doc));
+            proxy.setRevision(DocumentHelper.getRevision(doc));
+            proxy.setProperty("_deleted", true);
+            
+            for (DatabaseEventHandler eventHandler : eventHandlers)
+            {
+                try
+                {
+                    eventHandler.deletingDocument(this, proxy.getId(), proxy.getRevision());
+                }
+                catch (Exception e)
+                {
+                    throw new DatabaseEventException(e);
+                }
+            }
+            
+            docsToDelete.add(proxy);
+        }
+        
+        
+        List<DocumentInfo> documentInfos = this.bulkCreateDocuments(docsToDelete, allOrNothing);
+        
+        for (DocumentInfo info : documentInfos)
+        {
+            if (info.getError() != null)
+            {
+                for (DatabaseEventHandler eventHandler : eventHandlers)
+                {
                     try
                     {               
                         eventHandler.deletedDocument(this, info.getId(), info.getRevision(), null);
@@ -1244,6 +2546,112 @@ public class Database
         }
     }
 
+    /**
+     * Polls the server for changes on the current Database and returns the changed documents with the changes. 
+     * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param longPolling   if <code>true</code>, the method will block until new changes are present
+     * @param options       extended and user options. 
+     * @param documentClass class to parse the documents into
+     * 
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <D> DocumentPollingResults<D> pollChangesWithDocuments(Long since, String filter, boolean longPolling,
+        Options options, Class<D> documentClass)
+    {
+        Assert.notNull(documentClass, "document class can't be null");
+
+        Response response = null;
+
+        options = getCommonChangesOptions(filter, since, options);
+        options.includeDocs(true);
+        if (longPolling)
+        {
+            options.putUnencoded("feed", "longpoll");
+        }
+        try
+        {
+            response = server.get("/" + name + "/_changes" + options.toQuery() );
+            JSONParser parser = getJSONParserCopy(null);
+            parser.addTypeHint(".results[].doc", documentClass);
+            response.setParser(parser);
+            return response.getContentAsBean(DocumentPollingResults.class);
+        }
+        finally
+        {
+            if (response != null)
+            {
+                response.destroy();
+            }
+        }
+    }
+
+    /**
+     * Polls the server for changes on the current Database and returns only the changes accepted by the given
+     * client-side filter. The last sequence of the results still covers the dropped changes. The filter only sees
+     * the change notifications, use
+     * {@link #pollChangesWithDocumentsFiltered(Long, String, boolean, Options, Class, ChangeFilter)} for filters
+     * looking at the changed documents.
+     * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param longPolling   if <code>true</code>, the method will block until new changes are present
+     * @param options       extended and user options. 
+     * @param changeFilter  client-side filter
+     * 
+     * @return
+     */
+    public PollingResults pollChangesFiltered(Long since, String filter, boolean longPolling, Options options,
+        ChangeFilter changeFilter)
+    {
+        Assert.notNull(changeFilter, "change filter can't be null");
+
+        PollingResults results = pollChanges(since, filter, longPolling, options);
+        List<ChangeNotification> accepted = new ArrayList<ChangeNotification>(results.getResults().size());
+        for (ChangeNotification changeNotification : results.getResults())
+        {
+            if (changeFilter.accept(changeNotification))
+            {
+                accepted.add(changeNotification);
+            }
+        }
+        results.setResults(accepted);
+        return results;
+    }
+
+    /**
+     * Polls the server for changes on the current Database together with the changed documents and returns only
+     * the changes accepted by the given client-side filter. The filter receives {@link DocumentChangeNotification}s.
+     * The last sequence of the results still covers the dropped changes. 
+     * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param longPolling   if <code>true</code>, the method will block until new changes are present
+     * @param options       extended and user options. 
+     * @param documentClass class to parse the documents into
+     * @param changeFilter  client-side filter
+     * 
+     * @return
+     */
+    public <D> DocumentPollingResults<D> pollChangesWithDocumentsFiltered(Long since, String filter,
+        boolean longPolling, Options options, Class<D> documentClass, ChangeFilter changeFilter)
+    {
+        Assert.notNull(changeFilter, "change filter can't be null");
+
+        DocumentPollingResults<D> results = pollChangesWithDocuments(since, filter, longPolling, options,
+            documentClass);
+        List<DocumentChangeNotification<D>> accepted = new ArrayList<DocumentChangeNotification<D>>(
+            results.getResults().size());
+        for (DocumentChangeNotification<D> changeNotification : results.getResults())
+        {
+            if (changeFilter.accept(changeNotification))
+            {
+                accepted.add(changeNotification);
+            }
+        }
+        results.setResults(accepted);
+        return results;
+    }
+
     Options getCommonChangesOptions(String filter, Long since, Options options)
     {
         // copy to avoid side effects
@@ -1263,27 +2671,209 @@ public class Database
     /**
      * Register a change listener to receive continuous change notifications.
      * 
-     * This method will start a new Thread driving the calling of the change listener. 
+     * This method will start a new Thread driving the calling of the change listener. The feed is reopened from the
+     * last received change if the connection to the server is lost. 
      * 
      * @param filter        name of a filter function to use or <code>null</code> for unfiltered
      * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
      * @param options       extended and user options. 
      * @param listener      listener instance to register
+     * @see #startChangeFeed(String, Long, Options, ChangeListener)
      */
     public void registerChangeListener( String filter, Long since, Options options, ChangeListener listener)
+    {
+        startChangeFeed(filter, since, options, listener);
+    }
+
+    /**
+     * Starts a continuous change feed like {@link #registerChangeListener(String, Long, Options, ChangeListener)}
+     * and returns a handle to monitor and stop it.
+     * 
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param options       extended and user options. 
+     * @param listener      listener instance to register
+     * @return handle to stop the feed with
+     */
+    public ChangeFeed startChangeFeed( String filter, Long since, Options options, ChangeListener listener)
     {
         ContinuousChangesDriver driver = new ContinuousChangesDriver(this, filter, since, options, listener);
-        driver.start();
         try
         {
-            synchronized(driver)
-            {
-                driver.wait();
-            }
+            driver.start();
+        }
+        catch (InterruptedException e)
+        {
+            log.error("Interrupted while waiting for ContinuousChangesDriver to start", e);
+        }
+        return driver;
+    }
+
+    /**
+     * Register a change listener to receive continuous change notifications together with the changed documents.
+     * The listener receives {@link DocumentChangeNotification}s whose documents are parsed into the given class
+     * with one parser reused for all notifications.
+     * 
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param options       extended and user options. 
+     * @param documentClass class to parse the documents into
+     * @param listener      listener instance to register
+     * @return handle to stop the feed with
+     */
+    public ChangeFeed registerDocumentChangeListener( String filter, Long since, Options options,
+        Class<?> documentClass, ChangeListener listener)
+    {
+        Assert.notNull(documentClass, "document class can't be null");
+
+        options = new Options(options).includeDocs(true);
+        JSONParser parser = getJSONParserCopy(null);
+        parser.addTypeHint(".doc", documentClass);
+
+        ContinuousChangesDriver driver = new ContinuousChangesDriver(this, filter, since, options, listener,
+            parser, DocumentChangeNotification.class);
+        try
+        {
+            driver.start();
         }
         catch (InterruptedException e)
         {
             log.error("Interrupted while waiting for ContinuousChangesDriver to start", e);
         }
+        return driver;
+    }
+
+    /**
+     * Register a change listener that only receives the changes accepted by the given client-side filter. Use
+     * {@link Options#docIds(java.util.Collection)} to let CouchDB narrow the feed down to known documents first.
+     * 
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param options       extended and user options. 
+     * @param changeFilter  client-side filter
+     * @param listener      listener instance to register
+     * @return handle to stop the feed with
+     * @see FilteringChangeListener
+     */
+    public ChangeFeed registerFilteredChangeListener( String filter, Long since, Options options,
+        ChangeFilter changeFilter, ChangeListener listener)
+    {
+        return startChangeFeed(filter, since, options, new FilteringChangeListener(changeFilter, listener));
+    }
+
+    /**
+     * Register a batch change listener to receive continuous change notifications in batches.
+     * 
+     * The changes are read by one thread and queued for a second thread calling the batch listener. Reading from the
+     * feed pauses while the queue is full.
+     * 
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param options       extended and user options. 
+     * @param listener      batch listener instance to register
+     * @param maxBatchSize  maximum number of changes per batch
+     * @param maxDelay      maximum number of milliseconds to wait for a batch to fill up
+     * @return handle to stop the feed with
+     */
+    public ChangeFeed registerBatchChangeListener( String filter, Long since, Options options,
+        BatchChangeListener listener, int maxBatchSize, long maxDelay)
+    {
+        BatchingChangeDispatcher dispatcher = new BatchingChangeDispatcher(listener,
+            Math.max(BatchingChangeDispatcher.DEFAULT_QUEUE_CAPACITY, maxBatchSize * 2), maxBatchSize, maxDelay);
+        dispatcher.start();
+        return startChangeFeed(filter, since, options, dispatcher);
+    }
+
+    /**
+     * Register a thread-safe change listener that is called from several worker threads. Changes to the same document
+     * are processed in feed order, changes to different documents in parallel.
+     * 
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param options       extended and user options. 
+     * @param listener      thread-safe listener instance to register
+     * @param workerCount   number of worker threads
+     * @return handle to stop the feed with
+     * @see ParallelChangeDispatcher
+     */
+    public ChangeFeed registerParallelChangeListener( String filter, Long since, Options options,
+        ChangeListener listener, int workerCount)
+    {
+        ParallelChangeDispatcher dispatcher = new ParallelChangeDispatcher(listener, workerCount);
+        dispatcher.start();
+        return startChangeFeed(filter, since, options, dispatcher);
+    }
+
+    /**
+     * Register a change listener that resumes from the checkpoint in the given store and records its progress there.
+     * 
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param options       extended and user options. 
+     * @param listener      listener instance to register, can be one of the dispatchers
+     * @param store         checkpoint store
+     * @return handle to stop the feed with. Stopping the feed writes a final checkpoint.
+     * @see CheckpointingChangeListener
+     */
+    public ChangeFeed registerCheckpointedChangeListener( String filter, Options options, ChangeListener listener,
+        CheckpointStore store)
+    {
+        Long since = store.load();
+        log.info("resuming change feed from checkpoint {}", since);
+        return startChangeFeed(filter, since, options, new CheckpointingChangeListener(listener, store));
+    }
+
+    /**
+     * Returns the changes multiplexer sharing one continuous change feed with the given filter between all listeners
+     * registered with it. 
+     * 
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @return
+     */
+    public ChangesMultiplexer getChangesMultiplexer(String filter)
+    {
+        synchronized(changesMultiplexers)
+        {
+            ChangesMultiplexer multiplexer = changesMultiplexers.get(filter);
+            if (multiplexer == null || multiplexer.isClosed())
+            {
+                multiplexer = new ChangesMultiplexer(this, filter, null);
+                changesMultiplexers.put(filter, multiplexer);
+            }
+            return multiplexer;
+        }
+    }
+
+    /**
+     * Polls the changes of this database on the shared default scheduler, adapting to the change rate.
+     * 
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param options       extended and user options. 
+     * @param listener      listener instance to register
+     * @return handle to stop polling with
+     * @see ChangesPoller
+     */
+    public ChangeFeed registerChangePoller( String filter, Long since, Options options, ChangeListener listener)
+    {
+        return registerChangePoller(filter, since, options, listener, ChangesPoller.defaultScheduler());
+    }
+
+    /**
+     * Polls the changes of this database on the given scheduler, adapting to the change rate.
+     * 
+     * @param filter        name of a filter function to use or <code>null</code> for unfiltered
+     * @param since         if this is not <code>null</code>, no changes before that sequence number is returned.
+     * @param options       extended and user options. 
+     * @param listener      listener instance to register
+     * @param scheduler     scheduler to run the polls on
+     * @return handle to stop polling with
+     * @see ChangesPoller
+     */
+    public ChangeFeed registerChangePoller( String filter, Long since, Options options, ChangeListener listener,
+        ScheduledExecutorService scheduler)
+    {
+        ChangesPoller poller = new ChangesPoller(this, filter, since, options, listener, scheduler);
+        poller.start();
+        return poller;
     }
 }
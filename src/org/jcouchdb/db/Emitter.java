@@ -0,0 +1,15 @@
+package org.jcouchdb.db;
+
+/**
+ * Receives the rows emitted by a {@link MapFunction}.
+ */
+public interface Emitter
+{
+    /**
+     * Emits a row for the document currently mapped.
+     *
+     * @param key       key of the row, a JSON compatible value
+     * @param value     value of the row
+     */
+    void emit(Object key, Object value);
+}
@@ -0,0 +1,147 @@
+package org.jcouchdb.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jcouchdb.util.Assert;
+import org.jcouchdb.util.ExceptionWrapper;
+
+/**
+ * Checkpoint store keeping the sequence in a small memory-mapped file. The file has two slots that are written
+ * alternately, each holding a generation counter, the sequence and a check value. A partially written checkpoint is
+ * detected by its check value and the previous checkpoint in the other slot is used instead.
+ */
+public class FileCheckpointStore
+    implements CheckpointStore
+{
+    private final static long CHECK_MASK = 0x6a636f7563686462L;
+
+    private final static int SLOT_SIZE = 24;
+
+    private final static int SIZE = 2 * SLOT_SIZE;
+
+    private final File file;
+
+    private MappedByteBuffer buffer;
+
+    /**
+     * Generation of the newest valid checkpoint, <code>0</code> if there is none, <code>-1</code> if not read yet.
+     */
+    private long generation = -1;
+
+    /**
+     * Slot of the newest valid checkpoint.
+     */
+    private int slot;
+
+    /**
+     * Creates a store for the given file. The file is created when the first checkpoint is stored.
+     *
+     * @param file      checkpoint file
+     */
+    public FileCheckpointStore(File file)
+    {
+        Assert.notNull(file, "file can't be null");
+        this.file = file;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public synchronized Long load()
+    {
+        if (!file.exists() || file.length() < SIZE)
+        {
+            return null;
+        }
+
+        findNewest();
+        if (generation == 0)
+        {
+            return null;
+        }
+        return buffer.getLong(slot * SLOT_SIZE + 8);
+    }
+
+    public synchronized void store(long sequence)
+    {
+        if (generation < 0)
+        {
+            findNewest();
+        }
+
+        // overwrite the older slot, so the newest checkpoint survives a torn write
+        int next = generation == 0 ? 0 : 1 - slot;
+        int offset = next * SLOT_SIZE;
+        MappedByteBuffer buffer = buffer();
+        buffer.putLong(offset, generation + 1);
+        buffer.putLong(offset + 8, sequence);
+        buffer.putLong(offset + 16, check(generation + 1, sequence));
+        buffer.force();
+
+        generation++;
+        slot = next;
+    }
+
+    /**
+     * Finds the valid slot with the highest generation.
+     */
+    private void findNewest()
+    {
+        MappedByteBuffer buffer = buffer();
+        generation = 0;
+        for (int i = 0; i < 2; i++)
+        {
+            int offset = i * SLOT_SIZE;
+            long gen = buffer.getLong(offset);
+            if (gen > generation && buffer.getLong(offset + 16) == check(gen, buffer.getLong(offset + 8)))
+            {
+                generation = gen;
+                slot = i;
+            }
+        }
+    }
+
+    private static long check(long generation, long sequence)
+    {
+        return Long.rotateLeft(generation, 32) ^ sequence ^ CHECK_MASK;
+    }
+
+    private MappedByteBuffer buffer()
+    {
+        if (buffer == null)
+        {
+            RandomAccessFile raf = null;
+            try
+            {
+                raf = new RandomAccessFile(file, "rw");
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            }
+            catch (IOException e)
+            {
+                throw ExceptionWrapper.wrap(e);
+            }
+            finally
+            {
+                if (raf != null)
+                {
+                    try
+                    {
+                        // the mapping stays valid after closing the file
+                        raf.close();
+                    }
+                    catch (IOException e)
+                    {
+                        throw ExceptionWrapper.wrap(e);
+                    }
+                }
+            }
+        }
+        return buffer;
+    }
+}
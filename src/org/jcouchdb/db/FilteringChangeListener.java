@@ -0,0 +1,96 @@
+package org.jcouchdb.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.jcouchdb.document.ChangeFilter;
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.util.Assert;
+
+/**
+ * Change listener decorator that only passes the changes accepted by a {@link ChangeFilter} on to the wrapped
+ * listener.
+ * <p>
+ * Changes dropped by the filter still count as processed, so a checkpoint written for this listener moves past them
+ * and they are not requested again after a restart. If the wrapped listener is a {@link SequenceTracker}, the
+ * sequence of dropped changes is only reported once the wrapped listener has processed all changes passed to it
+ * before.
+ * </p>
+ */
+public class FilteringChangeListener
+    implements ChangeListener, SequenceTracker, Closeable
+{
+    private final ChangeFilter filter;
+
+    private final ChangeListener listener;
+
+    private volatile long lastSequence = -1;
+
+    private volatile long lastAccepted = -1;
+
+    private volatile long filteredCount;
+
+    /**
+     * Creates a new filtering listener.
+     *
+     * @param filter    filter deciding which changes to pass on
+     * @param listener  listener to wrap
+     */
+    public FilteringChangeListener(ChangeFilter filter, ChangeListener listener)
+    {
+        Assert.notNull(filter, "filter can't be null");
+        Assert.notNull(listener, "listener can't be null");
+
+        this.filter = filter;
+        this.listener = listener;
+    }
+
+    public void onChange(ChangeNotification changeNotification)
+    {
+        if (filter.accept(changeNotification))
+        {
+            lastAccepted = changeNotification.getSequence();
+            listener.onChange(changeNotification);
+        }
+        else
+        {
+            filteredCount++;
+        }
+        lastSequence = changeNotification.getSequence();
+    }
+
+    public long getLastSequence()
+    {
+        if (listener instanceof SequenceTracker)
+        {
+            long processed = ((SequenceTracker)listener).getLastSequence();
+            if (processed < lastAccepted)
+            {
+                return processed;
+            }
+        }
+        return lastSequence;
+    }
+
+    /**
+     * Returns the number of changes dropped by the filter.
+     *
+     * @return
+     */
+    public long getFilteredCount()
+    {
+        return filteredCount;
+    }
+
+    /**
+     * Closes the wrapped listener if it is closeable.
+     */
+    public void close() throws IOException
+    {
+        if (listener instanceof Closeable)
+        {
+            ((Closeable)listener).close();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.jcouchdb.db;
+
+import java.util.Map;
+
+import org.jcouchdb.exception.CouchDBException;
+
+/**
+ * Internal extension of {@link Server} for servers that can send additional headers with GET requests.
+ * {@link Database} sends requests to servers that don't implement it without the headers, so conditional
+ * and range requests become plain requests for the whole content.
+ */
+interface HeaderAwareServer
+    extends Server
+{
+    /**
+     * Send a GET request to the given URI with additional request headers.
+     * @param uri
+     * @param headers   map of header names to values or <code>null</code>
+     * @return
+     */
+    Response get(String uri, Map<String, String> headers) throws CouchDBException;
+}
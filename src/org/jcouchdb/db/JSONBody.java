@@ -0,0 +1,152 @@
+package org.jcouchdb.db;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.jcouchdb.util.Assert;
+import org.svenson.JSON;
+import org.svenson.JSONCharacterSink;
+import org.svenson.SvensonRuntimeException;
+import org.svenson.WriterSink;
+
+/**
+ * JSON request body that is generated while it is sent instead of being built as string first. Together with
+ * {@link org.jcouchdb.util.Base64Data#JSONIFIER}, inline attachments never exist as complete Base64 text.
+ * <p>
+ * The body is generated twice per request: once to count its UTF-8 encoded length for the
+ * <code>Content-Length</code> header and once to write it.
+ * </p>
+ */
+class JSONBody
+{
+    private final static int BUFFER_SIZE = 8192;
+
+    private final JSON generator;
+
+    private final Object value;
+
+    JSONBody(JSON generator, Object value)
+    {
+        Assert.notNull(generator, "generator can't be null");
+        this.generator = generator;
+        this.value = value;
+    }
+
+    public Object getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Returns the length of the UTF-8 encoded body. The body is generated without being kept.
+     */
+    public long getLength()
+    {
+        ByteCountingSink sink = new ByteCountingSink();
+        writeTo(sink);
+        return sink.getCount();
+    }
+
+    /**
+     * Writes the UTF-8 encoded body to the given stream. The stream is flushed but not closed.
+     */
+    public void writeTo(OutputStream os) throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), BUFFER_SIZE);
+        try
+        {
+            writeTo(new WriterSink(writer));
+        }
+        catch (SvensonRuntimeException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException)e.getCause();
+            }
+            throw e;
+        }
+        writer.flush();
+    }
+
+    void writeTo(JSONCharacterSink sink)
+    {
+        generator.dumpObject(sink, value);
+    }
+
+    /**
+     * Returns the body as string. Only meant for debug logging.
+     */
+    @Override
+    public String toString()
+    {
+        return generator.forValue(value);
+    }
+
+    /**
+     * Counts the bytes the appended characters take in UTF-8 like {@link OutputStreamWriter} encodes them,
+     * including surrogate pairs split across appends and unpaired surrogates replaced by <code>'?'</code>.
+     */
+    private static class ByteCountingSink
+        implements JSONCharacterSink
+    {
+        private long count;
+
+        private boolean highSurrogate;
+
+        public void append(String s)
+        {
+            for (int i = 0; i < s.length(); i++)
+            {
+                append(s.charAt(i));
+            }
+        }
+
+        public void append(char c)
+        {
+            if (highSurrogate)
+            {
+                highSurrogate = false;
+                if (Character.isLowSurrogate(c))
+                {
+                    count += 4;
+                    return;
+                }
+                count++;
+            }
+
+            if (c < 0x80)
+            {
+                count++;
+            }
+            else if (c < 0x800)
+            {
+                count += 2;
+            }
+            else if (Character.isHighSurrogate(c))
+            {
+                highSurrogate = true;
+            }
+            else if (Character.isLowSurrogate(c))
+            {
+                count++;
+            }
+            else
+            {
+                count += 3;
+            }
+        }
+
+        public void append(Object o)
+        {
+            append(String.valueOf(o));
+        }
+
+        public long getCount()
+        {
+            return highSurrogate ? count + 1 : count;
+        }
+    }
+}
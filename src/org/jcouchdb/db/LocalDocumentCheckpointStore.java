@@ -0,0 +1,84 @@
+package org.jcouchdb.db;
+
+import org.jcouchdb.document.BaseDocument;
+import org.jcouchdb.exception.NotFoundException;
+import org.jcouchdb.exception.UpdateConflictException;
+import org.jcouchdb.util.Assert;
+
+/**
+ * Checkpoint store keeping the sequence in a couchdb <code>_local</code> document. Local documents are not replicated,
+ * so the checkpoint stays with the database it belongs to.
+ */
+public class LocalDocumentCheckpointStore
+    implements CheckpointStore
+{
+    private final static String LOCAL_PREFIX = "_local/";
+
+    private final static String SEQUENCE_PROPERTY = "seq";
+
+    private final Database database;
+
+    private final String docId;
+
+    private String revision;
+
+    /**
+     * Creates a store for the local document with the given name.
+     *
+     * @param database  database to store the checkpoint in
+     * @param name      name of the checkpoint, with or without the <code>"_local/"</code> prefix
+     */
+    public LocalDocumentCheckpointStore(Database database, String name)
+    {
+        Assert.notNull(database, "database can't be null");
+        Assert.notNull(name, "name can't be null");
+
+        this.database = database;
+        this.docId = name.startsWith(LOCAL_PREFIX) ? name : LOCAL_PREFIX + name;
+    }
+
+    public String getDocId()
+    {
+        return docId;
+    }
+
+    public synchronized Long load()
+    {
+        try
+        {
+            BaseDocument doc = database.getDocument(BaseDocument.class, docId);
+            revision = doc.getRevision();
+            Object sequence = doc.getProperty(SEQUENCE_PROPERTY);
+            return sequence instanceof Number ? ((Number)sequence).longValue() : null;
+        }
+        catch (NotFoundException e)
+        {
+            revision = null;
+            return null;
+        }
+    }
+
+    public synchronized void store(long sequence)
+    {
+        try
+        {
+            write(sequence);
+        }
+        catch (UpdateConflictException e)
+        {
+            // someone else wrote the checkpoint, take over their revision
+            load();
+            write(sequence);
+        }
+    }
+
+    private void write(long sequence)
+    {
+        BaseDocument doc = new BaseDocument();
+        doc.setId(docId);
+        doc.setRevision(revision);
+        doc.setProperty(SEQUENCE_PROPERTY, sequence);
+        database.createOrUpdateDocument(doc);
+        revision = doc.getRevision();
+    }
+}
@@ -0,0 +1,18 @@
+package org.jcouchdb.db;
+
+/**
+ * Java counterpart of the map function of a view, used by {@link MaterializedIndex}.
+ *
+ * @param <D>   document type
+ */
+public interface MapFunction<D>
+{
+    /**
+     * Emits the rows for the given document. Must not keep a reference to the emitter and must not modify the
+     * document.
+     *
+     * @param document  document
+     * @param emitter   emitter to emit rows with
+     */
+    void map(D document, Emitter emitter);
+}
@@ -0,0 +1,496 @@
+package org.jcouchdb.db;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.document.DocumentChangeNotification;
+import org.jcouchdb.document.ValueAndDocumentRow;
+import org.jcouchdb.document.ValueRow;
+import org.jcouchdb.document.ViewAndDocumentsResult;
+import org.jcouchdb.document.ViewResult;
+import org.jcouchdb.util.Assert;
+import org.jcouchdb.util.ViewCollator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.svenson.JSONParser;
+
+/**
+ * Client-side view of a database, defined by a Java {@link MapFunction} and kept in memory sorted by view collation.
+ * <p>
+ * {@link #start()} loads all documents page by page from <code>_all_docs?include_docs=true</code> and then follows
+ * the continuous change feed from the update sequence the database had before loading, so the index is updated
+ * incrementally for every changed document. Queries are answered from memory with the semantics of
+ * {@link Database#queryView(String, Class, Options, JSONParser)} and are at most as stale as the change feed, see
+ * {@link #getFeed()}.
+ * </p>
+ * <p>
+ * Like CouchDB views, design documents are not indexed and a document for which the map function throws is logged
+ * and left out of the index instead of stopping the index. The offset of query results is not computed and always
+ * <code>0</code>. Descending queries copy the selected key range before applying skip and limit.
+ * </p>
+ *
+ * @param <D>   document type
+ */
+public class MaterializedIndex<D>
+    implements ChangeListener, Closeable
+{
+    public final static int DEFAULT_PAGE_SIZE = 1000;
+
+    private final static String DESIGN_DOCUMENT_PREFIX = "_design/";
+
+    private static Logger log = LoggerFactory.getLogger(MaterializedIndex.class);
+
+    private final Database db;
+
+    private final Class<D> documentClass;
+
+    private final MapFunction<D> mapFunction;
+
+    private final TreeMap<IndexKey, Object> rows = new TreeMap<IndexKey, Object>();
+
+    private final Map<String, List<IndexKey>> keysByDocument = new HashMap<String, List<IndexKey>>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    private volatile long lastSequence = -1;
+
+    private ChangeFeed feed;
+
+    /**
+     * Creates a new index. The index is empty until it is started.
+     *
+     * @param db            database to index
+     * @param documentClass class to parse the documents into
+     * @param mapFunction   map function
+     */
+    public MaterializedIndex(Database db, Class<D> documentClass, MapFunction<D> mapFunction)
+    {
+        Assert.notNull(db, "db can't be null");
+        Assert.notNull(documentClass, "document class can't be null");
+        Assert.notNull(mapFunction, "map function can't be null");
+
+        this.db = db;
+        this.documentClass = documentClass;
+        this.mapFunction = mapFunction;
+    }
+
+    /**
+     * Sets the number of documents loaded per request while bootstrapping.
+     *
+     * @param pageSize
+     */
+    public void setPageSize(int pageSize)
+    {
+        Assert.isTrue(pageSize > 0, "page size must be positive");
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Loads all documents and starts following the change feed.
+     */
+    public synchronized void start()
+    {
+        Assert.isTrue(feed == null, "index already started");
+
+        long since = db.getStatus().getUpdateSequence();
+        long start = System.currentTimeMillis();
+        int count = bootstrap();
+        lastSequence = since;
+        log.info("indexed {} documents of {} in {} ms", new Object[] { count, db.getName(),
+            System.currentTimeMillis() - start });
+
+        feed = db.registerDocumentChangeListener(null, since, null, documentClass, this);
+    }
+
+    /**
+     * Loads all documents with keyset pagination over the document ids.
+     *
+     * @return number of loaded documents
+     */
+    private int bootstrap()
+    {
+        int count = 0;
+        String startId = null;
+        while (true)
+        {
+            Options options = new Options().limit(pageSize + 1);
+            if (startId != null)
+            {
+                options.startKey(startId);
+            }
+            ViewAndDocumentsResult<Map<String,Object>, D> result = db.listDocumentsWithContent(documentClass, options, null);
+            List<ValueAndDocumentRow<Map<String,Object>, D>> page = result.getRows();
+
+            int end = Math.min(page.size(), pageSize);
+            for (int i = 0; i < end; i++)
+            {
+                ValueAndDocumentRow<Map<String,Object>, D> row = page.get(i);
+                if (row.getDocument() != null)
+                {
+                    update(row.getId(), row.getDocument());
+                    count++;
+                }
+            }
+
+            if (page.size() <= pageSize)
+            {
+                return count;
+            }
+            startId = page.get(pageSize).getId();
+        }
+    }
+
+    public void onChange(ChangeNotification changeNotification)
+    {
+        D document = null;
+        if (!changeNotification.isDeleted() && changeNotification instanceof DocumentChangeNotification)
+        {
+            document = documentClass.cast(((DocumentChangeNotification<?>)changeNotification).getDocument());
+        }
+        update(changeNotification.getId(), document);
+        lastSequence = changeNotification.getSequence();
+    }
+
+    /**
+     * Replaces the rows of the document with the given id.
+     *
+     * @param id        document id
+     * @param document  current document or <code>null</code> if it was deleted
+     */
+    private void update(final String id, D document)
+    {
+        if (id.startsWith(DESIGN_DOCUMENT_PREFIX))
+        {
+            return;
+        }
+
+        final List<IndexKey> keys = new ArrayList<IndexKey>();
+        final List<Object> values = new ArrayList<Object>();
+        if (document != null)
+        {
+            try
+            {
+                mapFunction.map(document, new Emitter()
+                {
+                    public void emit(Object key, Object value)
+                    {
+                        keys.add(new IndexKey(key, id, keys.size()));
+                        values.add(value);
+                    }
+                });
+            }
+            catch (RuntimeException e)
+            {
+                log.warn("map function failed for document " + id + ", document not indexed", e);
+                keys.clear();
+                values.clear();
+            }
+        }
+
+        lock.writeLock().lock();
+        try
+        {
+            List<IndexKey> oldKeys = keysByDocument.remove(id);
+            if (oldKeys != null)
+            {
+                for (IndexKey key : oldKeys)
+                {
+                    rows.remove(key);
+                }
+            }
+            if (keys.size() > 0)
+            {
+                for (int i = 0; i < keys.size(); i++)
+                {
+                    rows.put(keys.get(i), values.get(i));
+                }
+                keysByDocument.put(id, keys);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Queries the index. Supported options are <code>key</code>, <code>startkey</code>, <code>endkey</code>,
+     * <code>startkey_docid</code>, <code>endkey_docid</code>, <code>inclusive_end</code>, <code>descending</code>,
+     * <code>skip</code> and <code>limit</code>.
+     *
+     * @param options   query options or <code>null</code>
+     * @return
+     */
+    public ViewResult<Object> query(Options options)
+    {
+        if (options == null)
+        {
+            options = new Options();
+        }
+
+        boolean descending = booleanOption(options, "descending", false);
+        boolean inclusiveEnd = booleanOption(options, "inclusive_end", true);
+        int skip = intOption(options, "skip", 0);
+        int limit = intOption(options, "limit", Integer.MAX_VALUE);
+
+        IndexKey from, to;
+        if (options.get("key") != null)
+        {
+            Object key = keyOption(options, "key");
+            from = new IndexKey(key, null, IndexKey.LOWEST);
+            to = new IndexKey(key, null, IndexKey.HIGHEST);
+        }
+        else
+        {
+            IndexKey start = null, end = null;
+            if (options.get("startkey") != null)
+            {
+                start = bound(keyOption(options, "startkey"), stringOption(options, "startkey_docid"),
+                    !descending);
+            }
+            if (options.get("endkey") != null)
+            {
+                // an inclusive end is the highest position of the end key in ascending order and the lowest
+                // in descending order
+                end = bound(keyOption(options, "endkey"), stringOption(options, "endkey_docid"),
+                    inclusiveEnd == descending);
+            }
+            from = descending ? end : start;
+            to = descending ? start : end;
+        }
+
+        ViewResult<Object> result = new ViewResult<Object>();
+        List<ValueRow<Object>> resultRows = new ArrayList<ValueRow<Object>>();
+
+        lock.readLock().lock();
+        try
+        {
+            result.setTotalRows(rows.size());
+
+            SortedMap<IndexKey, Object> range = range(from, to);
+            List<Map.Entry<IndexKey, Object>> entries;
+            if (descending)
+            {
+                entries = new ArrayList<Map.Entry<IndexKey, Object>>(range.entrySet());
+                Collections.reverse(entries);
+            }
+            else
+            {
+                entries = null;
+            }
+
+            int index = 0;
+            for (Map.Entry<IndexKey, Object> entry : (entries != null ? entries : range.entrySet()))
+            {
+                if (resultRows.size() >= limit)
+                {
+                    break;
+                }
+                if (index++ < skip)
+                {
+                    continue;
+                }
+                ValueRow<Object> row = new ValueRow<Object>();
+                row.setId(entry.getKey().id);
+                row.setKey(entry.getKey().key);
+                row.setValue(entry.getValue());
+                resultRows.add(row);
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        result.setRows(resultRows);
+        return result;
+    }
+
+    /**
+     * Returns the rows between the given bounds. Bounds never equal a row, so there is no need to distinguish
+     * between inclusive and exclusive bounds.
+     */
+    private SortedMap<IndexKey, Object> range(IndexKey from, IndexKey to)
+    {
+        if (from != null && to != null)
+        {
+            if (from.compareTo(to) >= 0)
+            {
+                return new TreeMap<IndexKey, Object>();
+            }
+            return rows.subMap(from, to);
+        }
+        else if (from != null)
+        {
+            return rows.tailMap(from);
+        }
+        else if (to != null)
+        {
+            return rows.headMap(to);
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the bound for the given key and optional document id.
+     *
+     * @param key       key
+     * @param docId     document id or <code>null</code>
+     * @param lower     <code>true</code> for the lowest position of the key or document, <code>false</code> for
+     *                  the highest
+     */
+    private static IndexKey bound(Object key, String docId, boolean lower)
+    {
+        return new IndexKey(key, docId, lower ? IndexKey.LOWEST : IndexKey.HIGHEST);
+    }
+
+    private static Object keyOption(Options options, String name)
+    {
+        return JSONParser.defaultJSONParser().parse(options.get(name).toString());
+    }
+
+    private static String stringOption(Options options, String name)
+    {
+        Object value = options.get(name);
+        return value != null ? value.toString() : null;
+    }
+
+    private static boolean booleanOption(Options options, String name, boolean defaultValue)
+    {
+        Object value = options.get(name);
+        return value != null ? Boolean.valueOf(value.toString()) : defaultValue;
+    }
+
+    private static int intOption(Options options, String name, int defaultValue)
+    {
+        Object value = options.get(name);
+        return value != null ? Integer.parseInt(value.toString()) : defaultValue;
+    }
+
+    /**
+     * Returns the number of rows in the index.
+     *
+     * @return
+     */
+    public int size()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return rows.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the update sequence the index reflects.
+     *
+     * @return
+     */
+    public long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    /**
+     * Returns the change feed maintaining this index, e.g. to check its lag via {@link ChangeFeed#getMetrics()}.
+     *
+     * @return feed or <code>null</code> if the index was not started
+     */
+    public synchronized ChangeFeed getFeed()
+    {
+        return feed;
+    }
+
+    /**
+     * Stops following the change feed. The index keeps its contents but is no longer updated.
+     */
+    public synchronized void close()
+    {
+        if (feed != null)
+        {
+            feed.stop();
+        }
+    }
+
+    /**
+     * Position in the index: view key, document id and the number of the row emitted for that document. Bounds
+     * have an ordinal of {@link #LOWEST} or {@link #HIGHEST} and sort before or after all rows of their key and
+     * document, or all rows of their key if they have no document id.
+     */
+    static class IndexKey
+        implements Comparable<IndexKey>
+    {
+        final static int LOWEST = -1;
+
+        final static int HIGHEST = Integer.MAX_VALUE;
+
+        final Object key;
+
+        final String id;
+
+        final int ordinal;
+
+        IndexKey(Object key, String id, int ordinal)
+        {
+            this.key = key;
+            this.id = id;
+            this.ordinal = ordinal;
+        }
+
+        public int compareTo(IndexKey other)
+        {
+            int cmp = ViewCollator.INSTANCE.compare(key, other.key);
+            if (cmp != 0)
+            {
+                return cmp;
+            }
+
+            if (id == null || other.id == null)
+            {
+                int position = id == null ? boundPosition(ordinal) : 0;
+                int otherPosition = other.id == null ? boundPosition(other.ordinal) : 0;
+                return position - otherPosition;
+            }
+
+            cmp = id.compareTo(other.id);
+            if (cmp != 0)
+            {
+                return cmp;
+            }
+            return ordinal < other.ordinal ? -1 : (ordinal == other.ordinal ? 0 : 1);
+        }
+
+        private static int boundPosition(int ordinal)
+        {
+            return ordinal == LOWEST ? -1 : 1;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof IndexKey && compareTo((IndexKey)obj) == 0;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return id != null ? id.hashCode() : 0;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.jcouchdb.db;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -181,6 +182,19 @@ public class Options
         return putUnencoded("include_docs",includeDocs);
     }
 
+    /**
+     * Limits a change feed to the documents with the given ids by using the built-in <code>_doc_ids</code> filter
+     * of CouchDB, which is evaluated without the JavaScript view server.
+     *
+     * @param docIds    document ids
+     * @return
+     */
+    public Options docIds(Collection<String> docIds)
+    {
+        putUnencoded("filter", Database.DOC_IDS_FILTER);
+        return putEncoded("doc_ids", docIds);
+    }
+
     public String toQuery()
     {
         StringBuilder sb = new StringBuilder();
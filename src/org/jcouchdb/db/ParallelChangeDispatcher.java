@@ -0,0 +1,254 @@
+package org.jcouchdb.db;
+
+import java.io.Closeable;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.exception.CouchDBException;
+import org.jcouchdb.util.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Change listener that processes change notifications with a number of worker threads. The changes are distributed by
+ * document id, so all changes of one document are processed in feed order by the same worker while changes to
+ * different documents are processed in parallel. The wrapped listener must therefore be thread-safe.
+ * <p>
+ * {@link #getLastSequence()} returns the highest sequence up to which all changes have been processed, which is safe
+ * to resume the feed from.
+ * </p>
+ * <p>
+ * If the listener throws, the dispatcher stops: the workers drop their queued changes, the failed change stays
+ * unprocessed so {@link #getLastSequence()} never moves past it and every further
+ * {@link #onChange(ChangeNotification)} throws, which also stops the change feed feeding the dispatcher.
+ * </p>
+ */
+public class ParallelChangeDispatcher
+    implements ChangeListener, SequenceTracker, Closeable
+{
+    public final static int DEFAULT_QUEUE_CAPACITY = 100;
+
+    private final static AtomicInteger dispatcherCount = new AtomicInteger();
+
+    private static Logger log = LoggerFactory.getLogger(ParallelChangeDispatcher.class);
+
+    private final ChangeListener listener;
+
+    private final Worker[] workers;
+
+    /**
+     * Sequences of the changes queued or being processed.
+     */
+    private final SortedSet<Long> inFlight = new TreeSet<Long>();
+
+    private long lastQueued = -1;
+
+    private volatile boolean closed;
+
+    private volatile Throwable failure;
+
+    /**
+     * Creates a new dispatcher with the given number of workers. The dispatcher must be {@link #start() started}
+     * before changes are processed.
+     *
+     * @param listener          thread-safe listener to dispatch to
+     * @param workerCount       number of worker threads
+     * @param queueCapacity     maximum number of queued changes per worker
+     */
+    public ParallelChangeDispatcher(ChangeListener listener, int workerCount, int queueCapacity)
+    {
+        Assert.notNull(listener, "listener can't be null");
+        Assert.isTrue(workerCount > 0, "workerCount must be positive");
+        Assert.isTrue(queueCapacity > 0, "queueCapacity must be positive");
+
+        this.listener = listener;
+
+        int number = dispatcherCount.incrementAndGet();
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++)
+        {
+            workers[i] = new Worker("ParallelChangeDispatcher" + number + "-" + i, queueCapacity);
+        }
+    }
+
+    public ParallelChangeDispatcher(ChangeListener listener, int workerCount)
+    {
+        this(listener, workerCount, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public void start()
+    {
+        for (Worker worker : workers)
+        {
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues the given change for the worker responsible for its document, blocking while that worker's queue is full.
+     *
+     * @throws CouchDBException if the listener failed
+     */
+    public void onChange(ChangeNotification changeNotification)
+    {
+        if (closed)
+        {
+            checkFailure();
+            throw new IllegalStateException("dispatcher is closed");
+        }
+
+        String id = changeNotification.getId();
+        Worker worker = workers[((id != null ? id.hashCode() : 0) & 0x7fffffff) % workers.length];
+
+        long sequence = changeNotification.getSequence();
+        synchronized(inFlight)
+        {
+            inFlight.add(sequence);
+            lastQueued = sequence;
+        }
+
+        try
+        {
+            while (!worker.queue.offer(changeNotification, 100, TimeUnit.MILLISECONDS))
+            {
+                checkFailure();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // the change stays in flight, it was never processed
+            Thread.currentThread().interrupt();
+            throw new CouchDBException("Interrupted while waiting for queue space", e);
+        }
+    }
+
+    /**
+     * Returns the highest sequence up to which all changes have been processed or <code>-1</code> if no change was
+     * processed yet.
+     *
+     * @return
+     */
+    public long getLastSequence()
+    {
+        synchronized(inFlight)
+        {
+            if (inFlight.isEmpty())
+            {
+                return lastQueued;
+            }
+            long first = inFlight.first();
+            return first > 0 ? first - 1 : -1;
+        }
+    }
+
+    /**
+     * Returns the exception the listener failed with or <code>null</code> if it did not fail.
+     *
+     * @return
+     */
+    public Throwable getFailure()
+    {
+        return failure;
+    }
+
+    private void checkFailure()
+    {
+        Throwable t = failure;
+        if (t != null)
+        {
+            throw new CouchDBException("Change listener failed after sequence " + getLastSequence(), t);
+        }
+    }
+
+    /**
+     * Closes the dispatcher. Changes already queued are still processed, this method waits until that is done.
+     */
+    public void close()
+    {
+        closed = true;
+
+        for (Worker worker : workers)
+        {
+            if (Thread.currentThread() != worker && worker.isAlive())
+            {
+                try
+                {
+                    worker.join();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    log.warn("Interrupted while waiting for worker {} to finish", worker.getName());
+                    return;
+                }
+            }
+        }
+    }
+
+    private void done(long sequence)
+    {
+        synchronized(inFlight)
+        {
+            inFlight.remove(sequence);
+        }
+    }
+
+    private class Worker
+        extends Thread
+    {
+        private final BlockingQueue<ChangeNotification> queue;
+
+        public Worker(String name, int queueCapacity)
+        {
+            super(name);
+            queue = new ArrayBlockingQueue<ChangeNotification>(queueCapacity);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (failure == null)
+                {
+                    ChangeNotification changeNotification = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (changeNotification == null)
+                    {
+                        if (closed)
+                        {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    try
+                    {
+                        listener.onChange(changeNotification);
+                    }
+                    catch (Throwable t)
+                    {
+                        log.error("Error processing " + changeNotification + ", stopping dispatcher", t);
+                        failure = t;
+                        closed = true;
+                        break;
+                    }
+                    done(changeNotification.getSequence());
+                }
+                queue.clear();
+            }
+            catch (InterruptedException e)
+            {
+                log.info("{} interrupted, {} changes not processed.", getName(), queue.size());
+            }
+        }
+    }
+}
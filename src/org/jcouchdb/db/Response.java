@@ -1,10 +1,12 @@
 package org.jcouchdb.db;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionReleaseTrigger;
 import org.jcouchdb.exception.DataAccessException;
 import org.jcouchdb.util.Assert;
+import org.jcouchdb.util.BufferPool;
+import org.jcouchdb.util.ExceptionWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.svenson.JSONParser;
@@ -13,6 +15,12 @@ import org.svenson.tokenize.InputStreamSource;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -25,6 +33,8 @@ public class Response
 {
     protected static Logger log = LoggerFactory.getLogger(Response.class);
 
+    private static final String CHARSET = "UTF-8";
+
     private int code;
 
     private JSONParser parser;
@@ -37,33 +47,74 @@ public class Response
 
     private byte[] content;
 
+    private long contentLength = -1;
+
     public Response(int code, String s)
     {
-        this(code, new ByteArrayInputStream(s.getBytes()), null);
+        this(code, toUTF8(s));
     }
 
+    private Response(int code, byte[] data)
+    {
+        this(code, new ByteArrayInputStream(data), null, data.length);
+    }
 
     public Response(int code, InputStream stream, int length)
     {
-        this(code, stream, null);
+        this(code, stream, null, length);
     }
 
+    /**
+     * Creates a response for the given HTTP response. Responses without entity, e.g. <code>304 Not Modified</code>,
+     * get an empty body.
+     *
+     * @param response
+     * @throws IOException
+     */
     public Response(HttpResponse response) throws IOException
     {
-        this(response.getStatusLine().getStatusCode(), response.getEntity().getContent(), response.getAllHeaders());
+        this(response.getStatusLine().getStatusCode(),
+            response.getEntity() != null ? response.getEntity().getContent() : new ByteArrayInputStream(new byte[0]),
+            response.getAllHeaders(), response.getEntity() != null ? response.getEntity().getContentLength() : 0);
     }
 
     public Response(int code, InputStream stream, Header[] headers)
+    {
+        this(code, stream, headers, -1);
+    }
+
+    /**
+     * Creates a new response.
+     *
+     * @param code              HTTP status code
+     * @param stream            stream providing the response body
+     * @param headers           response headers
+     * @param contentLength     length of the response body or <code>-1</code> if unknown
+     */
+    public Response(int code, InputStream stream, Header[] headers, long contentLength)
     {
         Assert.notNull(stream, "stream can't be null");
 
         this.inputStream = stream;
         this.code = code;
         this.headers = headers;
+        this.contentLength = contentLength;
 
         log.trace("ctor {}", this);
     }
 
+    private static byte[] toUTF8(String s)
+    {
+        try
+        {
+            return s.getBytes(CHARSET);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+    }
+
     public void setParser(JSONParser parser)
     {
         this.parser = parser;
@@ -86,13 +137,36 @@ public class Response
     }
 
 
+    /**
+     * Returns the length of the response body as announced by the server or <code>-1</code> if unknown.
+     *
+     * @return
+     */
+    public long getContentLength()
+    {
+        return contentLength;
+    }
+
+    /**
+     * Reads the complete response body. If the content length is known, the body is read directly into an array of the
+     * right size, otherwise it is read into pooled buffers first and then copied once into an array of the right size.
+     *
+     * @return
+     */
     public byte[] getContent()
     {
         if (content == null)
         {
             try
             {
-                content = IOUtils.toByteArray(inputStream);
+                if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE)
+                {
+                    content = readKnownLength((int) contentLength);
+                }
+                else
+                {
+                    content = readUnknownLength(null, 0);
+                }
             }
             catch (IOException e)
             {
@@ -114,13 +188,123 @@ public class Response
     }
 
 
+    private byte[] readKnownLength(int length) throws IOException
+    {
+        byte[] data = new byte[length];
+        int offset = 0;
+        int count;
+        while (offset < length && (count = inputStream.read(data, offset, length - offset)) != -1)
+        {
+            offset += count;
+        }
+
+        if (offset < length)
+        {
+            byte[] shorter = new byte[offset];
+            System.arraycopy(data, 0, shorter, 0, offset);
+            return shorter;
+        }
+
+        // continue reading should the server have sent more than announced
+        return readUnknownLength(data, length);
+    }
+
+    private byte[] readUnknownLength(byte[] start, int startLength) throws IOException
+    {
+        BufferPool pool = BufferPool.defaultPool();
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        try
+        {
+            int total = startLength;
+            int lastChunkLength = 0;
+            byte[] chunk = null;
+            while (true)
+            {
+                if (chunk == null || lastChunkLength == chunk.length)
+                {
+                    chunk = pool.acquire();
+                    chunks.add(chunk);
+                    lastChunkLength = 0;
+                }
+
+                int count = inputStream.read(chunk, lastChunkLength, chunk.length - lastChunkLength);
+                if (count == -1)
+                {
+                    break;
+                }
+                lastChunkLength += count;
+                total += count;
+            }
+
+            if (start != null && total == startLength)
+            {
+                return start;
+            }
+
+            byte[] data = new byte[total];
+            int offset = 0;
+            if (start != null)
+            {
+                System.arraycopy(start, 0, data, 0, startLength);
+                offset = startLength;
+            }
+            for (byte[] c : chunks)
+            {
+                int len = Math.min(c.length, total - offset);
+                System.arraycopy(c, 0, data, offset, len);
+                offset += len;
+            }
+            return data;
+        }
+        finally
+        {
+            for (byte[] c : chunks)
+            {
+                pool.release(c);
+            }
+        }
+    }
+
+    /**
+     * Returns the response body decoded as UTF-8.
+     *
+     * @return
+     */
     public String getContentAsString()
     {
         if (log.isDebugEnabled())
         {
             log.debug("getContentAsString on " + this);
         }
-        return new String(getContent());
+        try
+        {
+            return new String(getContent(), CHARSET);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+    }
+
+    /**
+     * Returns a byte buffer wrapping the response body. The buffer shares its data with the array returned
+     * by {@link #getContent()}, no copy is made.
+     *
+     * @return
+     */
+    public ByteBuffer getContentAsByteBuffer()
+    {
+        return ByteBuffer.wrap(getContent());
+    }
+
+    /**
+     * Returns the response body decoded as UTF-8 without creating an additional String copy of the characters.
+     *
+     * @return
+     */
+    public CharSequence getContentAsCharSequence()
+    {
+        return Charset.forName(CHARSET).decode(getContentAsByteBuffer());
     }
 
 
@@ -175,6 +359,93 @@ public class Response
         return headers;
     }
 
+    /**
+     * Returns the value of the first response header with the given name or <code>null</code>.
+     *
+     * @param name  header name, case insensitive
+     * @return
+     */
+    public String getHeader(String name)
+    {
+        if (headers != null)
+        {
+            for (Header header : headers)
+            {
+                if (header.getName().equalsIgnoreCase(name))
+                {
+                    return header.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the unparsed response body to the given output stream using a pooled buffer.
+     *
+     * @param os    output stream to write to. Is not closed.
+     * @return number of bytes written
+     */
+    public long writeContentTo(OutputStream os)
+    {
+        BufferPool pool = BufferPool.defaultPool();
+        byte[] buffer = pool.acquire();
+        try
+        {
+            long total = 0;
+            int count;
+            while ((count = inputStream.read(buffer)) != -1)
+            {
+                os.write(buffer, 0, count);
+                total += count;
+            }
+            return total;
+        }
+        catch (IOException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+        finally
+        {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Copies the unparsed response body to the given channel using a pooled buffer.
+     *
+     * @param channel   channel to write to. Is not closed.
+     * @return number of bytes written
+     */
+    public long writeContentTo(WritableByteChannel channel)
+    {
+        BufferPool pool = BufferPool.defaultPool();
+        byte[] buffer = pool.acquire();
+        try
+        {
+            long total = 0;
+            int count;
+            while ((count = inputStream.read(buffer)) != -1)
+            {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+                while (byteBuffer.hasRemaining())
+                {
+                    channel.write(byteBuffer);
+                }
+                total += count;
+            }
+            return total;
+        }
+        catch (IOException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+        finally
+        {
+            pool.release(buffer);
+        }
+    }
+
 
     public InputStream getInputStream()
     {
@@ -214,4 +485,28 @@ public class Response
             }
         }
     }
+
+
+    /**
+     * Aborts the response without reading the rest of the body. Used to stop endless responses like continuous
+     * change feeds, for which {@link #destroy()} would block. Can be called from another thread.
+     */
+    public void abort()
+    {
+        if (inputStream instanceof ConnectionReleaseTrigger)
+        {
+            try
+            {
+                ((ConnectionReleaseTrigger)inputStream).abortConnection();
+            }
+            catch (IOException e)
+            {
+                log.warn("error trying to abort the connection", e);
+            }
+        }
+        else
+        {
+            destroy();
+        }
+    }
 }
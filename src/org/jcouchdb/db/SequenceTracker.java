@@ -0,0 +1,15 @@
+package org.jcouchdb.db;
+
+/**
+ * Implemented by change listeners that process changes asynchronously and therefore know better than the feed up to
+ * which sequence changes have been processed completely.
+ */
+public interface SequenceTracker
+{
+    /**
+     * Returns the highest sequence up to which all changes have been processed or <code>-1</code>.
+     *
+     * @return
+     */
+    long getLastSequence();
+}
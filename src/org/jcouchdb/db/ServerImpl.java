@@ -1,7 +1,10 @@
 package org.jcouchdb.db;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.List;
@@ -25,6 +28,7 @@ import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
@@ -48,7 +52,7 @@ import org.svenson.JSON;
  * @author shelmberger
  */
 public class ServerImpl
-    implements Server
+    implements HeaderAwareServer, StreamingServer
 {
     private static final String CHARSET = "UTF-8";
 
@@ -231,14 +235,29 @@ public class ServerImpl
      * {@inheritDoc}
      */
     public Response get(String uri)
+    {
+        return get(uri, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Response get(String uri, Map<String, String> headers)
     {
         if (log.isDebugEnabled())
         {
-            log.debug("GET " + uri);
+            log.debug("GET " + uri + (headers != null ? ", headers = " + headers : ""));
         }
 
         HttpGet get = new HttpGet( serverURI + uri );
-        
+        if (headers != null)
+        {
+            for (Map.Entry<String, String> e : headers.entrySet())
+            {
+                get.addHeader(e.getKey(), e.getValue());
+            }
+        }
+
         try
         {
             return execute( get );
@@ -254,7 +273,7 @@ public class ServerImpl
      */
     public Response put(String uri)
     {
-        return put(uri, null);
+        return put(uri, (String)null);
     }
 
     /**
@@ -348,6 +367,48 @@ public class ServerImpl
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public Response put(String uri, JSONBody body)
+    {
+        Assert.notNull(body, "body can't be null");
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("PUT " + uri + ", body = " + body);
+        }
+
+        HttpPut put = new HttpPut(serverURI + uri);
+        put.setEntity(new JSONBodyEntity(body));
+        return executePut(put);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Response post(String uri, JSONBody body)
+    {
+        Assert.notNull(body, "body can't be null");
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("POST " + uri + ", body = " + body);
+        }
+
+        HttpPost post = new HttpPost(serverURI + uri);
+        post.setEntity(new JSONBodyEntity(body));
+        try
+        {
+            return execute(post);
+        }
+        catch (IOException e)
+        {
+            post.abort();
+            throw ExceptionWrapper.wrap(e);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -461,4 +522,61 @@ public class ServerImpl
             }
         }
     }
+
+    /**
+     * Entity writing a {@link JSONBody} directly to the connection.
+     */
+    private static class JSONBodyEntity
+        extends AbstractHttpEntity
+    {
+        private final JSONBody body;
+
+        private long length = -1;
+
+        public JSONBodyEntity(JSONBody body)
+        {
+            this.body = body;
+            setContentType("application/json");
+            setContentEncoding(CHARSET);
+        }
+
+        public boolean isRepeatable()
+        {
+            return true;
+        }
+
+        public long getContentLength()
+        {
+            if (length < 0)
+            {
+                length = body.getLength();
+            }
+            return length;
+        }
+
+        /**
+         * Generates the whole body in memory. The client itself only uses {@link #writeTo(OutputStream)}.
+         */
+        public InputStream getContent() throws IOException
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            body.writeTo(bos);
+            return new ByteArrayInputStream(bos.toByteArray());
+        }
+
+        public void writeTo(OutputStream os) throws IOException
+        {
+            Assert.notNull(os, "os can't be null");
+            body.writeTo(os);
+        }
+
+        public boolean isStreaming()
+        {
+            return false;
+        }
+
+        public void consumeContent()
+        {
+        }
+    }
 }
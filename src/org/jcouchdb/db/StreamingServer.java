@@ -0,0 +1,27 @@
+package org.jcouchdb.db;
+
+import org.jcouchdb.exception.CouchDBException;
+
+/**
+ * Internal extension of {@link Server} for servers that can generate JSON request bodies while sending them.
+ * {@link Database} sends requests to servers that don't implement it with the body generated as string first.
+ */
+interface StreamingServer
+    extends Server
+{
+    /**
+     * Send a PUT request to the given URI with the given JSON body.
+     * @param uri
+     * @param body
+     * @return
+     */
+    Response put(String uri, JSONBody body) throws CouchDBException;
+
+    /**
+     * Send a POST request to the given URI with the given JSON body.
+     * @param uri
+     * @param body
+     * @return
+     */
+    Response post(String uri, JSONBody body) throws CouchDBException;
+}
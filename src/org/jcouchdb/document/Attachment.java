@@ -1,5 +1,6 @@
 package org.jcouchdb.document;
 
+import org.jcouchdb.util.Base64Data;
 import org.jcouchdb.util.Base64Util;
 import org.svenson.JSONProperty;
 
@@ -11,16 +12,21 @@ import org.svenson.JSONProperty;
  * have a <code>null</code> data property and the stub property will be set to <code>true</code>.
  *
  * This limitation has its origin in the way couchdb works and is deliberately kept that way to not introduce additional queries.
- * 
+ * <p>
+ * Attachments created from raw bytes keep only the bytes. They are Base64 encoded while the document is serialized.
+ * </p>
+ *
  * @author shelmberger
  *
  */
 public class Attachment
 {
     private String contentType, data;
+    private byte[] content;
     private long length;
     private boolean stub;
     private String revPos;
+    private String digest;
     
     public Attachment()
     {
@@ -30,7 +36,7 @@ public class Attachment
     public Attachment(String contentType, byte[] data)
     {
         this.contentType = contentType;
-        this.data = Base64Util.encodeBase64(data);
+        this.content = data;
     }
 
 
@@ -60,14 +66,68 @@ public class Attachment
      * This limitation has its origin in the way couchdb works and is deliberately kept that way to not introduce additional queries.
      * @return
      */
+    @JSONProperty(ignore = true)
     public String getData()
     {
+        if (data == null && content != null)
+        {
+            return Base64Util.encodeBase64(content);
+        }
         return data;
     }
 
     public void setData(String data)
     {
         this.data = data;
+        this.content = null;
+    }
+
+    /**
+     * Returns the inline data as written to JSON, either the Base64 string or the raw content encoded during the
+     * serialization.
+     *
+     * @return
+     */
+    @JSONProperty(value = "data", ignoreIfNull = true)
+    public Object getInlineData()
+    {
+        if (data == null && content != null)
+        {
+            return new Base64Data(content);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the raw content of an inline attachment or <code>null</code> if it was not set as raw content.
+     *
+     * @return
+     */
+    @JSONProperty(ignore = true)
+    public byte[] getContent()
+    {
+        return content;
+    }
+
+    /**
+     * Sets the raw content of an inline attachment. It is Base64 encoded when the document is serialized.
+     *
+     * @param content
+     */
+    public void setContent(byte[] content)
+    {
+        this.content = content;
+        this.data = null;
+    }
+
+    /**
+     * Returns <code>true</code> if this attachment has inline data.
+     *
+     * @return
+     */
+    public boolean hasData()
+    {
+        return data != null || content != null;
     }
 
     /**
@@ -120,6 +180,21 @@ public class Attachment
     {
         this.revPos = revPos;
     }
+
+    /**
+     * Returns the digest of the attachment content as reported by couchdb, e.g. <code>md5-XlPAJvA2fd+J8OLGpXUUEg==</code>.
+     * @return
+     */
+    @JSONProperty(ignoreIfNull = true)
+    public String getDigest()
+    {
+        return digest;
+    }
+
+    public void setDigest(String digest)
+    {
+        this.digest = digest;
+    }
     
     
 }
@@ -0,0 +1,73 @@
+package org.jcouchdb.document;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.jcouchdb.util.Assert;
+
+/**
+ * Attachment to be uploaded as raw body of a <code>multipart/related</code> request, see
+ * {@link org.jcouchdb.db.Database#createDocumentWithAttachments(Object, java.util.List)}.
+ */
+public class AttachmentUpload
+{
+    private final String name;
+
+    private final String contentType;
+
+    private final InputStream inputStream;
+
+    private final long length;
+
+    /**
+     * Creates a new attachment upload from the given stream.
+     *
+     * @param name          attachment name
+     * @param contentType   media type
+     * @param inputStream   stream providing the content. Is closed after the upload.
+     * @param length        exact length of the content in bytes
+     */
+    public AttachmentUpload(String name, String contentType, InputStream inputStream, long length)
+    {
+        Assert.notNull(name, "name can't be null");
+        Assert.notNull(contentType, "content type can't be null");
+        Assert.notNull(inputStream, "input stream can't be null");
+        Assert.isTrue(length >= 0, "length can't be negative");
+
+        this.name = name;
+        this.contentType = contentType;
+        this.inputStream = inputStream;
+        this.length = length;
+    }
+
+    public AttachmentUpload(String name, String contentType, byte[] data)
+    {
+        this(name, contentType, new ByteArrayInputStream(data), data.length);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    public InputStream getInputStream()
+    {
+        return inputStream;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    @Override
+    public String toString()
+    {
+        return super.toString() + ": name = " + name + ", contentType = " + contentType + ", length = " + length;
+    }
+}
@@ -0,0 +1,19 @@
+package org.jcouchdb.document;
+
+import java.util.List;
+
+/**
+ * Receives change notifications in batches.
+ *
+ * @see org.jcouchdb.db.BatchingChangeDispatcher
+ */
+public interface BatchChangeListener
+{
+    /**
+     * Called with the next batch of changes.
+     *
+     * @param changes       changes in feed order, never empty
+     * @param lastSequence  sequence number of the last change in the batch
+     */
+    void onChanges(List<ChangeNotification> changes, long lastSequence);
+}
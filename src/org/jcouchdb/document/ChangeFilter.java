@@ -0,0 +1,21 @@
+package org.jcouchdb.document;
+
+/**
+ * Filters changes on the client side before they are passed to a change listener. In contrast to filter functions
+ * in design documents, the filter runs in the JVM of the client and not in the view server of CouchDB.
+ * <p>
+ * If the changes are requested with <code>include_docs=true</code>, e.g. with
+ * {@link org.jcouchdb.db.Database#registerDocumentChangeListener(String, Long, org.jcouchdb.db.Options, Class, ChangeListener)},
+ * the filter receives {@link DocumentChangeNotification}s and can look at the changed document.
+ * </p>
+ */
+public interface ChangeFilter
+{
+    /**
+     * Returns <code>true</code> if the given change is to be passed on to the listener.
+     *
+     * @param changeNotification    change
+     * @return
+     */
+    boolean accept(ChangeNotification changeNotification);
+}
@@ -13,6 +13,8 @@ public class ChangeNotification
 
     private List<ChangeEntry> changes;
 
+    private boolean deleted;
+
 
     public long getSequence()
     {
@@ -52,11 +54,28 @@ public class ChangeNotification
     }
 
 
+    /**
+     * Returns <code>true</code> if the change deleted the document.
+     *
+     * @return
+     */
+    public boolean isDeleted()
+    {
+        return deleted;
+    }
+
+
+    public void setDeleted(boolean deleted)
+    {
+        this.deleted = deleted;
+    }
+
+
     @Override
     public String toString()
     {
         return super.toString() + "[changes=" + changes + ", id=" + id + ", sequence=" + sequence +
-            "]";
+            (deleted ? ", deleted" : "") + "]";
     }
     
     
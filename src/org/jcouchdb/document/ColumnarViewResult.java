@@ -0,0 +1,146 @@
+package org.jcouchdb.document;
+
+import java.util.List;
+
+import org.svenson.JSONProperty;
+import org.svenson.JSONTypeHint;
+
+/**
+ * View result stored in struct-of-arrays layout: one array each for the ids, the keys and the values
+ * of the result rows. No row objects are retained after parsing, so this is the cheapest way to keep
+ * a large view result in memory.
+ *
+ * @see CompactViewResult
+ *
+ * @param <V>   type of the view result values
+ */
+public final class ColumnarViewResult<V>
+{
+    private static final String[] NO_IDS = new String[0];
+
+    private static final Object[] NO_OBJECTS = new Object[0];
+
+    private int totalRows;
+
+    private int offset;
+
+    private long updateSeq = -1;
+
+    private String[] ids = NO_IDS;
+
+    private Object[] keys = NO_OBJECTS;
+
+    private Object[] values = NO_OBJECTS;
+
+    public int getTotalRows()
+    {
+        return totalRows;
+    }
+
+    @JSONProperty("total_rows")
+    public void setTotalRows(int totalRows)
+    {
+        this.totalRows = totalRows;
+    }
+
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    public void setOffset(int offset)
+    {
+        this.offset = offset;
+    }
+
+    /**
+     * Returns the update sequence of the database the view was built at, if the view was queried with
+     * <code>update_seq=true</code>, otherwise <code>-1</code>.
+     *
+     * @return
+     */
+    public long getUpdateSeq()
+    {
+        return updateSeq;
+    }
+
+    @JSONProperty("update_seq")
+    public void setUpdateSeq(long updateSeq)
+    {
+        this.updateSeq = updateSeq;
+    }
+
+    /**
+     * Copies the parsed rows into the column arrays. The row objects themselves are not kept.
+     *
+     * @param rows
+     */
+    @JSONTypeHint(CompactValueRow.class)
+    public void setRows(List<CompactValueRow<V>> rows)
+    {
+        int size = rows.size();
+        ids = new String[size];
+        keys = new Object[size];
+        values = new Object[size];
+
+        int i = 0;
+        for (CompactValueRow<V> row : rows)
+        {
+            row.releaseStringPool();
+            ids[i] = row.getId();
+            keys[i] = row.getKey();
+            values[i] = row.getValue();
+            i++;
+        }
+    }
+
+    /**
+     * Returns the number of rows in this result.
+     *
+     * @return
+     */
+    public int size()
+    {
+        return ids.length;
+    }
+
+    /**
+     * Returns the document id of the row at the given index.
+     *
+     * @param index     row index
+     * @return
+     */
+    public String getId(int index)
+    {
+        return ids[index];
+    }
+
+    /**
+     * Returns the key of the row at the given index.
+     *
+     * @param index     row index
+     * @return
+     */
+    public Object getKey(int index)
+    {
+        return keys[index];
+    }
+
+    /**
+     * Returns the value of the row at the given index.
+     *
+     * @param index     row index
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public V getValue(int index)
+    {
+        return (V)values[index];
+    }
+
+    @Override
+    public String toString()
+    {
+        return super.toString() + ": totalRows = " + totalRows + ", offset = " + offset + ", size = " + ids.length;
+    }
+}
@@ -0,0 +1,115 @@
+package org.jcouchdb.document;
+
+import org.jcouchdb.util.StringPool;
+
+/**
+ * Lean view result row used by {@link CompactViewResult}. In contrast to {@link ValueRow} this
+ * class carries no dynamic properties and only the fields couchdb sends for plain view rows.
+ *
+ * @param <V>   type of the row value
+ */
+public final class CompactValueRow<V>
+{
+    private transient StringPool stringPool;
+
+    private String id;
+
+    private Object key;
+
+    private V value;
+
+    private String error;
+
+    public CompactValueRow()
+    {
+    }
+
+    /**
+     * Creates a row that deduplicates its id and string key with the given pool while it is being parsed.
+     *
+     * @param stringPool    string pool
+     */
+    public CompactValueRow(StringPool stringPool)
+    {
+        this.stringPool = stringPool;
+    }
+
+    /**
+     * Returns the id of the document that emitted this row or <code>null</code> for reduced rows.
+     *
+     * @return
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    public void setId(String id)
+    {
+        this.id = stringPool != null ? stringPool.intern(id) : id;
+    }
+
+    /**
+     * Returns the key this row was mapped to.
+     *
+     * @return
+     */
+    public Object getKey()
+    {
+        return key;
+    }
+
+    public void setKey(Object key)
+    {
+        if (stringPool != null && key instanceof String)
+        {
+            key = stringPool.intern((String) key);
+        }
+        this.key = key;
+    }
+
+    /**
+     * Drops the reference to the string pool after parsing.
+     */
+    void releaseStringPool()
+    {
+        stringPool = null;
+    }
+
+    /**
+     * Returns the value mapped to this row.
+     *
+     * @return
+     */
+    public V getValue()
+    {
+        return value;
+    }
+
+    public void setValue(V value)
+    {
+        this.value = value;
+    }
+
+    /**
+     * Returns the error couchdb reported for this row (e.g. "not_found" for unknown keys) or <code>null</code>.
+     *
+     * @return
+     */
+    public String getError()
+    {
+        return error;
+    }
+
+    public void setError(String error)
+    {
+        this.error = error;
+    }
+
+    @Override
+    public String toString()
+    {
+        return super.toString() + ": id = " + id + ", key = " + key + ", value = " + value +
+            (error != null ? ", error = " + error : "");
+    }
+}
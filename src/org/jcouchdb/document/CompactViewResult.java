@@ -0,0 +1,90 @@
+package org.jcouchdb.document;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.svenson.JSONProperty;
+import org.svenson.JSONTypeHint;
+
+/**
+ * Memory-lean alternative to {@link ViewResult}. It is not a document and holds its rows as
+ * {@link CompactValueRow}s without dynamic properties, which makes a difference for big results
+ * that are kept around for a while.
+ *
+ * @see ColumnarViewResult
+ *
+ * @param <V>   type of the view result values
+ */
+public final class CompactViewResult<V>
+{
+    private int totalRows;
+
+    private int offset;
+
+    private long updateSeq = -1;
+
+    private List<CompactValueRow<V>> rows = new ArrayList<CompactValueRow<V>>();
+
+    public int getTotalRows()
+    {
+        return totalRows;
+    }
+
+    @JSONProperty("total_rows")
+    public void setTotalRows(int totalRows)
+    {
+        this.totalRows = totalRows;
+    }
+
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    public void setOffset(int offset)
+    {
+        this.offset = offset;
+    }
+
+    /**
+     * Returns the update sequence of the database the view was built at, if the view was queried with
+     * <code>update_seq=true</code>, otherwise <code>-1</code>.
+     *
+     * @return
+     */
+    public long getUpdateSeq()
+    {
+        return updateSeq;
+    }
+
+    @JSONProperty("update_seq")
+    public void setUpdateSeq(long updateSeq)
+    {
+        this.updateSeq = updateSeq;
+    }
+
+    public List<CompactValueRow<V>> getRows()
+    {
+        return rows;
+    }
+
+    @JSONTypeHint(CompactValueRow.class)
+    public void setRows(List<CompactValueRow<V>> rows)
+    {
+        for (CompactValueRow<V> row : rows)
+        {
+            row.releaseStringPool();
+        }
+        if (rows instanceof ArrayList)
+        {
+            ((ArrayList<CompactValueRow<V>>)rows).trimToSize();
+        }
+        this.rows = rows;
+    }
+
+    @Override
+    public String toString()
+    {
+        return super.toString() + ": totalRows = " + totalRows + ", offset = " + offset + ", value rows = " + rows;
+    }
+}
@@ -0,0 +1,40 @@
+package org.jcouchdb.document;
+
+import org.svenson.JSONProperty;
+
+/**
+ * Change notification from a change feed requested with <code>include_docs=true</code>, carrying the changed
+ * document.
+ *
+ * @param <D>   document type
+ */
+public class DocumentChangeNotification<D>
+    extends ChangeNotification
+{
+    private D document;
+
+    /**
+     * Returns the current revision of the changed document. For deleted documents this only contains id, revision
+     * and the <code>_deleted</code> flag.
+     *
+     * @return
+     */
+    public D getDocument()
+    {
+        return document;
+    }
+
+
+    @JSONProperty("doc")
+    public void setDocument(D document)
+    {
+        this.document = document;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return super.toString() + "[document=" + document + "]";
+    }
+}
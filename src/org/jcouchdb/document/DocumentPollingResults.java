@@ -0,0 +1,46 @@
+package org.jcouchdb.document;
+
+import java.util.List;
+
+import org.svenson.JSONProperty;
+import org.svenson.JSONTypeHint;
+
+/**
+ * Polling results of a change feed requested with <code>include_docs=true</code>.
+ *
+ * @param <D>   document type
+ */
+public class DocumentPollingResults<D>
+{
+    private long lastSequence;
+
+    private List<DocumentChangeNotification<D>> results;
+
+    public long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    @JSONProperty("last_seq")
+    public void setLastSequence(long lastSequence)
+    {
+        this.lastSequence = lastSequence;
+    }
+
+    public List<DocumentChangeNotification<D>> getResults()
+    {
+        return results;
+    }
+
+    @JSONTypeHint(DocumentChangeNotification.class)
+    public void setResults(List<DocumentChangeNotification<D>> results)
+    {
+        this.results = results;
+    }
+
+    @Override
+    public String toString()
+    {
+        return super.toString() + "[lastSequence=" + lastSequence + ", results=" + results + "]";
+    }
+}
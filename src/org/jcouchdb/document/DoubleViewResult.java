@@ -0,0 +1,37 @@
+package org.jcouchdb.document;
+
+import org.jcouchdb.util.JSONStreamReader;
+
+/**
+ * Result of a view with floating point values, e.g. a reduce view using <code>_sum</code>.
+ * Values are kept in a <code>double[]</code>.
+ */
+public final class DoubleViewResult
+    extends ReducedViewResult
+{
+    private double[] values;
+
+    /**
+     * Returns the value of the row at the given index. <code>null</code> values are returned as {@link Double#NaN}.
+     *
+     * @param index     row index
+     * @return
+     */
+    public double getValue(int index)
+    {
+        checkIndex(index);
+        return values[index];
+    }
+
+    @Override
+    protected void resizeValues(int capacity)
+    {
+        values = resize(values, capacity);
+    }
+
+    @Override
+    protected void readValue(JSONStreamReader reader, int index)
+    {
+        values[index] = reader.nextIsNull() ? Double.NaN : reader.readDouble();
+    }
+}
@@ -0,0 +1,37 @@
+package org.jcouchdb.document;
+
+import org.jcouchdb.util.JSONStreamReader;
+
+/**
+ * Result of a view with integral values, e.g. a reduce view using <code>_count</code> or a <code>_sum</code> of
+ * integers. Values are kept in a <code>long[]</code>.
+ */
+public final class LongViewResult
+    extends ReducedViewResult
+{
+    private long[] values;
+
+    /**
+     * Returns the value of the row at the given index. <code>null</code> values are returned as <code>0</code>.
+     *
+     * @param index     row index
+     * @return
+     */
+    public long getValue(int index)
+    {
+        checkIndex(index);
+        return values[index];
+    }
+
+    @Override
+    protected void resizeValues(int capacity)
+    {
+        values = resize(values, capacity);
+    }
+
+    @Override
+    protected void readValue(JSONStreamReader reader, int index)
+    {
+        values[index] = reader.nextIsNull() ? 0 : reader.readLong();
+    }
+}
@@ -0,0 +1,164 @@
+package org.jcouchdb.document;
+
+import org.jcouchdb.util.JSONStreamReader;
+
+/**
+ * Base class for view results with numeric values that are read directly from the response stream
+ * into primitive arrays. The keys are kept in an array of decoded JSON values, the values are kept by
+ * the subclasses.
+ *
+ * @see LongViewResult
+ * @see DoubleViewResult
+ * @see StatsViewResult
+ */
+public abstract class ReducedViewResult
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] keys = new Object[0];
+
+    private int size;
+
+    /**
+     * Reads a view response of the form <code>{"rows":[{"key":...,"value":...}, ...]}</code> from the given reader.
+     *
+     * @param reader    reader positioned at the start of the response
+     */
+    public void read(JSONStreamReader reader)
+    {
+        size = 0;
+        keys = new Object[INITIAL_CAPACITY];
+        resizeValues(INITIAL_CAPACITY);
+
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            if (name.equals("rows"))
+            {
+                readRows(reader);
+            }
+            else
+            {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (keys.length != size)
+        {
+            Object[] newKeys = new Object[size];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            keys = newKeys;
+            resizeValues(size);
+        }
+    }
+
+    private void readRows(JSONStreamReader reader)
+    {
+        reader.beginArray();
+        while (reader.hasNext())
+        {
+            if (size == keys.length)
+            {
+                int capacity = keys.length * 2;
+                Object[] newKeys = new Object[capacity];
+                System.arraycopy(keys, 0, newKeys, 0, size);
+                keys = newKeys;
+                resizeValues(capacity);
+            }
+
+            reader.beginObject();
+            while (reader.hasNext())
+            {
+                String name = reader.nextName();
+                if (name.equals("key"))
+                {
+                    keys[size] = reader.readValue();
+                }
+                else if (name.equals("value"))
+                {
+                    readValue(reader, size);
+                }
+                else
+                {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            size++;
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Returns the number of rows in this result.
+     *
+     * @return
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the key of the row at the given index.
+     *
+     * @param index     row index
+     * @return
+     */
+    public Object getKey(int index)
+    {
+        checkIndex(index);
+        return keys[index];
+    }
+
+    protected void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    /**
+     * Resizes the value arrays to the given capacity keeping the existing values.
+     *
+     * @param capacity  new capacity
+     */
+    protected abstract void resizeValues(int capacity);
+
+    /**
+     * Reads the row value at the reader's current position and stores it at the given index.
+     *
+     * @param reader    reader
+     * @param index     row index
+     */
+    protected abstract void readValue(JSONStreamReader reader, int index);
+
+    protected static long[] resize(long[] array, int capacity)
+    {
+        long[] newArray = new long[capacity];
+        if (array != null)
+        {
+            System.arraycopy(array, 0, newArray, 0, Math.min(array.length, capacity));
+        }
+        return newArray;
+    }
+
+    protected static double[] resize(double[] array, int capacity)
+    {
+        double[] newArray = new double[capacity];
+        if (array != null)
+        {
+            System.arraycopy(array, 0, newArray, 0, Math.min(array.length, capacity));
+        }
+        return newArray;
+    }
+
+    @Override
+    public String toString()
+    {
+        return super.toString() + ": size = " + size;
+    }
+}
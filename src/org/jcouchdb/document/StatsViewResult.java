@@ -0,0 +1,113 @@
+package org.jcouchdb.document;
+
+import org.jcouchdb.util.JSONStreamReader;
+
+/**
+ * Result of a reduce view using the builtin <code>_stats</code> function. Every field of the stats
+ * objects is kept in its own primitive array.
+ */
+public final class StatsViewResult
+    extends ReducedViewResult
+{
+    private double[] sums;
+
+    private long[] counts;
+
+    private double[] minimums;
+
+    private double[] maximums;
+
+    private double[] sumsOfSquares;
+
+    public double getSum(int index)
+    {
+        checkIndex(index);
+        return sums[index];
+    }
+
+    public long getCount(int index)
+    {
+        checkIndex(index);
+        return counts[index];
+    }
+
+    public double getMin(int index)
+    {
+        checkIndex(index);
+        return minimums[index];
+    }
+
+    public double getMax(int index)
+    {
+        checkIndex(index);
+        return maximums[index];
+    }
+
+    public double getSumOfSquares(int index)
+    {
+        checkIndex(index);
+        return sumsOfSquares[index];
+    }
+
+    /**
+     * Returns the arithmetic mean of the values reduced into the row at the given index.
+     *
+     * @param index     row index
+     * @return
+     */
+    public double getMean(int index)
+    {
+        checkIndex(index);
+        return sums[index] / counts[index];
+    }
+
+    @Override
+    protected void resizeValues(int capacity)
+    {
+        sums = resize(sums, capacity);
+        counts = resize(counts, capacity);
+        minimums = resize(minimums, capacity);
+        maximums = resize(maximums, capacity);
+        sumsOfSquares = resize(sumsOfSquares, capacity);
+    }
+
+    @Override
+    protected void readValue(JSONStreamReader reader, int index)
+    {
+        if (reader.nextIsNull())
+        {
+            return;
+        }
+
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            if (name.equals("sum"))
+            {
+                sums[index] = reader.readDouble();
+            }
+            else if (name.equals("count"))
+            {
+                counts[index] = reader.readLong();
+            }
+            else if (name.equals("min"))
+            {
+                minimums[index] = reader.readDouble();
+            }
+            else if (name.equals("max"))
+            {
+                maximums[index] = reader.readDouble();
+            }
+            else if (name.equals("sumsqr"))
+            {
+                sumsOfSquares[index] = reader.readDouble();
+            }
+            else
+            {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+}
@@ -0,0 +1,63 @@
+package org.jcouchdb.util;
+
+import org.svenson.JSONCharacterSink;
+import org.svenson.JSONable;
+import org.svenson.SinkAwareJSONifier;
+
+/**
+ * Binary data that is written as Base64 encoded JSON string when it is serialized, so the encoded form is never
+ * held longer than the serialization. JSON generators with {@link #JSONIFIER} registered write the encoding in
+ * small chunks directly to the output, others call {@link #toJSON()}.
+ */
+public class Base64Data
+    implements JSONable
+{
+    private final static int CHUNK = 3 * 1024;
+
+    /**
+     * JSONifier writing {@link Base64Data} in chunks. Register it with
+     * {@link org.svenson.JSON#registerJSONifier(Class, org.svenson.JSONifier)} for {@link Base64Data}.
+     */
+    public final static SinkAwareJSONifier JSONIFIER = new SinkAwareJSONifier()
+    {
+        public String toJSON(Object o)
+        {
+            return ((Base64Data)o).toJSON();
+        }
+
+        public void writeToSink(JSONCharacterSink sink, Object o)
+        {
+            byte[] data = ((Base64Data)o).data;
+            char[] chars = new char[Base64Util.encodedLength(CHUNK)];
+            sink.append('"');
+            for (int off = 0; off < data.length; off += CHUNK)
+            {
+                int n = Base64Util.encodeBase64(data, off, Math.min(CHUNK, data.length - off), chars, 0);
+                sink.append(new String(chars, 0, n));
+            }
+            sink.append('"');
+        }
+    };
+
+    private final byte[] data;
+
+    public Base64Data(byte[] data)
+    {
+        Assert.notNull(data, "data can't be null");
+        this.data = data;
+    }
+
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    public String toJSON()
+    {
+        char[] chars = new char[Base64Util.encodedLength(data.length) + 2];
+        chars[0] = '"';
+        int n = Base64Util.encodeBase64(data, 0, data.length, chars, 1);
+        chars[n + 1] = '"';
+        return new String(chars);
+    }
+}
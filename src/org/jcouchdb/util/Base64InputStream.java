@@ -0,0 +1,123 @@
+package org.jcouchdb.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes the Base64 encoded ASCII characters read from the underlying stream. Whitespace is ignored, invalid
+ * characters cause an {@link IOException}.
+ */
+public class Base64InputStream
+    extends FilterInputStream
+{
+    private final static int CHUNK = 4 * 1024;
+
+    private final byte[] encoded = new byte[CHUNK];
+
+    private final byte[] decoded = new byte[CHUNK / 4 * 3 + 3];
+
+    private final Base64Util.Decoder decoder = new Base64Util.Decoder();
+
+    private int pos;
+
+    private int limit;
+
+    private boolean eof;
+
+    public Base64InputStream(InputStream in)
+    {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!fill())
+        {
+            return -1;
+        }
+        return decoded[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (!fill())
+        {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(decoded, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long skipped = 0;
+        while (skipped < n && fill())
+        {
+            int count = (int)Math.min(n - skipped, limit - pos);
+            pos += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return limit - pos;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    /**
+     * Decodes more data if all decoded data has been read.
+     *
+     * @return <code>false</code> at the end of the stream
+     */
+    private boolean fill() throws IOException
+    {
+        while (pos == limit)
+        {
+            if (eof)
+            {
+                return false;
+            }
+            pos = 0;
+            limit = 0;
+            try
+            {
+                int count = in.read(encoded);
+                if (count == -1)
+                {
+                    eof = true;
+                    limit = decoder.finish(decoded, 0);
+                }
+                else
+                {
+                    for (int i = 0; i < count; i++)
+                    {
+                        limit = decoder.decode(encoded[i] & 0xff, decoded, limit);
+                    }
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IOException(e.getMessage());
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,85 @@
+package org.jcouchdb.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the Base64 encoding of the data written to it as ASCII characters to the underlying stream. The final
+ * padding is written by {@link #finish()} or {@link #close()}.
+ */
+public class Base64OutputStream
+    extends FilterOutputStream
+{
+    private final static int CHUNK = 3 * 1024;
+
+    private final byte[] pending = new byte[CHUNK];
+
+    private final byte[] encoded = new byte[Base64Util.encodedLength(CHUNK)];
+
+    private int pendingCount;
+
+    private boolean finished;
+
+    public Base64OutputStream(OutputStream out)
+    {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        pending[pendingCount++] = (byte)b;
+        if (pendingCount == CHUNK)
+        {
+            writePending();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        Assert.isTrue(!finished, "stream already finished");
+        while (len > 0)
+        {
+            int n = Math.min(len, CHUNK - pendingCount);
+            System.arraycopy(b, off, pending, pendingCount, n);
+            pendingCount += n;
+            off += n;
+            len -= n;
+            if (pendingCount == CHUNK)
+            {
+                writePending();
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining data with padding without closing the underlying stream. No more data can be written
+     * afterwards.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException
+    {
+        if (!finished)
+        {
+            writePending();
+            finished = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        finish();
+        super.close();
+    }
+
+    private void writePending() throws IOException
+    {
+        int n = Base64Util.encodeBase64(pending, 0, pendingCount, encoded, 0);
+        out.write(encoded, 0, n);
+        pendingCount = 0;
+    }
+}
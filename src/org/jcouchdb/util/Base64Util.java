@@ -1,58 +1,222 @@
 package org.jcouchdb.util;
 
+import java.util.Arrays;
+
+/**
+ * Table-driven Base64 encoder and decoder (RFC 4648, with padding) working on byte and char arrays without
+ * intermediate buffers. See {@link Base64OutputStream} and {@link Base64InputStream} for streams.
+ *
+ * @author shelmberger
+ */
 public class Base64Util
 {
     private final static char[] base64Chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
 
+    private final static byte[] base64Bytes = new byte[64];
+
+    /**
+     * Maps characters to their 6-bit values, -1 for invalid characters.
+     */
+    private final static int[] decodeTable = new int[128];
+
+    static
+    {
+        Arrays.fill(decodeTable, -1);
+        for (int i = 0; i < base64Chars.length; i++)
+        {
+            base64Bytes[i] = (byte)base64Chars[i];
+            decodeTable[base64Chars[i]] = i;
+        }
+    }
+
+    /**
+     * Returns the number of characters the given number of bytes encodes to.
+     *
+     * @param length    number of bytes
+     * @return
+     */
+    public static int encodedLength(int length)
+    {
+        return (length + 2) / 3 * 4;
+    }
+
     public static String encodeBase64(byte[] data)
     {
-        int cnt=data.length/3;
+        char[] chars = new char[encodedLength(data.length)];
+        encodeBase64(data, 0, data.length, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Encodes the given bytes into the given char array. Only the last chunk of data may have a length that is not a
+     * multiple of 3, as it is padded.
+     *
+     * @param data      data
+     * @param offset    offset of the first byte to encode
+     * @param length    number of bytes to encode
+     * @param dest      destination array, must have room for {@link #encodedLength(int)} chars
+     * @param destOff   offset of the first char in the destination array
+     * @return number of chars written
+     */
+    public static int encodeBase64(byte[] data, int offset, int length, char[] dest, int destOff)
+    {
+        int pos = destOff;
+        int end = offset + length - length % 3;
+        for (int off = offset; off < end; off += 3)
+        {
+            int triple = ((data[off] & 0xff) << 16) | ((data[off + 1] & 0xff) << 8) | (data[off + 2] & 0xff);
+            dest[pos++] = base64Chars[triple >>> 18];
+            dest[pos++] = base64Chars[(triple >>> 12) & 0x3f];
+            dest[pos++] = base64Chars[(triple >>> 6) & 0x3f];
+            dest[pos++] = base64Chars[triple & 0x3f];
+        }
+
+        int remainder = length % 3;
+        if (remainder > 0)
+        {
+            int triple = (data[end] & 0xff) << 16;
+            if (remainder == 2)
+            {
+                triple |= (data[end + 1] & 0xff) << 8;
+            }
+            dest[pos++] = base64Chars[triple >>> 18];
+            dest[pos++] = base64Chars[(triple >>> 12) & 0x3f];
+            dest[pos++] = remainder == 2 ? base64Chars[(triple >>> 6) & 0x3f] : '=';
+            dest[pos++] = '=';
+        }
+        return pos - destOff;
+    }
 
-        StringBuilder buf=new StringBuilder(data.length+2);
-        int off=0;
-        for (int i=0; i < cnt; i++)
+    /**
+     * Encodes the given bytes into the given byte array as ASCII characters.
+     *
+     * @see #encodeBase64(byte[], int, int, char[], int)
+     */
+    public static int encodeBase64(byte[] data, int offset, int length, byte[] dest, int destOff)
+    {
+        int pos = destOff;
+        int end = offset + length - length % 3;
+        for (int off = offset; off < end; off += 3)
         {
-          int v0=data[off];
-          int v1=data[off+1];
-          int v2=data[off+2];
-          insertTriple(buf, v0, v1, v2);
+            int triple = ((data[off] & 0xff) << 16) | ((data[off + 1] & 0xff) << 8) | (data[off + 2] & 0xff);
+            dest[pos++] = base64Bytes[triple >>> 18];
+            dest[pos++] = base64Bytes[(triple >>> 12) & 0x3f];
+            dest[pos++] = base64Bytes[(triple >>> 6) & 0x3f];
+            dest[pos++] = base64Bytes[triple & 0x3f];
+        }
 
-          off+=3;
+        int remainder = length % 3;
+        if (remainder > 0)
+        {
+            int triple = (data[end] & 0xff) << 16;
+            if (remainder == 2)
+            {
+                triple |= (data[end + 1] & 0xff) << 8;
+            }
+            dest[pos++] = base64Bytes[triple >>> 18];
+            dest[pos++] = base64Bytes[(triple >>> 12) & 0x3f];
+            dest[pos++] = remainder == 2 ? base64Bytes[(triple >>> 6) & 0x3f] : (byte)'=';
+            dest[pos++] = '=';
         }
+        return pos - destOff;
+    }
 
-        int remainder = data.length-cnt*3;
-        switch (remainder)
+    /**
+     * Decodes the given Base64 string. Whitespace is ignored.
+     *
+     * @param base64
+     * @return
+     * @throws IllegalArgumentException if the string contains invalid characters
+     */
+    public static byte[] decodeBase64(String base64)
+    {
+        Decoder decoder = new Decoder();
+        byte[] dest = new byte[base64.length() / 4 * 3 + 3];
+        int pos = 0;
+        for (int i = 0; i < base64.length(); i++)
         {
-          case 2:
-            insertTriple(buf, data[off], data[off+1], 0);
-            buf.setCharAt(buf.length() -1 , '=');
-            break;
-          case 1:
-            insertTriple(buf, data[off], 0, 0);
-            buf.setCharAt(buf.length()-1 , '=');
-            buf.setCharAt(buf.length()-2 , '=');
-            break;
+            pos = decoder.decode(base64.charAt(i), dest, pos);
         }
+        pos = decoder.finish(dest, pos);
+        return pos == dest.length ? dest : copy(dest, pos);
+    }
+
+    private static byte[] copy(byte[] data, int length)
+    {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        return copy;
+    }
 
-        return buf.toString();
-      }
+    /**
+     * Incremental decoder keeping the bits of an incomplete quadruple between calls.
+     */
+    static class Decoder
+    {
+        private int bits;
 
-      private static void insertTriple(StringBuilder buf, int v0, int v1, int v2)
-      {
-        // three bytes to four 6-bit values:
-        // 11111122
-        // 22223333
-        // 33444444
+        private int count;
 
-        int b0= ( v0 & 0xfc) >> 2;
-        int b1=(( v0 & 0x03) << 4)+((v1 & 0xf0) >> 4);
-        int b2=(( v1 & 0x0f) << 2)+((v2 & 0xc0) >> 6);
-        int b3= ( v2 & 0x3f);
+        private boolean padded;
 
-        buf.append(base64Chars[b0])
-        .append(base64Chars[b1])
-        .append(base64Chars[b2])
-        .append(base64Chars[b3]);
-      }
+        /**
+         * Decodes the given character, writing complete bytes to the destination.
+         *
+         * @return the new position in the destination
+         */
+        int decode(int c, byte[] dest, int pos)
+        {
+            if (c == '=')
+            {
+                padded = true;
+                return pos;
+            }
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+            {
+                return pos;
+            }
+            int value = c < 128 ? decodeTable[c] : -1;
+            if (value < 0 || padded)
+            {
+                throw new IllegalArgumentException("invalid base64 character '" + (char)c + "'");
+            }
 
+            bits = (bits << 6) | value;
+            if (++count == 4)
+            {
+                dest[pos++] = (byte)(bits >> 16);
+                dest[pos++] = (byte)(bits >> 8);
+                dest[pos++] = (byte)bits;
+                bits = 0;
+                count = 0;
+            }
+            return pos;
+        }
+
+        /**
+         * Writes the bytes of a final incomplete quadruple.
+         *
+         * @return the new position in the destination
+         */
+        int finish(byte[] dest, int pos)
+        {
+            switch (count)
+            {
+                case 0:
+                    break;
+                case 2:
+                    dest[pos++] = (byte)(bits >> 4);
+                    break;
+                case 3:
+                    dest[pos++] = (byte)(bits >> 10);
+                    dest[pos++] = (byte)(bits >> 2);
+                    break;
+                default:
+                    throw new IllegalArgumentException("truncated base64 data");
+            }
+            count = 0;
+            bits = 0;
+            return pos;
+        }
+    }
 }
@@ -0,0 +1,201 @@
+package org.jcouchdb.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.svenson.JSONParser;
+
+/**
+ * Reads a block dump written by {@link BlockDumpWriter}. The blocks are read with positional reads of the file
+ * channel, so they can be read from several threads at once without creating a mapping per block.
+ */
+public class BlockDumpReader
+{
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final BlockIndex index;
+
+    private final List<BlockInfo> documentBlocks = new ArrayList<BlockInfo>();
+
+    private final Map<String, BlockInfo> attachmentBlocks = new HashMap<String, BlockInfo>();
+
+    /**
+     * Opens the given block dump and reads its index.
+     *
+     * @param dumpFile
+     * @throws IOException  if the file can't be read or is no block dump
+     */
+    public BlockDumpReader(File dumpFile) throws IOException
+    {
+        Assert.notNull(dumpFile, "dump file can't be null");
+
+        file = new RandomAccessFile(dumpFile, "r");
+        channel = file.getChannel();
+        try
+        {
+            long size = channel.size();
+            if (size < BlockDumpWriter.MAGIC.length() + BlockDumpWriter.TRAILER_LENGTH ||
+                !BlockDumpWriter.MAGIC.equals(ascii(read(0, BlockDumpWriter.MAGIC.length()))))
+            {
+                throw new IOException(dumpFile + " is no block dump");
+            }
+
+            ByteBuffer trailer = ByteBuffer.wrap(read(size - BlockDumpWriter.TRAILER_LENGTH,
+                BlockDumpWriter.TRAILER_LENGTH));
+            long indexOffset = trailer.getLong();
+            int indexLength = trailer.getInt();
+            int indexSize = trailer.getInt();
+            byte[] magic = new byte[BlockDumpWriter.TRAILER_MAGIC.length()];
+            trailer.get(magic);
+            if (!BlockDumpWriter.TRAILER_MAGIC.equals(ascii(magic)))
+            {
+                throw new IOException(dumpFile + " is incomplete");
+            }
+
+            byte[] data = inflate(read(indexOffset, indexLength), indexSize);
+            index = new JSONParser().parse(BlockIndex.class, new String(data, "UTF-8"));
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+
+        for (BlockInfo block : index.getBlocks())
+        {
+            if (BlockInfo.DOCUMENTS.equals(block.getType()))
+            {
+                documentBlocks.add(block);
+            }
+            else if (BlockInfo.ATTACHMENT.equals(block.getType()))
+            {
+                attachmentBlocks.put(block.getDigest(), block);
+            }
+        }
+    }
+
+    public BlockIndex getIndex()
+    {
+        return index;
+    }
+
+    public DumpManifest getManifest()
+    {
+        return index.getManifest();
+    }
+
+    /**
+     * Returns the documents blocks in file order.
+     *
+     * @return
+     */
+    public List<BlockInfo> getDocumentBlocks()
+    {
+        return Collections.unmodifiableList(documentBlocks);
+    }
+
+    /**
+     * Reads and uncompresses the given block. This method is thread-safe.
+     *
+     * @param block
+     * @return
+     * @throws IOException  if the block is corrupt
+     */
+    public byte[] readBlock(BlockInfo block) throws IOException
+    {
+        byte[] data = inflate(read(block.getOffset(), block.getLength()), block.getSize());
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (crc.getValue() != block.getCrc())
+        {
+            throw new IOException("CRC mismatch in " + block);
+        }
+        return data;
+    }
+
+    /**
+     * Reads the content of the attachment with the given digest. This method is thread-safe.
+     *
+     * @param digest    SHA-1 digest of the content
+     * @return content or <code>null</code> if the dump contains no content with the given digest
+     * @throws IOException
+     */
+    public byte[] readAttachment(String digest) throws IOException
+    {
+        BlockInfo block = attachmentBlocks.get(digest);
+        return block != null ? readBlock(block) : null;
+    }
+
+    public void close() throws IOException
+    {
+        file.close();
+    }
+
+    /**
+     * Reads the given region of the file, with one extra byte the inflater needs after raw deflate data.
+     */
+    private byte[] read(long offset, int length) throws IOException
+    {
+        byte[] data = new byte[length + 1];
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+            {
+                throw new IOException("unexpected end of file at " + (offset + buffer.position()));
+            }
+        }
+        return data;
+    }
+
+    private static byte[] inflate(byte[] compressed, int size) throws IOException
+    {
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            inflater.setInput(compressed);
+            byte[] data = new byte[size];
+            int pos = 0;
+            while (pos < size && !inflater.finished())
+            {
+                int n = inflater.inflate(data, pos, size - pos);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new IOException("truncated block");
+                }
+                pos += n;
+            }
+            if (pos != size)
+            {
+                throw new IOException("block size mismatch");
+            }
+            return data;
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("corrupt block: " + e.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    private static String ascii(byte[] data) throws IOException
+    {
+        return new String(data, 0, Math.min(data.length, BlockDumpWriter.MAGIC.length()), "US-ASCII");
+    }
+}
@@ -0,0 +1,215 @@
+package org.jcouchdb.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.svenson.JSON;
+
+/**
+ * Writes a block dump, a splittable dump format that can be restored in parallel by {@link BlockDumpReader}.
+ * <p>
+ * The file starts with {@link #MAGIC}, followed by independently deflated blocks. A documents block contains
+ * newline-delimited JSON objects of the form <code>{"doc":{...},"attachments":{"name":"digest"}}</code>, the
+ * documents carrying attachment stubs. The content of each attachment is stored once in an attachment block keyed
+ * by its SHA-1 digest, no matter how many documents contain it. The file ends with the deflated JSON
+ * {@link BlockIndex} and a trailer of fixed length containing the position of the index:
+ * </p>
+ * <pre>
+ * index offset (8 bytes) | index length (4 bytes) | uncompressed index size (4 bytes) | {@link #TRAILER_MAGIC}
+ * </pre>
+ * <p>
+ * The blocks are compressed beforehand with {@link ZipArchiveWriter#compress(String, byte[], int)}, so the
+ * compression can run on several threads.
+ * </p>
+ */
+public class BlockDumpWriter
+{
+    public final static String MAGIC = "JCDBBLK1";
+
+    public final static String TRAILER_MAGIC = "JCDBIDX1";
+
+    /**
+     * Length of the trailer in bytes.
+     */
+    public final static int TRAILER_LENGTH = 24;
+
+    private final OutputStream os;
+
+    private final BlockIndex index = new BlockIndex();
+
+    private final Set<String> digests = new HashSet<String>();
+
+    private long offset;
+
+    private boolean finished;
+
+    public BlockDumpWriter(OutputStream os) throws IOException
+    {
+        Assert.notNull(os, "output stream can't be null");
+        this.os = os;
+        write(ascii(MAGIC));
+    }
+
+    /**
+     * Returns the hex encoded SHA-1 digest of the given data.
+     *
+     * @param data
+     * @return
+     */
+    public static String digest(byte[] data)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+            {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+    }
+
+    /**
+     * Appends a block of newline-delimited documents.
+     *
+     * @param block     compressed block
+     * @param count     number of documents in the block
+     * @throws IOException
+     */
+    public void writeDocuments(ZipArchiveWriter.Entry block, int count) throws IOException
+    {
+        BlockInfo info = append(BlockInfo.DOCUMENTS, block);
+        info.setCount(count);
+    }
+
+    /**
+     * Returns <code>true</code> if the content with the given digest has been written already.
+     *
+     * @param digest
+     * @return
+     */
+    public boolean hasAttachment(String digest)
+    {
+        return digests.contains(digest);
+    }
+
+    /**
+     * Appends the content of an attachment unless content with the same digest has been written already.
+     *
+     * @param digest    SHA-1 digest of the uncompressed content, see {@link #digest(byte[])}
+     * @param blob      compressed content
+     * @return <code>true</code> if the content was written
+     * @throws IOException
+     */
+    public boolean writeAttachment(String digest, ZipArchiveWriter.Entry blob) throws IOException
+    {
+        if (!digests.add(digest))
+        {
+            return false;
+        }
+        BlockInfo info = append(BlockInfo.ATTACHMENT, blob);
+        info.setDigest(digest);
+        return true;
+    }
+
+    /**
+     * Writes the index and the trailer. No more blocks can be written afterwards.
+     *
+     * @param manifest  manifest to store in the index
+     * @throws IOException
+     */
+    public void finish(DumpManifest manifest) throws IOException
+    {
+        Assert.isTrue(!finished, "block dump already finished");
+        finished = true;
+
+        index.setManifest(manifest);
+        byte[] data = JSON.defaultJSON().forValue(index).getBytes("UTF-8");
+        ZipArchiveWriter.Entry entry = ZipArchiveWriter.compress("index", data, Deflater.DEFAULT_COMPRESSION);
+
+        long indexOffset = offset;
+        write(entry.getData());
+
+        byte[] trailer = new byte[TRAILER_LENGTH];
+        int pos = putLong(trailer, 0, indexOffset);
+        pos = putInt(trailer, pos, entry.getCompressedSize());
+        pos = putInt(trailer, pos, (int)entry.getSize());
+        System.arraycopy(ascii(TRAILER_MAGIC), 0, trailer, pos, TRAILER_MAGIC.length());
+        write(trailer);
+        os.flush();
+    }
+
+    public void flush() throws IOException
+    {
+        os.flush();
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        os.close();
+    }
+
+    private BlockInfo append(String type, ZipArchiveWriter.Entry entry) throws IOException
+    {
+        Assert.isTrue(!finished, "block dump already finished");
+
+        BlockInfo info = new BlockInfo();
+        info.setType(type);
+        info.setOffset(offset);
+        info.setLength(entry.getCompressedSize());
+        info.setSize((int)entry.getSize());
+        info.setCrc(entry.getCrc());
+        write(entry.getData());
+        index.getBlocks().add(info);
+        return info;
+    }
+
+    private void write(byte[] data) throws IOException
+    {
+        os.write(data);
+        offset += data.length;
+    }
+
+    static byte[] ascii(String s)
+    {
+        try
+        {
+            return s.getBytes("US-ASCII");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+    }
+
+    private static int putInt(byte[] buf, int pos, int value)
+    {
+        buf[pos] = (byte)(value >> 24);
+        buf[pos + 1] = (byte)(value >> 16);
+        buf[pos + 2] = (byte)(value >> 8);
+        buf[pos + 3] = (byte)value;
+        return pos + 4;
+    }
+
+    private static int putLong(byte[] buf, int pos, long value)
+    {
+        pos = putInt(buf, pos, (int)(value >> 32));
+        return putInt(buf, pos, (int)value);
+    }
+}
@@ -0,0 +1,42 @@
+package org.jcouchdb.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.svenson.JSONTypeHint;
+
+/**
+ * Index of a block dump, written at its end by {@link BlockDumpWriter}.
+ */
+public class BlockIndex
+{
+    private DumpManifest manifest;
+
+    private List<BlockInfo> blocks = new ArrayList<BlockInfo>();
+
+    public DumpManifest getManifest()
+    {
+        return manifest;
+    }
+
+    public void setManifest(DumpManifest manifest)
+    {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Returns all blocks in file order.
+     *
+     * @return
+     */
+    public List<BlockInfo> getBlocks()
+    {
+        return blocks;
+    }
+
+    @JSONTypeHint(BlockInfo.class)
+    public void setBlocks(List<BlockInfo> blocks)
+    {
+        this.blocks = blocks;
+    }
+}
@@ -0,0 +1,138 @@
+package org.jcouchdb.util;
+
+/**
+ * Entry of the index of a block dump, see {@link BlockDumpWriter}.
+ */
+public class BlockInfo
+{
+    public final static String DOCUMENTS = "documents";
+
+    public final static String ATTACHMENT = "attachment";
+
+    private String type;
+
+    private String digest;
+
+    private long offset;
+
+    private int length;
+
+    private int size;
+
+    private int count;
+
+    private long crc;
+
+    /**
+     * Returns {@link #DOCUMENTS} for a block of newline-delimited documents or {@link #ATTACHMENT} for the content
+     * of an attachment.
+     *
+     * @return
+     */
+    public String getType()
+    {
+        return type;
+    }
+
+    public void setType(String type)
+    {
+        this.type = type;
+    }
+
+    /**
+     * Returns the SHA-1 digest of the content of an attachment block.
+     *
+     * @return
+     */
+    public String getDigest()
+    {
+        return digest;
+    }
+
+    public void setDigest(String digest)
+    {
+        this.digest = digest;
+    }
+
+    /**
+     * Returns the position of the compressed block in the file.
+     *
+     * @return
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    public void setOffset(long offset)
+    {
+        this.offset = offset;
+    }
+
+    /**
+     * Returns the compressed length of the block.
+     *
+     * @return
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    public void setLength(int length)
+    {
+        this.length = length;
+    }
+
+    /**
+     * Returns the uncompressed size of the block.
+     *
+     * @return
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    public void setSize(int size)
+    {
+        this.size = size;
+    }
+
+    /**
+     * Returns the number of documents in a documents block.
+     *
+     * @return
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    public void setCount(int count)
+    {
+        this.count = count;
+    }
+
+    /**
+     * Returns the CRC-32 of the uncompressed block.
+     *
+     * @return
+     */
+    public long getCrc()
+    {
+        return crc;
+    }
+
+    public void setCrc(long crc)
+    {
+        this.crc = crc;
+    }
+
+    @Override
+    public String toString()
+    {
+        return super.toString() + ": type = " + type + ", offset = " + offset + ", length = " + length +
+            ", count = " + count + ", digest = " + digest;
+    }
+}
@@ -0,0 +1,94 @@
+package org.jcouchdb.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe pool of equally sized byte buffers used to copy and read response bodies without allocating
+ * a new buffer for every request.
+ */
+public class BufferPool
+{
+    public final static int DEFAULT_BUFFER_SIZE = 8192;
+
+    public final static int DEFAULT_MAX_POOLED = 64;
+
+    private final static BufferPool defaultPool = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    private final int bufferSize;
+
+    private final int maxPooled;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param bufferSize    size of the buffers handed out by the pool
+     * @param maxPooled     maximum number of idle buffers kept by the pool
+     */
+    public BufferPool(int bufferSize, int maxPooled)
+    {
+        Assert.isTrue(bufferSize > 0, "bufferSize must be positive");
+        Assert.isTrue(maxPooled >= 0, "maxPooled can't be negative");
+
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns the shared default pool.
+     *
+     * @return
+     */
+    public static BufferPool defaultPool()
+    {
+        return defaultPool;
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a pooled buffer or a new one if the pool is empty. The contents of the buffer are undefined.
+     *
+     * @return
+     */
+    public byte[] acquire()
+    {
+        byte[] buffer = buffers.poll();
+        if (buffer != null)
+        {
+            pooledCount.decrementAndGet();
+            return buffer;
+        }
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Returns the given buffer to the pool. Buffers of a different size are ignored.
+     *
+     * @param buffer    buffer that was acquired from this pool and isn't used anymore
+     */
+    public void release(byte[] buffer)
+    {
+        if (buffer == null || buffer.length != bufferSize)
+        {
+            return;
+        }
+
+        if (pooledCount.incrementAndGet() <= maxPooled)
+        {
+            buffers.offer(buffer);
+        }
+        else
+        {
+            pooledCount.decrementAndGet();
+        }
+    }
+}
@@ -1,107 +1,812 @@
 package org.jcouchdb.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
+import org.jcouchdb.db.CheckpointStore;
 import org.jcouchdb.db.Database;
+import org.jcouchdb.db.Options;
 import org.jcouchdb.db.Server;
 import org.jcouchdb.document.Attachment;
 import org.jcouchdb.document.BaseDocument;
-import org.jcouchdb.document.ValueRow;
-import org.jcouchdb.document.ViewResult;
+import org.jcouchdb.document.DocumentChangeNotification;
+import org.jcouchdb.document.DocumentPollingResults;
+import org.jcouchdb.document.ValueAndDocumentRow;
 import org.svenson.JSON;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
+/**
+ * Dumps a database with its attachments into a ZIP file that can be restored with {@link CouchDBLoader}.
+ * <p>
+ * The dump runs as a pipeline: the documents are read page by page from <code>_all_docs?include_docs=true</code>,
+ * the next page being requested while the current one is processed. Attachments are fetched on
+ * {@link #getAttachmentThreads()} threads. Once all attachments of a document are there, the ZIP entries of the
+ * document are compressed on {@link #getCompressorThreads()} threads, and the calling thread appends the compressed
+ * entries to the archive in document order. At most {@link #getMaxPendingAttachments()} attachments are held
+ * ahead of the document being written.
+ * </p>
+ * <p>
+ * Every dump starts with a {@link DumpManifest} recording the update sequence it reflects. A later
+ * {@link #dumpChanges(Server, String, OutputStream, boolean, long)} from that sequence writes only the documents
+ * changed or deleted since into a delta archive, which {@link CouchDBLoader} applies on top of the restored full dump.
+ * </p>
+ * <p>
+ * {@link #dumpDatabaseBlocks(Server, String, OutputStream)} writes the splittable format of {@link BlockDumpWriter}
+ * instead, which {@link CouchDBLoader#loadBlocks(java.io.File, Server, String)} restores in parallel.
+ * </p>
+ */
 public class CouchDBDumper
 {
+    public final static int DEFAULT_PAGE_SIZE = 1000;
+
+    public final static int DEFAULT_ATTACHMENT_THREADS = 4;
+
+    /**
+     * Name of the ZIP entry containing the {@link DumpManifest}.
+     */
+    public final static String MANIFEST_ENTRY = "_dump_manifest.json";
+
+    final static String DELETED_PROPERTY = "_deleted";
+
     private static Logger log = LoggerFactory.getLogger(CouchDBDumper.class);
 
-    public void dumpDatabase(Server server, String name, OutputStream os, boolean inlineAttachments) throws IOException
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    private int attachmentThreads = DEFAULT_ATTACHMENT_THREADS;
+
+    private int compressorThreads = Runtime.getRuntime().availableProcessors();
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private int maxPendingAttachments = DEFAULT_ATTACHMENT_THREADS * 4;
+
+    private CheckpointStore checkpointStore;
+
+    public int getPageSize()
     {
-        ZipOutputStream zos = null;
-        try
-        {
-            zos = new ZipOutputStream(os);
-            Database database = new Database(server, name);
+        return pageSize;
+    }
+
+    /**
+     * Sets the number of documents read per request.
+     *
+     * @param pageSize
+     */
+    public void setPageSize(int pageSize)
+    {
+        Assert.isTrue(pageSize > 0, "page size must be positive");
+        this.pageSize = pageSize;
+    }
+
+    public int getAttachmentThreads()
+    {
+        return attachmentThreads;
+    }
+
+    /**
+     * Sets the number of threads fetching attachments in parallel.
+     *
+     * @param attachmentThreads
+     */
+    public void setAttachmentThreads(int attachmentThreads)
+    {
+        Assert.isTrue(attachmentThreads > 0, "attachment threads must be positive");
+        this.attachmentThreads = attachmentThreads;
+    }
+
+    public int getCompressorThreads()
+    {
+        return compressorThreads;
+    }
+
+    /**
+     * Sets the number of threads compressing ZIP entries in parallel. Defaults to the number of processors.
+     *
+     * @param compressorThreads
+     */
+    public void setCompressorThreads(int compressorThreads)
+    {
+        Assert.isTrue(compressorThreads > 0, "compressor threads must be positive");
+        this.compressorThreads = compressorThreads;
+    }
+
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the compression level of the ZIP entries.
+     *
+     * @param compressionLevel  level between 0 and 9 or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public void setCompressionLevel(int compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
 
-            ViewResult<Map> result = database.listDocuments(null, null);
+    public int getMaxPendingAttachments()
+    {
+        return maxPendingAttachments;
+    }
+
+    /**
+     * Sets the maximum number of attachments fetched ahead of the document being written. This limits the
+     * attachment data held in memory.
+     *
+     * @param maxPendingAttachments
+     */
+    public void setMaxPendingAttachments(int maxPendingAttachments)
+    {
+        Assert.isTrue(maxPendingAttachments > 0, "max pending attachments must be positive");
+        this.maxPendingAttachments = maxPendingAttachments;
+    }
+
+    public CheckpointStore getCheckpointStore()
+    {
+        return checkpointStore;
+    }
 
-            for (ValueRow<Map> row : result.getRows())
+    /**
+     * Sets the store for the cursor of delta dumps. If set, {@link #dumpChanges(Server, String, OutputStream, boolean, long)}
+     * records the sequence up to which the changes are completely written after every page, and an interrupted delta
+     * dump is resumed from there instead of from the given sequence.
+     *
+     * @param checkpointStore
+     */
+    public void setCheckpointStore(CheckpointStore checkpointStore)
+    {
+        this.checkpointStore = checkpointStore;
+    }
+
+    /**
+     * Dumps all documents of the given database.
+     *
+     * @param server                server
+     * @param name                  database name
+     * @param os                    stream to write the ZIP file to, closed after the dump
+     * @param inlineAttachments     if <code>true</code>, the attachments are written inline as base64 encoded data
+     * @return manifest of the dump containing the update sequence to start the next delta dump after
+     * @throws IOException
+     */
+    public DumpManifest dumpDatabase(Server server, String name, OutputStream os, boolean inlineAttachments) throws IOException
+    {
+        Database database = new Database(server, name);
+        DumpManifest manifest = new DumpManifest(name, null, database.getStatus().getUpdateSequence());
+
+        DumpJob job = new DumpJob(database, os, inlineAttachments, manifest);
+        ExecutorService pageFetcher = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<List<ValueAndDocumentRow<Map<String,Object>,BaseDocument>>> nextPage =
+                pageFetcher.submit(new PageFetch(database, null));
+            while (nextPage != null)
             {
-                String id = row.getId();
-                Map value = row.getValue();
-                String revision = (String) value.get("rev");
-                dumpDocumentAndAttachments(zos, database, id, revision, inlineAttachments);
+                List<ValueAndDocumentRow<Map<String,Object>,BaseDocument>> rows = get(nextPage);
+                nextPage = rows.size() > pageSize ?
+                    pageFetcher.submit(new PageFetch(database, rows.get(pageSize).getId())) : null;
+
+                int end = Math.min(rows.size(), pageSize);
+                for (int i = 0; i < end; i++)
+                {
+                    BaseDocument doc = rows.get(i).getDocument();
+                    if (doc != null)
+                    {
+                        job.add(doc);
+                    }
+                }
             }
+            job.flush();
+
+            log.info("dumped {} documents of {}", job.count, name);
         }
         finally
         {
-            if (zos != null)
+            pageFetcher.shutdownNow();
+            job.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Dumps all documents of the given database as block dump, see {@link BlockDumpWriter}. Every page of documents
+     * becomes one documents block, or several if its documents have more than {@link #getMaxPendingAttachments()}
+     * attachments. The blocks are encoded on {@link #getCompressorThreads()} threads while their attachments are
+     * fetched on {@link #getAttachmentThreads()} threads, and the calling thread appends the blocks in order. As for
+     * ZIP dumps, at most {@link #getMaxPendingAttachments()} attachments are held ahead of the block being written,
+     * plus the attachments of the newest block. Attachment content is stored once per SHA-1 digest.
+     *
+     * @param server    server
+     * @param name      database name
+     * @param os        stream to write the block dump to, closed after the dump
+     * @return manifest of the dump containing the update sequence to start the next delta dump after
+     * @throws IOException
+     */
+    public DumpManifest dumpDatabaseBlocks(Server server, String name, OutputStream os) throws IOException
+    {
+        Database database = new Database(server, name);
+        DumpManifest manifest = new DumpManifest(name, null, database.getStatus().getUpdateSequence());
+
+        BlockJob job = new BlockJob(database, new BlockDumpWriter(os));
+        ExecutorService pageFetcher = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<List<ValueAndDocumentRow<Map<String,Object>,BaseDocument>>> nextPage =
+                pageFetcher.submit(new PageFetch(database, null));
+            while (nextPage != null)
             {
-                zos.close();
+                List<ValueAndDocumentRow<Map<String,Object>,BaseDocument>> rows = get(nextPage);
+                nextPage = rows.size() > pageSize ?
+                    pageFetcher.submit(new PageFetch(database, rows.get(pageSize).getId())) : null;
+
+                int end = Math.min(rows.size(), pageSize);
+                for (int i = 0; i < end; i++)
+                {
+                    BaseDocument doc = rows.get(i).getDocument();
+                    if (doc != null)
+                    {
+                        job.add(doc);
+                    }
+                }
+                job.endBlock();
             }
+            job.finish(manifest);
+
+            log.info("dumped {} documents of {} as blocks", job.count, name);
         }
+        finally
+        {
+            pageFetcher.shutdownNow();
+            job.close();
+        }
+        return manifest;
     }
 
-    private void dumpDocumentAndAttachments(ZipOutputStream zos, Database database, String id, String revision, boolean inlineAttachments) throws IOException
+    /**
+     * Dumps the documents changed or deleted after the given sequence into a delta archive, using the change feed.
+     * Deleted documents are written as tombstones containing id, revision and <code>_deleted</code>. Changes after
+     * the update sequence the database has when the dump starts are left to the next delta dump.
+     *
+     * @param server                server
+     * @param name                  database name
+     * @param os                    stream to write the ZIP file to, closed after the dump
+     * @param inlineAttachments     if <code>true</code>, the attachments are written inline as base64 encoded data
+     * @param since                 update sequence of the previous dump
+     * @return manifest of the dump containing the update sequence to start the next delta dump after
+     * @throws IOException
+     */
+    public DumpManifest dumpChanges(Server server, String name, OutputStream os, boolean inlineAttachments,
+        long since) throws IOException
     {
-        BaseDocument doc = database.getDocument(BaseDocument.class, id.replace("/", "%2F"), revision, null);
+        Database database = new Database(server, name);
 
-        String path = idToRelPath(id);
+        if (checkpointStore != null)
+        {
+            Long cursor = checkpointStore.load();
+            if (cursor != null && cursor > since)
+            {
+                log.info("resuming delta dump of {} from {}", name, cursor);
+                since = cursor;
+            }
+        }
 
-        if (inlineAttachments)
+        long updateSequence = database.getStatus().getUpdateSequence();
+        DumpManifest manifest = new DumpManifest(name, since, updateSequence);
+
+        DumpJob job = new DumpJob(database, os, inlineAttachments, manifest);
+        try
         {
-            Map<String, Attachment> attachments = doc.getAttachments();
-            if (attachments != null && attachments.size() > 0)
+            long seq = since;
+            while (seq < updateSequence)
             {
-                for (Map.Entry<String,Attachment> e : attachments.entrySet())
+                DocumentPollingResults<BaseDocument> results = database.pollChangesWithDocuments(seq, null, false,
+                    new Options().limit(pageSize), BaseDocument.class);
+                if (results.getResults().size() == 0)
                 {
-                    String name = e.getKey();
-                    Attachment attachment = e.getValue();
+                    break;
+                }
 
-                    byte[] content = database.getAttachment(doc.getId(), name);
-                    attachment.setStub(false);
-                    String encodedData = Base64Util.encodeBase64(content);
-                    attachment.setData(encodedData);
+                for (DocumentChangeNotification<BaseDocument> change : results.getResults())
+                {
+                    if (change.getSequence() > updateSequence)
+                    {
+                        break;
+                    }
+                    job.add(change.isDeleted() ? tombstone(change) : change.getDocument());
+                }
+                seq = Math.min(results.getLastSequence(), updateSequence);
+
+                if (checkpointStore != null)
+                {
+                    job.flush();
+                    checkpointStore.store(seq);
                 }
             }
+            job.flush();
+
+            log.info("dumped {} changed documents of {} from {} to {}", new Object[] { job.count, name, since,
+                updateSequence });
+        }
+        finally
+        {
+            job.close();
         }
+        return manifest;
+    }
 
-        byte[] data = JSON.defaultJSON().forValue(doc).getBytes("UTF-8");
+    private static BaseDocument tombstone(DocumentChangeNotification<BaseDocument> change)
+    {
+        BaseDocument doc = new BaseDocument();
+        doc.setId(change.getId());
+        doc.setRevision(change.getDocument() != null ? change.getDocument().getRevision() :
+            change.getChanges().get(0).getRev());
+        doc.setProperty(DELETED_PROPERTY, true);
+        return doc;
+    }
 
-        ZipEntry entry = new ZipEntry(path+".json");
-        entry.setSize(data.length);
-        zos.putNextEntry(entry);
+    private static String idToRelPath(String id)
+    {
+        return id;
+    }
 
-        zos.write( data, 0, data.length);
-        zos.flush();
-        zos.closeEntry();
+    private static <T> T get(Future<T> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw ExceptionWrapper.wrap(e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            throw ExceptionWrapper.wrap(e);
+        }
+    }
+
+    /**
+     * Creates the executor for fetching attachments or compressing entries.
+     *
+     * @param threads   number of threads
+     * @return
+     */
+    ExecutorService newExecutor(int threads)
+    {
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Writes the documents added to it in order, with their attachments fetched and their entries compressed in
+     * parallel.
+     */
+    private class DumpJob
+    {
+        private final Database database;
+
+        private final boolean inlineAttachments;
+
+        private final ZipArchiveWriter zip;
+
+        private final ExecutorService attachmentFetcher = newExecutor(attachmentThreads);
+
+        private final ExecutorService compressor = newExecutor(compressorThreads);
+
+        private final LinkedList<PendingDocument> pending = new LinkedList<PendingDocument>();
+
+        private int pendingAttachments;
+
+        private int count;
+
+        DumpJob(Database database, OutputStream os, boolean inlineAttachments, DumpManifest manifest)
+            throws IOException
+        {
+            this.database = database;
+            this.inlineAttachments = inlineAttachments;
+            this.zip = new ZipArchiveWriter(os);
+
+            byte[] data = JSON.defaultJSON().forValue(manifest).getBytes("UTF-8");
+            zip.write(ZipArchiveWriter.compress(MANIFEST_ENTRY, data, compressionLevel));
+        }
 
-        if (!inlineAttachments)
+        void add(BaseDocument doc) throws IOException
         {
-            Map<String, Attachment> attachments = doc.getAttachments();
-            if (attachments != null && attachments.size() > 0)
+            PendingDocument pendingDocument = new PendingDocument(database, doc, inlineAttachments,
+                attachmentFetcher, compressor);
+            pending.add(pendingDocument);
+            pendingAttachments += pendingDocument.attachmentCount();
+
+            while (pending.size() > 1 && (pendingAttachments > maxPendingAttachments ||
+                pending.size() > pageSize))
             {
-                String attachmentPath = path+"_attachments/";
-                for (String name : attachments.keySet())
+                writeFirst();
+            }
+        }
+
+        private void writeFirst() throws IOException
+        {
+            PendingDocument first = pending.removeFirst();
+            pendingAttachments -= first.attachmentCount();
+            first.write(zip);
+            count++;
+        }
+
+        /**
+         * Writes all pending documents.
+         */
+        void flush() throws IOException
+        {
+            while (pending.size() > 0)
+            {
+                writeFirst();
+            }
+            zip.flush();
+        }
+
+        void close() throws IOException
+        {
+            attachmentFetcher.shutdownNow();
+            compressor.shutdownNow();
+            zip.close();
+        }
+    }
+
+    /**
+     * Encodes the documents added to it as blocks and writes the blocks in order. Like {@link DumpJob}, it waits for
+     * the oldest blocks to be written while more than {@link #getMaxPendingAttachments()} attachments are pending.
+     */
+    private class BlockJob
+    {
+        private final Database database;
+
+        private final BlockDumpWriter writer;
+
+        private final ExecutorService attachmentFetcher = newExecutor(attachmentThreads);
+
+        private final ExecutorService compressor = newExecutor(compressorThreads);
+
+        private final ConcurrentMap<String, Boolean> digests = new ConcurrentHashMap<String, Boolean>();
+
+        private final LinkedList<PendingBlock> pending = new LinkedList<PendingBlock>();
+
+        private List<BaseDocument> docs = new ArrayList<BaseDocument>();
+
+        private int blockAttachments;
+
+        private int pendingAttachments;
+
+        private int count;
+
+        BlockJob(Database database, BlockDumpWriter writer)
+        {
+            this.database = database;
+            this.writer = writer;
+        }
+
+        void add(BaseDocument doc) throws IOException
+        {
+            int attachmentCount = doc.getAttachments() != null ? doc.getAttachments().size() : 0;
+            if (docs.size() > 0 && attachmentCount > 0 &&
+                blockAttachments + attachmentCount > maxPendingAttachments)
+            {
+                endBlock();
+            }
+            docs.add(doc);
+            blockAttachments += attachmentCount;
+        }
+
+        /**
+         * Starts encoding the documents added since the last block as new block.
+         */
+        void endBlock() throws IOException
+        {
+            if (docs.size() == 0)
+            {
+                return;
+            }
+
+            pending.add(new PendingBlock(compressor.submit(new BlockEncoding(database, docs, attachmentFetcher,
+                digests)), blockAttachments));
+            pendingAttachments += blockAttachments;
+            count += docs.size();
+            docs = new ArrayList<BaseDocument>();
+            blockAttachments = 0;
+
+            while (pending.size() > 1 && (pendingAttachments > maxPendingAttachments ||
+                pending.size() > compressorThreads))
+            {
+                writeFirst();
+            }
+        }
+
+        private void writeFirst() throws IOException
+        {
+            PendingBlock first = pending.removeFirst();
+            pendingAttachments -= first.attachmentCount;
+            get(first.block).write(writer);
+        }
+
+        void finish(DumpManifest manifest) throws IOException
+        {
+            endBlock();
+            while (pending.size() > 0)
+            {
+                writeFirst();
+            }
+            writer.finish(manifest);
+        }
+
+        void close() throws IOException
+        {
+            attachmentFetcher.shutdownNow();
+            compressor.shutdownNow();
+            writer.close();
+        }
+    }
+
+    private static class PendingBlock
+    {
+        final Future<EncodedBlock> block;
+
+        final int attachmentCount;
+
+        PendingBlock(Future<EncodedBlock> block, int attachmentCount)
+        {
+            this.block = block;
+            this.attachmentCount = attachmentCount;
+        }
+    }
+
+    /**
+     * Reads the page of documents starting with the given id, plus the first document of the next page.
+     */
+    private class PageFetch
+        implements Callable<List<ValueAndDocumentRow<Map<String,Object>,BaseDocument>>>
+    {
+        private final Database database;
+
+        private final String startId;
+
+        PageFetch(Database database, String startId)
+        {
+            this.database = database;
+            this.startId = startId;
+        }
+
+        public List<ValueAndDocumentRow<Map<String,Object>,BaseDocument>> call()
+        {
+            Options options = new Options().limit(pageSize + 1);
+            if (startId != null)
+            {
+                options.startKey(startId);
+            }
+            return database.listDocumentsWithContent(BaseDocument.class, options, null).getRows();
+        }
+    }
+
+    /**
+     * Encodes a page of documents as documents block, compressing the content of attachments whose digest no other
+     * block has claimed before.
+     */
+    private class BlockEncoding
+        implements Callable<EncodedBlock>
+    {
+        private final List<BaseDocument> docs;
+
+        private final ConcurrentMap<String, Boolean> digests;
+
+        private final List<List<Future<byte[]>>> attachments = new ArrayList<List<Future<byte[]>>>();
+
+        BlockEncoding(final Database database, List<BaseDocument> docs, ExecutorService attachmentFetcher,
+            ConcurrentMap<String, Boolean> digests)
+        {
+            this.docs = docs;
+            this.digests = digests;
+
+            for (final BaseDocument doc : docs)
+            {
+                List<Future<byte[]>> docAttachments = new ArrayList<Future<byte[]>>();
+                if (doc.getAttachments() != null)
                 {
-                    byte[] content = database.getAttachment(doc.getId(), name);
+                    for (final String name : doc.getAttachments().keySet())
+                    {
+                        docAttachments.add(attachmentFetcher.submit(new Callable<byte[]>()
+                        {
+                            public byte[] call() throws Exception
+                            {
+                                return database.getAttachment(doc.getId(), name);
+                            }
+                        }));
+                    }
+                }
+                attachments.add(docAttachments);
+            }
+        }
 
-                    zos.putNextEntry(new ZipEntry(attachmentPath + idToRelPath(name)));
-                    zos.write(content);
-                    zos.closeEntry();
+        public EncodedBlock call() throws IOException
+        {
+            EncodedBlock block = new EncodedBlock();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            for (int i = 0; i < docs.size(); i++)
+            {
+                BaseDocument doc = docs.get(i);
+                Map<String, String> attachmentDigests = new LinkedHashMap<String, String>();
+                if (doc.getAttachments() != null)
+                {
+                    int j = 0;
+                    for (String name : doc.getAttachments().keySet())
+                    {
+                        // drop the fetched content as soon as it is compressed
+                        byte[] data = get(attachments.get(i).set(j++, null));
+                        String digest = BlockDumpWriter.digest(data);
+                        attachmentDigests.put(name, digest);
+                        if (digests.putIfAbsent(digest, Boolean.TRUE) == null)
+                        {
+                            block.attachments.add(ZipArchiveWriter.compress(digest, data, compressionLevel));
+                        }
+                    }
                 }
+
+                Map<String, Object> line = new LinkedHashMap<String, Object>();
+                line.put("doc", doc);
+                line.put("attachments", attachmentDigests);
+                bos.write(JSON.defaultJSON().forValue(line).getBytes("UTF-8"));
+                bos.write('\n');
             }
+            block.documents = ZipArchiveWriter.compress("documents", bos.toByteArray(), compressionLevel);
+            block.count = docs.size();
+            return block;
         }
     }
 
-    private String idToRelPath(String id)
+    private static class EncodedBlock
     {
-        return id;
+        ZipArchiveWriter.Entry documents;
+
+        int count;
+
+        List<ZipArchiveWriter.Entry> attachments = new ArrayList<ZipArchiveWriter.Entry>();
+
+        void write(BlockDumpWriter writer) throws IOException
+        {
+            for (ZipArchiveWriter.Entry attachment : attachments)
+            {
+                writer.writeAttachment(attachment.getName(), attachment);
+            }
+            writer.writeDocuments(documents, count);
+        }
     }
 
+    /**
+     * Document waiting to be written. Its attachments are fetched in parallel, the last fetch to finish hands the
+     * document over to the compressor.
+     */
+    private class PendingDocument
+    {
+        private final BaseDocument doc;
+
+        private final boolean inlineAttachments;
+
+        private final List<String> names = new ArrayList<String>();
+
+        private final List<FutureTask<byte[]>> attachments = new ArrayList<FutureTask<byte[]>>();
+
+        private final FutureTask<List<ZipArchiveWriter.Entry>> entries;
+
+        PendingDocument(final Database database, final BaseDocument doc, boolean inlineAttachments,
+            ExecutorService attachmentFetcher, final ExecutorService compressor)
+        {
+            this.doc = doc;
+            this.inlineAttachments = inlineAttachments;
+
+            entries = new FutureTask<List<ZipArchiveWriter.Entry>>(new Callable<List<ZipArchiveWriter.Entry>>()
+            {
+                public List<ZipArchiveWriter.Entry> call() throws IOException
+                {
+                    return compress();
+                }
+            });
+
+            Map<String, Attachment> docAttachments = doc.getAttachments();
+            if (docAttachments == null || docAttachments.size() == 0)
+            {
+                compressor.execute(entries);
+                return;
+            }
+
+            // all fetches must be in the list before the first one can complete and start the compression
+            names.addAll(docAttachments.keySet());
+            final AtomicInteger remaining = new AtomicInteger(names.size());
+            for (final String name : names)
+            {
+                attachments.add(new FutureTask<byte[]>(new Callable<byte[]>()
+                {
+                    public byte[] call() throws Exception
+                    {
+                        return database.getAttachment(doc.getId(), name);
+                    }
+                })
+                {
+                    @Override
+                    protected void done()
+                    {
+                        if (remaining.decrementAndGet() == 0)
+                        {
+                            compressor.execute(entries);
+                        }
+                    }
+                });
+            }
+            for (FutureTask<byte[]> attachment : attachments)
+            {
+                attachmentFetcher.execute(attachment);
+            }
+        }
+
+        int attachmentCount()
+        {
+            return names.size();
+        }
+
+        private List<ZipArchiveWriter.Entry> compress() throws IOException
+        {
+            List<ZipArchiveWriter.Entry> list = new ArrayList<ZipArchiveWriter.Entry>(names.size() + 1);
+            String path = idToRelPath(doc.getId());
+
+            if (inlineAttachments)
+            {
+                for (int i = 0; i < names.size(); i++)
+                {
+                    Attachment attachment = doc.getAttachments().get(names.get(i));
+                    attachment.setStub(false);
+                    attachment.setContent(get(attachments.get(i)));
+                }
+            }
+
+            byte[] data = JSON.defaultJSON().forValue(doc).getBytes("UTF-8");
+            list.add(ZipArchiveWriter.compress(path + ".json", data, compressionLevel));
+
+            if (!inlineAttachments)
+            {
+                String attachmentPath = path+"_attachments/";
+                for (int i = 0; i < names.size(); i++)
+                {
+                    list.add(ZipArchiveWriter.compress(attachmentPath + idToRelPath(names.get(i)),
+                        get(attachments.get(i)), compressionLevel));
+                }
+            }
+            return list;
+        }
+
+        void write(ZipArchiveWriter zip) throws IOException
+        {
+            for (ZipArchiveWriter.Entry entry : get(entries))
+            {
+                zip.write(entry);
+            }
+        }
+    }
 }
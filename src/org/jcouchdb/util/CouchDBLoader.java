@@ -1,13 +1,19 @@
 package org.jcouchdb.util;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -15,28 +21,132 @@ import org.jcouchdb.db.Database;
 import org.jcouchdb.db.Server;
 import org.jcouchdb.document.Attachment;
 import org.jcouchdb.document.BaseDocument;
-import org.jcouchdb.exception.NotFoundException;
+import org.jcouchdb.document.DocumentInfo;
+import org.jcouchdb.document.ValueAndDocumentRow;
 import org.svenson.JSONParser;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
+/**
+ * Loads a ZIP file written by {@link CouchDBDumper} into a database, merging it with the documents already there.
+ * Documents with a different revision than the existing document are added to the <code>jcl_conflicts</code>
+ * property of the existing document.
+ * <p>
+ * The documents are stored with <code>_bulk_docs</code> in batches of {@link #getBatchSize()} documents. The
+ * existing revisions of a batch are read with one <code>_all_docs</code> request. Documents with attachments are
+ * held back only until all of their attachments have been read from the archive. Documents the database rejects
+ * are logged and skipped.
+ * </p>
+ * <p>
+ * Delta dumps, marked as such by their {@link DumpManifest}, replace existing documents instead of adding conflicts,
+ * and delete the documents they contain tombstones for. Delta dumps have to be loaded in the order they were written.
+ * </p>
+ * <p>
+ * Block dumps written by {@link CouchDBDumper#dumpDatabaseBlocks(Server, String, java.io.OutputStream)} are loaded
+ * with {@link #loadBlocks(File, Server, String)}, which restores the blocks on {@link #getThreads()} threads.
+ * </p>
+ */
 public class CouchDBLoader
 {
+    public final static int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * Number of attachment bytes after which a batch is stored even if it is not full.
+     */
+    public final static long DEFAULT_MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
     private static final String JSON_EXTENSION = ".json";
 
     private static Logger log = LoggerFactory.getLogger(CouchDBLoader.class);
 
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of documents stored with one request.
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize)
+    {
+        Assert.isTrue(batchSize > 0, "batch size must be positive");
+        this.batchSize = batchSize;
+    }
+
+    public long getMaxBatchBytes()
+    {
+        return maxBatchBytes;
+    }
+
+    /**
+     * Sets the number of attachment bytes after which a batch is stored even if it is not full.
+     *
+     * @param maxBatchBytes
+     */
+    public void setMaxBatchBytes(long maxBatchBytes)
+    {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads restoring the blocks of a block dump in parallel. Defaults to the number of
+     * processors.
+     *
+     * @param threads
+     */
+    public void setThreads(int threads)
+    {
+        Assert.isTrue(threads > 0, "threads must be positive");
+        this.threads = threads;
+    }
+
     public void load(ZipInputStream zis, Server server, String name) throws IOException
+    {
+        new LoadJob(openDatabase(server, name)).mergeDatabase(zis);
+    }
+
+    /**
+     * Loads a block dump written by {@link CouchDBDumper#dumpDatabaseBlocks(Server, String, java.io.OutputStream)}.
+     * The documents blocks of the file are read with positional reads and restored in parallel.
+     *
+     * @param file      block dump
+     * @param server    server
+     * @param name      database name
+     * @throws IOException
+     */
+    public void loadBlocks(File file, Server server, String name) throws IOException
+    {
+        BlockDumpReader reader = new BlockDumpReader(file);
+        try
+        {
+            new LoadJob(openDatabase(server, name)).mergeBlocks(reader);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private Database openDatabase(Server server, String name)
     {
         if (!server.listDatabases().contains(name))
         {
             server.createDatabase(name);
         }
-
-        Database database = new Database(server, name);
-
-        new LoadJob().mergeDatabase(database, zis);
-
+        return new Database(server, name);
     }
 
     private class LoadJob
@@ -45,14 +155,36 @@ public class CouchDBLoader
 
         private static final String ATTACHMENTS_SUFFIX = "_attachments";
 
+        private final Database database;
+
+        /**
+         * Documents waiting for the data of some of their attachments.
+         */
         private Map<String, BaseDocument> documentsWithAttachments = new HashMap<String, BaseDocument>();
 
-        private Set<AttachmentEntry> attachmentEntries = new HashSet<AttachmentEntry>();
+        /**
+         * Attachments read before their document.
+         */
+        private Map<String, List<AttachmentEntry>> attachmentEntries = new HashMap<String, List<AttachmentEntry>>();
 
-        private void mergeDatabase(Database database, ZipInputStream zis) throws IOException
-        {
+        private List<BaseDocument> batch = new ArrayList<BaseDocument>();
+
+        private long batchBytes;
+
+        private volatile DumpManifest manifest;
+
+        private final AtomicInteger documentCount = new AtomicInteger();
+
+        private final AtomicInteger failureCount = new AtomicInteger();
 
+        LoadJob(Database database)
+        {
             Assert.notNull(database, "database can't be null");
+            this.database = database;
+        }
+
+        private void mergeDatabase(ZipInputStream zis) throws IOException
+        {
             Assert.notNull(zis, "ZIP input stream can't be null");
 
             try
@@ -64,7 +196,13 @@ public class CouchDBLoader
                     boolean isAttachment = (name.indexOf(ATTACHMENTS_SUFFIX) >= 0);
                     boolean isJSON = name.endsWith(JSON_EXTENSION);
 
-                    if ((!isAttachment && !isJSON) || (isJSON && isAttachment))
+                    if (name.equals(CouchDBDumper.MANIFEST_ENTRY))
+                    {
+                        manifest = new JSONParser().parse(DumpManifest.class,
+                            new String(readZipEntryData(zis), "UTF-8"));
+                        log.info("loading {}", manifest);
+                    }
+                    else if ((!isAttachment && !isJSON) || (isJSON && isAttachment))
                     {
                         log.error("ignoreing zip entry " + entry);
                     }
@@ -72,27 +210,18 @@ public class CouchDBLoader
                     {
                         if (isJSON)
                         {
-                            BaseDocument doc = readDocument(database, zis, entry);
-
-                            if (doc.getAttachments() == null || doc.getAttachments().size() == 0)
-                            {
-                                createDocument(database, doc);
-                            }
-                            else
-                            {
-                                documentsWithAttachments.put(doc.getId(), doc);
-                            }
+                            addDocument(readDocument(zis));
                         }
                         else
                         {
-                            createAttachmentEntry(database, zis, entry);
+                            addAttachment(readAttachmentEntry(zis, name));
                         }
                     }
                 }
 
-                for (AttachmentEntry attachmentEntry : attachmentEntries)
+                for (List<AttachmentEntry> entries : attachmentEntries.values())
                 {
-                    if (!findDocAndAddAttachment(attachmentEntry))
+                    for (AttachmentEntry attachmentEntry : entries)
                     {
                         log.warn("Ignoring attachment "+attachmentEntry);
                     }
@@ -100,20 +229,120 @@ public class CouchDBLoader
 
                 for (BaseDocument doc : documentsWithAttachments.values())
                 {
-                    createDocument(database, doc);
+                    addToBatch(doc);
+                }
+                flush();
+
+                log.info("loaded {} documents into {}, {} failed", new Object[] { documentCount, database.getName(),
+                    failureCount });
+            }
+            finally
+            {
+                zis.close();
+            }
+        }
+
+        private void mergeBlocks(final BlockDumpReader reader) throws IOException
+        {
+            manifest = reader.getManifest();
+            log.info("loading {}", manifest);
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try
+            {
+                List<Future<Object>> futures = new ArrayList<Future<Object>>();
+                for (final BlockInfo block : reader.getDocumentBlocks())
+                {
+                    futures.add(executor.submit(new Callable<Object>()
+                    {
+                        public Object call() throws IOException
+                        {
+                            loadBlock(reader, block);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Object> future : futures)
+                {
+                    future.get();
                 }
+
+                log.info("loaded {} documents into {}, {} failed", new Object[] { documentCount, database.getName(),
+                    failureCount });
             }
-            catch(RuntimeException e)
+            catch (InterruptedException e)
             {
-                throw e;
+                Thread.currentThread().interrupt();
+                throw ExceptionWrapper.wrap(e);
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                {
+                    throw (IOException)cause;
+                }
+                if (cause instanceof RuntimeException)
+                {
+                    throw (RuntimeException)cause;
+                }
+                throw ExceptionWrapper.wrap(e);
             }
             finally
             {
-                zis.close();
+                executor.shutdownNow();
             }
         }
 
-        private BaseDocument readDocument(Database database, ZipInputStream zis, ZipEntry entry)
+        /**
+         * Restores the documents of one block, in batches of its own.
+         */
+        private void loadBlock(BlockDumpReader reader, BlockInfo block) throws IOException
+        {
+            JSONParser parser = new JSONParser();
+            parser.addTypeHint(".doc", BaseDocument.class);
+
+            String lines = new String(reader.readBlock(block), "UTF-8");
+            List<BaseDocument> blockBatch = new ArrayList<BaseDocument>();
+            long bytes = 0;
+            int start = 0;
+            int end;
+            while ((end = lines.indexOf('\n', start)) >= 0)
+            {
+                Map<?, ?> line = parser.parse(Map.class, lines.substring(start, end));
+                start = end + 1;
+
+                BaseDocument doc = (BaseDocument)line.get("doc");
+                Map<?, ?> digests = (Map<?, ?>)line.get("attachments");
+                if (digests != null && doc.getAttachments() != null)
+                {
+                    for (Map.Entry<?, ?> e : digests.entrySet())
+                    {
+                        String name = (String)e.getKey();
+                        String digest = (String)e.getValue();
+                        byte[] data = reader.readAttachment(digest);
+                        if (data == null)
+                        {
+                            throw new IOException("missing content " + digest + " of attachment " +
+                                name + " of " + doc.getId());
+                        }
+                        setAttachmentData(doc, new AttachmentEntry(doc.getId(), name, data));
+                        bytes += data.length;
+                    }
+                }
+
+                blockBatch.add(doc);
+                if (blockBatch.size() >= batchSize || bytes >= maxBatchBytes)
+                {
+                    store(blockBatch);
+                    blockBatch.clear();
+                    bytes = 0;
+                }
+            }
+            store(blockBatch);
+        }
+
+        private BaseDocument readDocument(ZipInputStream zis)
             throws IOException
         {
             String json = new String(readZipEntryData(zis), "UTF-8");
@@ -135,101 +364,236 @@ public class CouchDBLoader
             return bos.toByteArray();
         }
 
-        private void createDocument(Database database, BaseDocument doc)
+        private AttachmentEntry readAttachmentEntry(ZipInputStream zis, String name) throws IOException
         {
-            String docId = doc.getId();
+            byte[] data = readZipEntryData(zis);
 
-            BaseDocument existingDoc = loadDocumentIfExists(database, docId);
+            int pos = name.indexOf(ATTACHMENTS_SUFFIX);
 
-            if (existingDoc != null)
+            String docId = name.substring(0, pos);
+
+            String attachmentId = name.substring(pos + ATTACHMENTS_SUFFIX.length() + 1);
+
+            return new AttachmentEntry(docId, attachmentId, data);
+        }
+
+        private void addDocument(BaseDocument doc) throws IOException
+        {
+            List<AttachmentEntry> earlier = attachmentEntries.remove(doc.getId());
+            if (earlier != null)
             {
-                if (doc.getRevision() != null &&
-                    doc.getRevision().equals(existingDoc.getRevision()))
+                for (AttachmentEntry attachmentEntry : earlier)
                 {
-                    // ignore document with same revision
+                    setAttachmentData(doc, attachmentEntry);
                 }
-                else
-                {
-                    // add as conflict to existing
+            }
 
-                    if (log.isInfoEnabled())
-                    {
-                        log.info("adding entry " + doc + " to '" + CONFLICTS_PROPERTY_NAME + "' in "+existingDoc);
-                    }
-                    List<Object> conflicts = (List<Object>) existingDoc.getProperty(CONFLICTS_PROPERTY_NAME);
-                    if (conflicts == null)
-                    {
-                        conflicts = new ArrayList<Object>();
-                        existingDoc.setProperty(CONFLICTS_PROPERTY_NAME, conflicts);
-                    }
-                    conflicts.add(doc);
+            if (isComplete(doc))
+            {
+                addToBatch(doc);
+            }
+            else
+            {
+                documentsWithAttachments.put(doc.getId(), doc);
+            }
+        }
 
-                    database.updateDocument(existingDoc);
+        private void addAttachment(AttachmentEntry attachmentEntry) throws IOException
+        {
+            BaseDocument doc = documentsWithAttachments.get(attachmentEntry.getDocumentId());
+            if (doc != null)
+            {
+                setAttachmentData(doc, attachmentEntry);
+                if (isComplete(doc))
+                {
+                    documentsWithAttachments.remove(doc.getId());
+                    addToBatch(doc);
                 }
             }
             else
             {
-                doc.setRevision(null);
-                database.createDocument(doc);
+                List<AttachmentEntry> entries = attachmentEntries.get(attachmentEntry.getDocumentId());
+                if (entries == null)
+                {
+                    entries = new ArrayList<AttachmentEntry>();
+                    attachmentEntries.put(attachmentEntry.getDocumentId(), entries);
+                }
+                entries.add(attachmentEntry);
             }
         }
 
-        private BaseDocument loadDocumentIfExists(Database database, String docId)
+        private void setAttachmentData(BaseDocument doc, AttachmentEntry attachmentEntry)
         {
-            BaseDocument existingDoc;
-            try
+            Attachment attachment = doc.getAttachments() != null ?
+                doc.getAttachments().get(attachmentEntry.getAttachmentId()) : null;
+            if (attachment != null)
             {
-                existingDoc = database.getDocument(BaseDocument.class, docId);
+                attachment.setStub(false);
+                attachment.setContent(attachmentEntry.getData());
             }
-            catch (NotFoundException nfe)
+            else
             {
-                existingDoc = null;
+                log.warn("Ignoring attachment "+attachmentEntry);
             }
-            return existingDoc;
         }
 
-        private void createAttachmentEntry(Database database, ZipInputStream zis, ZipEntry entry) throws IOException
+        /**
+         * Returns <code>true</code> if the data of all attachments of the given document is present.
+         */
+        private boolean isComplete(BaseDocument doc)
         {
-            byte[] data = readZipEntryData(zis);
+            if (doc.getAttachments() != null)
+            {
+                for (Attachment attachment : doc.getAttachments().values())
+                {
+                    if (!attachment.hasData())
+                    {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
 
-            String name = entry.getName();
+        private void addToBatch(BaseDocument doc) throws IOException
+        {
+            batch.add(doc);
+            if (doc.getAttachments() != null)
+            {
+                for (Attachment attachment : doc.getAttachments().values())
+                {
+                    if (attachment.getContent() != null)
+                    {
+                        batchBytes += attachment.getContent().length;
+                    }
+                }
+            }
 
-            int pos = name.indexOf(ATTACHMENTS_SUFFIX);
+            if (batch.size() >= batchSize || batchBytes >= maxBatchBytes)
+            {
+                flush();
+            }
+        }
 
-            String docId = name.substring(0, pos).replace("/", "%2F");
+        private boolean isDeleted(BaseDocument doc)
+        {
+            return Boolean.TRUE.equals(doc.getProperty(CouchDBDumper.DELETED_PROPERTY));
+        }
 
-            String attachmentId = name.substring(pos + ATTACHMENTS_SUFFIX.length() + 1);
+        /**
+         * Stores the current batch.
+         */
+        private void flush()
+        {
+            store(batch);
+            batch.clear();
+            batchBytes = 0;
+        }
 
-            AttachmentEntry attachmentEntry = new AttachmentEntry(docId, attachmentId, data);
-            if (!findDocAndAddAttachment(attachmentEntry))
+        /**
+         * Stores the given documents, merging them with the existing documents. This method is thread-safe as long
+         * as no two threads store the same document.
+         */
+        private void store(List<BaseDocument> batch)
+        {
+            if (batch.size() == 0)
             {
-                attachmentEntries.add(attachmentEntry);
+                return;
             }
-        }
 
-        private boolean findDocAndAddAttachment(AttachmentEntry attachmentEntry)
-        {
-            BaseDocument doc = documentsWithAttachments.get(attachmentEntry.getDocumentId());
-            if (doc != null)
+            List<String> ids = new ArrayList<String>(batch.size());
+            for (BaseDocument doc : batch)
+            {
+                ids.add(doc.getId());
+            }
+
+            Map<String, BaseDocument> existingDocs = new HashMap<String, BaseDocument>();
+            for (ValueAndDocumentRow<?, BaseDocument> row : database.queryDocumentsByKeys(Map.class,
+                BaseDocument.class, ids, null, null).getRows())
             {
-                Attachment attachment = doc.getAttachments().get(attachmentEntry.getAttachmentId());
-                if (attachment != null)
+                if (row.getDocument() != null)
                 {
-                    attachment.setStub(false);
-                    String encodedData = Base64Util.encodeBase64(attachmentEntry.getData());
+                    existingDocs.put(row.getId(), row.getDocument());
+                }
+            }
+
+            // documents to store in batch order, existing documents only once
+            Map<String, BaseDocument> toStore = new LinkedHashMap<String, BaseDocument>();
+            for (BaseDocument doc : batch)
+            {
+                String docId = doc.getId();
+                BaseDocument existingDoc = existingDocs.get(docId);
 
-                    Assert.notNull(encodedData, "encodedData shouldn't be null");
+                if (isDeleted(doc))
+                {
+                    if (existingDoc != null)
+                    {
+                        BaseDocument tombstone = new BaseDocument();
+                        tombstone.setId(docId);
+                        tombstone.setRevision(existingDoc.getRevision());
+                        tombstone.setProperty(CouchDBDumper.DELETED_PROPERTY, true);
+                        toStore.put(docId, tombstone);
+                    }
+                }
+                else if (existingDoc != null && manifest != null && manifest.isDelta())
+                {
+                    if (!existingDoc.getRevision().equals(doc.getRevision()))
+                    {
+                        doc.setRevision(existingDoc.getRevision());
+                        toStore.put(docId, doc);
+                    }
+                }
+                else if (existingDoc != null)
+                {
+                    if (doc.getRevision() != null &&
+                        doc.getRevision().equals(existingDoc.getRevision()))
+                    {
+                        // ignore document with same revision
+                    }
+                    else
+                    {
+                        // add as conflict to existing
 
-                    attachment.setData(encodedData);
+                        if (log.isInfoEnabled())
+                        {
+                            log.info("adding entry " + doc + " to '" + CONFLICTS_PROPERTY_NAME + "' in "+existingDoc);
+                        }
+                        List<Object> conflicts = new ArrayList<Object>();
+                        List<?> existingConflicts = (List<?>) existingDoc.getProperty(CONFLICTS_PROPERTY_NAME);
+                        if (existingConflicts != null)
+                        {
+                            conflicts.addAll(existingConflicts);
+                        }
+                        conflicts.add(doc);
+                        existingDoc.setProperty(CONFLICTS_PROPERTY_NAME, conflicts);
+                        toStore.put(docId, existingDoc);
+                    }
+                }
+                else if (!toStore.containsKey(docId))
+                {
+                    doc.setRevision(null);
+                    toStore.put(docId, doc);
                 }
-                return true;
             }
-            else
+
+            if (toStore.size() > 0)
             {
-                return false;
+                List<DocumentInfo> infos = database.bulkCreateDocuments(new ArrayList<BaseDocument>(toStore.values()),
+                    false);
+                for (DocumentInfo info : infos)
+                {
+                    if (info.getError() != null)
+                    {
+                        log.error("Error storing " + info.getId() + ": " + info.getError() + ", " + info.getReason());
+                        failureCount.incrementAndGet();
+                    }
+                    else
+                    {
+                        documentCount.incrementAndGet();
+                    }
+                }
             }
         }
-
     }
 
     private static class AttachmentEntry
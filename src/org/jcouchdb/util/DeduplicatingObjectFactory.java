@@ -0,0 +1,148 @@
+package org.jcouchdb.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+
+import org.jcouchdb.document.CompactValueRow;
+import org.jcouchdb.document.ValueAndDocumentRow;
+import org.jcouchdb.document.ValueRow;
+import org.svenson.ObjectFactory;
+
+/**
+ * Object factory that makes a {@link org.svenson.JSONParser} deduplicate the strings it creates by passing them through
+ * a {@link StringPool}. Pooled are
+ * <ul>
+ *  <li>the ids and string keys of view result rows</li>
+ *  <li>the keys of all parsed maps</li>
+ *  <li>the string elements of all parsed lists (e.g. the components of composite keys)</li>
+ *  <li>the string values of map entries whose key is one of the configured fields (e.g. type discriminators)</li>
+ * </ul>
+ */
+public class DeduplicatingObjectFactory
+    implements ObjectFactory<Object>
+{
+    private final StringPool stringPool;
+
+    private final Set<String> fields;
+
+    /**
+     * Creates a new factory.
+     *
+     * @param stringPool    string pool to use
+     * @param fields        names of the fields whose string values are to be pooled or <code>null</code>
+     */
+    public DeduplicatingObjectFactory(StringPool stringPool, Set<String> fields)
+    {
+        Assert.notNull(stringPool, "string pool cannot be null");
+
+        this.stringPool = stringPool;
+        this.fields = fields != null ? fields : Collections.<String>emptySet();
+    }
+
+    public StringPool getStringPool()
+    {
+        return stringPool;
+    }
+
+    public boolean supports(Class<Object> cls)
+    {
+        return cls.equals(HashMap.class) || cls.equals(ArrayList.class) || cls.equals(ValueRow.class) ||
+            cls.equals(ValueAndDocumentRow.class) || cls.equals(CompactValueRow.class);
+    }
+
+    public Object create(Class<Object> cls)
+    {
+        if (cls.equals(HashMap.class))
+        {
+            return new PooledMap();
+        }
+        else if (cls.equals(ArrayList.class))
+        {
+            return new PooledList();
+        }
+        else if (cls.equals(ValueRow.class))
+        {
+            return new PooledValueRow();
+        }
+        else if (cls.equals(ValueAndDocumentRow.class))
+        {
+            return new PooledValueAndDocumentRow();
+        }
+        else if (cls.equals(CompactValueRow.class))
+        {
+            return new CompactValueRow<Object>(stringPool);
+        }
+        throw new IllegalArgumentException("Unsupported class " + cls);
+    }
+
+    private Object internKey(Object key)
+    {
+        if (key instanceof String)
+        {
+            return stringPool.intern((String)key);
+        }
+        return key;
+    }
+
+    private class PooledMap
+        extends HashMap<String, Object>
+    {
+        private static final long serialVersionUID = -3542719508213566915L;
+
+        @Override
+        public Object put(String key, Object value)
+        {
+            if (value instanceof String && fields.contains(key))
+            {
+                value = stringPool.intern((String)value);
+            }
+            return super.put(stringPool.intern(key), value);
+        }
+    }
+
+    private class PooledList
+        extends ArrayList<Object>
+    {
+        private static final long serialVersionUID = 8713474120335712946L;
+
+        @Override
+        public boolean add(Object o)
+        {
+            return super.add(internKey(o));
+        }
+    }
+
+    private class PooledValueRow
+        extends ValueRow<Object>
+    {
+        @Override
+        public void setId(String id)
+        {
+            super.setId(stringPool.intern(id));
+        }
+
+        @Override
+        public void setKey(Object key)
+        {
+            super.setKey(internKey(key));
+        }
+    }
+
+    private class PooledValueAndDocumentRow
+        extends ValueAndDocumentRow<Object, Object>
+    {
+        @Override
+        public void setId(String id)
+        {
+            super.setId(stringPool.intern(id));
+        }
+
+        @Override
+        public void setKey(Object key)
+        {
+            super.setKey(internKey(key));
+        }
+    }
+}
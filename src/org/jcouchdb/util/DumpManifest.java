@@ -0,0 +1,130 @@
+package org.jcouchdb.util;
+
+import org.svenson.JSONProperty;
+
+/**
+ * Describes a dump written by {@link CouchDBDumper}. Every dump starts with this manifest as
+ * {@link CouchDBDumper#MANIFEST_ENTRY}. A full dump contains all documents of the database at the update sequence
+ * of the manifest, a delta dump contains the documents changed or deleted after {@link #getSince()} up to that
+ * sequence.
+ */
+public class DumpManifest
+{
+    public final static String FULL = "full";
+
+    public final static String DELTA = "delta";
+
+    private String database;
+
+    private String type;
+
+    private Long since;
+
+    private long updateSequence;
+
+    private long created;
+
+    public DumpManifest()
+    {
+    }
+
+    /**
+     * Creates a new manifest.
+     *
+     * @param database          database name
+     * @param since             sequence a delta dump starts after or <code>null</code> for a full dump
+     * @param updateSequence    update sequence the dump reflects
+     */
+    public DumpManifest(String database, Long since, long updateSequence)
+    {
+        this.database = database;
+        this.type = since == null ? FULL : DELTA;
+        this.since = since;
+        this.updateSequence = updateSequence;
+        this.created = System.currentTimeMillis();
+    }
+
+    public String getDatabase()
+    {
+        return database;
+    }
+
+    public void setDatabase(String database)
+    {
+        this.database = database;
+    }
+
+    /**
+     * Returns {@link #FULL} or {@link #DELTA}.
+     *
+     * @return
+     */
+    public String getType()
+    {
+        return type;
+    }
+
+    public void setType(String type)
+    {
+        this.type = type;
+    }
+
+    @JSONProperty(ignore = true)
+    public boolean isDelta()
+    {
+        return DELTA.equals(type);
+    }
+
+    /**
+     * Returns the sequence a delta dump starts after.
+     *
+     * @return
+     */
+    public Long getSince()
+    {
+        return since;
+    }
+
+    public void setSince(Long since)
+    {
+        this.since = since;
+    }
+
+    /**
+     * Returns the update sequence the dump reflects. This is the sequence to start the next delta dump after.
+     *
+     * @return
+     */
+    @JSONProperty("update_seq")
+    public long getUpdateSequence()
+    {
+        return updateSequence;
+    }
+
+    public void setUpdateSequence(long updateSequence)
+    {
+        this.updateSequence = updateSequence;
+    }
+
+    /**
+     * Returns the time the dump was started in milliseconds since the epoch.
+     *
+     * @return
+     */
+    public long getCreated()
+    {
+        return created;
+    }
+
+    public void setCreated(long created)
+    {
+        this.created = created;
+    }
+
+    @Override
+    public String toString()
+    {
+        return super.toString() + ": database = " + database + ", type = " + type + ", since = " + since +
+            ", updateSequence = " + updateSequence;
+    }
+}
@@ -0,0 +1,640 @@
+package org.jcouchdb.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jcouchdb.exception.CouchDBException;
+
+/**
+ * Minimal pull reader for UTF-8 encoded JSON that works directly on the bytes of an input stream.
+ * Numbers can be read as primitives without creating boxed values or intermediate strings.
+ * <p>
+ * The reader does not check the overall structure of the document, it is up to the caller to
+ * call the methods in an order that matches the expected JSON. {@link #hasNext()} consumes the
+ * commas between array elements and object members.
+ * </p>
+ * <pre>
+ * reader.beginObject();
+ * while (reader.hasNext())
+ * {
+ *     String name = reader.nextName();
+ *     ...
+ * }
+ * reader.endObject();
+ * </pre>
+ */
+public class JSONStreamReader
+{
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * Powers of ten that are exactly representable as double.
+     */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Largest mantissa that can be converted to double without loss of precision.
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /**
+     * Mantissas are only accumulated while they're below this value to prevent overflows.
+     */
+    private static final long MAX_ACCUMULATED_MANTISSA = Long.MAX_VALUE / 10 - 10;
+
+    private InputStream inputStream;
+
+    private byte[] buffer;
+
+    private int pos;
+
+    private int limit;
+
+    private char[] chars = new char[64];
+
+    private StringPool stringPool;
+
+    private char[] numberChars = new char[32];
+
+    private int numberLength;
+
+    private long numberMantissa;
+
+    private int numberExponent;
+
+    private boolean numberNegative;
+
+    private boolean numberIsInteger;
+
+    private boolean numberIsExact;
+
+    public JSONStreamReader(InputStream inputStream)
+    {
+        this(inputStream, new byte[DEFAULT_BUFFER_SIZE]);
+    }
+
+    /**
+     * Creates a new reader using the given buffer. This allows the caller to reuse buffers.
+     *
+     * @param inputStream   input stream to read from
+     * @param buffer        read buffer
+     */
+    public JSONStreamReader(InputStream inputStream, byte[] buffer)
+    {
+        Assert.notNull(inputStream, "input stream can't be null");
+        Assert.notNull(buffer, "buffer can't be null");
+        Assert.isTrue(buffer.length > 0, "buffer can't be empty");
+
+        this.inputStream = inputStream;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Sets a string pool to deduplicate all strings read by this reader.
+     *
+     * @param stringPool    string pool or <code>null</code> for no deduplication
+     */
+    public void setStringPool(StringPool stringPool)
+    {
+        this.stringPool = stringPool;
+    }
+
+    /**
+     * Returns the next non-whitespace character without consuming it or <code>-1</code> at the end of the input.
+     *
+     * @return
+     */
+    public int peek()
+    {
+        skipWhitespace();
+        return pos < limit ? buffer[pos] & 0xff : -1;
+    }
+
+    public void beginObject()
+    {
+        expect('{');
+    }
+
+    public void endObject()
+    {
+        expect('}');
+    }
+
+    public void beginArray()
+    {
+        expect('[');
+    }
+
+    public void endArray()
+    {
+        expect(']');
+    }
+
+    /**
+     * Returns <code>true</code> if the current object or array has another member or element. Consumes
+     * a separating comma.
+     *
+     * @return
+     */
+    public boolean hasNext()
+    {
+        int c = peek();
+        if (c == ',')
+        {
+            pos++;
+            c = peek();
+        }
+        return c != '}' && c != ']' && c != -1;
+    }
+
+    /**
+     * Reads the next object member name including the following colon.
+     *
+     * @return
+     */
+    public String nextName()
+    {
+        String name = readString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Returns <code>true</code> and consumes the value if the next value is <code>null</code>.
+     *
+     * @return
+     */
+    public boolean nextIsNull()
+    {
+        if (peek() == 'n')
+        {
+            expectLiteral("null");
+            return true;
+        }
+        return false;
+    }
+
+    public boolean readBoolean()
+    {
+        int c = peek();
+        if (c == 't')
+        {
+            expectLiteral("true");
+            return true;
+        }
+        else if (c == 'f')
+        {
+            expectLiteral("false");
+            return false;
+        }
+        throw error("boolean expected");
+    }
+
+    /**
+     * Reads a JSON string.
+     *
+     * @return
+     */
+    public String readString()
+    {
+        int len = readStringChars();
+        if (stringPool != null)
+        {
+            return stringPool.intern(chars, 0, len);
+        }
+        return new String(chars, 0, len);
+    }
+
+    /**
+     * Reads the next number as long. Fractional digits are truncated.
+     *
+     * @return
+     */
+    public long readLong()
+    {
+        scanNumber();
+        if (numberIsInteger)
+        {
+            if (numberIsExact)
+            {
+                return numberNegative ? -numberMantissa : numberMantissa;
+            }
+            return Long.parseLong(new String(numberChars, 0, numberLength));
+        }
+        return (long) numberToDouble();
+    }
+
+    /**
+     * Reads the next number as double.
+     *
+     * @return
+     */
+    public double readDouble()
+    {
+        scanNumber();
+        return numberToDouble();
+    }
+
+    /**
+     * Reads any JSON value and converts it into the same types svenson uses for untyped values: {@link Map},
+     * {@link List}, {@link String}, {@link Long}, {@link Double}, {@link Boolean} or <code>null</code>.
+     *
+     * @return
+     */
+    public Object readValue()
+    {
+        int c = peek();
+        switch (c)
+        {
+            case '{':
+                Map<String, Object> map = new HashMap<String, Object>();
+                beginObject();
+                while (hasNext())
+                {
+                    String name = nextName();
+                    map.put(name, readValue());
+                }
+                endObject();
+                return map;
+            case '[':
+                List<Object> list = new ArrayList<Object>();
+                beginArray();
+                while (hasNext())
+                {
+                    list.add(readValue());
+                }
+                endArray();
+                return list;
+            case '"':
+                return readString();
+            case 't':
+            case 'f':
+                return readBoolean();
+            case 'n':
+                expectLiteral("null");
+                return null;
+            default:
+                return readNumber();
+        }
+    }
+
+    /**
+     * Skips the next JSON value.
+     */
+    public void skipValue()
+    {
+        int c = peek();
+        switch (c)
+        {
+            case '{':
+                beginObject();
+                while (hasNext())
+                {
+                    readStringChars();
+                    expect(':');
+                    skipValue();
+                }
+                endObject();
+                break;
+            case '[':
+                beginArray();
+                while (hasNext())
+                {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case '"':
+                readStringChars();
+                break;
+            case 't':
+            case 'f':
+                readBoolean();
+                break;
+            case 'n':
+                expectLiteral("null");
+                break;
+            default:
+                readDouble();
+                break;
+        }
+    }
+
+    private Object readNumber()
+    {
+        scanNumber();
+        if (numberIsInteger)
+        {
+            if (numberIsExact)
+            {
+                return numberNegative ? -numberMantissa : numberMantissa;
+            }
+            return Long.parseLong(new String(numberChars, 0, numberLength));
+        }
+        return numberToDouble();
+    }
+
+    /**
+     * Scans the next number. Up to 18 significant digits are accumulated in a long mantissa with
+     * a decimal exponent, the characters of the number are kept for the rare cases that cannot be converted
+     * exactly that way.
+     */
+    private void scanNumber()
+    {
+        skipWhitespace();
+
+        numberLength = 0;
+        numberMantissa = 0;
+        numberExponent = 0;
+        numberIsInteger = true;
+        numberIsExact = true;
+        numberNegative = false;
+
+        int c = peekRaw();
+        if (c == '-')
+        {
+            numberNegative = true;
+            appendNumberChar(c);
+            c = peekRaw();
+        }
+
+        int digits = scanDigits(false);
+        if (digits == 0)
+        {
+            throw error("number expected");
+        }
+
+        c = peekRaw();
+        if (c == '.')
+        {
+            numberIsInteger = false;
+            appendNumberChar(c);
+            if (scanDigits(true) == 0)
+            {
+                throw error("fraction digits expected");
+            }
+            c = peekRaw();
+        }
+
+        if (c == 'e' || c == 'E')
+        {
+            numberIsInteger = false;
+            appendNumberChar(c);
+            c = peekRaw();
+            boolean negativeExponent = false;
+            if (c == '+' || c == '-')
+            {
+                negativeExponent = c == '-';
+                appendNumberChar(c);
+            }
+            int exponent = 0;
+            int expDigits = 0;
+            while ((c = peekRaw()) >= '0' && c <= '9')
+            {
+                exponent = exponent * 10 + (c - '0');
+                appendNumberChar(c);
+                expDigits++;
+            }
+            if (expDigits == 0)
+            {
+                throw error("exponent expected");
+            }
+            numberExponent += negativeExponent ? -exponent : exponent;
+        }
+    }
+
+    private int scanDigits(boolean fraction)
+    {
+        int count = 0;
+        int c;
+        while ((c = peekRaw()) >= '0' && c <= '9')
+        {
+            if (numberMantissa < MAX_ACCUMULATED_MANTISSA)
+            {
+                numberMantissa = numberMantissa * 10 + (c - '0');
+                if (fraction)
+                {
+                    numberExponent--;
+                }
+            }
+            else
+            {
+                numberIsExact = false;
+                if (!fraction)
+                {
+                    numberExponent++;
+                }
+            }
+            appendNumberChar(c);
+            count++;
+        }
+        return count;
+    }
+
+    private void appendNumberChar(int c)
+    {
+        if (numberLength == numberChars.length)
+        {
+            char[] newChars = new char[numberChars.length * 2];
+            System.arraycopy(numberChars, 0, newChars, 0, numberLength);
+            numberChars = newChars;
+        }
+        numberChars[numberLength++] = (char) c;
+        pos++;
+    }
+
+    private double numberToDouble()
+    {
+        if (numberIsExact && numberMantissa < MAX_EXACT_MANTISSA && numberExponent >= -22 && numberExponent <= 22)
+        {
+            double value = numberExponent < 0 ?
+                numberMantissa / POWERS_OF_TEN[-numberExponent] :
+                numberMantissa * POWERS_OF_TEN[numberExponent];
+            return numberNegative ? -value : value;
+        }
+        return Double.parseDouble(new String(numberChars, 0, numberLength));
+    }
+
+    /**
+     * Reads a string into the char buffer and returns the number of chars read.
+     */
+    private int readStringChars()
+    {
+        expect('"');
+        int len = 0;
+        while (true)
+        {
+            int b = readRaw();
+            if (b == '"')
+            {
+                return len;
+            }
+            if (len + 2 > chars.length)
+            {
+                char[] newChars = new char[chars.length * 2];
+                System.arraycopy(chars, 0, newChars, 0, len);
+                chars = newChars;
+            }
+
+            if (b == '\\')
+            {
+                b = readRaw();
+                switch (b)
+                {
+                    case 'n':
+                        chars[len++] = '\n';
+                        break;
+                    case 'r':
+                        chars[len++] = '\r';
+                        break;
+                    case 't':
+                        chars[len++] = '\t';
+                        break;
+                    case 'b':
+                        chars[len++] = '\b';
+                        break;
+                    case 'f':
+                        chars[len++] = '\f';
+                        break;
+                    case 'u':
+                        chars[len++] = (char) ((hexValue(readRaw()) << 12) | (hexValue(readRaw()) << 8) |
+                            (hexValue(readRaw()) << 4) | hexValue(readRaw()));
+                        break;
+                    default:
+                        chars[len++] = (char) b;
+                        break;
+                }
+            }
+            else if (b < 0x80)
+            {
+                chars[len++] = (char) b;
+            }
+            else if ((b & 0xe0) == 0xc0)
+            {
+                chars[len++] = (char) (((b & 0x1f) << 6) | (readRaw() & 0x3f));
+            }
+            else if ((b & 0xf0) == 0xe0)
+            {
+                chars[len++] = (char) (((b & 0x0f) << 12) | ((readRaw() & 0x3f) << 6) | (readRaw() & 0x3f));
+            }
+            else
+            {
+                int codePoint = ((b & 0x07) << 18) | ((readRaw() & 0x3f) << 12) | ((readRaw() & 0x3f) << 6) |
+                    (readRaw() & 0x3f);
+                codePoint -= 0x10000;
+                chars[len++] = (char) (0xd800 + (codePoint >> 10));
+                chars[len++] = (char) (0xdc00 + (codePoint & 0x3ff));
+            }
+        }
+    }
+
+    private int hexValue(int c)
+    {
+        if (c >= '0' && c <= '9')
+        {
+            return c - '0';
+        }
+        else if (c >= 'a' && c <= 'f')
+        {
+            return c - 'a' + 10;
+        }
+        else if (c >= 'A' && c <= 'F')
+        {
+            return c - 'A' + 10;
+        }
+        throw error("invalid hex digit '" + (char) c + "'");
+    }
+
+    private void expect(char expected)
+    {
+        if (peek() != expected)
+        {
+            throw error("'" + expected + "' expected");
+        }
+        pos++;
+    }
+
+    private void expectLiteral(String literal)
+    {
+        skipWhitespace();
+        for (int i = 0; i < literal.length(); i++)
+        {
+            if (readRaw() != literal.charAt(i))
+            {
+                throw error("'" + literal + "' expected");
+            }
+        }
+    }
+
+    private void skipWhitespace()
+    {
+        while (true)
+        {
+            if (pos == limit && !fill())
+            {
+                return;
+            }
+            byte b = buffer[pos];
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t')
+            {
+                pos++;
+            }
+            else
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the next byte without skipping whitespace or consuming it.
+     */
+    private int peekRaw()
+    {
+        if (pos == limit && !fill())
+        {
+            return -1;
+        }
+        return buffer[pos] & 0xff;
+    }
+
+    private int readRaw()
+    {
+        if (pos == limit && !fill())
+        {
+            throw error("unexpected end of input");
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    private boolean fill()
+    {
+        try
+        {
+            int count = inputStream.read(buffer, 0, buffer.length);
+            if (count <= 0)
+            {
+                return false;
+            }
+            pos = 0;
+            limit = count;
+            return true;
+        }
+        catch (IOException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+    }
+
+    private CouchDBException error(String message)
+    {
+        return new CouchDBException("Error reading JSON: " + message);
+    }
+}
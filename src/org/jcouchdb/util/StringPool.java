@@ -0,0 +1,114 @@
+package org.jcouchdb.util;
+
+/**
+ * Bounded table to deduplicate strings. Each string is stored in a slot determined by its hash code,
+ * colliding strings simply replace each other, so the table never grows beyond its initial size and
+ * never needs locking. Concurrent use is safe since strings are immutable, a lost update only means
+ * a missed deduplication.
+ * <p>
+ * Use a small pool per parsed response or a bigger one shared between responses.
+ * </p>
+ */
+public class StringPool
+{
+    public final static int DEFAULT_SIZE = 1024;
+
+    private final String[] table;
+
+    private final int mask;
+
+    public StringPool()
+    {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Creates a new string pool
+     *
+     * @param size  maximum number of strings kept. Will be rounded up to the next power of two.
+     */
+    public StringPool(int size)
+    {
+        Assert.isTrue(size > 0, "size must be positive");
+
+        int capacity = 1;
+        while (capacity < size)
+        {
+            capacity <<= 1;
+        }
+        table = new String[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Returns a pooled string equal to the given string.
+     *
+     * @param s     string or <code>null</code>
+     * @return
+     */
+    public String intern(String s)
+    {
+        if (s == null)
+        {
+            return null;
+        }
+
+        int index = spread(s.hashCode()) & mask;
+        String pooled = table[index];
+        if (pooled != null && pooled.equals(s))
+        {
+            return pooled;
+        }
+        table[index] = s;
+        return s;
+    }
+
+    /**
+     * Returns a pooled string for the given characters. A new string is only created if there is no equal string in
+     * the pool.
+     *
+     * @param chars     characters
+     * @param offset    offset of the first character
+     * @param length    number of characters
+     * @return
+     */
+    public String intern(char[] chars, int offset, int length)
+    {
+        int hash = 0;
+        for (int i = offset, end = offset + length; i < end; i++)
+        {
+            hash = 31 * hash + chars[i];
+        }
+
+        int index = spread(hash) & mask;
+        String pooled = table[index];
+        if (pooled != null && equals(pooled, chars, offset, length))
+        {
+            return pooled;
+        }
+        String s = new String(chars, offset, length);
+        table[index] = s;
+        return s;
+    }
+
+    private static boolean equals(String s, char[] chars, int offset, int length)
+    {
+        if (s.length() != length)
+        {
+            return false;
+        }
+        for (int i = 0; i < length; i++)
+        {
+            if (s.charAt(i) != chars[offset + i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,134 @@
+package org.jcouchdb.util;
+
+import java.text.Collator;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares JSON values in the order CouchDB sorts view keys: <code>null</code>, <code>false</code>,
+ * <code>true</code>, numbers, strings, arrays and objects. Arrays are compared element-wise, objects by their
+ * properties in iteration order.
+ * <p>
+ * CouchDB compares strings with the ICU collator, this class uses the {@link Collator} of the JDK for the English
+ * locale, which agrees with it for the usual cases of mixed case and accented latin text.
+ * </p>
+ */
+public class ViewCollator
+    implements Comparator<Object>
+{
+    public final static ViewCollator INSTANCE = new ViewCollator();
+
+    private final Collator collator;
+
+    public ViewCollator()
+    {
+        collator = Collator.getInstance(Locale.ENGLISH);
+        collator.setStrength(Collator.TERTIARY);
+    }
+
+    public int compare(Object a, Object b)
+    {
+        int typeA = typeOrder(a);
+        int typeB = typeOrder(b);
+        if (typeA != typeB)
+        {
+            return typeA < typeB ? -1 : 1;
+        }
+
+        switch (typeA)
+        {
+            case 0:
+                return 0;
+            case 1:
+                return ((Boolean)a).compareTo((Boolean)b);
+            case 2:
+                return compareNumbers((Number)a, (Number)b);
+            case 3:
+                int cmp = collator.compare(a.toString(), b.toString());
+                return cmp != 0 ? cmp : a.toString().compareTo(b.toString());
+            case 4:
+                return compareLists((List<?>)a, (List<?>)b);
+            default:
+                return compareMaps((Map<?,?>)a, (Map<?,?>)b);
+        }
+    }
+
+    private static int typeOrder(Object value)
+    {
+        if (value == null)
+        {
+            return 0;
+        }
+        else if (value instanceof Boolean)
+        {
+            return 1;
+        }
+        else if (value instanceof Number)
+        {
+            return 2;
+        }
+        else if (value instanceof List)
+        {
+            return 4;
+        }
+        else if (value instanceof Map)
+        {
+            return 5;
+        }
+        return 3;
+    }
+
+    private static int compareNumbers(Number a, Number b)
+    {
+        if (isIntegral(a) && isIntegral(b))
+        {
+            long l1 = a.longValue();
+            long l2 = b.longValue();
+            return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+        }
+        return Double.compare(a.doubleValue(), b.doubleValue());
+    }
+
+    private static boolean isIntegral(Number n)
+    {
+        return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+    }
+
+    private int compareLists(List<?> a, List<?> b)
+    {
+        int len = Math.min(a.size(), b.size());
+        for (int i = 0; i < len; i++)
+        {
+            int cmp = compare(a.get(i), b.get(i));
+            if (cmp != 0)
+            {
+                return cmp;
+            }
+        }
+        return a.size() - b.size();
+    }
+
+    private int compareMaps(Map<?,?> a, Map<?,?> b)
+    {
+        Iterator<? extends Map.Entry<?,?>> itA = a.entrySet().iterator();
+        Iterator<? extends Map.Entry<?,?>> itB = b.entrySet().iterator();
+        while (itA.hasNext() && itB.hasNext())
+        {
+            Map.Entry<?,?> entryA = itA.next();
+            Map.Entry<?,?> entryB = itB.next();
+            int cmp = compare(entryA.getKey(), entryB.getKey());
+            if (cmp == 0)
+            {
+                cmp = compare(entryA.getValue(), entryB.getValue());
+            }
+            if (cmp != 0)
+            {
+                return cmp;
+            }
+        }
+        return a.size() - b.size();
+    }
+}
@@ -0,0 +1,350 @@
+package org.jcouchdb.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a ZIP archive from entries that were compressed beforehand, so the compression of many entries can run
+ * in parallel on several threads while one thread appends them to the archive. The archive is readable with
+ * {@link java.util.zip.ZipInputStream} and {@link java.util.zip.ZipFile}. The ZIP64 extensions are used if the
+ * archive has more than 65535 entries or grows beyond 4 GB.
+ */
+public class ZipArchiveWriter
+{
+    private final static int LOCAL_HEADER = 0x04034b50;
+
+    private final static int CENTRAL_HEADER = 0x02014b50;
+
+    private final static int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    private final static int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+
+    private final static int ZIP64_LOCATOR = 0x07064b50;
+
+    /**
+     * General purpose flag marking names as UTF-8.
+     */
+    private final static int UTF8_FLAG = 0x0800;
+
+    private final static int DEFLATED = 8;
+
+    private final static int VERSION = 20;
+
+    private final static int ZIP64_VERSION = 45;
+
+    private final static long MAX_32 = 0xffffffffL;
+
+    private final static int MAX_16 = 0xffff;
+
+    private final OutputStream os;
+
+    private final List<CentralEntry> centralDirectory = new ArrayList<CentralEntry>();
+
+    private final byte[] header = new byte[128];
+
+    private final int dosTime;
+
+    private long offset;
+
+    private boolean finished;
+
+    public ZipArchiveWriter(OutputStream os)
+    {
+        Assert.notNull(os, "output stream can't be null");
+        this.os = os;
+        this.dosTime = dosTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Compresses the given data into an entry. This method is thread-safe.
+     *
+     * @param name      entry name
+     * @param data      uncompressed data
+     * @param level     compression level, see {@link Deflater}
+     * @return
+     */
+    public static Entry compress(String name, byte[] data, int level)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        Deflater deflater = new Deflater(level, true);
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] buf = new byte[8192];
+            while (!deflater.finished())
+            {
+                int n = deflater.deflate(buf);
+                bos.write(buf, 0, n);
+            }
+            return new Entry(name, bos.toByteArray(), data.length, crc.getValue());
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Appends the given entry to the archive.
+     *
+     * @param entry
+     * @throws IOException
+     */
+    public void write(Entry entry) throws IOException
+    {
+        Assert.isTrue(!finished, "archive already finished");
+
+        byte[] name = utf8(entry.name);
+        int pos = 0;
+        pos = putInt(header, pos, LOCAL_HEADER);
+        pos = putShort(header, pos, VERSION);
+        pos = putShort(header, pos, UTF8_FLAG);
+        pos = putShort(header, pos, DEFLATED);
+        pos = putInt(header, pos, dosTime);
+        pos = putInt(header, pos, (int)entry.crc);
+        pos = putInt(header, pos, entry.data.length);
+        pos = putInt(header, pos, (int)entry.size);
+        pos = putShort(header, pos, name.length);
+        pos = putShort(header, pos, 0);
+        os.write(header, 0, pos);
+        os.write(name);
+        os.write(entry.data);
+
+        centralDirectory.add(new CentralEntry(name, entry.crc, entry.data.length, entry.size, offset));
+        offset += pos + name.length + entry.data.length;
+    }
+
+    /**
+     * Flushes the underlying stream, so all entries written so far are complete in it.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException
+    {
+        os.flush();
+    }
+
+    /**
+     * Writes the central directory. No more entries can be written afterwards.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException
+    {
+        if (finished)
+        {
+            return;
+        }
+        finished = true;
+
+        long directoryOffset = offset;
+        for (CentralEntry entry : centralDirectory)
+        {
+            boolean zip64 = entry.offset >= MAX_32;
+            int pos = 0;
+            pos = putInt(header, pos, CENTRAL_HEADER);
+            pos = putShort(header, pos, zip64 ? ZIP64_VERSION : VERSION);
+            pos = putShort(header, pos, zip64 ? ZIP64_VERSION : VERSION);
+            pos = putShort(header, pos, UTF8_FLAG);
+            pos = putShort(header, pos, DEFLATED);
+            pos = putInt(header, pos, dosTime);
+            pos = putInt(header, pos, (int)entry.crc);
+            pos = putInt(header, pos, (int)entry.compressedSize);
+            pos = putInt(header, pos, (int)entry.size);
+            pos = putShort(header, pos, entry.name.length);
+            pos = putShort(header, pos, zip64 ? 12 : 0);
+            // comment length, disk number, internal and external attributes
+            pos = putShort(header, pos, 0);
+            pos = putShort(header, pos, 0);
+            pos = putShort(header, pos, 0);
+            pos = putInt(header, pos, 0);
+            pos = putInt(header, pos, zip64 ? (int)MAX_32 : (int)entry.offset);
+            os.write(header, 0, pos);
+            os.write(entry.name);
+            offset += pos + entry.name.length;
+            if (zip64)
+            {
+                // ZIP64 extra field with the local header offset
+                pos = 0;
+                pos = putShort(header, pos, 1);
+                pos = putShort(header, pos, 8);
+                pos = putLong(header, pos, entry.offset);
+                os.write(header, 0, pos);
+                offset += pos;
+            }
+        }
+        long directorySize = offset - directoryOffset;
+        int count = centralDirectory.size();
+
+        boolean zip64 = count >= MAX_16 || directoryOffset >= MAX_32;
+        if (zip64)
+        {
+            long zip64Offset = offset;
+            int pos = 0;
+            pos = putInt(header, pos, ZIP64_END_OF_CENTRAL_DIRECTORY);
+            pos = putLong(header, pos, 44);
+            pos = putShort(header, pos, ZIP64_VERSION);
+            pos = putShort(header, pos, ZIP64_VERSION);
+            pos = putInt(header, pos, 0);
+            pos = putInt(header, pos, 0);
+            pos = putLong(header, pos, count);
+            pos = putLong(header, pos, count);
+            pos = putLong(header, pos, directorySize);
+            pos = putLong(header, pos, directoryOffset);
+            pos = putInt(header, pos, ZIP64_LOCATOR);
+            pos = putInt(header, pos, 0);
+            pos = putLong(header, pos, zip64Offset);
+            pos = putInt(header, pos, 1);
+            os.write(header, 0, pos);
+        }
+
+        int pos = 0;
+        pos = putInt(header, pos, END_OF_CENTRAL_DIRECTORY);
+        pos = putShort(header, pos, 0);
+        pos = putShort(header, pos, 0);
+        pos = putShort(header, pos, zip64 ? MAX_16 : count);
+        pos = putShort(header, pos, zip64 ? MAX_16 : count);
+        pos = putInt(header, pos, zip64 ? (int)MAX_32 : (int)directorySize);
+        pos = putInt(header, pos, zip64 ? (int)MAX_32 : (int)directoryOffset);
+        pos = putShort(header, pos, 0);
+        os.write(header, 0, pos);
+        os.flush();
+    }
+
+    /**
+     * Finishes the archive and closes the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            finish();
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    private static byte[] utf8(String s)
+    {
+        try
+        {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw ExceptionWrapper.wrap(e);
+        }
+    }
+
+    private static int putShort(byte[] buf, int pos, int value)
+    {
+        buf[pos] = (byte)value;
+        buf[pos + 1] = (byte)(value >> 8);
+        return pos + 2;
+    }
+
+    private static int putInt(byte[] buf, int pos, int value)
+    {
+        pos = putShort(buf, pos, value);
+        return putShort(buf, pos, value >> 16);
+    }
+
+    private static int putLong(byte[] buf, int pos, long value)
+    {
+        pos = putInt(buf, pos, (int)value);
+        return putInt(buf, pos, (int)(value >> 32));
+    }
+
+    private static int dosTime(long time)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = Math.max(cal.get(Calendar.YEAR), 1980);
+        return ((year - 1980) << 25) | ((cal.get(Calendar.MONTH) + 1) << 21) | (cal.get(Calendar.DAY_OF_MONTH) << 16) |
+            (cal.get(Calendar.HOUR_OF_DAY) << 11) | (cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * Compressed archive entry.
+     */
+    public static class Entry
+    {
+        private final String name;
+
+        private final byte[] data;
+
+        private final long size;
+
+        private final long crc;
+
+        Entry(String name, byte[] data, long size, long crc)
+        {
+            this.name = name;
+            this.data = data;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public int getCompressedSize()
+        {
+            return data.length;
+        }
+
+        long getCrc()
+        {
+            return crc;
+        }
+
+        byte[] getData()
+        {
+            return data;
+        }
+    }
+
+    private static class CentralEntry
+    {
+        final byte[] name;
+
+        final long crc;
+
+        final long compressedSize;
+
+        final long size;
+
+        final long offset;
+
+        CentralEntry(byte[] name, long crc, long compressedSize, long size, long offset)
+        {
+            this.name = name;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jcouchdb.document.Attachment;
+import org.junit.Test;
+
+public class AttachmentCacheTestCase
+{
+    private static File createDirectory() throws IOException
+    {
+        File dir = File.createTempFile("jcouchdb-cache", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static byte[] content(int length, int seed)
+    {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte)(i * seed);
+        }
+        return data;
+    }
+
+    private static int attachmentRequests(AttachmentServerMock server)
+    {
+        int count = 0;
+        for (String uri : server.getRequests())
+        {
+            if (uri.indexOf("/_") < 0)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void thatAttachmentsAreRevalidated() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        server.addAttachment("doc", "image.png", content(100, 3));
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+        AttachmentCache cache = new AttachmentCache(createDirectory(), 1000);
+        db.setAttachmentCache(cache);
+
+        assertThat(db.getAttachment("doc", "image.png"), is(content(100, 3)));
+        assertThat(db.getAttachment("doc", "image.png"), is(content(100, 3)));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertThat(db.copyAttachmentTo("doc", "image.png", bos, 10, 5), is(5L));
+        assertThat(bos.toByteArray()[0], is(content(100, 3)[10]));
+
+        assertThat(cache.getMissCount(), is(1L));
+        assertThat(cache.getHitCount(), is(2L));
+        assertThat(cache.getSize(), is(100L));
+
+        // changed content is fetched again
+        server.addAttachment("doc", "image.png", content(100, 5));
+        assertThat(db.getAttachment("doc", "image.png"), is(content(100, 5)));
+        assertThat(cache.getMissCount(), is(2L));
+
+        Response resp = db.getAttachmentResponse("doc", "image.png");
+        try
+        {
+            assertThat(resp.getContent(), is(content(100, 5)));
+        }
+        finally
+        {
+            resp.destroy();
+        }
+    }
+
+    @Test
+    public void thatStubsAreServedWithoutRequest() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        server.addAttachment("a", "logo.png", content(50, 7));
+        server.addAttachment("b", "logo.png", content(50, 7));
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+        AttachmentCache cache = new AttachmentCache(createDirectory(), 1000);
+        db.setAttachmentCache(cache);
+
+        Attachment stub = new Attachment();
+        stub.setStub(true);
+        stub.setDigest("md5-" + AttachmentServerMock.digest(content(50, 7)));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        db.copyAttachmentTo("a", "logo.png", stub, Channels.newChannel(bos));
+        assertThat(attachmentRequests(server), is(1));
+
+        // same content in another document is stored once and served without request
+        bos = new ByteArrayOutputStream();
+        assertThat(db.copyAttachmentTo("b", "logo.png", stub, Channels.newChannel(bos)), is(50L));
+        assertThat(bos.toByteArray(), is(content(50, 7)));
+        assertThat(attachmentRequests(server), is(1));
+        assertThat(cache.getSize(), is(50L));
+    }
+
+    @Test
+    public void thatLeastRecentlyUsedFilesAreEvicted() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        for (int i = 1; i <= 3; i++)
+        {
+            server.addAttachment("doc", "a" + i, content(40, i));
+        }
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+        File dir = createDirectory();
+        AttachmentCache cache = new AttachmentCache(dir, 100);
+        db.setAttachmentCache(cache);
+
+        db.getAttachment("doc", "a1");
+        db.getAttachment("doc", "a2");
+        db.getAttachment("doc", "a1");
+        db.getAttachment("doc", "a3");
+
+        assertThat(cache.getSize(), is(80L));
+        assertThat(cache.get(AttachmentServerMock.digest(content(40, 2))) == null, is(true));
+        assertThat(cache.get(AttachmentServerMock.digest(content(40, 1))) != null, is(true));
+        assertThat(dir.list().length, is(2));
+
+        // files are reused by a new cache on the same directory
+        AttachmentCache reopened = new AttachmentCache(dir, 100);
+        assertThat(reopened.getSize(), is(80L));
+        assertThat(reopened.get(AttachmentServerMock.digest(content(40, 3))) != null, is(true));
+        reopened.clear();
+        assertThat(dir.list().length, is(0));
+    }
+
+    @Test
+    public void thatOpenedContentSurvivesEviction() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        for (int i = 1; i <= 3; i++)
+        {
+            server.addAttachment("doc", "a" + i, content(40, i));
+        }
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+        AttachmentCache cache = new AttachmentCache(createDirectory(), 100);
+        db.setAttachmentCache(cache);
+
+        Response resp = db.getAttachmentResponse("doc", "a1");
+        try
+        {
+            db.getAttachment("doc", "a2");
+            db.getAttachment("doc", "a3");
+            assertThat(cache.get(AttachmentServerMock.digest(content(40, 1))) == null, is(true));
+
+            assertThat(resp.getContent(), is(content(40, 1)));
+        }
+        finally
+        {
+            resp.destroy();
+        }
+    }
+
+    @Test
+    public void thatMissingFilesAreFetchedAgain() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        server.addAttachment("doc", "logo.png", content(50, 7));
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+        File dir = createDirectory();
+        AttachmentCache cache = new AttachmentCache(dir, 1000);
+        db.setAttachmentCache(cache);
+
+        Attachment stub = new Attachment();
+        stub.setStub(true);
+        stub.setDigest("md5-" + AttachmentServerMock.digest(content(50, 7)));
+
+        Map<String, Attachment> stubs = new HashMap<String, Attachment>();
+        stubs.put("logo.png", stub);
+        assertThat(db.getAttachments("doc", stubs, 1).get("logo.png"), is(content(50, 7)));
+        assertThat(attachmentRequests(server), is(1));
+
+        for (File file : dir.listFiles())
+        {
+            file.delete();
+        }
+
+        assertThat(db.getAttachments("doc", stubs, 1).get("logo.png"), is(content(50, 7)));
+        assertThat(attachmentRequests(server), is(2));
+        assertThat(cache.getSize(), is(50L));
+    }
+
+    @Test
+    public void thatLargeContentIsNotCached() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        server.addAttachment("doc", "video.bin", content(300, 11));
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+        File dir = createDirectory();
+        AttachmentCache cache = new AttachmentCache(dir, 100);
+        db.setAttachmentCache(cache);
+
+        assertThat(db.getAttachment("doc", "video.bin"), is(content(300, 11)));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertThat(db.copyAttachmentTo("doc", "video.bin", bos, 290, -1), is(10L));
+        assertThat(bos.toByteArray()[0], is(content(300, 11)[290]));
+
+        Response resp = db.getAttachmentResponse("doc", "video.bin");
+        try
+        {
+            assertThat(resp.getContent(), is(content(300, 11)));
+        }
+        finally
+        {
+            resp.destroy();
+        }
+
+        assertThat(cache.getMissCount(), is(3L));
+        assertThat(cache.getSize(), is(0L));
+        assertThat(dir.list().length, is(0));
+    }
+}
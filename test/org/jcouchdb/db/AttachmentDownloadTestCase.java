@@ -0,0 +1,171 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import org.jcouchdb.document.Attachment;
+import org.jcouchdb.exception.NotFoundException;
+import org.junit.Test;
+
+public class AttachmentDownloadTestCase
+{
+    private final static String CONTENT = "0123456789abcdefghij";
+
+    private static Database createDatabase(AttachmentServerMock server) throws IOException
+    {
+        server.addChange("doc", "{\"_id\":\"doc\",\"_rev\":\"1-abc\",\"_attachments\":{" +
+            "\"media.bin\":{\"content_type\":\"application/octet-stream\",\"length\":20,\"stub\":true}}}");
+        server.addAttachment("doc", "media.bin", CONTENT.getBytes("UTF-8"));
+        return new Database(server, ChangesServerMock.DATABASE_NAME);
+    }
+
+    @Test
+    public void thatAttachmentIsCopiedToStreamAndChannel() throws IOException
+    {
+        Database db = createDatabase(new AttachmentServerMock());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertThat(db.copyAttachmentTo("doc", "media.bin", bos), is(20L));
+        assertThat(bos.toString("UTF-8"), is(CONTENT));
+
+        bos = new ByteArrayOutputStream();
+        assertThat(db.copyAttachmentTo("doc", "media.bin", Channels.newChannel(bos)), is(20L));
+        assertThat(bos.toString("UTF-8"), is(CONTENT));
+    }
+
+    @Test
+    public void thatRangeIsCopied() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        Database db = createDatabase(server);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertThat(db.copyAttachmentTo("doc", "media.bin", bos, 5, 4), is(4L));
+        assertThat(bos.toString("UTF-8"), is("5678"));
+
+        assertThat(db.copyAttachmentTo("doc", "media.bin", new ByteArrayOutputStream(), 20, -1), is(0L));
+
+        // server ignoring the range
+        server.setSupportRanges(false);
+        bos = new ByteArrayOutputStream();
+        assertThat(db.copyAttachmentTo("doc", "media.bin", bos, 10, -1), is(10L));
+        assertThat(bos.toString("UTF-8"), is("abcdefghij"));
+    }
+
+    @Test
+    public void thatFileDownloadIsResumed() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        Database db = createDatabase(server);
+        Attachment stub = stub(CONTENT);
+
+        File file = createFile("0123456");
+
+        assertThat(db.copyAttachmentTo("doc", "media.bin", stub, file, true), is(13L));
+        assertThat(read(file), is(CONTENT));
+
+        assertThat(db.copyAttachmentTo("doc", "media.bin", stub, file, true), is(0L));
+        assertThat(read(file), is(CONTENT));
+
+        assertThat(db.copyAttachmentTo("doc", "media.bin", stub, file, false), is(20L));
+        assertThat(read(file), is(CONTENT));
+
+        server.setSupportRanges(false);
+        assertThat(db.copyAttachmentTo("doc", "media.bin", stub, file, true), is(20L));
+        assertThat(read(file), is(CONTENT));
+    }
+
+    @Test
+    public void thatChangedAttachmentIsDownloadedAgain() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        Database db = createDatabase(server);
+
+        // partial file of an older revision of the attachment
+        File file = createFile("ABCDEFG");
+        assertThat(db.copyAttachmentTo("doc", "media.bin", stub("ABCDEFGHIJKLMNOPQRST"), file, true), is(20L));
+        assertThat(read(file), is(CONTENT));
+    }
+
+    @Test
+    public void thatUnvalidatedFileIsDownloadedAgain() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        Database db = createDatabase(server);
+
+        File file = createFile("0123456");
+        assertThat(db.copyAttachmentTo("doc", "media.bin", null, file, true), is(20L));
+        assertThat(read(file), is(CONTENT));
+    }
+
+    @Test
+    public void thatLongerFileIsDownloadedAgain() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        Database db = createDatabase(server);
+
+        File file = createFile(CONTENT + "klmno");
+        assertThat(db.copyAttachmentTo("doc", "media.bin", stub(CONTENT), file, true), is(20L));
+        assertThat(read(file), is(CONTENT));
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void thatMissingAttachmentFails() throws IOException
+    {
+        Database db = createDatabase(new AttachmentServerMock());
+        db.copyAttachmentTo("doc", "missing.bin", new ByteArrayOutputStream());
+    }
+
+    private static Attachment stub(String content) throws IOException
+    {
+        Attachment stub = new Attachment();
+        stub.setStub(true);
+        stub.setLength(content.length());
+        stub.setDigest("md5-" + AttachmentServerMock.digest(content.getBytes("UTF-8")));
+        return stub;
+    }
+
+    private static File createFile(String content) throws IOException
+    {
+        File file = File.createTempFile("jcouchdb-attachment", ".bin");
+        file.deleteOnExit();
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try
+        {
+            fos.write(content.getBytes("UTF-8"));
+        }
+        finally
+        {
+            fos.close();
+        }
+        return file;
+    }
+
+    private static String read(File file) throws IOException
+    {
+        FileInputStream fis = new FileInputStream(file);
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[64];
+            int n;
+            while ((n = fis.read(buf)) != -1)
+            {
+                bos.write(buf, 0, n);
+            }
+            return bos.toString("UTF-8");
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+}
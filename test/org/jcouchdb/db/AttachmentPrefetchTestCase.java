@@ -0,0 +1,181 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jcouchdb.document.Attachment;
+import org.jcouchdb.exception.NotFoundException;
+import org.junit.Test;
+
+public class AttachmentPrefetchTestCase
+{
+    private final static int COUNT = 12;
+
+    /**
+     * Mock that takes a while per attachment request and records the highest number of concurrent requests.
+     */
+    private static class SlowServerMock
+        extends AttachmentServerMock
+    {
+        private final AtomicInteger active = new AtomicInteger();
+
+        private final AtomicInteger maxActive = new AtomicInteger();
+
+        @Override
+        public Response get(String uri, Map<String, String> headers)
+        {
+            int current = active.incrementAndGet();
+            synchronized(maxActive)
+            {
+                maxActive.set(Math.max(maxActive.get(), current));
+            }
+            try
+            {
+                Thread.sleep(50);
+                return super.get(uri, headers);
+            }
+            catch (InterruptedException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            finally
+            {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    private static Map<String, Attachment> createAttachments(AttachmentServerMock server) throws IOException
+    {
+        Map<String, Attachment> stubs = new LinkedHashMap<String, Attachment>();
+        for (int i = 0; i < COUNT; i++)
+        {
+            String name = (i % 2 == 0 ? "pages/" : "") + "att" + i + ".txt";
+            server.addAttachment("bundle", name, ("content " + i).getBytes("UTF-8"));
+            Attachment stub = new Attachment();
+            stub.setStub(true);
+            stubs.put(name, stub);
+        }
+        return stubs;
+    }
+
+    @Test
+    public void thatAttachmentsAreFetchedConcurrently() throws IOException
+    {
+        SlowServerMock server = new SlowServerMock();
+        Map<String, Attachment> stubs = createAttachments(server);
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+
+        long start = System.currentTimeMillis();
+        Map<String, byte[]> contents = db.getAttachments("bundle", stubs, 4);
+        long time = System.currentTimeMillis() - start;
+
+        assertThat(new ArrayList<String>(contents.keySet()), is(new ArrayList<String>(stubs.keySet())));
+        assertThat(new String(contents.get("att5.txt"), "UTF-8"), is("content 5"));
+        assertThat(server.maxActive.get(), is(4));
+        assertThat(time < COUNT * 50, is(true));
+    }
+
+    @Test
+    public void thatAttachmentExecutorIsReused() throws IOException
+    {
+        final AtomicInteger threads = new AtomicInteger();
+        ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                threads.incrementAndGet();
+                return new Thread(r);
+            }
+        });
+        try
+        {
+            SlowServerMock server = new SlowServerMock();
+            Map<String, Attachment> stubs = createAttachments(server);
+            Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+            db.setAttachmentExecutor(executor);
+
+            db.getAttachments("bundle", stubs, 2);
+            db.getAttachments("bundle", stubs, 2);
+
+            assertThat(server.maxActive.get(), is(2));
+            assertThat(executor.isShutdown(), is(false));
+            // threads are taken from the executor and reused across calls
+            assertThat(threads.get() > 0, is(true));
+            assertThat(threads.get() < COUNT * 2, is(true));
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void thatAttachmentsAreWrittenToDirectory() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        Map<String, Attachment> stubs = createAttachments(server);
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+
+        File dir = File.createTempFile("jcouchdb-prefetch", "");
+        dir.delete();
+        dir.deleteOnExit();
+
+        Map<String, File> files = db.copyAttachmentsTo("bundle", stubs, dir, 3);
+        assertThat(files.size(), is(COUNT));
+        File file = files.get("pages/att4.txt");
+        assertThat(file.getParentFile().getName(), is("pages"));
+        assertThat(read(file), is("content 4"));
+        assertThat(new File(dir, "att7.txt").exists(), is(true));
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void thatFailureIsRethrown() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        Map<String, Attachment> stubs = createAttachments(server);
+        stubs.put("missing.txt", null);
+        new Database(server, ChangesServerMock.DATABASE_NAME).getAttachments("bundle", stubs, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatNamesLeadingOutsideAreRejected() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        Map<String, Attachment> stubs = new LinkedHashMap<String, Attachment>();
+        stubs.put("../escape.txt", null);
+        new Database(server, ChangesServerMock.DATABASE_NAME).copyAttachmentsTo("bundle", stubs,
+            new File(System.getProperty("java.io.tmpdir"), "jcouchdb-prefetch"), 2);
+    }
+
+    private static String read(File file) throws IOException
+    {
+        byte[] data = new byte[(int)file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try
+        {
+            int pos = 0;
+            while (pos < data.length)
+            {
+                pos += fis.read(data, pos, data.length - pos);
+            }
+            return new String(data, "UTF-8");
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+}
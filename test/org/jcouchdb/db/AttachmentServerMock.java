@@ -0,0 +1,100 @@
+package org.jcouchdb.db;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.jcouchdb.exception.CouchDBException;
+import org.jcouchdb.util.Base64Util;
+
+/**
+ * Changes server mock that also serves attachments, with their digest as ETag. Attachment requests support
+ * <code>If-None-Match</code>, <code>Range</code> and <code>If-Range</code>.
+ */
+public class AttachmentServerMock
+    extends ChangesServerMock
+{
+    private final Map<String, byte[]> attachments = new HashMap<String, byte[]>();
+
+    private volatile boolean supportRanges = true;
+
+    /**
+     * Adds an attachment. The document JSON has to contain the matching attachment stub.
+     *
+     * @param id        document id
+     * @param name      attachment name
+     * @param content   attachment content
+     */
+    public synchronized void addAttachment(String id, String name, byte[] content)
+    {
+        attachments.put(id + "/" + name, content);
+    }
+
+    /**
+     * Sets whether attachment requests with a <code>Range</code> header are answered with partial content.
+     * Defaults to <code>true</code>.
+     *
+     * @param supportRanges
+     */
+    public void setSupportRanges(boolean supportRanges)
+    {
+        this.supportRanges = supportRanges;
+    }
+
+    /**
+     * Returns the Base64 encoded MD5 digest couchdb uses as ETag and, prefixed with <code>md5-</code>, as digest of
+     * attachment stubs.
+     */
+    public static String digest(byte[] content)
+    {
+        try
+        {
+            return Base64Util.encodeBase64(MessageDigest.getInstance("MD5").digest(content));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new CouchDBException(e);
+        }
+    }
+
+    @Override
+    protected Response attachment(String id, String name, Map<String, String> headers)
+    {
+        byte[] content;
+        synchronized(this)
+        {
+            content = attachments.get(id + "/" + name);
+        }
+        if (content == null)
+        {
+            return super.attachment(id, name, headers);
+        }
+        String etag = "\"" + digest(content) + "\"";
+        if (headers != null && etag.equals(headers.get("If-None-Match")))
+        {
+            return new Response(304, "");
+        }
+        String range = headers != null ? headers.get("Range") : null;
+        String ifRange = headers != null ? headers.get("If-Range") : null;
+        if (range != null && supportRanges && (ifRange == null || ifRange.equals(etag)))
+        {
+            String[] bounds = range.substring("bytes=".length()).split("-", 2);
+            int start = Integer.parseInt(bounds[0]);
+            int end = bounds[1].length() > 0 ? Math.min(Integer.parseInt(bounds[1]), content.length - 1) :
+                content.length - 1;
+            if (start >= content.length)
+            {
+                return new Response(416, "{\"error\":\"requested_range_not_satisfiable\"}");
+            }
+            return new Response(206, new ByteArrayInputStream(content, start, end - start + 1),
+                new Header[] { new BasicHeader("Content-Range", "bytes " + start + "-" + end + "/" +
+                    content.length) }, end - start + 1);
+        }
+        return new Response(200, new ByteArrayInputStream(content),
+            new Header[] { new BasicHeader("ETag", etag) }, content.length);
+    }
+}
@@ -0,0 +1,149 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jcouchdb.document.BatchChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.exception.CouchDBException;
+import org.junit.Test;
+
+public class BatchingChangeDispatcherTestCase
+{
+    @Test
+    public void thatBatchingWorks()
+    {
+        TestListener listener = new TestListener();
+        BatchingChangeDispatcher dispatcher = new BatchingChangeDispatcher(listener, 100, 3, 50);
+        dispatcher.start();
+
+        for (int i = 1; i <= 7; i++)
+        {
+            dispatcher.onChange(change(i));
+        }
+        dispatcher.close();
+
+        int count = 0;
+        for (List<ChangeNotification> batch : listener.batches)
+        {
+            assertThat(batch.size() <= 3, is(true));
+            for (ChangeNotification change : batch)
+            {
+                assertThat(change.getSequence(), is((long)++count));
+            }
+        }
+        assertThat(count, is(7));
+        assertThat(listener.lastSequences.get(listener.lastSequences.size() - 1), is(7L));
+        assertThat(dispatcher.getLastSequence(), is(7L));
+    }
+
+    @Test
+    public void thatFullQueueBlocks() throws InterruptedException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        BatchingChangeDispatcher dispatcher = new BatchingChangeDispatcher(new BatchChangeListener()
+        {
+            public void onChanges(List<ChangeNotification> changes, long lastSequence)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 2, 1, 0);
+        dispatcher.start();
+
+        final CountDownLatch queued = new CountDownLatch(4);
+        final BatchingChangeDispatcher d = dispatcher;
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 1; i <= 4; i++)
+                {
+                    d.onChange(change(i));
+                    queued.countDown();
+                }
+            }
+        };
+        producer.start();
+
+        // one change is being dispatched, two are queued, the fourth must wait
+        assertThat(queued.await(200, TimeUnit.MILLISECONDS), is(false));
+        assertThat(queued.getCount(), is(1L));
+
+        release.countDown();
+        assertThat(queued.await(1, TimeUnit.SECONDS), is(true));
+        dispatcher.close();
+        assertThat(dispatcher.getLastSequence(), is(4L));
+    }
+
+    @Test
+    public void thatListenerFailureStopsTheDispatcher() throws InterruptedException
+    {
+        final List<Long> dispatched = new ArrayList<Long>();
+        BatchingChangeDispatcher dispatcher = new BatchingChangeDispatcher(new BatchChangeListener()
+        {
+            public void onChanges(List<ChangeNotification> changes, long lastSequence)
+            {
+                if (lastSequence > 2)
+                {
+                    throw new IllegalStateException("listener failure");
+                }
+                dispatched.add(lastSequence);
+            }
+        }, 1, 2, 0);
+        dispatcher.start();
+
+        int accepted = 0;
+        try
+        {
+            for (int i = 1; i <= 10; i++)
+            {
+                dispatcher.onChange(change(i));
+                accepted++;
+            }
+        }
+        catch (CouchDBException e)
+        {
+            assertThat(e.getCause() instanceof IllegalStateException, is(true));
+        }
+        dispatcher.close();
+
+        assertThat(accepted < 10, is(true));
+        assertThat(dispatched.get(dispatched.size() - 1) <= 2L, is(true));
+        assertThat(dispatcher.getLastSequence(), is(dispatched.get(dispatched.size() - 1)));
+        assertThat(dispatcher.getFailure() instanceof IllegalStateException, is(true));
+    }
+
+    private static ChangeNotification change(long seq)
+    {
+        ChangeNotification change = new ChangeNotification();
+        change.setSequence(seq);
+        change.setId("doc" + seq);
+        return change;
+    }
+
+    static class TestListener implements BatchChangeListener
+    {
+        private List<List<ChangeNotification>> batches = new ArrayList<List<ChangeNotification>>();
+
+        private List<Long> lastSequences = new ArrayList<Long>();
+
+        public void onChanges(List<ChangeNotification> changes, long lastSequence)
+        {
+            batches.add(changes);
+            lastSequences.add(lastSequence);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.junit.Test;
+
+public class ChangeFeedLivenessTestCase
+{
+    @Test
+    public void thatHeartbeatsKeepTheFeedAlive() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        db.setChangesHeartbeat(50);
+
+        ChangeFeed feed = db.startChangeFeed(null, null, null, new TestListener());
+        Thread.sleep(400);
+        feed.stop();
+
+        assertThat(feed.getReconnectCount(), is(0));
+        assertThat(server.getRequests().get(0).indexOf("heartbeat=50") >= 0, is(true));
+    }
+
+    @Test
+    public void thatSilentFeedIsReopened() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        server.setSendHeartbeats(false);
+        Database db = new Database(server, "test");
+        db.setChangesHeartbeat(50);
+
+        server.addChange("a");
+        TestListener listener = new TestListener();
+        ChangeFeed feed = db.startChangeFeed(null, null, null, listener);
+        Thread.sleep(400);
+        server.addChange("b");
+        Thread.sleep(100);
+        feed.stop();
+
+        assertThat(feed.getReconnectCount() > 0, is(true));
+        assertThat(feed.getLastSequence(), is(2L));
+        assertThat(listener.sequences(), is(Arrays.asList(1L, 2L)));
+
+        boolean resumed = false;
+        for (String uri : server.getRequests())
+        {
+            resumed |= uri.indexOf("since=1") >= 0;
+        }
+        assertThat(resumed, is(true));
+    }
+
+    @Test
+    public void thatListenerFailureStopsTheFeed() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        db.setChangesHeartbeat(50);
+
+        server.addChange("a");
+        server.addChange("b");
+        server.addChange("c");
+        TestListener listener = new TestListener()
+        {
+            @Override
+            public synchronized void onChange(ChangeNotification changeNotification)
+            {
+                if (changeNotification.getSequence() == 2)
+                {
+                    throw new IllegalStateException("listener failure");
+                }
+                super.onChange(changeNotification);
+            }
+        };
+        ChangeFeed feed = db.startChangeFeed(null, null, null, listener);
+        Thread.sleep(300);
+
+        assertThat(feed.isRunning(), is(false));
+        assertThat(feed.getReconnectCount(), is(0));
+        assertThat(feed.getLastSequence(), is(1L));
+        assertThat(listener.sequences(), is(Arrays.asList(1L)));
+        assertThat(server.getRequests().size(), is(1));
+    }
+
+    static class TestListener implements ChangeListener
+    {
+        private List<Long> sequences = new ArrayList<Long>();
+
+        public synchronized void onChange(ChangeNotification changeNotification)
+        {
+            sequences.add(changeNotification.getSequence());
+        }
+
+        public synchronized List<Long> sequences()
+        {
+            return new ArrayList<Long>(sequences);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.junit.Test;
+
+public class ChangeFeedMetricsTestCase
+{
+    @Test
+    public void thatMetricsWork() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        for (int i = 0; i < 10; i++)
+        {
+            server.addChange("doc" + i);
+        }
+
+        ChangeFeedMetrics metrics = new ChangeFeedMetrics(db);
+        metrics.setUpdateSequenceInterval(20);
+        metrics.refreshUpdateSequence();
+        for (int i = 1; i <= 4; i++)
+        {
+            // 100 microseconds each, one slow change with 5 milliseconds
+            metrics.recordChange(i, i == 4 ? 5000000 : 100000);
+        }
+
+        assertThat(metrics.getProcessedSequence(), is(4L));
+        assertThat(metrics.getProcessedCount(), is(4L));
+        assertThat(metrics.getUpdateSequence(), is(10L));
+        assertThat(metrics.getLag(), is(6L));
+        assertThat(metrics.getEventsPerSecond() > 0, is(true));
+        assertThat(metrics.getEstimatedLagMillis() > 0, is(true));
+        assertThat(metrics.getLatencyP50Micros(), is(128L));
+        assertThat(metrics.getLatencyP99Micros(), is(5000L));
+        assertThat(metrics.getMaxLatencyMicros(), is(5000L));
+
+        // update sequence is refreshed in the background
+        server.addChange("doc10");
+        assertThat(awaitUpdateSequence(metrics, 11), is(11L));
+        metrics.release();
+    }
+
+    @Test
+    public void thatGettersDoNotWaitForTheServer() throws Exception
+    {
+        final CountDownLatch statusLatch = new CountDownLatch(1);
+        ChangesServerMock server = new ChangesServerMock()
+        {
+            @Override
+            public Response get(String uri, Map<String, String> headers)
+            {
+                if (uri.equals("/test/"))
+                {
+                    try
+                    {
+                        statusLatch.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.get(uri, headers);
+            }
+        };
+        server.addChange("doc0");
+        ChangeFeedMetrics metrics = new ChangeFeedMetrics(new Database(server, "test"));
+
+        long start = System.currentTimeMillis();
+        assertThat(metrics.getLag(), is(-1L));
+        assertThat(metrics.getUpdateSequence(), is(-1L));
+        assertThat(System.currentTimeMillis() - start < 1000, is(true));
+
+        statusLatch.countDown();
+        assertThat(awaitUpdateSequence(metrics, 1), is(1L));
+        metrics.release();
+    }
+
+    @Test
+    public void thatEndingFeedUnregistersItsMetrics() throws Exception
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        server.addChange("doc0");
+        ChangeListener listener = new ChangeListener()
+        {
+            public void onChange(ChangeNotification changeNotification)
+            {
+                throw new IllegalStateException("listener failure");
+            }
+        };
+        ContinuousChangesDriver driver = new ContinuousChangesDriver(new Database(server, "test"), null, null, null,
+            listener);
+        ObjectName name = driver.getMetrics().registerMBean("failing");
+        driver.start();
+
+        for (int i = 0; i < 100 && driver.isRunning(); i++)
+        {
+            Thread.sleep(20);
+        }
+        assertThat(driver.isRunning(), is(false));
+        for (int i = 0; i < 100 && ManagementFactory.getPlatformMBeanServer().isRegistered(name); i++)
+        {
+            Thread.sleep(20);
+        }
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(name), is(false));
+    }
+
+    private static long awaitUpdateSequence(ChangeFeedMetrics metrics, long expected) throws InterruptedException
+    {
+        for (int i = 0; i < 100 && metrics.getUpdateSequence() != expected; i++)
+        {
+            Thread.sleep(20);
+        }
+        return metrics.getUpdateSequence();
+    }
+
+    @Test
+    public void thatJMXRegistrationWorks() throws Exception
+    {
+        ChangeFeedMetrics metrics = new ChangeFeedMetrics(new Database(new ChangesServerMock(), "test"));
+        metrics.recordChange(17, 1000);
+
+        ObjectName name = metrics.registerMBean("indexer");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertThat(server.isRegistered(name), is(true));
+        assertThat((Long)server.getAttribute(name, "ProcessedSequence"), is(17L));
+
+        metrics.release();
+        assertThat(server.isRegistered(name), is(false));
+    }
+}
@@ -0,0 +1,146 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jcouchdb.document.ChangeFilter;
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.document.DocumentChangeNotification;
+import org.jcouchdb.document.DocumentPollingResults;
+import org.jcouchdb.document.PollingResults;
+import org.junit.Test;
+
+public class ChangeFilterTestCase
+{
+    private final static ChangeFilter ORDERS = new ChangeFilter()
+    {
+        public boolean accept(ChangeNotification changeNotification)
+        {
+            return changeNotification.getId().startsWith("order");
+        }
+    };
+
+    private final static ChangeFilter ORDER_DOCUMENTS = new ChangeFilter()
+    {
+        public boolean accept(ChangeNotification changeNotification)
+        {
+            FooDocument doc = (FooDocument)((DocumentChangeNotification<?>)changeNotification).getDocument();
+            return "order".equals(doc.getType());
+        }
+    };
+
+    @Test
+    public void thatPolledChangesAreFiltered()
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        server.addChange("order1");
+        server.addChange("customer1");
+        server.addChange("order2");
+        server.addChange("customer2");
+
+        PollingResults results = db.pollChangesFiltered(null, null, false, null, ORDERS);
+
+        assertThat(ids(results.getResults()), is(Arrays.asList("order1", "order2")));
+        assertThat(results.getLastSequence(), is(4L));
+    }
+
+    @Test
+    public void thatPolledDocumentsAreFiltered()
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        server.addChange("a", "{\"_id\":\"a\",\"type\":\"order\"}");
+        server.addChange("b", "{\"_id\":\"b\",\"type\":\"customer\"}");
+        server.addChange("c", "{\"_id\":\"c\",\"type\":\"order\"}");
+
+        DocumentPollingResults<FooDocument> results = db.pollChangesWithDocumentsFiltered(null, null, false, null,
+            FooDocument.class, ORDER_DOCUMENTS);
+
+        List<String> ids = new ArrayList<String>();
+        for (DocumentChangeNotification<FooDocument> changeNotification : results.getResults())
+        {
+            ids.add(changeNotification.getId());
+            assertThat(changeNotification.getDocument().getType(), is("order"));
+        }
+        assertThat(ids, is(Arrays.asList("a", "c")));
+        assertThat(results.getLastSequence(), is(3L));
+    }
+
+    @Test
+    public void thatDocIdsNarrowTheFeed()
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        server.addChange("a");
+        server.addChange("b");
+        server.addChange("c");
+
+        PollingResults results = db.pollChanges(null, null, false, new Options().docIds(Arrays.asList("a", "c")));
+
+        assertThat(ids(results.getResults()), is(Arrays.asList("a", "c")));
+        assertThat(server.getRequests().get(0).indexOf("filter=_doc_ids") >= 0, is(true));
+    }
+
+    @Test
+    public void thatListenerReceivesAcceptedDocuments() throws Exception
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        server.addChange("a", "{\"_id\":\"a\",\"type\":\"order\"}");
+        server.addChange("b", "{\"_id\":\"b\",\"type\":\"customer\"}");
+        server.addChange("c", "{\"_id\":\"c\",\"type\":\"order\"}");
+
+        TestListener listener = new TestListener();
+        FilteringChangeListener filtering = new FilteringChangeListener(ORDER_DOCUMENTS, listener);
+        ChangeFeed feed = db.registerDocumentChangeListener(null, null, null, FooDocument.class, filtering);
+        listener.waitFor(2);
+        Thread.sleep(100);
+        feed.stop();
+
+        assertThat(listener.ids(), is(Arrays.asList("a", "c")));
+        assertThat(filtering.getFilteredCount(), is(1L));
+        assertThat(filtering.getLastSequence(), is(3L));
+    }
+
+    private static List<String> ids(List<ChangeNotification> changes)
+    {
+        List<String> ids = new ArrayList<String>();
+        for (ChangeNotification changeNotification : changes)
+        {
+            ids.add(changeNotification.getId());
+        }
+        return ids;
+    }
+
+    static class TestListener implements ChangeListener
+    {
+        private List<ChangeNotification> changes = new ArrayList<ChangeNotification>();
+
+        public synchronized void onChange(ChangeNotification changeNotification)
+        {
+            changes.add(changeNotification);
+            notifyAll();
+        }
+
+        public synchronized List<String> ids()
+        {
+            return ChangeFilterTestCase.ids(changes);
+        }
+
+        public synchronized void waitFor(int count) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (changes.size() < count && System.currentTimeMillis() < deadline)
+            {
+                wait(100);
+            }
+            assertThat(changes.size() >= count, is(true));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.junit.Test;
+
+public class ChangesMultiplexerTestCase
+{
+    @Test
+    public void thatListenersShareOneFeed() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+
+        server.addChange("a");
+        server.addChange("b");
+        server.addChange("c");
+
+        ChangesMultiplexer multiplexer = db.getChangesMultiplexer(null);
+        assertThat(db.getChangesMultiplexer(null) == multiplexer, is(true));
+
+        TestListener first = new TestListener();
+        ChangeFeed firstFeed = multiplexer.register(first, null);
+        first.waitFor(3);
+
+        server.addChange("d");
+        server.addChange("e");
+        first.waitFor(5);
+
+        TestListener late = new TestListener();
+        multiplexer.register(late, 2L);
+        late.waitFor(3);
+
+        server.addChange("f");
+        first.waitFor(6);
+        late.waitFor(4);
+        // subscriptions advance their sequence after the listener returns
+        Thread.sleep(100);
+
+        assertThat(first.sequences(), is(sequences(1, 6)));
+        assertThat(late.sequences(), is(sequences(3, 6)));
+        assertThat(firstFeed.getLastSequence(), is(6L));
+
+        int continuousRequests = 0;
+        for (String uri : server.getRequests())
+        {
+            if (uri.indexOf("feed=continuous") >= 0)
+            {
+                continuousRequests++;
+            }
+        }
+        assertThat(continuousRequests, is(1));
+
+        firstFeed.stop();
+        assertThat(multiplexer.getListenerCount(), is(1));
+        multiplexer.close();
+        assertThat(multiplexer.getListenerCount(), is(0));
+    }
+
+    @Test
+    public void thatFeedStopsWithLastListener() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+
+        server.addChange("a");
+        ChangesMultiplexer multiplexer = db.getChangesMultiplexer(null);
+
+        TestListener first = new TestListener();
+        ChangeFeed firstFeed = multiplexer.register(first, null);
+        first.waitFor(1);
+        firstFeed.stop();
+        assertThat(multiplexer.getListenerCount(), is(0));
+
+        server.addChange("b");
+        TestListener second = new TestListener();
+        multiplexer.register(second, 1L);
+        second.waitFor(1);
+        multiplexer.close();
+
+        assertThat(first.sequences(), is(sequences(1, 1)));
+        assertThat(second.sequences(), is(sequences(2, 2)));
+
+        List<String> continuous = new ArrayList<String>();
+        for (String uri : server.getRequests())
+        {
+            if (uri.indexOf("feed=continuous") >= 0)
+            {
+                continuous.add(uri);
+            }
+        }
+        assertThat(continuous.size(), is(2));
+        assertThat(continuous.get(1).indexOf("since=1") >= 0, is(true));
+    }
+
+    @Test
+    public void thatFailingListenerIsStoppedAlone() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+
+        server.addChange("a");
+        server.addChange("b");
+        ChangesMultiplexer multiplexer = db.getChangesMultiplexer(null);
+
+        TestListener failing = new TestListener()
+        {
+            @Override
+            public synchronized void onChange(ChangeNotification changeNotification)
+            {
+                if (changeNotification.getSequence() == 2)
+                {
+                    throw new IllegalStateException("listener failure");
+                }
+                super.onChange(changeNotification);
+            }
+        };
+        TestListener other = new TestListener();
+        ChangeFeed failingFeed = multiplexer.register(failing, null);
+        multiplexer.register(other, null);
+        other.waitFor(2);
+        Thread.sleep(100);
+
+        assertThat(failingFeed.isRunning(), is(false));
+        assertThat(failingFeed.getLastSequence(), is(1L));
+        assertThat(multiplexer.getListenerCount(), is(1));
+        multiplexer.close();
+    }
+
+    private static List<Long> sequences(long from, long to)
+    {
+        List<Long> sequences = new ArrayList<Long>();
+        for (long seq = from; seq <= to; seq++)
+        {
+            sequences.add(seq);
+        }
+        return sequences;
+    }
+
+    static class TestListener implements ChangeListener
+    {
+        private List<Long> sequences = new ArrayList<Long>();
+
+        public synchronized void onChange(ChangeNotification changeNotification)
+        {
+            sequences.add(changeNotification.getSequence());
+            notifyAll();
+        }
+
+        public synchronized List<Long> sequences()
+        {
+            return new ArrayList<Long>(sequences);
+        }
+
+        public synchronized void waitFor(int count) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sequences.size() < count && System.currentTimeMillis() < deadline)
+            {
+                wait(100);
+            }
+            assertThat(sequences.size() >= count, is(true));
+        }
+    }
+}
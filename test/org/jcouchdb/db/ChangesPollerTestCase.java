@@ -0,0 +1,134 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.junit.Test;
+
+public class ChangesPollerTestCase
+{
+    @Test
+    public void thatPollingAdapts() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        for (int i = 0; i < 35; i++)
+        {
+            server.addChange("doc" + i);
+        }
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        try
+        {
+            TestListener listener = new TestListener();
+            ChangesPoller poller = new ChangesPoller(db, null, null, null, listener, scheduler);
+            poller.setDelays(20, 80);
+            poller.start();
+
+            listener.waitFor(35);
+            Thread.sleep(300);
+
+            // idle: normal polling with the maximum delay and the minimal page size
+            assertThat(poller.isLongPolling(), is(false));
+            assertThat(poller.getDelay(), is(80L));
+            assertThat(poller.getLimit(), is(ChangesPoller.MIN_LIMIT));
+
+            server.addChange("late");
+            listener.waitFor(36);
+            // the poller advances its sequence after the listener returns
+            Thread.sleep(100);
+            poller.stop();
+
+            assertThat(poller.getLastSequence(), is(36L));
+            List<Long> sequences = listener.sequences();
+            for (int i = 0; i < sequences.size(); i++)
+            {
+                assertThat(sequences.get(i), is((long)i + 1));
+            }
+
+            // page sizes grew while there was a backlog
+            List<String> requests = server.getRequests();
+            assertThat(requests.get(0).indexOf("limit=10") >= 0, is(true));
+            assertThat(requests.get(1).indexOf("limit=20") >= 0, is(true));
+            assertThat(requests.get(1).indexOf("feed=longpoll") >= 0, is(true));
+        }
+        finally
+        {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void thatListenerFailureStopsThePoller() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        for (int i = 0; i < 5; i++)
+        {
+            server.addChange("doc" + i);
+        }
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        try
+        {
+            TestListener listener = new TestListener()
+            {
+                @Override
+                public synchronized void onChange(ChangeNotification changeNotification)
+                {
+                    if (changeNotification.getSequence() == 3)
+                    {
+                        throw new IllegalStateException("listener failure");
+                    }
+                    super.onChange(changeNotification);
+                }
+            };
+            ChangesPoller poller = new ChangesPoller(db, null, null, null, listener, scheduler);
+            poller.setDelays(20, 80);
+            poller.start();
+            Thread.sleep(300);
+
+            assertThat(poller.isRunning(), is(false));
+            assertThat(poller.getLastSequence(), is(2L));
+            assertThat(listener.sequences().size(), is(2));
+            assertThat(server.getRequests().size(), is(1));
+        }
+        finally
+        {
+            scheduler.shutdownNow();
+        }
+    }
+
+    static class TestListener implements ChangeListener
+    {
+        private List<Long> sequences = new ArrayList<Long>();
+
+        public synchronized void onChange(ChangeNotification changeNotification)
+        {
+            sequences.add(changeNotification.getSequence());
+            notifyAll();
+        }
+
+        public synchronized List<Long> sequences()
+        {
+            return new ArrayList<Long>(sequences);
+        }
+
+        public synchronized void waitFor(int count) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sequences.size() < count && System.currentTimeMillis() < deadline)
+            {
+                wait(100);
+            }
+            assertThat(sequences.size() >= count, is(true));
+        }
+    }
+}
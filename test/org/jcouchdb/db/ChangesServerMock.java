@@ -0,0 +1,519 @@
+package org.jcouchdb.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
+import org.jcouchdb.exception.CouchDBException;
+import org.svenson.JSONParser;
+
+/**
+ * Server mock serving the changes, the all documents view and the documents of a single database from memory.
+ * Continuous feeds block until new changes are added or the response is aborted.
+ */
+public class ChangesServerMock
+    implements HeaderAwareServer
+{
+    public final static String DATABASE_NAME = "test";
+
+    private final List<String> changes = new ArrayList<String>();
+
+    private final List<String> requests = new ArrayList<String>();
+
+    private volatile boolean shutdown;
+
+    private volatile boolean sendHeartbeats = true;
+
+    /**
+     * Sets whether continuous feeds send the requested heartbeats. Without heartbeats the feed looks dead to the client.
+     *
+     * @param sendHeartbeats
+     */
+    public void setSendHeartbeats(boolean sendHeartbeats)
+    {
+        this.sendHeartbeats = sendHeartbeats;
+    }
+
+    private final List<String> docs = new ArrayList<String>();
+
+    private final List<String> ids = new ArrayList<String>();
+
+    public long addChange(String id)
+    {
+        return addChange(id, "{\"_id\":\"" + id + "\"}");
+    }
+
+    /**
+     * Adds a change of the document with the given id.
+     *
+     * @param id        document id
+     * @param doc       JSON of the document as delivered with include_docs
+     * @return sequence of the change
+     */
+    public synchronized long addChange(String id, String doc)
+    {
+        long seq = changes.size() + 1;
+        changes.add("{\"seq\":" + seq + ",\"id\":\"" + id + "\",\"changes\":[{\"rev\":\"" + seq + "-abc\"}]" +
+            (isDeleted(doc) ? ",\"deleted\":true" : ""));
+        docs.add(doc);
+        ids.add(id);
+        notifyAll();
+        return seq;
+    }
+
+    protected static boolean isDeleted(String doc)
+    {
+        return doc.indexOf("\"_deleted\":true") >= 0;
+    }
+
+    private boolean matches(int index, Set<String> docIds)
+    {
+        return docIds == null || docIds.contains(ids.get(index));
+    }
+
+    private String change(int index, boolean includeDocs)
+    {
+        return changes.get(index) + (includeDocs ? ",\"doc\":" + docs.get(index) : "") + "}";
+    }
+
+    public synchronized List<String> getRequests()
+    {
+        return new ArrayList<String>(requests);
+    }
+
+    protected synchronized void addRequest(String uri)
+    {
+        requests.add(uri);
+    }
+
+    /**
+     * Returns the current revision of the document with the given id or <code>null</code> if there is no such
+     * document or if it is deleted.
+     */
+    protected synchronized String currentRevision(String id)
+    {
+        int index = ids.lastIndexOf(id);
+        return index < 0 || isDeleted(docs.get(index)) ? null : (index + 1) + "-abc";
+    }
+
+    /**
+     * Returns the revision of the last change of the document with the given id, which may be a deletion, or
+     * <code>null</code> if there is no such document.
+     */
+    protected synchronized String latestRevision(String id)
+    {
+        int index = ids.lastIndexOf(id);
+        return index < 0 ? null : (index + 1) + "-abc";
+    }
+
+    /**
+     * Returns the JSON of the last change of the document with the given id, which may be a deletion, or
+     * <code>null</code> if there is no such document.
+     */
+    protected synchronized String latestDocument(String id)
+    {
+        int index = ids.lastIndexOf(id);
+        return index < 0 ? null : docs.get(index);
+    }
+
+    /**
+     * Returns the revision the next change will have.
+     */
+    protected synchronized String nextRevision()
+    {
+        return (changes.size() + 1) + "-abc";
+    }
+
+    protected synchronized int getUpdateSequence()
+    {
+        return changes.size();
+    }
+
+    /**
+     * Returns the given parsed JSON object as map with string keys.
+     */
+    protected static Map<String,Object> object(Object value)
+    {
+        Map<String,Object> map = new LinkedHashMap<String, Object>();
+        for (Map.Entry<?,?> e : ((Map<?,?>)value).entrySet())
+        {
+            map.put((String)e.getKey(), e.getValue());
+        }
+        return map;
+    }
+
+    public Response get(String uri)
+    {
+        return get(uri, null);
+    }
+
+    public Response get(String uri, Map<String, String> headers)
+    {
+        addRequest(uri);
+
+        if (uri.matches("/[^/]+/"))
+        {
+            synchronized(this)
+            {
+                return new Response(200, "{\"db_name\":\"" + uri.substring(1, uri.length() - 1) +
+                    "\",\"update_seq\":" + changes.size() + "}");
+            }
+        }
+
+        if (uri.indexOf("/_all_docs") >= 0)
+        {
+            return allDocs(params(uri));
+        }
+
+        if (uri.indexOf("/_view/") >= 0)
+        {
+            // views are served like _all_docs
+            return allDocs(params(uri));
+        }
+
+        String[] parts = uri.split("/");
+        if (parts.length == 3 && !parts[2].startsWith("_"))
+        {
+            return document(decode(parts[2].split("\\?")[0]));
+        }
+        if (parts.length >= 4 && !parts[2].startsWith("_"))
+        {
+            // attachment names may contain slashes
+            return attachment(decode(parts[2]), uri.substring(parts[1].length() + parts[2].length() + 3), headers);
+        }
+
+        if (uri.indexOf("/_changes") < 0)
+        {
+            return new Response(404, "{\"error\":\"not_found\",\"reason\":\"missing\"}");
+        }
+
+        Map<String,String> params = params(uri);
+        long since = params.containsKey("since") ? Long.parseLong(params.get("since")) : 0;
+        int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+        boolean includeDocs = "true".equals(params.get("include_docs"));
+        long heartbeat = params.containsKey("heartbeat") ? Long.parseLong(params.get("heartbeat")) : 0;
+        Set<String> docIds = null;
+        if (Database.DOC_IDS_FILTER.equals(params.get("filter")))
+        {
+            docIds = new HashSet<String>();
+            for (Object id : JSONParser.defaultJSONParser().parse(List.class, decode(params.get("doc_ids"))))
+            {
+                docIds.add((String)id);
+            }
+        }
+
+        if ("continuous".equals(params.get("feed")))
+        {
+            return new Response(200, new ContinuousStream(since, includeDocs, heartbeat, docIds), null, -1);
+        }
+
+        synchronized(this)
+        {
+            StringBuilder sb = new StringBuilder("{\"results\":[");
+            long last = since;
+            int count = 0;
+            for (int i = (int)since; i < changes.size() && count < limit; i++)
+            {
+                last = i + 1;
+                if (!matches(i, docIds))
+                {
+                    continue;
+                }
+                if (count > 0)
+                {
+                    sb.append(",");
+                }
+                sb.append(change(i, includeDocs));
+                count++;
+            }
+            sb.append("],\"last_seq\":").append(last).append("}");
+            return new Response(200, sb.toString());
+        }
+    }
+
+    /**
+     * Lists the current revisions of all documents that are not deleted, supporting startkey, limit and
+     * include_docs.
+     */
+    private synchronized Response allDocs(Map<String,String> params)
+    {
+        Map<String,Integer> current = new TreeMap<String, Integer>();
+        for (int i = 0; i < ids.size(); i++)
+        {
+            current.put(ids.get(i), i);
+        }
+        String startKey = params.containsKey("startkey") ?
+            (String)JSONParser.defaultJSONParser().parse(decode(params.get("startkey"))) : null;
+        int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+        boolean includeDocs = "true".equals(params.get("include_docs"));
+
+        StringBuilder sb = new StringBuilder("{\"total_rows\":" + current.size() + ",\"offset\":0,\"rows\":[");
+        int count = 0;
+        for (Map.Entry<String,Integer> entry : current.entrySet())
+        {
+            int index = entry.getValue();
+            if (isDeleted(docs.get(index)) || (startKey != null && entry.getKey().compareTo(startKey) < 0))
+            {
+                continue;
+            }
+            if (count == limit)
+            {
+                break;
+            }
+            if (count++ > 0)
+            {
+                sb.append(",");
+            }
+            sb.append("{\"id\":\"").append(entry.getKey()).append("\",\"key\":\"").append(entry.getKey())
+                .append("\",\"value\":{\"rev\":\"").append(index + 1).append("-abc\"}");
+            if (includeDocs)
+            {
+                sb.append(",\"doc\":").append(docs.get(index));
+            }
+            sb.append("}");
+        }
+        sb.append("]}");
+        return new Response(200, sb.toString());
+    }
+
+    /**
+     * Returns the content of the given attachment. The changes mock has no attachments.
+     *
+     * @param id        document id
+     * @param name      attachment name
+     * @param headers   request headers or <code>null</code>
+     */
+    protected Response attachment(String id, String name, Map<String, String> headers)
+    {
+        return new Response(404, "{\"error\":\"not_found\",\"reason\":\"missing\"}");
+    }
+
+    /**
+     * Returns the current revision of the document with the given id.
+     */
+    private synchronized Response document(String id)
+    {
+        int index = ids.lastIndexOf(id);
+        if (index < 0 || isDeleted(docs.get(index)))
+        {
+            return new Response(404, "{\"error\":\"not_found\",\"reason\":\"missing\"}");
+        }
+        return new Response(200, docs.get(index));
+    }
+
+    protected static Map<String,String> params(String uri)
+    {
+        Map<String,String> params = new HashMap<String, String>();
+        int pos = uri.indexOf('?');
+        if (pos >= 0)
+        {
+            for (String param : uri.substring(pos + 1).split("&"))
+            {
+                int eq = param.indexOf('=');
+                params.put(param.substring(0, eq), param.substring(eq + 1));
+            }
+        }
+        return params;
+    }
+
+    protected static String decode(String value)
+    {
+        try
+        {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new CouchDBException(e);
+        }
+    }
+
+    private class ContinuousStream
+        extends InputStream
+    {
+        private long seq;
+
+        private byte[] current = new byte[0];
+
+        private int pos;
+
+        private boolean closed;
+
+        private final boolean includeDocs;
+
+        private final long heartbeat;
+
+        private final Set<String> docIds;
+
+        ContinuousStream(long since, boolean includeDocs, long heartbeat, Set<String> docIds)
+        {
+            this.seq = since;
+            this.includeDocs = includeDocs;
+            this.heartbeat = heartbeat;
+            this.docIds = docIds;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            synchronized(ChangesServerMock.this)
+            {
+                while (pos == current.length)
+                {
+                    if (closed)
+                    {
+                        return -1;
+                    }
+                    if (seq < changes.size())
+                    {
+                        int index = (int)seq++;
+                        if (matches(index, docIds))
+                        {
+                            current = toBytes(change(index, includeDocs) + "\n");
+                            pos = 0;
+                        }
+                    }
+                    else
+                    {
+                        try
+                        {
+                            ChangesServerMock.this.wait(heartbeat);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            throw new IOException("interrupted");
+                        }
+                        if (heartbeat > 0 && sendHeartbeats && !closed && seq == changes.size())
+                        {
+                            current = toBytes("\n");
+                            pos = 0;
+                        }
+                    }
+                }
+                int n = Math.min(len, current.length - pos);
+                System.arraycopy(current, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            synchronized(ChangesServerMock.this)
+            {
+                closed = true;
+                ChangesServerMock.this.notifyAll();
+            }
+        }
+    }
+
+    private static byte[] toBytes(String s)
+    {
+        try
+        {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new CouchDBException(e);
+        }
+    }
+
+    public boolean isShutdown()
+    {
+        return shutdown;
+    }
+
+    public void shutDown()
+    {
+        shutdown = true;
+    }
+
+    /**
+     * The mock serves one database, listed as {@link #DATABASE_NAME}.
+     */
+    public List<String> listDatabases()
+    {
+        return Arrays.asList(DATABASE_NAME);
+    }
+
+    public boolean createDatabase(String name)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public void deleteDatabase(String name)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public Response put(String uri)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public Response put(String uri, String body)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public Response put(String uri, byte[] body, String contentType)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public Response put(String uri, InputStream inputStream, String contentType, long length)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public Response post(String uri, String body)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public Response delete(String uri)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public void setCredentials(AuthScope authScope, Credentials credentials)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public Map<String, Map<String, Object>> getStats(String filter)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public ReplicationInfo replicate(String source, String target, boolean continuous)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public List<String> getUUIDs(int count)
+    {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,116 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.junit.Test;
+
+public class CheckpointingChangeListenerTestCase
+{
+    @Test
+    public void thatFileCheckpointStoreWorks() throws IOException
+    {
+        File file = File.createTempFile("checkpoint", ".seq");
+        file.delete();
+        try
+        {
+            FileCheckpointStore store = new FileCheckpointStore(file);
+            assertThat(store.load(), is(nullValue()));
+            store.store(42);
+            store.store(4711);
+            assertThat(store.load(), is(4711L));
+
+            assertThat(new FileCheckpointStore(file).load(), is(4711L));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void thatTornCheckpointFallsBackToPreviousOne() throws IOException
+    {
+        File file = File.createTempFile("checkpoint", ".seq");
+        file.delete();
+        try
+        {
+            FileCheckpointStore store = new FileCheckpointStore(file);
+            store.store(42);
+            store.store(4711);
+            store.store(4712);
+
+            // corrupt the sequence of the newest checkpoint in the first slot
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(8);
+            raf.writeLong(123456789L);
+            raf.close();
+
+            assertThat(new FileCheckpointStore(file).load(), is(4711L));
+
+            FileCheckpointStore reopened = new FileCheckpointStore(file);
+            reopened.store(5000);
+            assertThat(new FileCheckpointStore(file).load(), is(5000L));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void thatCheckpointsAreStored() throws IOException
+    {
+        MemoryStore store = new MemoryStore();
+        CheckpointingChangeListener listener = new CheckpointingChangeListener(new ChangeListener()
+        {
+            public void onChange(ChangeNotification changeNotification)
+            {
+            }
+        }, store, 3, Long.MAX_VALUE);
+
+        for (int i = 1; i <= 7; i++)
+        {
+            listener.onChange(change(i));
+        }
+        assertThat(store.load(), is(6L));
+        assertThat(store.count, is(2));
+
+        listener.close();
+        assertThat(store.load(), is(7L));
+        assertThat(store.count, is(3));
+    }
+
+    private static ChangeNotification change(long seq)
+    {
+        ChangeNotification change = new ChangeNotification();
+        change.setSequence(seq);
+        change.setId("doc" + seq);
+        return change;
+    }
+
+    static class MemoryStore implements CheckpointStore
+    {
+        private Long sequence;
+
+        private int count;
+
+        public Long load()
+        {
+            return sequence;
+        }
+
+        public void store(long sequence)
+        {
+            this.sequence = sequence;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.jcouchdb.db;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CompactViewQueryTestCase
+{
+    private final Database db = new Database(new ChangesServerMock(), ChangesServerMock.DATABASE_NAME);
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatCompactQueriesRejectIncludeDocs()
+    {
+        db.queryViewCompact("foo/bar", Map.class, new Options().includeDocs(true), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatColumnarQueriesRejectIncludeDocs()
+    {
+        db.queryViewColumnar("foo/bar", Map.class, new Options().put("include_docs", "true"), null);
+    }
+}
@@ -0,0 +1,74 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.document.DocumentChangeNotification;
+import org.jcouchdb.document.DocumentPollingResults;
+import org.junit.Test;
+
+public class DocumentChangesTestCase
+{
+    @Test
+    public void thatPollingWithDocumentsWorks()
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+
+        server.addChange("a", "{\"_id\":\"a\",\"_rev\":\"1-abc\",\"type\":\"foo\",\"value\":\"A\"}");
+        server.addChange("b", "{\"_id\":\"b\",\"_rev\":\"2-abc\",\"type\":\"foo\",\"value\":\"B\"}");
+
+        DocumentPollingResults<FooDocument> results = db.pollChangesWithDocuments(null, null, false, null, FooDocument.class);
+
+        assertThat(results.getLastSequence(), is(2L));
+        assertThat(results.getResults().size(), is(2));
+        DocumentChangeNotification<FooDocument> change = results.getResults().get(1);
+        assertThat(change.getId(), is("b"));
+        assertThat(change.getDocument().getValue(), is("B"));
+        assertThat(change.getDocument().getRevision(), is("2-abc"));
+        assertThat(server.getRequests().get(0).indexOf("include_docs=true") >= 0, is(true));
+    }
+
+    @Test
+    public void thatContinuousChangesWithDocumentsWork() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+
+        server.addChange("a", "{\"_id\":\"a\",\"_rev\":\"1-abc\",\"type\":\"foo\",\"value\":\"A\"}");
+
+        final List<FooDocument> docs = new ArrayList<FooDocument>();
+        ChangeFeed feed = db.registerDocumentChangeListener(null, null, null, FooDocument.class, new ChangeListener()
+        {
+            public void onChange(ChangeNotification changeNotification)
+            {
+                synchronized(docs)
+                {
+                    docs.add((FooDocument)((DocumentChangeNotification<?>)changeNotification).getDocument());
+                    docs.notifyAll();
+                }
+            }
+        });
+
+        server.addChange("b", "{\"_id\":\"b\",\"_rev\":\"2-abc\",\"type\":\"foo\",\"value\":\"B\"}");
+
+        synchronized(docs)
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (docs.size() < 2 && System.currentTimeMillis() < deadline)
+            {
+                docs.wait(100);
+            }
+        }
+        feed.stop();
+
+        assertThat(docs.size(), is(2));
+        assertThat(docs.get(0).getValue(), is("A"));
+        assertThat(docs.get(1).getValue(), is("B"));
+    }
+}
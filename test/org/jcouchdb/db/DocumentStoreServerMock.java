@@ -0,0 +1,120 @@
+package org.jcouchdb.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.svenson.JSON;
+import org.svenson.JSONParser;
+
+/**
+ * Changes server mock that also stores documents, one at a time or with <code>_bulk_docs</code>, and looks up
+ * documents by keys with a <code>POST</code> to <code>_all_docs</code>.
+ */
+public class DocumentStoreServerMock
+    extends ChangesServerMock
+{
+    /**
+     * Stores a document, rejecting updates of existing documents without the current revision.
+     */
+    @Override
+    public Response put(String uri, String body)
+    {
+        addRequest(uri);
+
+        String[] parts = uri.split("/");
+        if (parts.length != 3 || parts[2].startsWith("_"))
+        {
+            throw new UnsupportedOperationException(uri);
+        }
+
+        Map<String,Object> doc = object(JSONParser.defaultJSONParser().parse(body));
+        doc.put("_id", decode(parts[2]));
+        Map<String,Object> info = store(doc);
+        if (info.get("error") != null)
+        {
+            return new Response(409, "{\"error\":\"conflict\",\"reason\":\"Document update conflict.\"}");
+        }
+        info.put("ok", true);
+        return new Response(201, JSON.defaultJSON().forValue(info));
+    }
+
+    @Override
+    public Response post(String uri, String body)
+    {
+        addRequest(uri);
+
+        Map<String,Object> json = object(JSONParser.defaultJSONParser().parse(body));
+        if (uri.indexOf("/_all_docs") >= 0)
+        {
+            return allDocsByKeys((List<?>)json.get("keys"), "true".equals(params(uri).get("include_docs")));
+        }
+        if (uri.indexOf("/_bulk_docs") >= 0)
+        {
+            List<Map<String,Object>> infos = new ArrayList<Map<String,Object>>();
+            for (Object doc : (List<?>)json.get("docs"))
+            {
+                infos.add(store(object(doc)));
+            }
+            return new Response(201, JSON.defaultJSON().forValue(infos));
+        }
+        throw new UnsupportedOperationException(uri);
+    }
+
+    private synchronized Response allDocsByKeys(List<?> keys, boolean includeDocs)
+    {
+        StringBuilder sb = new StringBuilder("{\"total_rows\":" + getUpdateSequence() + ",\"offset\":0,\"rows\":[");
+        for (int i = 0; i < keys.size(); i++)
+        {
+            if (i > 0)
+            {
+                sb.append(",");
+            }
+            String key = (String)keys.get(i);
+            String doc = latestDocument(key);
+            if (doc == null)
+            {
+                sb.append("{\"key\":\"").append(key).append("\",\"error\":\"not_found\"}");
+                continue;
+            }
+            boolean deleted = isDeleted(doc);
+            sb.append("{\"id\":\"").append(key).append("\",\"key\":\"").append(key)
+                .append("\",\"value\":{\"rev\":\"").append(latestRevision(key)).append("\"")
+                .append(deleted ? ",\"deleted\":true}" : "}");
+            if (includeDocs)
+            {
+                sb.append(",\"doc\":").append(deleted ? "null" : doc);
+            }
+            sb.append("}");
+        }
+        sb.append("]}");
+        return new Response(200, sb.toString());
+    }
+
+    /**
+     * Stores the given document, rejecting updates of existing documents without the current revision.
+     *
+     * @return bulk result entry of the document
+     */
+    private synchronized Map<String,Object> store(Map<String,Object> doc)
+    {
+        String id = (String)doc.get("_id");
+        String currentRevision = currentRevision(id);
+        Map<String,Object> info = new HashMap<String, Object>();
+        info.put("id", id);
+        if (currentRevision != null && !currentRevision.equals(doc.get("_rev")))
+        {
+            info.put("error", "conflict");
+            info.put("reason", "Document update conflict.");
+        }
+        else
+        {
+            String rev = nextRevision();
+            doc.put("_rev", rev);
+            addChange(id, JSON.defaultJSON().forValue(doc));
+            info.put("rev", rev);
+        }
+        return info;
+    }
+}
@@ -0,0 +1,56 @@
+package org.jcouchdb.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.jcouchdb.exception.CouchDBException;
+
+/**
+ * Changes server mock that compresses document and view responses with gzip if the request accepts it.
+ */
+public class GzipServerMock
+    extends ChangesServerMock
+{
+    @Override
+    public Response get(String uri, Map<String, String> headers)
+    {
+        Response resp = super.get(uri, headers);
+        String[] parts = uri.split("/");
+        if (uri.indexOf("/_view/") >= 0 || (parts.length == 3 && !parts[2].startsWith("_")))
+        {
+            return encode(resp, headers);
+        }
+        return resp;
+    }
+
+    /**
+     * Compresses a successful response with gzip if the request accepts it.
+     */
+    private static Response encode(Response resp, Map<String, String> headers)
+    {
+        String acceptEncoding = headers != null ? headers.get("Accept-Encoding") : null;
+        if (!resp.isOk() || acceptEncoding == null || acceptEncoding.indexOf("gzip") < 0)
+        {
+            return resp;
+        }
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(bos);
+            gzip.write(resp.getContent());
+            gzip.close();
+            byte[] content = bos.toByteArray();
+            return new Response(200, new ByteArrayInputStream(content),
+                new Header[] { new BasicHeader("Content-Encoding", "gzip") }, content.length);
+        }
+        catch (IOException e)
+        {
+            throw new CouchDBException(e);
+        }
+    }
+}
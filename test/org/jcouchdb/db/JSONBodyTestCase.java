@@ -0,0 +1,128 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jcouchdb.document.Attachment;
+import org.jcouchdb.document.BaseDocument;
+import org.jcouchdb.document.DocumentInfo;
+import org.jcouchdb.util.Base64Data;
+import org.jcouchdb.util.Base64Util;
+import org.junit.Test;
+import org.svenson.JSON;
+import org.svenson.JSONCharacterSink;
+
+public class JSONBodyTestCase
+{
+    private final static int CONTENT_LENGTH = 1024 * 1024;
+
+    private static JSON createGenerator()
+    {
+        JSON json = new JSON();
+        json.registerJSONifier(Base64Data.class, Base64Data.JSONIFIER);
+        return json;
+    }
+
+    private static byte[] createContent()
+    {
+        byte[] content = new byte[CONTENT_LENGTH];
+        for (int i = 0; i < content.length; i++)
+        {
+            content[i] = (byte)(i * 31);
+        }
+        return content;
+    }
+
+    @Test
+    public void thatLengthMatchesWrittenBody() throws Exception
+    {
+        JSON generator = createGenerator();
+
+        Map<String, Object> value = new HashMap<String, Object>();
+        value.put("ascii", "abc");
+        value.put("latin", "\u00e4\u00f6\u00fc");
+        value.put("euro", "\u20ac");
+        value.put("emoji", "\ud83d\ude00");
+        value.put("attachment", new Attachment("application/octet-stream", new byte[] { 1, 2, 3, 4, 5 }));
+        JSONBody body = new JSONBody(generator, value);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        body.writeTo(bos);
+
+        byte[] expected = generator.forValue(value).getBytes("UTF-8");
+        assertThat(bos.toByteArray(), is(expected));
+        assertThat(body.getLength(), is((long)expected.length));
+    }
+
+    @Test
+    public void thatAttachmentIsWrittenInSmallChunks() throws Exception
+    {
+        BaseDocument doc = new BaseDocument();
+        doc.setId("doc");
+        doc.addAttachment("media.bin", new Attachment("application/octet-stream", createContent()));
+        JSONBody body = new JSONBody(createGenerator(), doc);
+
+        ChunkRecordingSink sink = new ChunkRecordingSink();
+        body.writeTo(sink);
+
+        // the whole Base64 text is far longer than any single piece of it
+        assertThat(sink.length > CONTENT_LENGTH * 4 / 3, is(true));
+        assertThat(sink.longest <= 4096, is(true));
+        assertThat(body.getLength(), is(sink.length));
+    }
+
+    @Test
+    public void thatDocumentsAreStreamedToTheServer() throws Exception
+    {
+        StreamingServerMock server = new StreamingServerMock();
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+        byte[] content = createContent();
+
+        BaseDocument doc = new BaseDocument();
+        doc.setId("doc");
+        doc.addAttachment("media.bin", new Attachment("application/octet-stream", content));
+        db.createDocument(doc);
+        assertThat(doc.getRevision(), is("1-abc"));
+
+        BaseDocument other = new BaseDocument();
+        other.setId("other");
+        other.addAttachment("media.bin", new Attachment("application/octet-stream", content));
+        List<DocumentInfo> infos = db.bulkCreateDocuments(Arrays.asList(other));
+        assertThat(infos.get(0).getRevision(), is("2-abc"));
+
+        assertThat(server.getStreamedRequestCount(), is(2));
+
+        BaseDocument stored = db.getDocument(BaseDocument.class, "doc");
+        assertThat(stored.getAttachments().get("media.bin").getData(), is(Base64Util.encodeBase64(content)));
+    }
+
+    private static class ChunkRecordingSink
+        implements JSONCharacterSink
+    {
+        private long length;
+
+        private int longest;
+
+        public void append(String s)
+        {
+            length += s.length();
+            longest = Math.max(longest, s.length());
+        }
+
+        public void append(char c)
+        {
+            append(String.valueOf(c));
+        }
+
+        public void append(Object o)
+        {
+            append(String.valueOf(o));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jcouchdb.document.BaseDocument;
+import org.jcouchdb.document.ValueRow;
+import org.jcouchdb.document.ViewResult;
+import org.jcouchdb.util.ViewCollator;
+import org.junit.Test;
+
+public class MaterializedIndexTestCase
+{
+    private final static MapFunction<BaseDocument> BY_CUSTOMER = new MapFunction<BaseDocument>()
+    {
+        public void map(BaseDocument document, Emitter emitter)
+        {
+            if (document.getProperty("customer") != null)
+            {
+                emitter.emit(document.getProperty("customer"), document.getProperty("total"));
+            }
+        }
+    };
+
+    @Test
+    public void thatIndexIsBootstrappedAndQueried()
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        server.addChange("o1", "{\"_id\":\"o1\",\"customer\":\"b\",\"total\":10}");
+        server.addChange("o2", "{\"_id\":\"o2\",\"customer\":\"a\",\"total\":5}");
+        server.addChange("o3", "{\"_id\":\"o3\",\"customer\":\"b\",\"total\":7}");
+        server.addChange("p1", "{\"_id\":\"p1\"}");
+        server.addChange("_design/x", "{\"_id\":\"_design/x\",\"customer\":\"x\"}");
+
+        MaterializedIndex<BaseDocument> index = new MaterializedIndex<BaseDocument>(db, BaseDocument.class, BY_CUSTOMER);
+        index.setPageSize(2);
+        index.start();
+        try
+        {
+            assertThat(index.size(), is(3));
+            assertThat(index.getLastSequence(), is(5L));
+
+            ViewResult<Object> result = index.query(new Options().key("b"));
+            assertThat(ids(result), is(Arrays.asList("o1", "o3")));
+            assertThat(result.getRows().get(0).getValue(), is((Object)10L));
+            assertThat(result.getTotalRows(), is(3));
+
+            assertThat(ids(index.query(null)), is(Arrays.asList("o2", "o1", "o3")));
+            assertThat(ids(index.query(new Options().descending(true))), is(Arrays.asList("o3", "o1", "o2")));
+            assertThat(ids(index.query(new Options().startKey("b").startKeyDocId("o3"))), is(Arrays.asList("o3")));
+            assertThat(ids(index.query(new Options().endKey("b").put("inclusive_end", false))),
+                is(Arrays.asList("o2")));
+            assertThat(ids(index.query(new Options().descending(true).startKey("b").endKey("a")
+                .put("inclusive_end", false))), is(Arrays.asList("o3", "o1")));
+            assertThat(ids(index.query(new Options().skip(1).limit(1))), is(Arrays.asList("o1")));
+
+            // one more row than the page size is requested to find the start of the next page
+            assertThat(server.getRequests().toString().indexOf("limit=3") >= 0, is(true));
+        }
+        finally
+        {
+            index.close();
+        }
+    }
+
+    @Test
+    public void thatIndexFollowsChanges() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        server.addChange("o1", "{\"_id\":\"o1\",\"customer\":\"b\",\"total\":10}");
+        server.addChange("o2", "{\"_id\":\"o2\",\"customer\":\"a\",\"total\":5}");
+
+        MaterializedIndex<BaseDocument> index = new MaterializedIndex<BaseDocument>(db, BaseDocument.class, BY_CUSTOMER);
+        index.start();
+        try
+        {
+            server.addChange("o2", "{\"_id\":\"o2\",\"_rev\":\"3-abc\",\"_deleted\":true}");
+            server.addChange("o1", "{\"_id\":\"o1\",\"customer\":\"c\",\"total\":11}");
+            long last = server.addChange("o3", "{\"_id\":\"o3\",\"customer\":\"a\",\"total\":1}");
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (index.getLastSequence() < last && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(20);
+            }
+
+            ViewResult<Object> result = index.query(null);
+            assertThat(ids(result), is(Arrays.asList("o3", "o1")));
+            assertThat(result.getRows().get(1).getKey(), is((Object)"c"));
+        }
+        finally
+        {
+            index.close();
+        }
+    }
+
+    @Test
+    public void thatFailingMapFunctionSkipsTheDocument() throws InterruptedException
+    {
+        ChangesServerMock server = new ChangesServerMock();
+        Database db = new Database(server, "test");
+        server.addChange("o1", "{\"_id\":\"o1\",\"customer\":\"b\",\"total\":10}");
+        server.addChange("bad1", "{\"_id\":\"bad1\",\"customer\":\"x\"}");
+
+        MaterializedIndex<BaseDocument> index = new MaterializedIndex<BaseDocument>(db, BaseDocument.class,
+            new MapFunction<BaseDocument>()
+            {
+                public void map(BaseDocument document, Emitter emitter)
+                {
+                    emitter.emit(document.getProperty("customer"), null);
+                    if (document.getProperty("total") == null)
+                    {
+                        throw new IllegalStateException("no total");
+                    }
+                }
+            });
+        index.start();
+        try
+        {
+            server.addChange("bad2", "{\"_id\":\"bad2\",\"customer\":\"y\"}");
+            server.addChange("o1", "{\"_id\":\"o1\",\"customer\":\"c\",\"total\":11}");
+            long last = server.addChange("o2", "{\"_id\":\"o2\",\"customer\":\"a\",\"total\":1}");
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (index.getLastSequence() < last && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(20);
+            }
+
+            assertThat(index.getLastSequence(), is(last));
+            assertThat(index.getFeed().isRunning(), is(true));
+            assertThat(ids(index.query(null)), is(Arrays.asList("o2", "o1")));
+        }
+        finally
+        {
+            index.close();
+        }
+    }
+
+    @Test
+    public void thatKeysAreCollatedLikeCouchDB()
+    {
+        Map<String,Object> object = new HashMap<String, Object>();
+        object.put("a", 1);
+
+        List<Object> expected = Arrays.asList(null, false, true, 1L, 2.5, 10, "a", "A", "aa", "b", "B",
+            Arrays.asList("a"), Arrays.asList("a", 1), Arrays.asList("b"), object);
+
+        List<Object> keys = new ArrayList<Object>(expected);
+        Collections.reverse(keys);
+        Collections.sort(keys, ViewCollator.INSTANCE);
+
+        assertThat(keys, is(expected));
+    }
+
+    private static List<String> ids(ViewResult<Object> result)
+    {
+        List<String> ids = new ArrayList<String>();
+        for (ValueRow<Object> row : result.getRows())
+        {
+            ids.add(row.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,133 @@
+package org.jcouchdb.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.jcouchdb.exception.CouchDBException;
+import org.svenson.JSON;
+import org.svenson.JSONParser;
+
+/**
+ * Attachment server mock that stores documents with attachments sent as <code>multipart/related</code> and hands
+ * out uuids for new documents.
+ */
+public class MultipartServerMock
+    extends AttachmentServerMock
+{
+    private int uuidCount;
+
+    /**
+     * Stores a document with attachments sent as <code>multipart/related</code>.
+     */
+    @Override
+    public Response put(String uri, InputStream inputStream, String contentType, long length)
+    {
+        addRequest(uri);
+
+        if (!contentType.startsWith("multipart/related"))
+        {
+            throw new UnsupportedOperationException(contentType);
+        }
+        String boundary = contentType.substring(contentType.indexOf("boundary=\"") + 10, contentType.length() - 1);
+
+        String body;
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = inputStream.read(buf)) != -1)
+            {
+                bos.write(buf, 0, n);
+            }
+            body = new String(bos.toByteArray(), "ISO-8859-1");
+        }
+        catch (IOException e)
+        {
+            throw new CouchDBException(e);
+        }
+        if (body.length() != length)
+        {
+            return new Response(400, "{\"error\":\"bad_request\",\"reason\":\"wrong length\"}");
+        }
+
+        // parts without the leading delimiter and the closing delimiter
+        String[] parts = body.substring(boundary.length() + 4, body.length() - boundary.length() - 6)
+            .split("\r\n--" + Pattern.quote(boundary) + "\r\n");
+        List<byte[]> bodies = new ArrayList<byte[]>();
+        for (String part : parts)
+        {
+            try
+            {
+                bodies.add(part.substring(part.indexOf("\r\n\r\n") + 4).getBytes("ISO-8859-1"));
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                throw new CouchDBException(e);
+            }
+        }
+
+        Map<String,Object> doc = object(JSONParser.defaultJSONParser().parse(utf8(bodies.get(0))));
+        String id = (String)doc.get("_id");
+        Map<String,Object> attachmentStubs = object(doc.get("_attachments"));
+        int part = 1;
+        List<String> names = new ArrayList<String>();
+        for (Map.Entry<String,Object> e : attachmentStubs.entrySet())
+        {
+            Map<String,Object> stub = object(e.getValue());
+            if (Boolean.TRUE.equals(stub.remove("follows")))
+            {
+                stub.put("stub", true);
+                names.add(e.getKey());
+            }
+            e.setValue(stub);
+        }
+        doc.put("_attachments", attachmentStubs);
+
+        synchronized(this)
+        {
+            String currentRevision = currentRevision(id);
+            if (currentRevision != null && !currentRevision.equals(doc.get("_rev")))
+            {
+                return new Response(409, "{\"error\":\"conflict\",\"reason\":\"Document update conflict.\"}");
+            }
+            for (String name : names)
+            {
+                addAttachment(id, name, bodies.get(part++));
+            }
+            String rev = nextRevision();
+            doc.put("_rev", rev);
+            addChange(id, JSON.defaultJSON().forValue(doc));
+            return new Response(201, "{\"ok\":true,\"id\":\"" + id + "\",\"rev\":\"" + rev + "\"}");
+        }
+    }
+
+    private static String utf8(byte[] data)
+    {
+        try
+        {
+            return new String(data, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new CouchDBException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<String> getUUIDs(int count)
+    {
+        List<String> uuids = new ArrayList<String>();
+        for (int i = 0; i < count; i++)
+        {
+            uuids.add("uuid" + (++uuidCount));
+        }
+        return uuids;
+    }
+}
@@ -0,0 +1,112 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jcouchdb.document.AttachmentUpload;
+import org.jcouchdb.document.BaseDocument;
+import org.jcouchdb.document.ValueAndDocumentRow;
+import org.jcouchdb.exception.UpdateConflictException;
+import org.junit.Test;
+
+public class MultipartUploadTestCase
+{
+    private static byte[] binary()
+    {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte)i;
+        }
+        return data;
+    }
+
+    @Test
+    public void thatDocumentAndAttachmentsAreStoredInOneRequest() throws Exception
+    {
+        MultipartServerMock server = new MultipartServerMock();
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+
+        BaseDocument doc = new BaseDocument();
+        doc.setProperty("title", "bundle");
+        db.createDocumentWithAttachments(doc, Arrays.asList(
+            new AttachmentUpload("image.bin", "application/octet-stream", binary()),
+            new AttachmentUpload("notes.txt", "text/plain", "some notes".getBytes("UTF-8"))));
+
+        assertThat(doc.getId(), is("uuid1"));
+        assertThat(doc.getRevision(), is("1-abc"));
+        assertThat(server.getRequests().size(), is(1));
+        assertThat(db.getAttachment("uuid1", "image.bin"), is(binary()));
+        assertThat(new String(db.getAttachment("uuid1", "notes.txt"), "UTF-8"), is("some notes"));
+
+        BaseDocument stored = document(db, "uuid1");
+        assertThat(stored.getProperty("title"), is((Object)"bundle"));
+        assertThat(stored.getAttachments().get("image.bin").isStub(), is(true));
+        assertThat(stored.getAttachments().get("image.bin").getLength(), is(256L));
+
+        // update keeps existing attachments
+        stored.setProperty("title", "updated");
+        db.createDocumentWithAttachments(stored, Collections.singletonList(
+            new AttachmentUpload("more.txt", "text/plain", "more".getBytes("UTF-8"))));
+        assertThat(stored.getRevision(), is("2-abc"));
+
+        BaseDocument updated = document(db, "uuid1");
+        assertThat(updated.getProperty("title"), is((Object)"updated"));
+        assertThat(updated.getAttachments().keySet().size(), is(3));
+        assertThat(new String(db.getAttachment("uuid1", "more.txt"), "UTF-8"), is("more"));
+    }
+
+    @Test
+    public void thatMapDocumentsKeepTheirProperties() throws Exception
+    {
+        MultipartServerMock server = new MultipartServerMock();
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+
+        Map<String, Object> doc = new HashMap<String, Object>();
+        doc.put("_id", "doc");
+        doc.put("tags", Arrays.asList("a", "b"));
+        db.createDocumentWithAttachments(doc, Collections.singletonList(
+            new AttachmentUpload("a.txt", "text/plain", "a".getBytes("UTF-8"))));
+
+        assertThat(doc.get("_rev"), is((Object)"1-abc"));
+        assertThat(doc.containsKey("_attachments"), is(false));
+
+        BaseDocument stored = document(db, "doc");
+        assertThat(stored.getProperty("tags"), is((Object)Arrays.asList("a", "b")));
+        assertThat(stored.getAttachments().keySet().size(), is(1));
+        assertThat(new String(db.getAttachment("doc", "a.txt"), "UTF-8"), is("a"));
+    }
+
+    @Test(expected = UpdateConflictException.class)
+    public void thatStaleRevisionConflicts() throws Exception
+    {
+        MultipartServerMock server = new MultipartServerMock();
+        server.addChange("doc", "{\"_id\":\"doc\",\"_rev\":\"1-abc\"}");
+        server.addChange("doc", "{\"_id\":\"doc\",\"_rev\":\"2-abc\"}");
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+
+        BaseDocument doc = new BaseDocument();
+        doc.setId("doc");
+        doc.setRevision("1-abc");
+        db.createDocumentWithAttachments(doc, Collections.singletonList(
+            new AttachmentUpload("a.txt", "text/plain", "a".getBytes("UTF-8"))));
+    }
+
+    private static BaseDocument document(Database db, String id)
+    {
+        for (ValueAndDocumentRow<Map<String,Object>, BaseDocument> row : db.listDocumentsWithContent(BaseDocument.class, null,
+            null).getRows())
+        {
+            if (row.getId().equals(id))
+            {
+                return row.getDocument();
+            }
+        }
+        return null;
+    }
+}
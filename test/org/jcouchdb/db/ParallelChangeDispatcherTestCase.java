@@ -0,0 +1,153 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jcouchdb.document.ChangeListener;
+import org.jcouchdb.document.ChangeNotification;
+import org.jcouchdb.exception.CouchDBException;
+import org.junit.Test;
+
+public class ParallelChangeDispatcherTestCase
+{
+    @Test
+    public void thatChangesPerDocumentStayOrdered()
+    {
+        final Map<String, List<Long>> seen = new HashMap<String, List<Long>>();
+        ParallelChangeDispatcher dispatcher = new ParallelChangeDispatcher(new ChangeListener()
+        {
+            public void onChange(ChangeNotification changeNotification)
+            {
+                synchronized(seen)
+                {
+                    List<Long> sequences = seen.get(changeNotification.getId());
+                    if (sequences == null)
+                    {
+                        sequences = new ArrayList<Long>();
+                        seen.put(changeNotification.getId(), sequences);
+                    }
+                    sequences.add(changeNotification.getSequence());
+                }
+            }
+        }, 4, 10);
+        dispatcher.start();
+
+        for (int i = 1; i <= 200; i++)
+        {
+            dispatcher.onChange(change(i, "doc" + (i % 7)));
+        }
+        dispatcher.close();
+
+        int count = 0;
+        for (List<Long> sequences : seen.values())
+        {
+            for (int i = 1; i < sequences.size(); i++)
+            {
+                assertThat(sequences.get(i - 1) < sequences.get(i), is(true));
+            }
+            count += sequences.size();
+        }
+        assertThat(count, is(200));
+        assertThat(dispatcher.getLastSequence(), is(200L));
+    }
+
+    @Test
+    public void thatLastSequenceWaitsForSlowChanges() throws InterruptedException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch processed = new CountDownLatch(2);
+        ParallelChangeDispatcher dispatcher = new ParallelChangeDispatcher(new ChangeListener()
+        {
+            public void onChange(ChangeNotification changeNotification)
+            {
+                if (changeNotification.getId().equals("slow"))
+                {
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                processed.countDown();
+            }
+        }, 2, 10);
+        dispatcher.start();
+
+        // find an id that goes to the other worker than "slow"
+        String fast = "fast";
+        while ((fast.hashCode() & 0x7fffffff) % 2 == ("slow".hashCode() & 0x7fffffff) % 2)
+        {
+            fast += "x";
+        }
+
+        dispatcher.onChange(change(5, "slow"));
+        dispatcher.onChange(change(6, fast));
+
+        assertThat(processed.await(200, TimeUnit.MILLISECONDS), is(false));
+        assertThat(dispatcher.getLastSequence(), is(4L));
+
+        release.countDown();
+        dispatcher.close();
+        assertThat(dispatcher.getLastSequence(), is(6L));
+    }
+
+    @Test
+    public void thatFailedChangesAreNotCheckpointed() throws InterruptedException
+    {
+        final CountDownLatch failed = new CountDownLatch(1);
+        ParallelChangeDispatcher dispatcher = new ParallelChangeDispatcher(new ChangeListener()
+        {
+            public void onChange(ChangeNotification changeNotification)
+            {
+                if (changeNotification.getSequence() == 3)
+                {
+                    failed.countDown();
+                    throw new Error("listener failure");
+                }
+            }
+        }, 2, 1);
+        dispatcher.start();
+
+        for (int i = 1; i <= 3; i++)
+        {
+            dispatcher.onChange(change(i, "doc" + i));
+        }
+        assertThat(failed.await(1, TimeUnit.SECONDS), is(true));
+
+        try
+        {
+            for (int i = 4; i <= 100; i++)
+            {
+                dispatcher.onChange(change(i, "doc" + i));
+            }
+            fail("onChange should fail after the listener failed");
+        }
+        catch (CouchDBException e)
+        {
+            assertThat(e.getCause() instanceof Error, is(true));
+        }
+        dispatcher.close();
+
+        assertThat(dispatcher.getLastSequence(), is(2L));
+        assertThat(dispatcher.getFailure() instanceof Error, is(true));
+    }
+
+    private static ChangeNotification change(long seq, String id)
+    {
+        ChangeNotification change = new ChangeNotification();
+        change.setSequence(seq);
+        change.setId(id);
+        return change;
+    }
+}
@@ -0,0 +1,86 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.jcouchdb.exception.NotFoundException;
+import org.junit.Test;
+
+public class RawResponseTestCase
+{
+    private final static String DOC = "{\"_id\":\"doc1\",\"_rev\":\"1-abc\",\"value\":\"foo\"}";
+
+    private static Database createDatabase()
+    {
+        GzipServerMock server = new GzipServerMock();
+        server.addChange("doc1", DOC);
+        server.addChange("doc2");
+        return new Database(server, ChangesServerMock.DATABASE_NAME);
+    }
+
+    @Test
+    public void thatDocumentsAreCopiedUnparsed() throws IOException
+    {
+        Database db = createDatabase();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        String encoding = db.getDocumentRaw("doc1", null, null, bos);
+
+        assertThat(encoding, is(nullValue()));
+        assertThat(bos.toString("UTF-8"), is(DOC));
+
+        bos.reset();
+        db.getDocumentRaw("doc1", "1-abc", null, Channels.newChannel(bos));
+        assertThat(bos.toString("UTF-8"), is(DOC));
+    }
+
+    @Test
+    public void thatEncodedDocumentsArePassedThrough() throws IOException
+    {
+        Database db = createDatabase();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        String encoding = db.getDocumentRaw("doc1", null, "gzip", bos);
+
+        assertThat(encoding, is("gzip"));
+        assertThat(gunzip(bos.toByteArray()), is(DOC));
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void thatMissingDocumentsFail()
+    {
+        createDatabase().getDocumentRaw("missing", null, null, new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void thatViewResultsAreCopiedUnparsed() throws IOException
+    {
+        Database db = createDatabase();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        String encoding = db.queryViewRaw("foo/bar", new Options().limit(1), null, bos);
+
+        assertThat(encoding, is(nullValue()));
+        assertThat(bos.toString("UTF-8"), is("{\"total_rows\":2,\"offset\":0,\"rows\":[" +
+            "{\"id\":\"doc1\",\"key\":\"doc1\",\"value\":{\"rev\":\"1-abc\"}}]}"));
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        encoding = db.queryViewRaw("foo/bar", new Options().limit(1), "gzip", Channels.newChannel(encoded));
+
+        assertThat(encoding, is("gzip"));
+        assertThat(gunzip(encoded.toByteArray()), is(bos.toString("UTF-8")));
+    }
+
+    private static String gunzip(byte[] data) throws IOException
+    {
+        return IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(data)), "UTF-8");
+    }
+}
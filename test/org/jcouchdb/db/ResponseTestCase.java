@@ -0,0 +1,78 @@
+package org.jcouchdb.db;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.Test;
+
+
+public class ResponseTestCase
+{
+    @Test
+    public void thatWritingContentWorks() throws Exception
+    {
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte) i;
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        long count = new Response(200, new ByteArrayInputStream(data), (Header[]) null).writeContentTo(bos);
+        assertThat(count, is(20000L));
+        assertThat(bos.toByteArray(), is(data));
+
+        bos = new ByteArrayOutputStream();
+        count = new Response(200, new ByteArrayInputStream(data), (Header[]) null).writeContentTo(Channels.newChannel(bos));
+        assertThat(count, is(20000L));
+        assertThat(bos.toByteArray(), is(data));
+    }
+
+    @Test
+    public void thatGettingHeadersWorks()
+    {
+        Response response = new Response(200, new ByteArrayInputStream(new byte[0]), new Header[] {
+            new BasicHeader("Content-Type", "application/json"),
+            new BasicHeader("Content-Encoding", "gzip")
+        });
+
+        assertThat(response.getHeader("content-encoding"), is("gzip"));
+        assertThat(response.getHeader("ETag"), is(nullValue()));
+    }
+
+    @Test
+    public void thatReadingContentWorks() throws Exception
+    {
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte) (i * 7);
+        }
+
+        // unknown length
+        assertThat(new Response(200, new ByteArrayInputStream(data), (Header[]) null).getContent(), is(data));
+        // known length
+        assertThat(new Response(200, new ByteArrayInputStream(data), null, data.length).getContent(), is(data));
+        // wrong lengths
+        assertThat(new Response(200, new ByteArrayInputStream(data), null, 100).getContent(), is(data));
+        assertThat(new Response(200, new ByteArrayInputStream(data), null, 30000).getContent(), is(data));
+        // empty
+        assertThat(new Response(200, new ByteArrayInputStream(new byte[0]), (Header[]) null).getContent().length, is(0));
+    }
+
+    @Test
+    public void thatUTF8DecodingWorks() throws Exception
+    {
+        String s = "{\"a\":\"\u00e4\u00f6\u00fc\u20ac\"}";
+        assertThat(new Response(200, s).getContentAsString(), is(s));
+        assertThat(new Response(200, s).getContentAsCharSequence().toString(), is(s));
+        assertThat(new Response(200, s).getContentAsByteBuffer().remaining(), is(s.getBytes("UTF-8").length));
+    }
+}
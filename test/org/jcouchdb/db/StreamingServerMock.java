@@ -0,0 +1,61 @@
+package org.jcouchdb.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.jcouchdb.exception.CouchDBException;
+
+/**
+ * Document store server mock that accepts streamed JSON request bodies. The bodies are written like a streaming
+ * request would write them and then handled like string bodies.
+ */
+public class StreamingServerMock
+    extends DocumentStoreServerMock
+    implements StreamingServer
+{
+    private int streamedRequestCount;
+
+    /**
+     * Returns the number of requests whose JSON body was streamed.
+     */
+    public synchronized int getStreamedRequestCount()
+    {
+        return streamedRequestCount;
+    }
+
+    public Response put(String uri, JSONBody body)
+    {
+        return put(uri, streamed(body));
+    }
+
+    public Response post(String uri, JSONBody body)
+    {
+        return post(uri, streamed(body));
+    }
+
+    /**
+     * Writes the body like a streaming request would and checks that it has the announced length.
+     */
+    private String streamed(JSONBody body)
+    {
+        try
+        {
+            long length = body.getLength();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            body.writeTo(bos);
+            if (bos.size() != length)
+            {
+                throw new IllegalStateException("body has " + bos.size() + " bytes instead of " + length);
+            }
+            synchronized(this)
+            {
+                streamedRequestCount++;
+            }
+            return bos.toString("UTF-8");
+        }
+        catch (IOException e)
+        {
+            throw new CouchDBException(e);
+        }
+    }
+}
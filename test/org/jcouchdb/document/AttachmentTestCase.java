@@ -0,0 +1,44 @@
+package org.jcouchdb.document;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.jcouchdb.util.Base64Data;
+import org.junit.Test;
+import org.svenson.JSON;
+import org.svenson.JSONParser;
+
+public class AttachmentTestCase
+{
+    @Test
+    public void thatRawContentIsEncodedWhenSerialized() throws Exception
+    {
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; i++)
+        {
+            content[i] = (byte)i;
+        }
+        Attachment attachment = new Attachment("application/octet-stream", content);
+        assertThat(attachment.hasData(), is(true));
+        assertThat(attachment.getContent() == content, is(true));
+
+        String json = JSON.defaultJSON().forValue(attachment);
+
+        JSON chunked = new JSON();
+        chunked.registerJSONifier(Base64Data.class, Base64Data.JSONIFIER);
+        assertThat(chunked.forValue(attachment), is(json));
+
+        Attachment parsed = new JSONParser().parse(Attachment.class, json);
+        assertThat(parsed.getData(), is(attachment.getData()));
+        assertThat(parsed.getContentType(), is("application/octet-stream"));
+    }
+
+    @Test
+    public void thatStubHasNoData()
+    {
+        Attachment attachment = new JSONParser().parse(Attachment.class,
+            "{\"content_type\":\"text/plain\",\"length\":3,\"stub\":true}");
+        assertThat(attachment.hasData(), is(false));
+        assertThat(JSON.defaultJSON().forValue(attachment).indexOf("data") < 0, is(true));
+    }
+}
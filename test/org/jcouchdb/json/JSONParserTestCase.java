@@ -2,16 +2,25 @@ package org.jcouchdb.json;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
+import org.jcouchdb.document.ColumnarViewResult;
+import org.jcouchdb.document.CompactValueRow;
+import org.jcouchdb.document.CompactViewResult;
 import org.jcouchdb.document.ViewResult;
 import org.jcouchdb.document.ValueRow;
+import org.jcouchdb.util.DeduplicatingObjectFactory;
+import org.jcouchdb.util.StringPool;
 import org.junit.Test;
 import org.svenson.JSONParser;
 
@@ -52,4 +61,89 @@ public class JSONParserTestCase
 
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void thatCompactViewResultParsingWorks() throws IOException
+    {
+        String json = FileUtils.readFileToString(new File(
+            "test/org/jcouchdb/json/test-files/view-result.json"));
+
+        parser.addTypeHint(".rows[].value", ContentBean.class);
+        CompactViewResult<ContentBean> viewResult = parser.parse(CompactViewResult.class, json);
+
+        assertThat(viewResult.getTotalRows(), is(2));
+        assertThat(viewResult.getRows().size(), is(2));
+
+        CompactValueRow<ContentBean> row = viewResult.getRows().get(1);
+        assertThat(row.getId(), is("doc2"));
+        assertThat((String)row.getKey(), is("1"));
+        assertThat(row.getValue().getValue(), is("bar"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void thatColumnarViewResultParsingWorks() throws IOException
+    {
+        String json = FileUtils.readFileToString(new File(
+            "test/org/jcouchdb/json/test-files/view-result.json"));
+
+        parser.addTypeHint(".rows[].value", ContentBean.class);
+        ColumnarViewResult<ContentBean> viewResult = parser.parse(ColumnarViewResult.class, json);
+
+        assertThat(viewResult.getTotalRows(), is(2));
+        assertThat(viewResult.size(), is(2));
+        assertThat(viewResult.getId(0), is("doc1"));
+        assertThat((String)viewResult.getKey(0), is("1"));
+        assertThat(viewResult.getValue(0).getValue(), is("foo"));
+        assertThat(viewResult.getValue(1).getId(), is("doc2"));
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void thatCompactResultsAcceptUpdateSequence()
+    {
+        String json = "{\"total_rows\":1,\"update_seq\":42,\"offset\":0,\"rows\":[" +
+            "{\"id\":\"doc1\",\"key\":\"a\",\"value\":1}]}";
+
+        CompactViewResult<Object> compactResult = parser.parse(CompactViewResult.class, json);
+        assertThat(compactResult.getUpdateSeq(), is(42L));
+        assertThat(compactResult.getRows().size(), is(1));
+
+        ColumnarViewResult<Object> columnarResult = parser.parse(ColumnarViewResult.class, json);
+        assertThat(columnarResult.getUpdateSeq(), is(42L));
+        assertThat(columnarResult.getId(0), is("doc1"));
+
+        CompactViewResult<Object> withoutSeq = parser.parse(CompactViewResult.class, "{\"rows\":[]}");
+        assertThat(withoutSeq.getUpdateSeq(), is(-1L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void thatStringDeduplicationWorks()
+    {
+        String json = "{\"total_rows\":2,\"offset\":0,\"rows\":[" +
+            "{\"id\":\"doc1\",\"key\":[\"a\",1],\"value\":{\"type\":\"foo\",\"name\":\"x\"}}," +
+            "{\"id\":\"doc1\",\"key\":[\"a\",2],\"value\":{\"type\":\"foo\",\"name\":\"x\"}}]}";
+
+        DeduplicatingObjectFactory factory = new DeduplicatingObjectFactory(new StringPool(), Collections.singleton("type"));
+        parser.addObjectFactory(factory);
+
+        ColumnarViewResult<Map<String,Object>> columnarResult = parser.parse(ColumnarViewResult.class, json);
+        assertThat(columnarResult.getId(1), is(sameInstance(columnarResult.getId(0))));
+
+        parser.addTypeHint(".rows[]", ValueRow.class);
+        ViewResult<Map<String,Object>> viewResult = parser.parse(ViewResult.class, json);
+
+        ValueRow<Map<String,Object>> row1 = viewResult.getRows().get(0);
+        ValueRow<Map<String,Object>> row2 = viewResult.getRows().get(1);
+        assertThat(row1.getId(), is("doc1"));
+        assertThat(row2.getId(), is(sameInstance(row1.getId())));
+        assertThat(((List<?>)row2.getKey()).get(0), is(sameInstance(((List<?>)row1.getKey()).get(0))));
+        assertThat(row2.getValue().get("type"), is(sameInstance(row1.getValue().get("type"))));
+        assertThat(row2.getValue().get("name"), is(not(sameInstance(row1.getValue().get("name")))));
+        assertThat(row2.getValue().keySet().iterator().next(),
+            is(sameInstance(row1.getValue().keySet().iterator().next())));
+
+    }
 }
@@ -3,8 +3,13 @@ package org.jcouchdb.util;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 import org.junit.Test;
 
@@ -33,6 +38,64 @@ public class Base64UtilTestCase
         assertThat(base64, is("AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8gISIjJCUmJygpKissLS4vMDEyMzQ1Njc4OTo7PD0+P0BBQkNERUZHSElKS0xNTk9QUVJTVFVWV1hZWltcXV5fYGFiY2RlZmdoaWprbG1ub3BxcnN0dXZ3eHl6e3x9fn+AgYKDhIWGh4iJiouMjY6PkJGSk5SVlpeYmZqbnJ2en6ChoqOkpaanqKmqq6ytrq+wsbKztLW2t7i5uru8vb6/wMHCw8TFxsfIycrLzM3Oz9DR0tPU1dbX2Nna29zd3t/g4eLj5OXm5+jp6uvs7e7v8PHy8/T19vf4+fr7/P3+/w=="));
     }
 
+    @Test
+    public void thatDecodingWorks()
+    {
+        assertThat(Base64Util.decodeBase64("QQ=="), is(new byte[]{65}));
+        assertThat(Base64Util.decodeBase64("QUI="), is(new byte[]{65,66}));
+        assertThat(Base64Util.decodeBase64("QUJD"), is(new byte[]{65,66,67}));
+        assertThat(Base64Util.decodeBase64("QUJD\r\nQUI="), is(new byte[]{65,66,67,65,66}));
+        assertThat(Base64Util.decodeBase64(""), is(new byte[0]));
+        assertThat(Base64Util.decodeBase64(Base64Util.encodeBase64(getTestData())), is(getTestData()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatInvalidCharactersAreRejected()
+    {
+        Base64Util.decodeBase64("QU*D");
+    }
+
+    @Test
+    public void thatEncodingMatchesCommonsCodec() throws IOException
+    {
+        Random random = new Random(42);
+        for (int length = 0; length < 50; length++)
+        {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String expected = new String(Base64.encodeBase64(data), "US-ASCII");
+            assertThat(Base64Util.encodeBase64(data), is(expected));
+            assertThat(Base64Util.decodeBase64(expected), is(data));
+        }
+    }
+
+    @Test
+    public void thatStreamsWork() throws IOException
+    {
+        byte[] data = new byte[10000];
+        new Random(42).nextBytes(data);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Base64OutputStream os = new Base64OutputStream(bos);
+        os.write(data, 0, 1);
+        os.write(data, 1, 4999);
+        os.write(data[5000]);
+        os.write(data, 5001, 4999);
+        os.close();
+        assertThat(new String(bos.toByteArray(), "US-ASCII"), is(Base64Util.encodeBase64(data)));
+
+        Base64InputStream is = new Base64InputStream(new ByteArrayInputStream(bos.toByteArray()));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        decoded.write(is.read());
+        byte[] buf = new byte[333];
+        int n;
+        while ((n = is.read(buf)) != -1)
+        {
+            decoded.write(buf, 0, n);
+        }
+        assertThat(Arrays.equals(decoded.toByteArray(), data), is(true));
+    }
+
     private byte[] getTestData()
     {
         byte[] data = new byte[256];
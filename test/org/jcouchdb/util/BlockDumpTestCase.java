@@ -0,0 +1,183 @@
+package org.jcouchdb.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.jcouchdb.db.AttachmentServerMock;
+import org.jcouchdb.db.ChangesServerMock;
+import org.jcouchdb.db.Database;
+import org.jcouchdb.db.DocumentStoreServerMock;
+import org.jcouchdb.document.BaseDocument;
+import org.jcouchdb.document.ValueAndDocumentRow;
+import org.junit.Test;
+
+public class BlockDumpTestCase
+{
+    private static AttachmentServerMock createServer() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        server.addChange("a", "{\"_id\":\"a\",\"_rev\":\"1-abc\",\"v\":1}");
+        server.addChange("b", "{\"_id\":\"b\",\"_rev\":\"2-abc\",\"_attachments\":{" +
+            "\"logo.png\":{\"content_type\":\"image/png\",\"length\":4,\"stub\":true}}}");
+        server.addAttachment("b", "logo.png", "same".getBytes("UTF-8"));
+        server.addChange("c", "{\"_id\":\"c\",\"_rev\":\"3-abc\",\"v\":\"line\\nbreak\"}");
+        server.addChange("d", "{\"_id\":\"d\",\"_rev\":\"4-abc\",\"_attachments\":{" +
+            "\"copy.png\":{\"content_type\":\"image/png\",\"length\":4,\"stub\":true}," +
+            "\"other.txt\":{\"content_type\":\"text/plain\",\"length\":5,\"stub\":true}}}");
+        server.addAttachment("d", "copy.png", "same".getBytes("UTF-8"));
+        server.addAttachment("d", "other.txt", "other".getBytes("UTF-8"));
+        server.addChange("e", "{\"_id\":\"e\",\"_rev\":\"5-abc\",\"v\":5}");
+        return server;
+    }
+
+    private static File dump(ChangesServerMock server) throws IOException
+    {
+        File file = File.createTempFile("jcouchdb-blocks", ".dump");
+        file.deleteOnExit();
+
+        CouchDBDumper dumper = new CouchDBDumper();
+        dumper.setPageSize(2);
+        dumper.setCompressorThreads(2);
+        dumper.dumpDatabaseBlocks(server, ChangesServerMock.DATABASE_NAME, new FileOutputStream(file));
+        return file;
+    }
+
+    @Test
+    public void thatBlocksAreRestoredInParallel() throws IOException
+    {
+        File file = dump(createServer());
+
+        BlockDumpReader reader = new BlockDumpReader(file);
+        try
+        {
+            assertThat(reader.getManifest().getUpdateSequence(), is(5L));
+            assertThat(reader.getDocumentBlocks().size(), is(3));
+            assertThat(reader.getDocumentBlocks().get(2).getCount(), is(1));
+            assertThat(new String(reader.readAttachment(BlockDumpWriter.digest("same".getBytes("UTF-8"))), "UTF-8"),
+                is("same"));
+
+            int attachmentBlocks = 0;
+            for (BlockInfo block : reader.getDocumentBlocks())
+            {
+                assertThat(block.getType(), is(BlockInfo.DOCUMENTS));
+            }
+            for (BlockInfo block : reader.getIndex().getBlocks())
+            {
+                if (BlockInfo.ATTACHMENT.equals(block.getType()))
+                {
+                    attachmentBlocks++;
+                }
+            }
+            // identical content of b/logo.png and d/copy.png is stored once
+            assertThat(attachmentBlocks, is(2));
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        DocumentStoreServerMock target = new DocumentStoreServerMock();
+        CouchDBLoader loader = new CouchDBLoader();
+        loader.setThreads(3);
+        loader.setBatchSize(1);
+        loader.loadBlocks(file, target, ChangesServerMock.DATABASE_NAME);
+
+        Map<String, BaseDocument> docs = documents(target);
+        assertThat(docs.size(), is(5));
+        assertThat(docs.get("a").getProperty("v"), is((Object)1L));
+        assertThat(docs.get("c").getProperty("v"), is((Object)"line\nbreak"));
+        assertThat(attachment(docs.get("b"), "logo.png"), is("same"));
+        assertThat(attachment(docs.get("d"), "copy.png"), is("same"));
+        assertThat(attachment(docs.get("d"), "other.txt"), is("other"));
+    }
+
+    @Test
+    public void thatBlocksAreSplitByPendingAttachments() throws IOException
+    {
+        AttachmentServerMock server = createServer();
+        File file = File.createTempFile("jcouchdb-blocks", ".dump");
+        file.deleteOnExit();
+
+        CouchDBDumper dumper = new CouchDBDumper();
+        dumper.setPageSize(10);
+        dumper.setMaxPendingAttachments(1);
+        dumper.dumpDatabaseBlocks(server, ChangesServerMock.DATABASE_NAME, new FileOutputStream(file));
+
+        BlockDumpReader reader = new BlockDumpReader(file);
+        try
+        {
+            // a, b and c share a block, d brings two attachments and starts the next one
+            assertThat(reader.getDocumentBlocks().size(), is(2));
+            assertThat(reader.getDocumentBlocks().get(0).getCount(), is(3));
+            assertThat(reader.getDocumentBlocks().get(1).getCount(), is(2));
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        DocumentStoreServerMock target = new DocumentStoreServerMock();
+        new CouchDBLoader().loadBlocks(file, target, ChangesServerMock.DATABASE_NAME);
+        Map<String, BaseDocument> docs = documents(target);
+        assertThat(docs.size(), is(5));
+        assertThat(attachment(docs.get("d"), "other.txt"), is("other"));
+    }
+
+    @Test(expected = IOException.class)
+    public void thatCorruptBlockIsDetected() throws IOException
+    {
+        File file = dump(createServer());
+
+        BlockDumpReader reader = new BlockDumpReader(file);
+        BlockInfo block = reader.getDocumentBlocks().get(0);
+        reader.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.seek(block.getOffset() + block.getLength() / 2);
+            int b = raf.read();
+            raf.seek(block.getOffset() + block.getLength() / 2);
+            raf.write(b ^ 0xff);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        reader = new BlockDumpReader(file);
+        try
+        {
+            reader.readBlock(reader.getDocumentBlocks().get(0));
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private static String attachment(BaseDocument doc, String name) throws IOException
+    {
+        return new String(Base64.decodeBase64(doc.getAttachments().get(name).getData().getBytes("UTF-8")), "UTF-8");
+    }
+
+    private static Map<String, BaseDocument> documents(ChangesServerMock server)
+    {
+        Map<String, BaseDocument> docs = new HashMap<String, BaseDocument>();
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+        for (ValueAndDocumentRow<Map<String,Object>, BaseDocument> row : db.listDocumentsWithContent(BaseDocument.class, null,
+            null).getRows())
+        {
+            docs.put(row.getId(), row.getDocument());
+        }
+        return docs;
+    }
+}
@@ -0,0 +1,178 @@
+package org.jcouchdb.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.jcouchdb.db.AttachmentServerMock;
+import org.jcouchdb.db.ChangesServerMock;
+import org.jcouchdb.document.Attachment;
+import org.jcouchdb.document.BaseDocument;
+import org.junit.Test;
+import org.svenson.JSONParser;
+
+public class CouchDBDumperPagingTestCase
+{
+    private static AttachmentServerMock createServer() throws IOException
+    {
+        AttachmentServerMock server = new AttachmentServerMock();
+        server.addChange("a", "{\"_id\":\"a\",\"_rev\":\"1-abc\"}");
+        server.addChange("b", "{\"_id\":\"b\",\"_rev\":\"2-abc\",\"_attachments\":{" +
+            "\"one.txt\":{\"content_type\":\"text/plain\",\"length\":3,\"stub\":true}," +
+            "\"two.txt\":{\"content_type\":\"text/plain\",\"length\":3,\"stub\":true}}}");
+        server.addAttachment("b", "one.txt", "one".getBytes("UTF-8"));
+        server.addAttachment("b", "two.txt", "two".getBytes("UTF-8"));
+        server.addChange("c", "{\"_id\":\"c\",\"_rev\":\"3-abc\"}");
+        server.addChange("d", "{\"_id\":\"d\",\"_rev\":\"4-abc\",\"_attachments\":{" +
+            "\"three.txt\":{\"content_type\":\"text/plain\",\"length\":5,\"stub\":true}}}");
+        server.addAttachment("d", "three.txt", "three".getBytes("UTF-8"));
+        server.addChange("e", "{\"_id\":\"e\",\"_rev\":\"5-abc\"}");
+        return server;
+    }
+
+    @Test
+    public void thatDumpIsWrittenPageByPage() throws IOException
+    {
+        AttachmentServerMock server = createServer();
+
+        CouchDBDumper dumper = new CouchDBDumper();
+        dumper.setPageSize(2);
+        dumper.setMaxPendingAttachments(1);
+        dumper.setCompressorThreads(3);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        dumper.dumpDatabase(server, "test", bos, false);
+
+        Map<String, String> entries = readZip(bos.toByteArray());
+        assertThat(new ArrayList<String>(entries.keySet()), is(Arrays.asList(CouchDBDumper.MANIFEST_ENTRY, "a.json", "b.json",
+            "b_attachments/one.txt", "b_attachments/two.txt", "c.json", "d.json", "d_attachments/three.txt",
+            "e.json")));
+        assertThat(entries.get("b_attachments/two.txt"), is("two"));
+        assertThat(entries.get("d_attachments/three.txt"), is("three"));
+
+        int pages = 0;
+        for (String uri : server.getRequests())
+        {
+            if (uri.indexOf("_all_docs") >= 0)
+            {
+                pages++;
+            }
+        }
+        assertThat(pages, is(3));
+    }
+
+    @Test
+    public void thatAttachmentsAreInlined() throws IOException
+    {
+        AttachmentServerMock server = createServer();
+
+        CouchDBDumper dumper = new CouchDBDumper();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        dumper.dumpDatabase(server, "test", bos, true);
+
+        Map<String, String> entries = readZip(bos.toByteArray());
+        assertThat(entries.size(), is(6));
+
+        BaseDocument doc = JSONParser.defaultJSONParser().parse(BaseDocument.class, entries.get("d.json"));
+        Attachment attachment = doc.getAttachments().get("three.txt");
+        assertThat(attachment.isStub(), is(false));
+        assertThat(new String(Base64.decodeBase64(attachment.getData().getBytes("US-ASCII")), "UTF-8"), is("three"));
+    }
+
+    @Test
+    public void thatInstantFetchesCompressCompleteDocuments() throws IOException
+    {
+        AttachmentServerMock server = createServer();
+
+        // fetches complete while the attachments of a document are still being submitted
+        CouchDBDumper dumper = new CouchDBDumper()
+        {
+            @Override
+            ExecutorService newExecutor(int threads)
+            {
+                return new InThreadExecutor();
+            }
+        };
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        dumper.dumpDatabase(server, "test", bos, false);
+
+        Map<String, String> entries = readZip(bos.toByteArray());
+        assertThat(entries.size(), is(9));
+        assertThat(entries.get("b_attachments/one.txt"), is("one"));
+        assertThat(entries.get("b_attachments/two.txt"), is("two"));
+        assertThat(entries.get("d_attachments/three.txt"), is("three"));
+    }
+
+    private static Map<String, String> readZip(byte[] data) throws IOException
+    {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(data));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null)
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = zis.read(buf)) != -1)
+            {
+                bos.write(buf, 0, n);
+            }
+            entries.put(entry.getName(), new String(bos.toByteArray(), "UTF-8"));
+        }
+        return entries;
+    }
+
+    /**
+     * Runs every task in the submitting thread.
+     */
+    static class InThreadExecutor
+        extends AbstractExecutorService
+    {
+        private boolean shutdown;
+
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+
+        public void shutdown()
+        {
+            shutdown = true;
+        }
+
+        public List<Runnable> shutdownNow()
+        {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        public boolean isShutdown()
+        {
+            return shutdown;
+        }
+
+        public boolean isTerminated()
+        {
+            return shutdown;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.jcouchdb.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.jcouchdb.db.ChangesServerMock;
+import org.jcouchdb.db.Database;
+import org.jcouchdb.db.DocumentStoreServerMock;
+import org.jcouchdb.document.BaseDocument;
+import org.jcouchdb.document.ValueAndDocumentRow;
+import org.junit.Test;
+
+public class CouchDBLoaderBatchTestCase
+{
+    @Test
+    public void thatDocumentsAreLoadedInBatches() throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bos);
+        addEntry(zos, "x.json", "{\"_id\":\"x\",\"_rev\":\"1-abc\"}");
+        addEntry(zos, "y.json", "{\"_id\":\"y\",\"_rev\":\"7-xyz\",\"v\":2}");
+        // attachment before its document
+        addEntry(zos, "z_attachments/a.txt", "aaa");
+        addEntry(zos, "z.json", "{\"_id\":\"z\",\"_rev\":\"1-xyz\",\"_attachments\":{" +
+            "\"a.txt\":{\"content_type\":\"text/plain\",\"length\":3,\"stub\":true}}}");
+        addEntry(zos, "w.json", "{\"_id\":\"w\",\"_rev\":\"1-xyz\",\"_attachments\":{" +
+            "\"b.txt\":{\"content_type\":\"text/plain\",\"length\":3,\"stub\":true}}}");
+        addEntry(zos, "w_attachments/b.txt", "bbb");
+        for (int i = 1; i <= 5; i++)
+        {
+            addEntry(zos, "n" + i + ".json", "{\"_id\":\"n" + i + "\",\"_rev\":\"1-xyz\"}");
+        }
+        zos.close();
+
+        DocumentStoreServerMock server = new DocumentStoreServerMock();
+        server.addChange("x", "{\"_id\":\"x\",\"_rev\":\"1-abc\"}");
+        server.addChange("y", "{\"_id\":\"y\",\"_rev\":\"2-abc\",\"v\":1}");
+
+        CouchDBLoader loader = new CouchDBLoader();
+        loader.setBatchSize(3);
+        loader.load(new ZipInputStream(new ByteArrayInputStream(bos.toByteArray())), server,
+            ChangesServerMock.DATABASE_NAME);
+
+        // one revision lookup and one bulk request per batch
+        int lookups = 0, bulkRequests = 0;
+        for (String uri : server.getRequests())
+        {
+            lookups += uri.indexOf("_all_docs?include_docs=true") >= 0 ? 1 : 0;
+            bulkRequests += uri.indexOf("_bulk_docs") >= 0 ? 1 : 0;
+        }
+        assertThat(lookups, is(3));
+        assertThat(bulkRequests, is(3));
+
+        Map<String, BaseDocument> docs = new HashMap<String, BaseDocument>();
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+        for (ValueAndDocumentRow<Map<String,Object>, BaseDocument> row : db.listDocumentsWithContent(BaseDocument.class, null,
+            null).getRows())
+        {
+            docs.put(row.getId(), row.getDocument());
+        }
+
+        assertThat(docs.size(), is(9));
+        assertThat(docs.get("x").getRevision(), is("1-abc"));
+        assertThat(docs.get("y").getProperty("v"), is((Object)1L));
+        assertThat(((List)docs.get("y").getProperty("jcl_conflicts")).size(), is(1));
+        assertThat(decode(docs.get("z").getAttachments().get("a.txt").getData()), is("aaa"));
+        assertThat(decode(docs.get("w").getAttachments().get("b.txt").getData()), is("bbb"));
+
+    }
+
+    private static void addEntry(ZipOutputStream zos, String name, String content) throws IOException
+    {
+        zos.putNextEntry(new ZipEntry(name));
+        zos.write(content.getBytes("UTF-8"));
+        zos.closeEntry();
+    }
+
+    private static String decode(String base64) throws IOException
+    {
+        return new String(Base64.decodeBase64(base64.getBytes("US-ASCII")), "UTF-8");
+    }
+}
@@ -0,0 +1,128 @@
+package org.jcouchdb.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.jcouchdb.db.ChangesServerMock;
+import org.jcouchdb.db.CheckpointStore;
+import org.jcouchdb.db.Database;
+import org.jcouchdb.db.DocumentStoreServerMock;
+import org.jcouchdb.document.BaseDocument;
+import org.jcouchdb.document.ValueAndDocumentRow;
+import org.junit.Test;
+
+public class IncrementalDumpTestCase
+{
+    @Test
+    public void thatDeltaDumpIsAppliedOnTopOfFullDump() throws IOException
+    {
+        ChangesServerMock source = new ChangesServerMock();
+        source.addChange("a", "{\"_id\":\"a\",\"_rev\":\"1-abc\",\"v\":1}");
+        source.addChange("b", "{\"_id\":\"b\",\"_rev\":\"2-abc\",\"v\":1}");
+        source.addChange("c", "{\"_id\":\"c\",\"_rev\":\"3-abc\",\"v\":1}");
+
+        CouchDBDumper dumper = new CouchDBDumper();
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        DumpManifest fullManifest = dumper.dumpDatabase(source, ChangesServerMock.DATABASE_NAME, full, false);
+        assertThat(fullManifest.isDelta(), is(false));
+        assertThat(fullManifest.getUpdateSequence(), is(3L));
+
+        source.addChange("b", "{\"_id\":\"b\",\"_rev\":\"4-abc\",\"v\":2}");
+        source.addChange("c", "{\"_id\":\"c\",\"_rev\":\"5-abc\",\"_deleted\":true}");
+        source.addChange("d", "{\"_id\":\"d\",\"_rev\":\"6-abc\",\"v\":1}");
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DumpManifest deltaManifest = dumper.dumpChanges(source, ChangesServerMock.DATABASE_NAME, delta, false,
+            fullManifest.getUpdateSequence());
+        assertThat(deltaManifest.isDelta(), is(true));
+        assertThat(deltaManifest.getSince(), is(3L));
+        assertThat(deltaManifest.getUpdateSequence(), is(6L));
+        assertThat(entryNames(delta.toByteArray()), is(Arrays.asList(CouchDBDumper.MANIFEST_ENTRY, "b.json", "c.json",
+            "d.json")));
+
+        DocumentStoreServerMock target = new DocumentStoreServerMock();
+        CouchDBLoader loader = new CouchDBLoader();
+        loader.load(new ZipInputStream(new ByteArrayInputStream(full.toByteArray())), target,
+            ChangesServerMock.DATABASE_NAME);
+        loader.load(new ZipInputStream(new ByteArrayInputStream(delta.toByteArray())), target,
+            ChangesServerMock.DATABASE_NAME);
+
+        Map<String, BaseDocument> docs = documents(target);
+        assertThat(docs.keySet().size(), is(3));
+        assertThat(docs.get("a").getProperty("v"), is((Object)1L));
+        assertThat(docs.get("b").getProperty("v"), is((Object)2L));
+        assertThat(docs.get("b").getProperty("jcl_conflicts") == null, is(true));
+        assertThat(docs.containsKey("c"), is(false));
+        assertThat(docs.get("d").getProperty("v"), is((Object)1L));
+    }
+
+    @Test
+    public void thatInterruptedDeltaDumpResumes() throws IOException
+    {
+        ChangesServerMock source = new ChangesServerMock();
+        for (String id : Arrays.asList("a", "b", "c", "d", "e"))
+        {
+            source.addChange(id);
+        }
+
+        final List<Long> cursor = new ArrayList<Long>(Arrays.asList(3L));
+        CheckpointStore store = new CheckpointStore()
+        {
+            public Long load()
+            {
+                return cursor.get(cursor.size() - 1);
+            }
+
+            public void store(long sequence)
+            {
+                cursor.add(sequence);
+            }
+        };
+
+        CouchDBDumper dumper = new CouchDBDumper();
+        dumper.setPageSize(1);
+        dumper.setCheckpointStore(store);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DumpManifest manifest = dumper.dumpChanges(source, ChangesServerMock.DATABASE_NAME, delta, false, 1);
+
+        assertThat(manifest.getSince(), is(3L));
+        assertThat(entryNames(delta.toByteArray()), is(Arrays.asList(CouchDBDumper.MANIFEST_ENTRY, "d.json",
+            "e.json")));
+        assertThat(cursor, is(Arrays.asList(3L, 4L, 5L)));
+    }
+
+    private static Map<String, BaseDocument> documents(ChangesServerMock server)
+    {
+        Map<String, BaseDocument> docs = new HashMap<String, BaseDocument>();
+        Database db = new Database(server, ChangesServerMock.DATABASE_NAME);
+        for (ValueAndDocumentRow<Map<String,Object>, BaseDocument> row : db.listDocumentsWithContent(BaseDocument.class, null,
+            null).getRows())
+        {
+            docs.put(row.getId(), row.getDocument());
+        }
+        return docs;
+    }
+
+    private static List<String> entryNames(byte[] data) throws IOException
+    {
+        List<String> names = new ArrayList<String>();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(data));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null)
+        {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,85 @@
+package org.jcouchdb.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.jcouchdb.document.DoubleViewResult;
+import org.jcouchdb.document.LongViewResult;
+import org.jcouchdb.document.StatsViewResult;
+import org.junit.Test;
+
+
+public class JSONStreamReaderTestCase
+{
+    @Test
+    public void thatReadingValuesWorks() throws UnsupportedEncodingException
+    {
+        JSONStreamReader reader = reader("{ \"a\" : [1, -2.5, \"x\\\"\\u00e4\u00f6\", true, null], \"b\" : {\"c\":false} }", 3);
+
+        Map<?,?> map = (Map<?,?>) reader.readValue();
+        assertThat(map.get("a"), is((Object) Arrays.asList((Object) 1L, -2.5, "x\"\u00e4\u00f6", true, null)));
+        assertThat(((Map<?,?>) map.get("b")).get("c"), is((Object) false));
+        assertThat(reader.peek(), is(-1));
+    }
+
+    @Test
+    public void thatReadingNumbersWorks() throws UnsupportedEncodingException
+    {
+        JSONStreamReader reader = reader("[0, 12345678901234, -7, 1.5e3, 0.1, 1E-2, 12345678901234567890123, 3.7]", 8192);
+        reader.beginArray();
+        reader.hasNext();
+        assertThat(reader.readLong(), is(0L));
+        reader.hasNext();
+        assertThat(reader.readLong(), is(12345678901234L));
+        reader.hasNext();
+        assertThat(reader.readLong(), is(-7L));
+        reader.hasNext();
+        assertThat(reader.readDouble(), is(1500.0));
+        reader.hasNext();
+        assertThat(reader.readDouble(), is(0.1));
+        reader.hasNext();
+        assertThat(reader.readDouble(), is(0.01));
+        reader.hasNext();
+        assertThat(reader.readDouble(), is(1.2345678901234568E22));
+        reader.hasNext();
+        assertThat(reader.readLong(), is(3L));
+        assertThat(reader.hasNext(), is(false));
+        reader.endArray();
+    }
+
+    @Test
+    public void thatReadingReducedResultsWorks() throws UnsupportedEncodingException
+    {
+        LongViewResult longs = new LongViewResult();
+        longs.read(reader("{\"rows\":[{\"key\":[\"a\",1],\"value\":3},{\"key\":\"b\",\"value\":42}]}", 16));
+        assertThat(longs.size(), is(2));
+        assertThat((List) longs.getKey(0), is(Arrays.asList((Object) "a", 1L)));
+        assertThat(longs.getValue(0), is(3L));
+        assertThat(longs.getValue(1), is(42L));
+
+        DoubleViewResult doubles = new DoubleViewResult();
+        doubles.read(reader("{\"rows\":[{\"key\":null,\"value\":2.25}]}", 16));
+        assertThat(doubles.size(), is(1));
+        assertThat(doubles.getKey(0), is(nullValue()));
+        assertThat(doubles.getValue(0), is(2.25));
+
+        StatsViewResult stats = new StatsViewResult();
+        stats.read(reader("{\"rows\":[{\"key\":\"x\",\"value\":{\"sum\":6,\"count\":3,\"min\":1,\"max\":3,\"sumsqr\":14}}]}", 16));
+        assertThat(stats.size(), is(1));
+        assertThat(stats.getCount(0), is(3L));
+        assertThat(stats.getMean(0), is(2.0));
+        assertThat(stats.getSumOfSquares(0), is(14.0));
+    }
+
+    private JSONStreamReader reader(String json, int bufferSize) throws UnsupportedEncodingException
+    {
+        return new JSONStreamReader(new ByteArrayInputStream(json.getBytes("UTF-8")), new byte[bufferSize]);
+    }
+}
@@ -0,0 +1,96 @@
+package org.jcouchdb.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+
+public class ZipArchiveWriterTestCase
+{
+    @Test
+    public void thatArchiveIsReadable() throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipArchiveWriter zip = new ZipArchiveWriter(bos);
+        zip.write(ZipArchiveWriter.compress("a.json", "{\"_id\":\"a\"}".getBytes("UTF-8"),
+            Deflater.DEFAULT_COMPRESSION));
+        zip.write(ZipArchiveWriter.compress("b_attachments/\u00fcml\u00e4ut.txt", new byte[10000],
+            Deflater.BEST_SPEED));
+        zip.write(ZipArchiveWriter.compress("empty", new byte[0], Deflater.DEFAULT_COMPRESSION));
+        zip.close();
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        assertThat(zis.getNextEntry().getName(), is("a.json"));
+        assertThat(new String(read(zis), "UTF-8"), is("{\"_id\":\"a\"}"));
+        assertThat(zis.getNextEntry().getName(), is("b_attachments/\u00fcml\u00e4ut.txt"));
+        assertThat(read(zis).length, is(10000));
+        assertThat(zis.getNextEntry().getName(), is("empty"));
+        assertThat(read(zis).length, is(0));
+        assertThat(zis.getNextEntry() == null, is(true));
+    }
+
+    @Test
+    public void thatManyEntriesUseZip64() throws IOException
+    {
+        File file = File.createTempFile("jcouchdb_zip64", ".zip");
+        try
+        {
+            int count = 70000;
+            ZipArchiveWriter zip = new ZipArchiveWriter(new BufferedOutputStream(new FileOutputStream(file)));
+            for (int i = 0; i < count; i++)
+            {
+                zip.write(ZipArchiveWriter.compress("doc" + i + ".json", ("{\"n\":" + i + "}").getBytes("UTF-8"),
+                    Deflater.BEST_SPEED));
+            }
+            zip.close();
+
+            ZipFile zipFile = new ZipFile(file);
+            try
+            {
+                assertThat(zipFile.size(), is(count));
+                ZipEntry entry = zipFile.getEntry("doc69999.json");
+                InputStream is = zipFile.getInputStream(entry);
+                try
+                {
+                    assertThat(new String(read(is), "UTF-8"), is("{\"n\":69999}"));
+                }
+                finally
+                {
+                    is.close();
+                }
+            }
+            finally
+            {
+                zipFile.close();
+            }
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    private static byte[] read(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = is.read(buf)) != -1)
+        {
+            bos.write(buf, 0, n);
+        }
+        return bos.toByteArray();
+    }
+}